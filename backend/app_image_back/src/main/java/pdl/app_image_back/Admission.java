@@ -0,0 +1,321 @@
+package pdl.app_image_back;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of the expensive image requests.
+ *
+ * Each class of endpoints has its own bulkhead, a pool of permits which the requests of that
+ * class share and the other requests never wait for, so that a burst of filters or detections
+ * can't hold every request thread. A request takes a number of permits proportional to its cost,
+ * the number of pixels of the image times the number of pixels its kernel reads, so that a large
+ * kernel on a large image runs alone while small requests run side by side. The requests which
+ * can't get their permits wait in a bounded queue, and are rejected with a delay after which to
+ * retry when the queue is full or when they have waited too long.
+ */
+public class Admission {
+
+    /**
+     * Bulkhead of the filter, convolution, pipeline and batch similarity endpoints.
+     */
+    public static final Bulkhead FILTERS = new Bulkhead("filters", Runtime.getRuntime().availableProcessors(), 16);
+
+    /**
+     * Bulkhead of the object detection at upload and of the labelling of the detected objects.
+     */
+    public static final Bulkhead DETECTION = new Bulkhead("detection", 2, 4);
+
+    private static volatile long unitCost = 16L << 20;
+
+    private static volatile long maxWaitMillis = 10000;
+
+    /**
+     * Thrown when a request isn't admitted.
+     */
+    public static class RejectedException extends Exception {
+
+        private final long retryAfter;
+
+        private RejectedException(String message, long retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * Gets the delay after which the request may be admitted.
+         *
+         * @return The delay in seconds, at least 1.
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    /**
+     * Permits of an admitted request, given back to its bulkhead when closed.
+     */
+    public static class Ticket implements AutoCloseable {
+
+        private final Bulkhead bulkhead;
+        private final Semaphore permits;
+        private final int units;
+        private final long admitted = System.nanoTime();
+
+        private Ticket(Bulkhead bulkhead, Semaphore permits, int units) {
+            this.bulkhead = bulkhead;
+            this.permits = permits;
+            this.units = units;
+        }
+
+        /**
+         * Gives the permits back and records how long the request ran.
+         */
+        @Override
+        public void close() {
+            permits.release(units);
+            bulkhead.completed.incrementAndGet();
+            bulkhead.serviceNanos.addAndGet(System.nanoTime() - admitted);
+        }
+    }
+
+    /**
+     * Bounded pool of permits of a class of endpoints, with a bounded queue of waiting requests.
+     */
+    public static class Bulkhead {
+
+        private final String name;
+        private volatile Semaphore permits;
+        private volatile int capacity;
+        private volatile int maxQueued;
+
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong serviceNanos = new AtomicLong();
+
+        Bulkhead(String name, int capacity, int maxQueued) {
+            this.name = name;
+            this.capacity = capacity;
+            this.maxQueued = maxQueued;
+            this.permits = new Semaphore(capacity, true);
+        }
+
+        /**
+         * Sets the size of the bulkhead. The requests already admitted give their permits back
+         * to the previous pool.
+         *
+         * @param capacity  - The number of permits, or 0 or less for the number of processors.
+         * @param maxQueued - The number of requests which can wait for permits.
+         */
+        public synchronized void configure(int capacity, int maxQueued) {
+            int permitCount = capacity > 0 ? capacity : Runtime.getRuntime().availableProcessors();
+            if (permitCount != this.capacity) {
+                this.permits = new Semaphore(permitCount, true);
+                this.capacity = permitCount;
+            }
+            this.maxQueued = Math.max(0, maxQueued);
+        }
+
+        /**
+         * Admits a request, waiting in the queue for its permits if they aren't available.
+         *
+         * @param cost - The cost of the request, in pixels read.
+         * @return The ticket of the request, to be closed when it is done.
+         * @throws RejectedException if the queue is full, or if the permits weren't available in time.
+         * @throws CancellationException if the current thread is interrupted while waiting, the request being cancelled.
+         */
+        public Ticket enter(long cost) throws RejectedException {
+            Semaphore pool = permits;
+            int units = units(cost);
+            long start = System.nanoTime();
+            try {
+                // A fair semaphore only honours the queue with a timeout, even a null one
+                if (pool.tryAcquire(units, 0, TimeUnit.NANOSECONDS)) {
+                    return admit(pool, units, start);
+                }
+                if (queued.incrementAndGet() > maxQueued) {
+                    queued.decrementAndGet();
+                    throw reject("the " + name + " queue is full");
+                }
+                boolean acquired;
+                try {
+                    acquired = pool.tryAcquire(units, maxWaitMillis, TimeUnit.MILLISECONDS);
+                } finally {
+                    queued.decrementAndGet();
+                }
+                if (!acquired) {
+                    throw reject("no " + name + " permits after " + maxWaitMillis + " ms");
+                }
+                return admit(pool, units, start);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted while waiting for " + name + " permits");
+            }
+        }
+
+        /**
+         * Converts a cost to a number of permits, a request taking at least one and at most all of them.
+         *
+         * @param cost - The cost of the request, in pixels read.
+         * @return The number of permits.
+         */
+        int units(long cost) {
+            long units = (Math.max(cost, 0) + unitCost - 1) / unitCost;
+            return (int) Math.max(1, Math.min(capacity, units));
+        }
+
+        private Ticket admit(Semaphore pool, int units, long start) {
+            long waited = System.nanoTime() - start;
+            admitted.incrementAndGet();
+            waitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            return new Ticket(this, pool, units);
+        }
+
+        private RejectedException reject(String message) {
+            rejected.incrementAndGet();
+            // The requests ahead have to run through the permits before this one
+            long service = getAverageServiceMillis();
+            long delay = (service*(queued.get() + 1)/capacity + 999)/1000;
+            return new RejectedException(message, Math.max(1, delay));
+        }
+
+        /**
+         * Gets the name of the bulkhead.
+         *
+         * @return The name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the number of permits of the bulkhead.
+         *
+         * @return The number of permits.
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Gets the number of permits not held by any request.
+         *
+         * @return The number of available permits.
+         */
+        public int getAvailable() {
+            return permits.availablePermits();
+        }
+
+        /**
+         * Gets the number of requests waiting for permits.
+         *
+         * @return The depth of the queue.
+         */
+        public int getQueued() {
+            return queued.get();
+        }
+
+        /**
+         * Gets the number of requests which can wait for permits.
+         *
+         * @return The bound of the queue.
+         */
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        /**
+         * Gets the number of admitted requests.
+         *
+         * @return The number of requests.
+         */
+        public long getAdmitted() {
+            return admitted.get();
+        }
+
+        /**
+         * Gets the number of rejected requests.
+         *
+         * @return The number of requests.
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * Gets the average time the admitted requests waited for their permits.
+         *
+         * @return The average wait in milliseconds.
+         */
+        public double getAverageWaitMillis() {
+            long count = admitted.get();
+            return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+        }
+
+        /**
+         * Gets the longest time an admitted request waited for its permits.
+         *
+         * @return The longest wait in milliseconds.
+         */
+        public double getMaxWaitMillis() {
+            return maxWaitNanos.get() / 1e6;
+        }
+
+        /**
+         * Gets the average time the requests held their permits.
+         *
+         * @return The average duration in milliseconds.
+         */
+        public long getAverageServiceMillis() {
+            long count = completed.get();
+            return count == 0 ? 0 : serviceNanos.get() / 1000000 / count;
+        }
+    }
+
+    /**
+     * Sets the cost of a permit. A request takes one permit for each unit cost, rounded up.
+     *
+     * @param cost - The number of pixels read for a permit.
+     */
+    public static void setUnitCost(long cost) {
+        unitCost = Math.max(1, cost);
+    }
+
+    /**
+     * Gets the cost of a permit.
+     *
+     * @return The number of pixels read for a permit.
+     */
+    public static long getUnitCost() {
+        return unitCost;
+    }
+
+    /**
+     * Sets how long a request waits in the queue before being rejected.
+     *
+     * @param millis - The longest wait in milliseconds.
+     */
+    public static void setMaxWaitMillis(long millis) {
+        maxWaitMillis = Math.max(0, millis);
+    }
+
+    /**
+     * Estimates the cost of a filter, the number of pixels it reads.
+     *
+     * @param width      - The width of the image.
+     * @param height     - The height of the image.
+     * @param kernelSize - The number of pixels read for each output pixel.
+     * @return The cost.
+     */
+    public static long cost(int width, int height, long kernelSize) {
+        return (long) width*height*Math.max(1, kernelSize);
+    }
+}
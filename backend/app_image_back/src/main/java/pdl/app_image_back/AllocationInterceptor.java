@@ -0,0 +1,66 @@
+package pdl.app_image_back;
+
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Records the bytes allocated by each image request with the AllocationMeter.
+ * The requests are grouped by method, path pattern and filter name,
+ * e.g. "GET /images/{id}/filter?name=Gray". The responses computed by AsyncProcessing are
+ * recorded once computed, on the thread computing them, and the dispatch of their
+ * result isn't measured. The responses streamed on another thread aren't recorded.
+ */
+public class AllocationInterceptor implements AsyncHandlerInterceptor {
+
+  /**
+   * Starts measuring the request.
+   *
+   * @param request  - The request.
+   * @param response - The response.
+   * @param handler  - The handler of the request.
+   * @return true, so that the request is always handled.
+   */
+  @Override
+  public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+    if (request.getDispatcherType() == DispatcherType.ASYNC) {
+      return true;
+    }
+    Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+    String kind = request.getMethod() + " " + (pattern != null ? pattern : request.getRequestURI());
+    if (request.getParameter("name") != null) {
+      kind += "?name=" + request.getParameter("name");
+    }
+    AllocationMeter.start(kind);
+    return true;
+  }
+
+  /**
+   * Stops measuring the request thread once the response is handed to another thread.
+   * AsyncProcessing has already taken the request over to record it.
+   *
+   * @param request  - The request.
+   * @param response - The response.
+   * @param handler  - The handler of the request.
+   */
+  @Override
+  public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+    AllocationMeter.cancel();
+  }
+
+  /**
+   * Records the bytes allocated by the request.
+   *
+   * @param request  - The request.
+   * @param response - The response.
+   * @param handler  - The handler of the request.
+   * @param ex       - The exception thrown by the handler, if any.
+   */
+  @Override
+  public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+    AllocationMeter.stop();
+  }
+}
@@ -0,0 +1,315 @@
+package pdl.app_image_back;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Measures the bytes allocated by each request, on the thread of the request and on the
+ * threads of the CpuExecutor and of the TileExecutor working for it.
+ *
+ * The counts come from com.sun.management.ThreadMXBean, which is available on HotSpot JVMs.
+ * On other JVMs nothing is measured. The JVM doesn't count the allocations of the virtual
+ * threads, so on a virtual request thread only the work handed to the pools is measured.
+ */
+public class AllocationMeter {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    /**
+     * Bytes allocated by the CpuExecutor and TileExecutor threads for the request of the current thread.
+     */
+    private static final ThreadLocal<LongAdder> current = new ThreadLocal<>();
+
+    /**
+     * Request measured on the current thread.
+     */
+    private static final ThreadLocal<Request> measuring = new ThreadLocal<>();
+
+    private static final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Allocations of the requests of a kind.
+     */
+    public static class Stats {
+        private long requests = 0;
+        private long total = 0;
+        private long max = 0;
+        private long last = 0;
+
+        private synchronized void add(long bytes) {
+            requests++;
+            total += bytes;
+            max = Math.max(max, bytes);
+            last = bytes;
+        }
+
+        /**
+         * Gets the number of measured requests.
+         *
+         * @return The number of requests.
+         */
+        public synchronized long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Gets the average number of bytes allocated by a request.
+         *
+         * @return The average number of bytes.
+         */
+        public synchronized long getAverageBytes() {
+            return requests == 0 ? 0 : total / requests;
+        }
+
+        /**
+         * Gets the largest number of bytes allocated by a request.
+         *
+         * @return The largest number of bytes.
+         */
+        public synchronized long getMaxBytes() {
+            return max;
+        }
+
+        /**
+         * Gets the number of bytes allocated by the last request.
+         *
+         * @return The number of bytes.
+         */
+        public synchronized long getLastBytes() {
+            return last;
+        }
+    }
+
+    /**
+     * A measured request. Its response may be computed on another thread, the request being
+     * recorded once the response is computed.
+     */
+    public static class Request {
+        private final String kind;
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+        private long start;
+
+        private Request(String kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * Wraps the task computing the response so that what it allocates, and what the work it
+         * hands to the pools allocates, is added to the request.
+         *
+         * @param <V>  the type of the result.
+         * @param task - The task.
+         * @return The measured task.
+         */
+        public <V> Supplier<V> measured(Supplier<V> task) {
+            return AllocationMeter.measured(bytes, task);
+        }
+
+        /**
+         * Records the request, once.
+         *
+         * @return The number of bytes allocated by the request, 0 if it was already recorded.
+         */
+        public long stop() {
+            if (THREADS == null || !recorded.compareAndSet(false, true)) {
+                return 0;
+            }
+            long total = bytes.sum();
+            stats.computeIfAbsent(kind, key -> new Stats()).add(total);
+            return total;
+        }
+    }
+
+    /**
+     * Gets the thread bean able to count the allocated bytes.
+     *
+     * @return The bean, or null if the JVM can't count the allocated bytes.
+     */
+    private static com.sun.management.ThreadMXBean threads() {
+        try {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+                bean.setThreadAllocatedMemoryEnabled(true);
+                return bean;
+            }
+        } catch (UnsupportedOperationException | LinkageError e) {
+            // Not a HotSpot JVM
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the allocations can be measured.
+     *
+     * @return true if the JVM counts the bytes allocated by each thread.
+     */
+    public static boolean isSupported() {
+        return THREADS != null;
+    }
+
+    /**
+     * Gets the number of bytes allocated by the current thread since it started.
+     *
+     * @return The number of bytes, or 0 if it can't be measured.
+     */
+    public static long allocatedBytes() {
+        // -1 on a virtual thread
+        return THREADS == null ? 0 : Math.max(0, THREADS.getCurrentThreadAllocatedBytes());
+    }
+
+    /**
+     * Starts measuring a request on the current thread.
+     *
+     * @param kind - The kind of request, under which it is recorded.
+     */
+    public static void start(String kind) {
+        Request request = new Request(kind);
+        current.set(request.bytes);
+        measuring.set(request);
+        request.start = allocatedBytes();
+    }
+
+    /**
+     * Stops measuring the request of the current thread and records it.
+     *
+     * @return The number of bytes allocated by the request, 0 if no request is measured.
+     */
+    public static long stop() {
+        Request request = detach();
+        return request == null ? 0 : request.stop();
+    }
+
+    /**
+     * Stops measuring the request of the current thread without recording it.
+     */
+    public static void cancel() {
+        current.remove();
+        measuring.remove();
+    }
+
+    /**
+     * Hands the request of the current thread to the thread computing its response, which
+     * records it with Request.stop once the response is computed.
+     *
+     * @return The request, or null if no request is measured.
+     */
+    public static Request detach() {
+        Request request = measuring.get();
+        cancel();
+        if (request != null) {
+            request.bytes.add(allocatedBytes() - request.start);
+        }
+        return request;
+    }
+
+    /**
+     * Wraps a task run on another thread so that what it allocates, and what the bands it
+     * submits allocate, are added to the request of the current thread.
+     *
+     * @param <V>  the type of the result.
+     * @param task - The task.
+     * @return The measured task, or the task itself if no request is measured.
+     */
+    public static <V> Supplier<V> measured(Supplier<V> task) {
+        return measured(current.get(), task);
+    }
+
+    /**
+     * Wraps a task so that what it allocates is added to the given bytes.
+     *
+     * @param <V>     the type of the result.
+     * @param workers - The bytes of the request, or null if no request is measured.
+     * @param task    - The task.
+     * @return The measured task, or the task itself if no request is measured.
+     */
+    private static <V> Supplier<V> measured(LongAdder workers, Supplier<V> task) {
+        if (workers == null || THREADS == null) {
+            return task;
+        }
+        return () -> {
+            long before = allocatedBytes();
+            current.set(workers);
+            try {
+                return task.get();
+            } finally {
+                current.remove();
+                workers.add(allocatedBytes() - before);
+            }
+        };
+    }
+
+    /**
+     * Wraps a band task so that what it allocates on another thread is added to the request
+     * of the current thread. The bands run on the current thread are already measured.
+     *
+     * @param task - The task.
+     * @return The measured task, or the task itself if no request is measured.
+     */
+    public static TileExecutor.BandTask measured(TileExecutor.BandTask task) {
+        LongAdder workers = current.get();
+        if (workers == null || THREADS == null) {
+            return task;
+        }
+        Thread caller = Thread.currentThread();
+        return (y0, y1) -> {
+            if (Thread.currentThread() == caller) {
+                task.run(y0, y1);
+                return;
+            }
+            long before = allocatedBytes();
+            try {
+                task.run(y0, y1);
+            } finally {
+                workers.add(allocatedBytes() - before);
+            }
+        };
+    }
+
+    /**
+     * Wraps a band computation like measured(BandTask).
+     *
+     * @param <T>  the type of the partial results.
+     * @param task - The computation.
+     * @return The measured computation, or the computation itself if no request is measured.
+     */
+    public static <T> TileExecutor.BandReducer<T> measured(TileExecutor.BandReducer<T> task) {
+        LongAdder workers = current.get();
+        if (workers == null || THREADS == null) {
+            return task;
+        }
+        Thread caller = Thread.currentThread();
+        return (y0, y1) -> {
+            if (Thread.currentThread() == caller) {
+                return task.run(y0, y1);
+            }
+            long before = allocatedBytes();
+            try {
+                return task.run(y0, y1);
+            } finally {
+                workers.add(allocatedBytes() - before);
+            }
+        };
+    }
+
+    /**
+     * Gets the allocations recorded for each kind of request.
+     *
+     * @return The statistics, sorted by kind of request.
+     */
+    public static Map<String, Stats> getStats() {
+        return new TreeMap<>(stats);
+    }
+
+    /**
+     * Forgets every recorded request.
+     */
+    public static void reset() {
+        stats.clear();
+    }
+}
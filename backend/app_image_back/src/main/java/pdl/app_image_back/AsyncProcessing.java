@@ -0,0 +1,117 @@
+package pdl.app_image_back;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Asynchronous responses of the processing endpoints.
+ *
+ * The response is computed on a task executor while the servlet thread goes back to the
+ * container. A request which takes longer than the timeout is answered with 503, and a request
+ * whose client went away is dropped. In both cases the task is interrupted, which cancels the
+ * computation it waits for on the CpuExecutor, and the filter stops at its next band.
+ * The request measured by the AllocationMeter is handed to the task, which records it once
+ * the response is computed.
+ */
+public class AsyncProcessing {
+
+    private static volatile long timeoutMillis = 30000;
+
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong timedOut = new AtomicLong();
+    private static final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * Computes a response asynchronously.
+     *
+     * @param executor - The executor running the request, on virtual threads when they are enabled.
+     * @param work     - Computes the response.
+     * @return The response to come, 503 if it isn't computed in time.
+     */
+    public static DeferredResult<ResponseEntity<?>> submit(AsyncTaskExecutor executor, Supplier<ResponseEntity<?>> work) {
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(timeoutMillis);
+        AllocationMeter.Request request = AllocationMeter.detach();
+        Supplier<ResponseEntity<?>> measured = request != null ? request.measured(work) : work;
+        Future<?> task = executor.submit(() -> {
+            try {
+                ResponseEntity<?> response;
+                try {
+                    response = measured.get();
+                } finally {
+                    if (request != null) {
+                        request.stop();
+                    }
+                }
+                if (result.setResult(response)) {
+                    completed.incrementAndGet();
+                }
+            } catch (CancellationException e) {
+                // The request timed out or its client went away, nobody waits for the response
+            } catch (RuntimeException | Error e) {
+                result.setErrorResult(e);
+            }
+        });
+        result.onTimeout(() -> {
+            timedOut.incrementAndGet();
+            task.cancel(true);
+            result.setResult(new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE));
+        });
+        result.onError(e -> {
+            cancelled.incrementAndGet();
+            task.cancel(true);
+        });
+        return result;
+    }
+
+    /**
+     * Sets how long a response is computed before the request is answered with 503.
+     *
+     * @param millis - The timeout in milliseconds.
+     */
+    public static void setTimeoutMillis(long millis) {
+        timeoutMillis = Math.max(1, millis);
+    }
+
+    /**
+     * Gets how long a response is computed before the request is answered with 503.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public static long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Gets the number of responses computed in time.
+     *
+     * @return The number of responses.
+     */
+    public static long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Gets the number of requests which timed out.
+     *
+     * @return The number of requests.
+     */
+    public static long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * Gets the number of requests dropped by their client before their response.
+     *
+     * @return The number of requests.
+     */
+    public static long getCancelled() {
+        return cancelled.get();
+    }
+}
@@ -0,0 +1,383 @@
+package pdl.app_image_back;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.Planar;
+
+/**
+ * Shared pool of the arrays backing the images, planes and encode buffers of the filters.
+ *
+ * The arrays are grouped in size classes of powers of two, so that an array released by a
+ * request can be borrowed by the next request on an image of a close size. The pool keeps
+ * at most a bounded number of bytes, the arrays released beyond it are left to the garbage
+ * collector. The arrays are borrowed through a Lease, which releases all of them when it is
+ * closed, once the result has been encoded.
+ */
+public class BufferPool {
+
+    /**
+     * Smallest size class, smaller arrays are cheap to allocate and aren't pooled.
+     */
+    private static final int MIN_CLASS = 12;
+
+    private static final int CLASSES = 31;
+
+    private static final int[] RGB_MASKS = {0xff0000, 0xff00, 0xff};
+
+    /**
+     * Color model of TYPE_INT_RGB, so that the pooled images are of that type.
+     */
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2], 0);
+
+    private static final int[] GRAY_OFFSETS = {0};
+
+    /**
+     * Color model of TYPE_BYTE_GRAY, so that the pooled gray images are of that type.
+     */
+    private static final ColorModel GRAY_MODEL = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY).getColorModel();
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<int[]>[] ints = new ArrayDeque[CLASSES];
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<float[]>[] floats = new ArrayDeque[CLASSES];
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<byte[]>[] bytes = new ArrayDeque[CLASSES];
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            ints[i] = new ArrayDeque<>();
+            floats[i] = new ArrayDeque<>();
+            bytes[i] = new ArrayDeque<>();
+        }
+    }
+
+    private static long maxRetainedBytes = 256L*1024*1024;
+    private static long retainedBytes = 0;
+    private static long borrowed = 0;
+    private static long reused = 0;
+
+    /**
+     * Sets the maximum number of bytes kept by the pool. Arrays already kept above it are dropped.
+     *
+     * @param max - The maximum number of bytes, 0 to disable the pool.
+     */
+    public static synchronized void setMaxRetainedBytes(long max) {
+        maxRetainedBytes = Math.max(max, 0);
+        for (int i = CLASSES - 1; i >= 0 && retainedBytes > maxRetainedBytes; i--) {
+            // The largest arrays are dropped first
+            retainedBytes -= (4L*ints[i].size() + 4L*floats[i].size() + bytes[i].size()) << i;
+            ints[i].clear();
+            floats[i].clear();
+            bytes[i].clear();
+        }
+    }
+
+    /**
+     * Gets the number of bytes kept by the pool.
+     *
+     * @return The number of bytes of the arrays waiting to be borrowed.
+     */
+    public static synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Gets the number of arrays borrowed from the pool.
+     *
+     * @return The number of borrowed arrays.
+     */
+    public static synchronized long getBorrowed() {
+        return borrowed;
+    }
+
+    /**
+     * Gets the number of borrowed arrays that were reused instead of allocated.
+     *
+     * @return The number of reused arrays.
+     */
+    public static synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * Computes the size class of a length.
+     *
+     * @param length - The length of an array.
+     * @return The smallest class whose arrays are at least that long.
+     */
+    private static int sizeClass(int length) {
+        return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1));
+    }
+
+    /**
+     * Finds the size class of a released array.
+     *
+     * @param length - The length of the array.
+     * @return The size class, or -1 if the array isn't exactly the length of a pooled class.
+     */
+    private static int releasedClass(int length) {
+        int sizeClass = sizeClass(length);
+        return length == 1 << sizeClass && sizeClass < CLASSES ? sizeClass : -1;
+    }
+
+    /**
+     * Borrows an int array.
+     *
+     * @param length - The minimum length.
+     * @return An array of at least that length, with undefined content.
+     */
+    public static int[] borrowInts(int length) {
+        int sizeClass = sizeClass(length);
+        synchronized (BufferPool.class) {
+            borrowed++;
+            int[] array = sizeClass < CLASSES ? ints[sizeClass].poll() : null;
+            if (array != null) {
+                reused++;
+                retainedBytes -= 4L*array.length;
+                return array;
+            }
+        }
+        return new int[sizeClass < CLASSES ? 1 << sizeClass : length];
+    }
+
+    /**
+     * Borrows a float array.
+     *
+     * @param length - The minimum length.
+     * @return An array of at least that length, with undefined content.
+     */
+    public static float[] borrowFloats(int length) {
+        int sizeClass = sizeClass(length);
+        synchronized (BufferPool.class) {
+            borrowed++;
+            float[] array = sizeClass < CLASSES ? floats[sizeClass].poll() : null;
+            if (array != null) {
+                reused++;
+                retainedBytes -= 4L*array.length;
+                return array;
+            }
+        }
+        return new float[sizeClass < CLASSES ? 1 << sizeClass : length];
+    }
+
+    /**
+     * Borrows a byte array.
+     *
+     * @param length - The minimum length.
+     * @return An array of at least that length, with undefined content.
+     */
+    public static byte[] borrowBytes(int length) {
+        int sizeClass = sizeClass(length);
+        synchronized (BufferPool.class) {
+            borrowed++;
+            byte[] array = sizeClass < CLASSES ? bytes[sizeClass].poll() : null;
+            if (array != null) {
+                reused++;
+                retainedBytes -= array.length;
+                return array;
+            }
+        }
+        return new byte[sizeClass < CLASSES ? 1 << sizeClass : length];
+    }
+
+    /**
+     * Gives an int array back to the pool. The array must not be used anymore.
+     *
+     * @param array - The array.
+     */
+    public static synchronized void release(int[] array) {
+        int sizeClass = releasedClass(array.length);
+        if (sizeClass >= 0 && retainedBytes + 4L*array.length <= maxRetainedBytes) {
+            ints[sizeClass].push(array);
+            retainedBytes += 4L*array.length;
+        }
+    }
+
+    /**
+     * Gives a float array back to the pool. The array must not be used anymore.
+     *
+     * @param array - The array.
+     */
+    public static synchronized void release(float[] array) {
+        int sizeClass = releasedClass(array.length);
+        if (sizeClass >= 0 && retainedBytes + 4L*array.length <= maxRetainedBytes) {
+            floats[sizeClass].push(array);
+            retainedBytes += 4L*array.length;
+        }
+    }
+
+    /**
+     * Gives a byte array back to the pool. The array must not be used anymore.
+     *
+     * @param array - The array.
+     */
+    public static synchronized void release(byte[] array) {
+        int sizeClass = releasedClass(array.length);
+        if (sizeClass >= 0 && retainedBytes + array.length <= maxRetainedBytes) {
+            bytes[sizeClass].push(array);
+            retainedBytes += array.length;
+        }
+    }
+
+    /**
+     * Opens a lease, to be closed once the borrowed buffers aren't used anymore.
+     *
+     * @return The lease.
+     */
+    public static Lease lease() {
+        return new Lease();
+    }
+
+    /**
+     * Buffers borrowed for a request, all released together when the lease is closed.
+     * A lease is used by a single request and isn't thread safe.
+     */
+    public static class Lease implements AutoCloseable {
+        private final List<int[]> intArrays = new ArrayList<>();
+        private final List<float[]> floatArrays = new ArrayList<>();
+        private final List<byte[]> byteArrays = new ArrayList<>();
+        private final List<PooledOutputStream> outputs = new ArrayList<>();
+
+        private Lease() {
+        }
+
+        /**
+         * Borrows a black image.
+         *
+         * @param width  - The width of the image.
+         * @param height - The height of the image.
+         * @return An image of type TYPE_INT_RGB, backed by a pooled array.
+         */
+        public BufferedImage image(int width, int height) {
+            int[] data = borrowInts(width*height);
+            intArrays.add(data);
+            // The images are drawn over, so the previous content must not show through
+            Arrays.fill(data, 0, width*height, 0);
+            WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, width*height), width, height, width, RGB_MASKS, null);
+            return new BufferedImage(RGB_MODEL, raster, false, null);
+        }
+
+        /**
+         * Borrows a gray image.
+         *
+         * @param width  - The width of the image.
+         * @param height - The height of the image.
+         * @return An image of type TYPE_BYTE_GRAY, backed by a pooled array, with undefined content.
+         */
+        public BufferedImage grayImage(int width, int height) {
+            byte[] data = borrowBytes(width*height);
+            byteArrays.add(data);
+            WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(data, width*height), width, height, width, 1, GRAY_OFFSETS, null);
+            return new BufferedImage(GRAY_MODEL, raster, false, null);
+        }
+
+        /**
+         * Borrows an int array.
+         *
+         * @param length - The minimum length.
+         * @return The array, with undefined content.
+         */
+        public int[] ints(int length) {
+            int[] data = borrowInts(length);
+            intArrays.add(data);
+            return data;
+        }
+
+        /**
+         * Borrows a single band image.
+         *
+         * @param width  - The width of the image.
+         * @param height - The height of the image.
+         * @return The image, backed by a pooled array, with undefined content.
+         */
+        public GrayF32 gray(int width, int height) {
+            float[] data = borrowFloats(width*height);
+            floatArrays.add(data);
+            GrayF32 gray = new GrayF32();
+            gray.data = data;
+            // The array is large enough, so reshape keeps it
+            gray.reshape(width, height);
+            return gray;
+        }
+
+        /**
+         * Borrows a multi band image.
+         *
+         * @param width  - The width of the image.
+         * @param height - The height of the image.
+         * @param bands  - The number of bands.
+         * @return The image, backed by pooled arrays, with undefined content.
+         */
+        public Planar<GrayF32> planar(int width, int height, int bands) {
+            Planar<GrayF32> planar = new Planar<>(GrayF32.class, 1, 1, bands);
+            for (int c = 0; c < bands; c++) {
+                float[] data = borrowFloats(width*height);
+                floatArrays.add(data);
+                planar.getBand(c).data = data;
+            }
+            planar.reshape(width, height);
+            return planar;
+        }
+
+        /**
+         * Borrows an output stream to encode an image.
+         *
+         * @param expected - The expected number of bytes.
+         * @return The stream, backed by a pooled array.
+         */
+        public ByteArrayOutputStream output(int expected) {
+            PooledOutputStream output = new PooledOutputStream(borrowBytes(expected));
+            outputs.add(output);
+            return output;
+        }
+
+        /**
+         * Releases every buffer borrowed with this lease.
+         */
+        @Override
+        public void close() {
+            for (int[] array : intArrays) {
+                release(array);
+            }
+            for (float[] array : floatArrays) {
+                release(array);
+            }
+            for (byte[] array : byteArrays) {
+                release(array);
+            }
+            for (PooledOutputStream output : outputs) {
+                release(output.buffer());
+            }
+            intArrays.clear();
+            floatArrays.clear();
+            byteArrays.clear();
+            outputs.clear();
+        }
+    }
+
+    /**
+     * Output stream writing into a pooled array, which is replaced if it gets too small.
+     */
+    private static class PooledOutputStream extends ByteArrayOutputStream {
+        PooledOutputStream(byte[] array) {
+            super(0);
+            buf = array;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package pdl.app_image_back;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * Cancellation token of a computation, checked by the TileExecutor between bands.
+ *
+ * The token is bound to the thread running the computation and carried to the threads
+ * working for it, like the allocations of AllocationMeter, so that a request which times out
+ * or whose client went away stops at the next band instead of running to completion.
+ */
+public class Cancellation {
+
+    private static final ThreadLocal<Cancellation> current = new ThreadLocal<>();
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Cancels the computation. The bands already running finish, the others aren't run.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Checks if the computation is cancelled.
+     *
+     * @return true if it is cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops the computation if it is cancelled.
+     *
+     * @throws CancellationException if it is cancelled.
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException("the computation was cancelled");
+        }
+    }
+
+    /**
+     * Gets the token of the computation of the current thread.
+     *
+     * @return The token, or null if the computation can't be cancelled.
+     */
+    public static Cancellation current() {
+        return current.get();
+    }
+
+    /**
+     * Wraps a task so that it runs with this token bound to its thread.
+     *
+     * @param <V>  the type of the result.
+     * @param task - The task.
+     * @return The task bound to this token.
+     */
+    public <V> Supplier<V> bind(Supplier<V> task) {
+        return () -> {
+            Cancellation previous = current.get();
+            current.set(this);
+            try {
+                throwIfCancelled();
+                return task.get();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Wraps a band task so that it isn't run once the computation of the current thread is cancelled.
+     *
+     * @param task - The task.
+     * @return The checked task, or the task itself if the computation can't be cancelled.
+     */
+    public static TileExecutor.BandTask checked(TileExecutor.BandTask task) {
+        Cancellation token = current.get();
+        if (token == null) {
+            return task;
+        }
+        return (y0, y1) -> {
+            token.throwIfCancelled();
+            task.run(y0, y1);
+        };
+    }
+
+    /**
+     * Wraps a band computation like checked(BandTask).
+     *
+     * @param <T>  the type of the partial results.
+     * @param task - The computation.
+     * @return The checked computation, or the computation itself if it can't be cancelled.
+     */
+    public static <T> TileExecutor.BandReducer<T> checked(TileExecutor.BandReducer<T> task) {
+        Cancellation token = current.get();
+        if (token == null) {
+            return task;
+        }
+        return (y0, y1) -> {
+            token.throwIfCancelled();
+            return task.run(y0, y1);
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package pdl.app_image_back;
+
+/**
+ * Listener notified by the ImageDao when the catalog of images changes.
+ * Every change increments the catalog version, which is given to the listener.
+ */
+public interface CatalogListener {
+
+  /**
+   * Called after an image has been added to the catalog.
+   *
+   * @param img     - The image that was added, with its descriptors.
+   * @param version - The catalog version after the change.
+   */
+  void imageCreated(final Image img, final long version);
+
+  /**
+   * Called after an image has been removed from the catalog.
+   *
+   * @param img     - The image that was removed.
+   * @param version - The catalog version after the change.
+   */
+  void imageDeleted(final Image img, final long version);
+
+  /**
+   * Called after the favorite status of an image has changed.
+   *
+   * @param id      - The ID of the image.
+   * @param value   - The new favorite status.
+   * @param version - The catalog version after the change.
+   */
+  void favoriteChanged(final long id, final boolean value, final long version);
+}
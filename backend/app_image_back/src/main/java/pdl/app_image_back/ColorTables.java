@@ -0,0 +1,217 @@
+package pdl.app_image_back;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import boofcv.alg.color.ColorHsv;
+
+/**
+ * Lookup tables replacing the per pixel RGB to HSV conversions.
+ *
+ * The hue computed by ColorHsv only depends on which channel is the maximum, on the
+ * difference of the two other channels and on the difference between the maximum and
+ * the minimum, and the saturation only depends on the maximum and the minimum. Every
+ * possible value is computed once by calling ColorHsv itself, so the tables give exactly
+ * the same floats as the conversion of each pixel.
+ */
+public class ColorTables {
+
+    /**
+     * Maximum number of recolour tables kept, the least recently used are evicted first.
+     */
+    private static final int MAX_RECOLOUR_TABLES = 16;
+
+    private static final int DIFFERENCES = 511;
+
+    /**
+     * Hue of every (channel of the maximum, difference of the other channels, max - min).
+     */
+    private static final float[] HUES = new float[3*DIFFERENCES*256];
+
+    /**
+     * Saturation of every (max - min, max).
+     */
+    private static final float[] SATURATIONS = new float[256*256];
+
+    private static final Map<Integer, int[]> recolourTables = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > MAX_RECOLOUR_TABLES;
+        }
+    };
+
+    static {
+        float[] hsv = new float[3];
+        for (int delta = 0; delta < 256; delta++) {
+            for (int diff = -delta; diff <= delta; diff++) {
+                // A pixel of each case with the minimum at 0: the maximum is delta
+                int lo = Math.max(-diff, 0), hi = Math.max(diff, 0);
+                ColorHsv.rgbToHsv(delta, hi, lo, hsv);
+                HUES[hueIndex(0, diff, delta)] = hsv[0];
+                if (diff > -delta) {
+                    ColorHsv.rgbToHsv(lo, delta, hi, hsv);
+                    HUES[hueIndex(1, diff, delta)] = hsv[0];
+                }
+                if (diff > -delta && diff < delta) {
+                    ColorHsv.rgbToHsv(hi, lo, delta, hsv);
+                    HUES[hueIndex(2, diff, delta)] = hsv[0];
+                }
+            }
+            for (int max = delta; max < 256; max++) {
+                ColorHsv.rgbToHsv(max, max - delta, max - delta, hsv);
+                SATURATIONS[delta*256 + max] = hsv[1];
+            }
+        }
+    }
+
+    /**
+     * Maps a value of hue or saturation to a bin.
+     */
+    @FunctionalInterface
+    public interface BinFunction {
+        /**
+         * Computes the bin of a value.
+         *
+         * @param value - The hue, in radians, or the saturation.
+         * @return The bin of the value.
+         */
+        int bin(float value);
+    }
+
+    /**
+     * Table of the Hue-Saturation bins of every RGB color.
+     */
+    public static class BinTable {
+        private final char[] hueBins = new char[HUES.length];
+        private final char[] saturationBins = new char[SATURATIONS.length];
+
+        private BinTable(BinFunction hueBin, int hueStride, BinFunction saturationBin, int saturationStride) {
+            for (int i = 0; i < HUES.length; i++) {
+                hueBins[i] = (char) (hueBin.bin(HUES[i])*hueStride);
+            }
+            for (int i = 0; i < SATURATIONS.length; i++) {
+                saturationBins[i] = (char) (saturationBin.bin(SATURATIONS[i])*saturationStride);
+            }
+        }
+
+        /**
+         * Computes the bin of a pixel.
+         *
+         * @param rgb - The packed RGB pixel.
+         * @return The index of the bin.
+         */
+        public int bin(int rgb) {
+            int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+            int max = Math.max(r, Math.max(g, b));
+            int delta = max - Math.min(r, Math.min(g, b));
+            return hueBins[hueIndex(r, g, b, max, delta)] + saturationBins[delta*256 + max];
+        }
+    }
+
+    /**
+     * Builds the table of the bins of a Hue-Saturation histogram, stored with the hue
+     * bin multiplied by hueStride plus the saturation bin multiplied by saturationStride.
+     * The stored values must stay below 65536.
+     *
+     * @param hueBin           - The mapping of a hue to its bin.
+     * @param hueStride        - The offset between two hue bins.
+     * @param saturationBin    - The mapping of a saturation to its bin.
+     * @param saturationStride - The offset between two saturation bins.
+     * @return The table.
+     */
+    public static BinTable binTable(BinFunction hueBin, int hueStride, BinFunction saturationBin, int saturationStride) {
+        return new BinTable(hueBin, hueStride, saturationBin, saturationStride);
+    }
+
+    /**
+     * Gets the hue of a pixel, as computed by ColorHsv.rgbToHsv.
+     *
+     * @param rgb - The packed RGB pixel.
+     * @return The hue, in radians, or NaN for gray pixels.
+     */
+    public static float hue(int rgb) {
+        int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        int max = Math.max(r, Math.max(g, b));
+        return HUES[hueIndex(r, g, b, max, max - Math.min(r, Math.min(g, b)))];
+    }
+
+    /**
+     * Gets the saturation of a pixel, as computed by ColorHsv.rgbToHsv.
+     *
+     * @param rgb - The packed RGB pixel.
+     * @return The saturation, between 0 and 1.
+     */
+    public static float saturation(int rgb) {
+        int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        int max = Math.max(r, Math.max(g, b));
+        return SATURATIONS[(max - Math.min(r, Math.min(g, b)))*256 + max];
+    }
+
+    /**
+     * Gets the table giving the packed RGB color of a pixel once its hue is replaced.
+     * Once the hue is set, the color only depends on the saturation and the value, that is
+     * on the maximum and the minimum of the channels, so the table is indexed by max*256 + min.
+     * The colors are computed by ColorHsv like in ImageProcessing.applyFilter.
+     *
+     * @param hue - The new hue, in degrees.
+     * @return The recolour table.
+     */
+    public static int[] recolourTable(int hue) {
+        synchronized (recolourTables) {
+            int[] table = recolourTables.get(hue);
+            if (table != null) {
+                return table;
+            }
+        }
+
+        int[] table = new int[256*256];
+        float deg = (float) ( ( Math.PI / 180 ) * hue );
+        float[] hsv = new float[3];
+        float[] color = new float[3];
+        for (int max = 0; max < 256; max++) {
+            for (int min = 0; min <= max; min++) {
+                ColorHsv.rgbToHsv(max, min, min, hsv);
+                ColorHsv.hsvToRgb(deg, hsv[1], hsv[2], color);
+                table[max*256 + min] = (int) color[0] << 16 | (int) color[1] << 8 | (int) color[2];
+            }
+        }
+
+        synchronized (recolourTables) {
+            recolourTables.put(hue, table);
+        }
+        return table;
+    }
+
+    /**
+     * Computes the index of a pixel in the hue table.
+     *
+     * @param r     - The red channel.
+     * @param g     - The green channel.
+     * @param b     - The blue channel.
+     * @param max   - The maximum of the channels.
+     * @param delta - The maximum minus the minimum of the channels.
+     * @return The index in the hue table.
+     */
+    private static int hueIndex(int r, int g, int b, int max, int delta) {
+        // Same order of the tests as ColorHsv
+        if (r == max) {
+            return hueIndex(0, g - b, delta);
+        }
+        if (g == max) {
+            return hueIndex(1, b - r, delta);
+        }
+        return hueIndex(2, r - g, delta);
+    }
+
+    /**
+     * Computes the index of a case in the hue table.
+     *
+     * @param channel - The channel of the maximum, 0 for red, 1 for green and 2 for blue.
+     * @param diff    - The difference of the two other channels.
+     * @param delta   - The maximum minus the minimum of the channels.
+     * @return The index in the hue table.
+     */
+    private static int hueIndex(int channel, int diff, int delta) {
+        return (channel*DIFFERENCES + diff + 255)*256 + delta;
+    }
+}
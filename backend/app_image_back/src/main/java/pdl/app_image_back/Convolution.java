@@ -0,0 +1,339 @@
+package pdl.app_image_back;
+
+import java.util.Arrays;
+
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.Planar;
+
+/**
+ * Convolution engine for float kernels.
+ *
+ * A kernel is given as kernel[row][column] with odd dimensions and is centered on each pixel,
+ * like in ImageProcessing.convolution. A rank-1 kernel is detected and applied as a row pass
+ * followed by a column pass, which costs 2k operations per pixel instead of k*k.
+ * Every band of an image is processed in the same traversal of the rows.
+ */
+public class Convolution {
+
+    /**
+     * Maximum radius of a kernel built from a sigma.
+     */
+    public static final int MAX_RADIUS = 50;
+
+    /**
+     * Relative tolerance under which a kernel is considered to be the product of a column and a row.
+     */
+    private static final float SEPARABLE_EPSILON = 1e-6f;
+
+    /**
+     * How the pixels outside of the image are read.
+     */
+    public enum Border {
+        /** The nearest pixel of the image is used. */
+        CLAMP,
+        /** The image is mirrored around its edge pixels. */
+        REFLECT,
+        /** The pixels outside of the image are 0. */
+        ZERO;
+
+        /**
+         * Finds a border mode from its name, as given in a request.
+         *
+         * @param name - The name of the border mode.
+         * @return The border mode, or null if the name is unknown.
+         */
+        public static Border fromName(String name) {
+            for (Border border : values()) {
+                if (border.name().equalsIgnoreCase(name)) {
+                    return border;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Builds a Gaussian blur kernel.
+     *
+     * @param sigma - The standard deviation of the Gaussian, in pixels.
+     * @return The normalized kernel, of radius ceil(3 sigma).
+     * @throws IllegalArgumentException if sigma isn't positive or gives a radius above MAX_RADIUS.
+     */
+    public static float[][] gaussian(double sigma) {
+        if (!(sigma > 0) || Math.ceil(3*sigma) > MAX_RADIUS) {
+            throw new IllegalArgumentException("sigma must be in ]0, " + MAX_RADIUS/3.0 + "]");
+        }
+        int radius = Math.max(1, (int) Math.ceil(3*sigma));
+        double[] weights = new double[2*radius + 1];
+        double total = 0;
+        for (int i = -radius; i <= radius; i++) {
+            weights[i + radius] = Math.exp(-(i*i) / (2*sigma*sigma));
+            total += weights[i + radius];
+        }
+        float[][] kernel = new float[weights.length][weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            for (int j = 0; j < weights.length; j++) {
+                kernel[i][j] = (float) (weights[i]*weights[j] / (total*total));
+            }
+        }
+        return kernel;
+    }
+
+    /**
+     * Builds a 3x3 sharpening kernel.
+     *
+     * @return The kernel.
+     */
+    public static float[][] sharpen() {
+        return new float[][] {{0, -1, 0}, {-1, 5, -1}, {0, -1, 0}};
+    }
+
+    /**
+     * Parses a kernel given as rows separated by ';' of values separated by ','.
+     *
+     * @param text - The kernel, e.g. "1,2,1;2,4,2;1,2,1".
+     * @return The kernel.
+     * @throws IllegalArgumentException if a value isn't a finite number, or if the rows
+     * don't all have the same odd length, or if the number of rows isn't odd.
+     */
+    public static float[][] parse(String text) {
+        if (text == null || text.isBlank()) {
+            throw new IllegalArgumentException("empty kernel");
+        }
+        String[] rows = text.split(";");
+        float[][] kernel = new float[rows.length][];
+        for (int i = 0; i < rows.length; i++) {
+            String[] values = rows[i].split(",");
+            kernel[i] = new float[values.length];
+            for (int j = 0; j < values.length; j++) {
+                kernel[i][j] = Float.parseFloat(values[j].trim());
+                if (!Float.isFinite(kernel[i][j])) {
+                    throw new IllegalArgumentException("kernel values must be finite");
+                }
+            }
+            if (values.length != kernel[0].length) {
+                throw new IllegalArgumentException("kernel rows must have the same length");
+            }
+        }
+        if (rows.length % 2 == 0 || kernel[0].length % 2 == 0 || rows.length > 2*MAX_RADIUS + 1 || kernel[0].length > 2*MAX_RADIUS + 1) {
+            throw new IllegalArgumentException("kernel dimensions must be odd and at most " + (2*MAX_RADIUS + 1));
+        }
+        return kernel;
+    }
+
+    /**
+     * Splits a kernel into a column and a row whose product is the kernel.
+     *
+     * @param kernel - The kernel.
+     * @return An array {column, row}, or null if the kernel isn't of rank 1.
+     */
+    public static float[][] separate(float[][] kernel) {
+        int height = kernel.length;
+        int width = kernel[0].length;
+
+        // The largest coefficient gives the most accurate factors
+        int p = 0, q = 0;
+        float max = 0;
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                if (Math.abs(kernel[i][j]) > max) {
+                    max = Math.abs(kernel[i][j]);
+                    p = i;
+                    q = j;
+                }
+            }
+        }
+
+        float[] column = new float[height];
+        float[] row = new float[width];
+        if (max == 0) {
+            return new float[][] {column, row};
+        }
+        for (int i = 0; i < height; i++) {
+            column[i] = kernel[i][q];
+        }
+        for (int j = 0; j < width; j++) {
+            row[j] = kernel[p][j] / kernel[p][q];
+        }
+
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                if (Math.abs(column[i]*row[j] - kernel[i][j]) > SEPARABLE_EPSILON*max) {
+                    return null;
+                }
+            }
+        }
+        return new float[][] {column, row};
+    }
+
+    /**
+     * Gets the number of pixels read for each output pixel by the convolution with a kernel.
+     *
+     * @param kernel - The kernel.
+     * @return rows + columns for a kernel of rank 1, applied in two passes, rows * columns otherwise.
+     */
+    public static long reads(float[][] kernel) {
+        if (separate(kernel) != null) {
+            return kernel.length + kernel[0].length;
+        }
+        return (long) kernel.length*kernel[0].length;
+    }
+
+    /**
+     * Convolves every band of an image with a kernel.
+     *
+     * @param input  - The input image.
+     * @param output - The output image, of the same shape.
+     * @param kernel - The kernel, of odd dimensions.
+     * @param border - How the pixels outside of the image are read.
+     */
+    public static void convolve(Planar<GrayF32> input, Planar<GrayF32> output, float[][] kernel, Border border) {
+        float[][] factors = separate(kernel);
+        if (factors == null) {
+            int[] columns = borderIndex(input.width, kernel[0].length/2, border);
+            int[] rows = borderIndex(input.height, kernel.length/2, border);
+            TileExecutor.forEachBand(input.height, (y0, y1) -> convolve2D(input, output, kernel, columns, rows, y0, y1));
+            return;
+        }
+
+        int[] columns = borderIndex(input.width, factors[1].length/2, border);
+        int[] rows = borderIndex(input.height, factors[0].length/2, border);
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            Planar<GrayF32> rowPass = lease.planar(input.width, input.height, input.getNumBands());
+            TileExecutor.forEachBand(input.height, (y0, y1) -> convolveRows(input, rowPass, factors[1], columns, y0, y1));
+            TileExecutor.forEachBand(input.height, (y0, y1) -> convolveColumns(rowPass, output, factors[0], rows, y0, y1));
+        }
+    }
+
+    /**
+     * Maps the coordinates of a padded axis to the coordinates of the image.
+     *
+     * @param length - The number of pixels along the axis.
+     * @param radius - The radius of the kernel along the axis.
+     * @param border - How the pixels outside of the image are read.
+     * @return An array where the entry k is the pixel read for the coordinate k - radius,
+     * or -1 if the pixel is 0.
+     */
+    static int[] borderIndex(int length, int radius, Border border) {
+        int[] index = new int[length + 2*radius];
+        int period = 2*(length - 1);
+        for (int k = 0; k < index.length; k++) {
+            int i = k - radius;
+            if (i >= 0 && i < length) {
+                index[k] = i;
+            }
+            else if (border == Border.ZERO) {
+                index[k] = -1;
+            }
+            else if (border == Border.CLAMP || length == 1) {
+                index[k] = Math.min(Math.max(i, 0), length - 1);
+            }
+            else {
+                i = Math.abs(i) % period;
+                index[k] = i < length ? i : period - i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Convolves the rows of a band with a kernel.
+     *
+     * @param input   - The input image.
+     * @param output  - The output image.
+     * @param kernel  - The full kernel.
+     * @param columns - The padded column index of the image.
+     * @param rows    - The padded row index of the image.
+     * @param y0      - The first row to process.
+     * @param y1      - The row after the last row to process.
+     */
+    static void convolve2D(Planar<GrayF32> input, Planar<GrayF32> output, float[][] kernel, int[] columns, int[] rows, int y0, int y1) {
+        for (int c = 0; c < input.getNumBands(); c++) {
+            GrayF32 in = input.getBand(c);
+            GrayF32 out = output.getBand(c);
+            for (int y = y0; y < y1; y++) {
+                int o = out.getIndex(0, y);
+                for (int x = 0; x < in.width; x++) {
+                    float sum = 0;
+                    for (int i = 0; i < kernel.length; i++) {
+                        if (rows[y + i] < 0) {
+                            continue;
+                        }
+                        int row = in.getIndex(0, rows[y + i]);
+                        for (int j = 0; j < kernel[i].length; j++) {
+                            int src = columns[x + j];
+                            if (src >= 0) {
+                                sum += kernel[i][j] * in.data[row + src];
+                            }
+                        }
+                    }
+                    out.data[o + x] = sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * Convolves the rows of a band with a horizontal kernel.
+     *
+     * @param input   - The input image.
+     * @param output  - The output image.
+     * @param kernel  - The horizontal kernel.
+     * @param columns - The padded column index of the image.
+     * @param y0      - The first row to process.
+     * @param y1      - The row after the last row to process.
+     */
+    private static void convolveRows(Planar<GrayF32> input, Planar<GrayF32> output, float[] kernel, int[] columns, int y0, int y1) {
+        for (int c = 0; c < input.getNumBands(); c++) {
+            GrayF32 in = input.getBand(c);
+            GrayF32 out = output.getBand(c);
+            for (int y = y0; y < y1; y++) {
+                int row = in.getIndex(0, y);
+                int o = out.getIndex(0, y);
+                for (int x = 0; x < in.width; x++) {
+                    float sum = 0;
+                    for (int j = 0; j < kernel.length; j++) {
+                        int src = columns[x + j];
+                        if (src >= 0) {
+                            sum += kernel[j] * in.data[row + src];
+                        }
+                    }
+                    out.data[o + x] = sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * Convolves the columns of a band with a vertical kernel.
+     * The rows are accumulated one after the other, so the image is read in memory order.
+     *
+     * @param input  - The input image.
+     * @param output - The output image.
+     * @param kernel - The vertical kernel.
+     * @param rows   - The padded row index of the image.
+     * @param y0     - The first row to process.
+     * @param y1     - The row after the last row to process.
+     */
+    private static void convolveColumns(Planar<GrayF32> input, Planar<GrayF32> output, float[] kernel, int[] rows, int y0, int y1) {
+        float[] sums = new float[input.width];
+        for (int c = 0; c < input.getNumBands(); c++) {
+            GrayF32 in = input.getBand(c);
+            GrayF32 out = output.getBand(c);
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(sums, 0);
+                for (int i = 0; i < kernel.length; i++) {
+                    if (rows[y + i] < 0) {
+                        continue;
+                    }
+                    int row = in.getIndex(0, rows[y + i]);
+                    float weight = kernel[i];
+                    for (int x = 0; x < in.width; x++) {
+                        sums[x] += weight * in.data[row + x];
+                    }
+                }
+                System.arraycopy(sums, 0, out.data, out.getIndex(0, y), in.width);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package pdl.app_image_back;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Platform threads running the CPU bound work of the requests: decoding, filtering, encoding
+ * and detecting objects.
+ *
+ * The requests are handled on virtual threads, which share a few carrier threads. A virtual
+ * thread computing for a long time holds its carrier, so the processing is handed to this pool
+ * of as many threads as processors, and the virtual thread waits for it without holding anything.
+ * The queue isn't bounded, the bulkheads of Admission bounding the number of requests in it.
+ */
+public class CpuExecutor {
+
+    /**
+     * Set on the threads of the pool, so that the work they submit runs where it is.
+     */
+    private static final ThreadLocal<Boolean> worker = new ThreadLocal<>();
+
+    private static volatile ThreadPoolExecutor pool = create(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Creates a pool of daemon threads.
+     *
+     * @param threads - The number of threads.
+     * @return The pool.
+     */
+    private static ThreadPoolExecutor create(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(() -> {
+                worker.set(Boolean.TRUE);
+                runnable.run();
+            }, "cpu-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Sets the number of threads of the pool.
+     *
+     * @param threads - The number of threads, or 0 or less to use every available processor.
+     */
+    public static synchronized void setThreads(int threads) {
+        int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        if (count != pool.getCorePoolSize()) {
+            ThreadPoolExecutor old = pool;
+            pool = create(count);
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Gets the number of threads of the pool.
+     *
+     * @return The number of threads.
+     */
+    public static int getThreads() {
+        return pool.getCorePoolSize();
+    }
+
+    /**
+     * Gets the number of threads running a task.
+     *
+     * @return The number of busy threads.
+     */
+    public static int getActive() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * Gets the number of tasks waiting for a thread.
+     *
+     * @return The number of tasks.
+     */
+    public static int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Gets the number of tasks run so far.
+     *
+     * @return The number of tasks.
+     */
+    public static long getCompleted() {
+        return pool.getCompletedTaskCount();
+    }
+
+    /**
+     * Runs a task on the pool and waits for its result. A task submitted from a thread of the pool
+     * runs on that thread, so that a task never waits for the queue it is holding up.
+     * What the task allocates is counted for the request of the current thread, see AllocationMeter.
+     * The task runs with its own Cancellation, cancelled if the current thread is interrupted.
+     *
+     * @param <V>  the type of the result.
+     * @param task - The task.
+     * @return The result of the task.
+     * @throws CancellationException if the current thread is interrupted while waiting, the task being cancelled.
+     */
+    public static <V> V call(Supplier<V> task) {
+        if (worker.get() != null) {
+            return task.get();
+        }
+        Cancellation token = new Cancellation();
+        Future<V> future = pool.submit(token.bind(AllocationMeter.measured(task))::get);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            // The bands not started yet are skipped
+            token.cancel();
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for the processing");
+        }
+    }
+}
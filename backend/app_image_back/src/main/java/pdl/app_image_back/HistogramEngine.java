@@ -0,0 +1,204 @@
+package pdl.app_image_back;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import boofcv.alg.feature.color.Histogram_F64;
+
+/**
+ * Shared engine computing the histograms of images.
+ *
+ * The pixels are read as packed ARGB ints and mapped to the index of their bin.
+ * Each band of rows of the TileExecutor fills its own partial histogram, and the
+ * partial histograms are summed once every band is done, so the threads never
+ * write to the same bins.
+ */
+public class HistogramEngine {
+
+    /**
+     * Maps a pixel to the index of its bin.
+     */
+    @FunctionalInterface
+    public interface BinIndexer {
+        /**
+         * Computes the bin of a pixel.
+         *
+         * @param argb - The packed ARGB pixel.
+         * @return The index of the bin, or -1 if the pixel isn't counted.
+         */
+        int bin(int argb);
+    }
+
+    /**
+     * Weight of a pixel according to its alpha value, as added by the image descriptors.
+     */
+    private static final float[] ALPHA_WEIGHTS = new float[256];
+
+    static {
+        for (int a = 0; a < 256; a++) {
+            ALPHA_WEIGHTS[a] = 1*(a/255f);
+        }
+    }
+
+    /**
+     * Gets the packed pixels of an image of type TYPE_INT_RGB or TYPE_INT_ARGB.
+     *
+     * @param image - The image.
+     * @return The pixels of the image, row by row.
+     */
+    public static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Counts the pixels of an image in each bin.
+     *
+     * @param pixels  - The packed pixels, row by row.
+     * @param width   - The width of the image.
+     * @param height  - The height of the image.
+     * @param bins    - The number of bins.
+     * @param indexer - The mapping of the pixels to the bins.
+     * @return The number of pixels of each bin.
+     */
+    public static int[] count(int[] pixels, int width, int height, int bins, BinIndexer indexer) {
+        int[] counts = TileExecutor.reduce(height, (y0, y1) -> {
+            int[] partial = new int[bins];
+            for (int i = y0*width; i < y1*width; i++) {
+                int bin = indexer.bin(pixels[i]);
+                if (bin >= 0) {
+                    partial[bin]++;
+                }
+            }
+            return partial;
+        }, (total, partial) -> {
+            for (int i = 0; i < bins; i++) {
+                total[i] += partial[i];
+            }
+            return total;
+        });
+        return counts == null ? new int[bins] : counts;
+    }
+
+    /**
+     * Sums the pixels of an image in each bin, weighted by their opacity.
+     * Opaque images give exact counts, translucent ones can differ from a sequential
+     * sum in the last bits because the bands are summed separately.
+     *
+     * @param pixels  - The packed ARGB pixels, row by row.
+     * @param width   - The width of the image.
+     * @param height  - The height of the image.
+     * @param bins    - The number of bins.
+     * @param indexer - The mapping of the pixels to the bins.
+     * @return The weight of each bin.
+     */
+    public static double[] accumulate(int[] pixels, int width, int height, int bins, BinIndexer indexer) {
+        double[] weights = TileExecutor.reduce(height, (y0, y1) -> {
+            double[] partial = new double[bins];
+            for (int i = y0*width; i < y1*width; i++) {
+                int bin = indexer.bin(pixels[i]);
+                if (bin >= 0) {
+                    partial[bin] += ALPHA_WEIGHTS[pixels[i] >>> 24];
+                }
+            }
+            return partial;
+        }, (total, partial) -> {
+            for (int i = 0; i < bins; i++) {
+                total[i] += partial[i];
+            }
+            return total;
+        });
+        return weights == null ? new double[bins] : weights;
+    }
+
+    /**
+     * Sums the pixels of each cell of a grid over an image in each bin, weighted by their opacity,
+     * as accumulate does for the whole image.
+     *
+     * @param pixels  - The packed ARGB pixels, row by row.
+     * @param width   - The width of the image.
+     * @param height  - The height of the image.
+     * @param grid    - The number of cells on each side of the grid.
+     * @param bins    - The number of bins of a cell.
+     * @param indexer - The mapping of the pixels to the bins.
+     * @return The weights of the bins of each cell, the cells row by row.
+     */
+    public static double[] accumulateGrid(int[] pixels, int width, int height, int grid, int bins, BinIndexer indexer) {
+        int length = grid*grid*bins;
+        // Offset of the first bin of the cell of each column, within a row of cells
+        int[] columns = new int[width];
+        for (int x = 0; x < width; x++) {
+            columns[x] = x*grid/width*bins;
+        }
+        double[] weights = TileExecutor.reduce(height, (y0, y1) -> {
+            double[] partial = new double[length];
+            for (int y = y0; y < y1; y++) {
+                int row = y*grid/height*grid*bins;
+                int i = y*width;
+                for (int x = 0; x < width; x++, i++) {
+                    int bin = indexer.bin(pixels[i]);
+                    if (bin >= 0) {
+                        partial[row + columns[x] + bin] += ALPHA_WEIGHTS[pixels[i] >>> 24];
+                    }
+                }
+            }
+            return partial;
+        }, (total, partial) -> {
+            for (int i = 0; i < length; i++) {
+                total[i] += partial[i];
+            }
+            return total;
+        });
+        return weights == null ? new double[length] : weights;
+    }
+
+    /**
+     * Builds the mapping of the pixels to the bins of a 3 dimensional RGB histogram.
+     * The bin of each channel value is looked up in a table built with the histogram
+     * itself, so the pixels fall in the same bins as with getDimensionIndex.
+     *
+     * @param histogram - The histogram, with one dimension per channel.
+     * @return The mapping of the pixels to the bins of the histogram.
+     */
+    public static BinIndexer rgbIndexer(Histogram_F64 histogram) {
+        int[][] tables = new int[3][256];
+        int[] strides = strides(histogram);
+        for (int i = 0; i < 3; i++) {
+            for (int v = 0; v < 256; v++) {
+                tables[i][v] = histogram.getDimensionIndex(i, v)*strides[i];
+            }
+        }
+        int[] red = tables[0], green = tables[1], blue = tables[2];
+        return argb -> red[(argb >> 16) & 0xff] + green[(argb >> 8) & 0xff] + blue[argb & 0xff];
+    }
+
+    /**
+     * Builds the table of the bins of a Hue-Saturation histogram.
+     * The table only depends on the bins and ranges of the histogram, so it should be
+     * built once and shared by the histograms of the same shape.
+     *
+     * @param histogram - The histogram, with a hue and a saturation dimension.
+     * @return The table of the bins of every color.
+     */
+    public static ColorTables.BinTable hueSaturationTable(Histogram_F64 histogram) {
+        int[] strides = strides(histogram);
+        return ColorTables.binTable(h -> histogram.getDimensionIndex(0, h), strides[0], s -> histogram.getDimensionIndex(1, s), strides[1]);
+    }
+
+    /**
+     * Computes the offset of a step along each dimension of a histogram.
+     *
+     * @param histogram - The histogram.
+     * @return The stride of each dimension.
+     */
+    private static int[] strides(Histogram_F64 histogram) {
+        int dimensions = histogram.getDimensions();
+        int[] strides = new int[dimensions];
+        int[] coordinate = new int[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            coordinate[i] = 1;
+            strides[i] = histogram.getIndex(coordinate);
+            coordinate[i] = 0;
+        }
+        return strides;
+    }
+}
@@ -1,6 +1,5 @@
 package pdl.app_image_back;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -11,18 +10,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
-
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
-import java.lang.NullPointerException;
-import boofcv.alg.color.ColorHsv;
 import boofcv.alg.descriptor.UtilFeature;
 import boofcv.alg.feature.color.Histogram_F64;
-import boofcv.io.image.ConvertBufferedImage;
-import boofcv.struct.image.GrayF32;
-import boofcv.struct.image.Planar;
+import pdl.object_recognition.Codecs;
+import pdl.object_recognition.DetectorPool;
 import pdl.object_recognition.Frame;
 import pdl.object_recognition.ObjectsRecognition;
 
@@ -32,15 +26,34 @@ import pdl.object_recognition.ObjectsRecognition;
 public class Image {
 
     private static Long count = Long.valueOf(0);
+
+    /**
+     * Number of cells on each side of the spatial grid descriptor.
+     */
+    public static final int GRID_SIZE = 2;
+
+    /**
+     * Size of the square images given to the object detection network.
+     */
+    private static final int DETECTION_SIZE = 608;
+
+    /**
+     * Bins of the Hue-Saturation histograms of every color, shared by the descriptors.
+     */
+    private static final ColorTables.BinTable HUE_SAT_BINS = HistogramEngine.hueSaturationTable(hueSatHistogram());
     
     static String labelRes = getResPath("models/yolov3-608/coco.names");
     static String weightsRes = getResPath("models/yolov3-608/yolov3.weights");
     static String configRes = getResPath("models/yolov3-608/yolov3.cfg");
 
-    private static ObjectsRecognition or = new ObjectsRecognition(
+    /**
+     * Detectors of the objects, one per concurrent detection.
+     */
+    private static final DetectorPool detectors = new DetectorPool(
       labelRes, 
       weightsRes,
-      configRes);
+      configRes,
+      0);
     private Long id;
     private String name;
     private int[] size;
@@ -48,10 +61,51 @@ public class Image {
     private MediaType type;
     private double[] hueSatHist;
     private double[] rgbHist;
+    private double[] gridHist;
+    private byte[] coarseCode;
     private ArrayList<Map<String, Object>> objects;
     private ArrayList<String> tags;
     private boolean isFav;
 
+    /**
+     * Sets the number of detectors, which are loaded when the concurrent detections need them.
+     *
+     * @param instances - The number of detectors, or 0 or less for the number of processors.
+     */
+    public static void setDetectorInstances(int instances) {
+      detectors.setSize(instances);
+    }
+
+    /**
+     * Selects the backend and the device the detections run on.
+     *
+     * @param backend - The name of the backend: default, opencv, openvino or cuda.
+     * @param target  - The name of the device: cpu, opencl, opencl-fp16, cuda or cuda-fp16.
+     * @throws IllegalArgumentException if the backend or the device is unknown.
+     */
+    public static void setDetectorBackend(String backend, String target) {
+      detectors.setBackend(ObjectsRecognition.backend(backend), ObjectsRecognition.target(target));
+    }
+
+    /**
+     * Sets the number of threads OpenCV runs a detection on, its share of the processors
+     * given by ProcessingConfiguration.splitProcessors.
+     *
+     * @param threads - The number of threads of a detection, at least 1.
+     */
+    public static void setDetectorThreads(int threads) {
+      ObjectsRecognition.setThreads(threads);
+    }
+
+    /**
+     * Gets the pool of the detectors, for its metrics.
+     *
+     * @return The pool.
+     */
+    public static DetectorPool getDetectors() {
+      return detectors;
+    }
+
     /**
      * Retrieves the file path of a resource.
      * 
@@ -74,12 +128,10 @@ public class Image {
      * @return An array containing the width and height of the image.
      */
     private int[] getSize(final byte[] data){
-        InputStream in = new ByteArrayInputStream(data);
         try {
-            BufferedImage buf = ImageIO.read(in);
-            int[] picSize = {buf.getWidth(), buf.getHeight()};
-            return picSize;
-        } catch (IOException|NullPointerException e) {
+            // Read from the header, the image isn't decoded
+            return Codecs.size(data);
+        } catch (IOException e) {
             int[] picSize = {0, 0};
             return picSize;
         }
@@ -103,58 +155,69 @@ public class Image {
     }
 
     /**
-     * Computes the RGB histogram of an image.
+     * Creates an empty Hue-Saturation histogram, with 12 bins of hue and 12 bins of saturation.
+     * 
+     * @return The histogram.
+     */
+    private static Histogram_F64 hueSatHistogram(){
+      Histogram_F64 histogram = new Histogram_F64(12, 12);
+      histogram.setRange(0, 0, 2.0*Math.PI); // range of hue is from 0 to 2PI
+      histogram.setRange(1, 0, 1.0);         // range of saturation is from 0 to 1
+      histogram.fill(0);
+      return histogram;
+    }
+
+    /**
+     * Decodes an image once for all its descriptors.
      * 
      * @param data - The byte data of the image.
-     * @return An array of doubles representing the RGB histogram.
+     * @return The decoded image, or null if the data is empty or can't be decoded.
      */
-    private double[] computeRgbHistogram(byte[] data){
+    private static BufferedImage decodeForDescriptors(byte[] data){
       if (data.length == 0){
-        return new double[0];
+        return null;
       }
-
-      // Creating a new image to read data from 
-      Planar<GrayF32> rgb = new Planar<>(GrayF32.class, 1, 1, 4);    // Use Planar for colors and GrayF32 for more accuracy
-
-      InputStream in = new ByteArrayInputStream(data);
-      BufferedImage buffered;
       try {
-        buffered = ImageIO.read(in);
+        return Codecs.decode(data);
       } catch (IOException e) {
-        return new double[0];
+        return null;
       }
+    }
 
-      // Convert the image to a format without an alpha channel
-      BufferedImage rgbImage = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_ARGB);
-      Graphics2D g2d = rgbImage.createGraphics();
-      g2d.drawImage(buffered, 0, 0, null);
-      g2d.dispose();
+    /**
+     * Computes the Hue-Saturation, RGB and spatial grid descriptors of an image from a single decoding.
+     * 
+     * @param data - The byte data of the image.
+     */
+    private void computeDescriptors(byte[] data){
+      BufferedImage buffered = decodeForDescriptors(data);
+      // Read the pixels as ARGB, the transparent pixels weigh less
+      int[] pixels = buffered == null ? null : RasterAdapter.toArgb(buffered);
+      this.hueSatHist = computeHsvHistogram(buffered, pixels);
+      this.rgbHist = computeRgbHistogram(buffered, pixels);
+      this.gridHist = computeGridHistogram(buffered, pixels);
+    }
 
-      rgb.reshape(rgbImage.getWidth(), rgbImage.getHeight());
-      ConvertBufferedImage.convertFrom(rgbImage, rgb, true);
+    /**
+     * Computes the RGB histogram of an image.
+     * 
+     * @param buffered - The decoded image, or null if it couldn't be decoded.
+     * @param pixels - The packed ARGB pixels of the image.
+     * @return An array of doubles representing the RGB histogram.
+     */
+    private static double[] computeRgbHistogram(BufferedImage buffered, int[] pixels){
+      if (buffered == null){
+        return new double[0];
+      }
 
       Histogram_F64 histogram = new Histogram_F64(10, 10, 10);
       histogram.setRange(0, 0, 255);
       histogram.setRange(1, 0, 255);
       histogram.setRange(2, 0, 255);
 
-
-      final int D = histogram.getDimensions();
-      int[] coordinate = new int[D];
-
-      histogram.fill(0);
-
-      for (int y = 0; y < rgb.getHeight(); y++) {
-        int imageIndex = rgb.getStartIndex() + y*rgb.getStride();
-        for (int x = 0; x < rgb.getWidth(); x++, imageIndex++) {
-          float alpha = rgb.getBand(3).get(x, y);
-          for (int i = 0; i < D; i++) {
-            coordinate[i] = histogram.getDimensionIndex(i, rgb.getBand(i).data[imageIndex]);
-          }
-          int index = histogram.getIndex(coordinate);
-          histogram.data[index] += 1*(alpha/255f);
-        }
-      }
+      double[] weights = HistogramEngine.accumulate(pixels, buffered.getWidth(), buffered.getHeight(),
+        histogram.data.length, HistogramEngine.rgbIndexer(histogram));
+      System.arraycopy(weights, 0, histogram.data, 0, weights.length);
 
       UtilFeature.normalizeL2(histogram);
 
@@ -164,62 +227,52 @@ public class Image {
     /**
      * Computes the Hue-Saturation histogram of an image.
      * 
-     * @param data - The byte data of the image.
+     * @param buffered - The decoded image, or null if it couldn't be decoded.
+     * @param pixels - The packed ARGB pixels of the image.
      * @return An array of doubles representing the Hue-Saturation histogram.
      */
-    private double[] computeHsvHistogram(byte[] data){
-      if (data.length == 0){
-        return new double[0];
-      }
-
-      Planar<GrayF32> rgb = new Planar<>(GrayF32.class, 1, 1, 4);
-      Planar<GrayF32> hsv = new Planar<>(GrayF32.class, 1, 1, 4);
-
-      InputStream in = new ByteArrayInputStream(data);
-      BufferedImage buffered;
-      try {
-        buffered = ImageIO.read(in);
-      } catch (IOException e) {
+    private static double[] computeHsvHistogram(BufferedImage buffered, int[] pixels){
+      if (buffered == null){
         return new double[0];
       }
 
-      BufferedImage rgbImage = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_ARGB);
-      Graphics2D g2d = rgbImage.createGraphics();
-      g2d.drawImage(buffered, 0, 0, null);
-      g2d.dispose();
+      Histogram_F64 histogram = hueSatHistogram();
 
-      rgb.reshape(rgbImage.getWidth(), rgbImage.getHeight());
-      hsv.reshape(rgbImage.getWidth(), rgbImage.getHeight());
+      double[] weights = HistogramEngine.accumulate(pixels, buffered.getWidth(), buffered.getHeight(),
+        histogram.data.length, HUE_SAT_BINS::bin);
+      System.arraycopy(weights, 0, histogram.data, 0, weights.length);
 
-      ConvertBufferedImage.convertFrom(rgbImage, rgb, true);
-      ColorHsv.rgbToHsv(rgb, hsv);      // Convert from rgb to hsv 
-
-      Planar<GrayF32> hs = hsv.partialSpectrum(0, 1);
+      UtilFeature.normalizeL2(histogram);
 
-      Histogram_F64 histogram = new Histogram_F64(12, 12);
-      histogram.setRange(0, 0, 2.0*Math.PI); // range of hue is from 0 to 2PI
-      histogram.setRange(1, 0, 1.0);         // range of saturation is from 0 to 1
+      return histogram.data;
+    }
 
-      final int D = histogram.getDimensions();
-      int[] coordinate = new int[D];
+    /**
+     * Computes the spatial Hue-Saturation descriptor of an image.
+     * The image is split in a GRID_SIZE x GRID_SIZE grid and a Hue-Saturation histogram
+     * is computed for each cell, so that the descriptor keeps where the colors are.
+     * 
+     * @param buffered - The decoded image, or null if it couldn't be decoded.
+     * @param pixels - The packed ARGB pixels of the image.
+     * @return An array of doubles holding the L2-normalized histogram of each cell, row by row.
+     */
+    private static double[] computeGridHistogram(BufferedImage buffered, int[] pixels){
+      if (buffered == null){
+        return new double[0];
+      }
 
-      histogram.fill(0);
+      Histogram_F64 cell = hueSatHistogram();
+      int cellLength = cell.data.length;
+      double[] grid = HistogramEngine.accumulateGrid(pixels, buffered.getWidth(), buffered.getHeight(),
+        GRID_SIZE, cellLength, HUE_SAT_BINS::bin);
 
-      for (int y = 0; y < hs.getHeight(); y++) {
-        int imageIndex = hs.getStartIndex() + y*rgb.getStride();
-        for (int x = 0; x < hs.getWidth(); x++, imageIndex++) {
-          float alpha = rgb.getBand(3).get(x, y);
-          for (int i = 0; i < D; i++) {
-            coordinate[i] = histogram.getDimensionIndex(i, hs.getBand(i).data[imageIndex]);
-          }
-          int index = histogram.getIndex(coordinate);
-          histogram.data[index] += 1*(alpha/255f);
-        }
+      for (int i = 0; i < GRID_SIZE*GRID_SIZE; i++) {
+        System.arraycopy(grid, i*cellLength, cell.data, 0, cellLength);
+        UtilFeature.normalizeL2(cell);
+        System.arraycopy(cell.data, 0, grid, i*cellLength, cellLength);
       }
 
-      UtilFeature.normalizeL2(histogram);
-
-      return histogram.data;
+      return grid;
     }
 
   /**
@@ -235,29 +288,31 @@ public class Image {
       return resArray;
     }
 
-    InputStream is = new ByteArrayInputStream(data);
     BufferedImage bi;
+    int[] size;
     try {
-      bi = ImageIO.read(is);
+      // The network sees the image resized to DETECTION_SIZE pixels, so a smaller decoded image is enough
+      size = Codecs.size(data);
+      bi = Codecs.decode(data, Codecs.reduction(size[0], size[1], DETECTION_SIZE, DETECTION_SIZE));
     } catch (IOException e) {
       return resArray;
     }
 
-    BufferedImage rgbImage = new BufferedImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
-    Graphics2D g2d = rgbImage.createGraphics();
-    g2d.drawImage(bi, 0, 0, null);
-    g2d.dispose();
+    BufferedImage rgbImage = RasterAdapter.toBgr(bi);
+    // Scale of the frames back to the size of the image
+    double scaleX = (double) size[0]/bi.getWidth();
+    double scaleY = (double) size[1]/bi.getHeight();
 
-    HashMap<Frame, ArrayList<Map<String, Object>>> objects = or.detectObjects(rgbImage, 1);
+    HashMap<Frame, ArrayList<Map<String, Object>>> objects = detectors.detectObjects(rgbImage, 1);
 
     for (Frame frm : objects.keySet()) {
       HashMap<String, Object> resMap = new HashMap<>();
       resMap.put("label", objects.get(frm).get(0).get("label"));
       resMap.put("confidence", objects.get(frm).get(0).get("confidence"));
-      resMap.put("width", frm.getWidth());
-      resMap.put("height", frm.getHeight());
-      resMap.put("pos_x", frm.getI().getX());
-      resMap.put("pos_y", frm.getI().getY());
+      resMap.put("width", (int) Math.round(frm.getWidth()*scaleX));
+      resMap.put("height", (int) Math.round(frm.getHeight()*scaleY));
+      resMap.put("pos_x", (int) Math.round(frm.getI().getX()*scaleX));
+      resMap.put("pos_y", (int) Math.round(frm.getI().getY()*scaleY));
   
       resArray.add(resMap);
     }
@@ -310,8 +365,7 @@ public class Image {
       this.data = data;
       this.size = getSize(this.data);
       this.type = getMediaType(this.data);
-      this.hueSatHist = computeHsvHistogram(data);
-      this.rgbHist = computeRgbHistogram(data);
+      computeDescriptors(data);
       this.objects = idObjects(data);
       this.tags = makeTags(this.objects, this.name);
       this.isFav = isFav;
@@ -331,8 +385,7 @@ public class Image {
       this.data = data;
       this.size = getSize(this.data);
       this.type = getMediaType(this.data);
-      this.hueSatHist = computeHsvHistogram(data);
-      this.rgbHist = computeRgbHistogram(data);
+      computeDescriptors(data);
       this.objects = idObjects(data);
       this.tags = makeTags(this.objects, this.name);
       this.isFav = isFav;
@@ -358,6 +411,8 @@ public class Image {
       this.type = type;
       this.hueSatHist = hshist;
       this.rgbHist = rgbhist;
+      BufferedImage buffered = decodeForDescriptors(data);
+      this.gridHist = computeGridHistogram(buffered, buffered == null ? null : RasterAdapter.toArgb(buffered));
       this.objects = idObjects(data);
       this.tags = makeTags(this.objects, this.name);
       this.isFav = isFav;
@@ -379,6 +434,26 @@ public class Image {
      */
     public Image(final String name, final byte[] data, long id, int[] size, MediaType type, 
     double[] hshist, double[] rgbhist, ArrayList<Map<String, Object>> objects, ArrayList<String> tags, boolean isFav) {
+      this(name, data, id, size, type, hshist, rgbhist, new double[0], objects, tags, isFav);
+    }
+
+    /**
+     * Constructs an Image object with provided parameters.
+     * 
+     * @param name - The name of the image.
+     * @param data - The byte data of the image.
+     * @param id - The ID of the image.
+     * @param size - The size of the image.
+     * @param type - The MediaType of the image.
+     * @param hshist - The Hue-Saturation histogram of the image.
+     * @param rgbhist - The RGB histogram of the image.
+     * @param gridhist - The spatial grid of Hue-Saturation histograms of the image.
+     * @param objects - The detected objects in the image.
+     * @param tags - The tags associated with the image.
+     * @param isFav - The favorite status of the image.
+     */
+    public Image(final String name, final byte[] data, long id, int[] size, MediaType type, 
+    double[] hshist, double[] rgbhist, double[] gridhist, ArrayList<Map<String, Object>> objects, ArrayList<String> tags, boolean isFav) {
       this.id = id;
       this.name = name;
       this.data = data;
@@ -386,11 +461,24 @@ public class Image {
       this.type = type;
       this.hueSatHist = hshist;
       this.rgbHist = rgbhist;
+      this.gridHist = gridhist;
       this.objects = objects;
       this.tags = tags;
       this.isFav = isFav;
     }
 
+    /**
+     * Copies the metadata and the descriptors of the image, without its data.
+     * 
+     * @return The copy of the image, to be kept without its data.
+     */
+    public Image metadata() {
+      Image meta = new Image(name, new byte[0], id, new int[] {getWidth(), getHeight()}, type,
+        hueSatHist, rgbHist, gridHist, objects, tags, isFav);
+      meta.coarseCode = coarseCode;
+      return meta;
+    }
+
     /**
      * Checks if the image is empty.
      * 
@@ -496,6 +584,37 @@ public class Image {
       return this.rgbHist;
     }
 
+    /**
+     * Gets the spatial grid of Hue-Saturation histograms of the image.
+     * 
+     * @return The spatial grid descriptor of the image.
+     */
+    public double[] getGridHist(){
+      return this.gridHist;
+    }
+
+    /**
+     * Gets the coarse descriptor of the image, computed from its Hue-Saturation histogram
+     * the first time it is needed unless it was stored with the image.
+     * 
+     * @return The quantized coarse descriptor, empty if the histogram is empty.
+     */
+    public byte[] getCoarseCode(){
+      if (this.coarseCode == null) {
+        this.coarseCode = ImageComparison.coarseDescriptor(this.hueSatHist);
+      }
+      return this.coarseCode;
+    }
+
+    /**
+     * Sets the coarse descriptor of the image, as stored with it.
+     * 
+     * @param coarseCode - The quantized coarse descriptor.
+     */
+    public void setCoarseCode(byte[] coarseCode){
+      this.coarseCode = coarseCode;
+    }
+
     /**
      * Gets the count of image instances.
      * 
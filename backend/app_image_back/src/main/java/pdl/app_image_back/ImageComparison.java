@@ -1,10 +1,13 @@
 package pdl.app_image_back;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.lang.IndexOutOfBoundsException;
+import java.util.PriorityQueue;
 
 /**
  * A utility class for comparing images based on histograms.
@@ -12,129 +15,369 @@ import java.lang.IndexOutOfBoundsException;
 public class ImageComparison {
 
     /**
-     * Computes the Euclidean distance between two arrays.
-     * 
-     * @param i - The first array.
-     * @param j - The second array.
-     * @return The Euclidean distance between the two arrays.
+     * Number of columns of the blocks used by the distance kernels.
+     * A block of descriptors fits comfortably in cache while a band of queries is compared to it.
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * Side of the pooled hue-saturation grid used by the coarse descriptor.
+     * The 12x12 hue-saturation histogram is pooled down to COARSE_BINS x COARSE_BINS.
+     */
+    private static final int COARSE_BINS = 4;
+
+    /**
+     * Minimum number of candidates kept by the coarse stage of a cascade search.
+     */
+    private static final int MIN_SHORTLIST = 32;
+
+    /**
+     * Number of candidates kept by the coarse stage for each requested result.
      */
-    private static Double getDistance(double[] i, double[] j){
+    private static final int SHORTLIST_FACTOR = 4;
 
+    /**
+     * The distance metrics available to compare descriptors.
+     */
+    public enum Metric {
+        EUCLIDEAN,
+        MANHATTAN;
+
+        /**
+         * Parses a metric from its request parameter name.
+         * 
+         * @param name - The name of the metric ("euclidean" or "manhattan").
+         * @return The matching metric, or null if the name is unknown.
+         */
+        public static Metric fromName(String name) {
+            switch (name) {
+                case "euclidean":
+                    return EUCLIDEAN;
+                case "manhattan":
+                    return MANHATTAN;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Computes the distance between two arrays with the given metric.
+     * 
+     * @param i      - The first array.
+     * @param j      - The second array.
+     * @param metric - The metric to use.
+     * @return The distance between the two arrays.
+     */
+    public static double getDistance(double[] i, double[] j, Metric metric){
         double total = 0.0;
+        if (metric == Metric.MANHATTAN) {
+            for (int k = 0; k < i.length; k++) {
+                total += Math.abs(i[k] - j[k]);
+            }
+            return total;
+        }
         for (int k = 0; k < i.length; k++) {
-            total += Math.pow((i[k] - j[k]), 2);
+            double d = i[k] - j[k];
+            total += d*d;
         }
+        return Math.sqrt(total);
+    }
 
-        return Double.valueOf(Math.sqrt(total));
+    /**
+     * Returns the stored descriptor of an image matching a descriptor name.
+     * 
+     * @param img        - The image.
+     * @param descriptor - The descriptor name ("hshist", "rgbhist" or "gridhist").
+     * @return The descriptor of the image, or null if the name is unknown.
+     */
+    public static double[] getDescriptor(Image img, String descriptor){
+        switch (descriptor) {
+            case "hshist":
+                return img.getHueTintHist();
+            case "rgbhist":
+                return img.getRGBHist();
+            case "gridhist":
+                return img.getGridHist();
+            default:
+                return null;
+        }
     }
 
     /**
-     * Compares a given histogram with a list of histograms and returns a map of distances.
+     * Checks if a descriptor name is supported.
      * 
-     * @param in     - The histogram to compare.
-     * @param imList - The list of histograms to compare against as a Map.
-     * @return A map containing distances between the given histogram and each histogram in the list.
+     * @param descriptor - The descriptor name.
+     * @return true if the descriptor can be compared, false otherwise.
      */
-    private static Map<Long, Double> compareHist(double[] in, Map<Long, double[]> imList){
+    public static boolean isDescriptor(String descriptor){
+        return descriptor.equals("hshist") || descriptor.equals("rgbhist") || descriptor.equals("gridhist");
+    }
 
-        Map<Long, Double> out = new HashMap<>();
+    /**
+     * Computes the distances between every pair of descriptors of two lists.
+     * The bands of rows run on the TileExecutor, each one going through the columns block by block.
+     * When both lists are the same, only the upper half of the matrix is computed and mirrored.
+     * 
+     * @param rows   - The descriptors indexing the rows of the matrix.
+     * @param cols   - The descriptors indexing the columns of the matrix.
+     * @param metric - The metric to use.
+     * @return A matrix where the cell (r, c) is the distance between rows[r] and cols[c].
+     */
+    public static double[][] distanceMatrix(double[][] rows, double[][] cols, Metric metric){
+        double[][] out = new double[rows.length][cols.length];
+        boolean symmetric = rows == cols;
+        TileExecutor.forEachBand(rows.length, (r0, r1) -> {
+            for (int c0 = symmetric ? r0 : 0; c0 < cols.length; c0 += BLOCK_SIZE) {
+                int c1 = Math.min(c0 + BLOCK_SIZE, cols.length);
+                for (int r = r0; r < r1; r++) {
+                    double[] a = rows[r];
+                    for (int c = symmetric ? Math.max(c0, r) : c0; c < c1; c++) {
+                        double d = getDistance(a, cols[c], metric);
+                        out[r][c] = d;
+                        if (symmetric) {
+                            // The cell (c, r) is below the diagonal, which no band computes
+                            out[c][r] = d;
+                        }
+                    }
+                }
+            }
+        });
+        return out;
+    }
 
-        for (Map.Entry<Long, double[]> pair : imList.entrySet()) {
-            out.put(pair.getKey(), getDistance(in, pair.getValue()));
+    /**
+     * Computes the pairwise distance matrix of a list of images.
+     * 
+     * @param images     - The images to compare.
+     * @param descriptor - The descriptor name ("hshist" or "rgbhist").
+     * @param metric     - The metric to use.
+     * @return A symmetric matrix where the cell (i, j) is the distance between images i and j.
+     */
+    public static double[][] pairwiseDistances(ArrayList<Image> images, String descriptor, Metric metric){
+        double[][] descriptors = new double[images.size()][];
+        for (int i = 0; i < images.size(); i++) {
+            descriptors[i] = getDescriptor(images.get(i), descriptor);
         }
-
-        return out;
+        return distanceMatrix(descriptors, descriptors, metric);
     }
 
     /**
-     * Compares the hue-saturation histogram of an image with the histograms of other images in the list.
+     * Finds the closest images of several query images in a single pass over the catalog.
      * 
-     * @param inId   - The ID of the input image.
-     * @param imList - The list of images.
-     * @param maxNum - The maximum number of results to return.
-     * @return An ArrayList containing arrays of Image objects and their corresponding distances, sorted by distance.
-     * @throws IndexOutOfBoundsException if the input image ID is invalid.
+     * @param inIds      - The IDs of the query images.
+     * @param imList     - The list of images.
+     * @param maxNum     - The maximum number of results to return for each query.
+     * @param descriptor - The descriptor name ("hshist", "rgbhist" or "gridhist").
+     * @param metric     - The metric to use.
+     * @return A map from each query ID to an ArrayList of Image objects and their distances, sorted by distance.
+     * @throws IllegalArgumentException if one of the query IDs isn't in the list.
      */
-    public static ArrayList<Object[]> compareHueSatHist(long inId, ArrayList<Image> imList, int maxNum){
-        Map<Long, double[]> arrayMap = new HashMap<>();
-        Map<Long, Image> imgMap = new HashMap<>();
+    public static Map<Long, ArrayList<Object[]>> compareBatch(long[] inIds, ArrayList<Image> imList, int maxNum, String descriptor, Metric metric){
+        return compareBatch(inIds, imList, maxNum, descriptor, metric, null);
+    }
 
-        Image inImg = new Image("", new byte[0], -1, false);
+    /**
+     * Finds the closest images of several query images among a subset of the catalog.
+     * Only the images selected by the bitmap are compared, the queries themselves don't need to be selected.
+     * 
+     * @param inIds      - The IDs of the query images.
+     * @param imList     - The list of images.
+     * @param maxNum     - The maximum number of results to return for each query.
+     * @param descriptor - The descriptor name ("hshist", "rgbhist" or "gridhist").
+     * @param metric     - The metric to use.
+     * @param candidates - The positions in imList of the images that can be returned, or null for every image.
+     * @return A map from each query ID to an ArrayList of Image objects and their distances, sorted by distance.
+     * @throws IllegalArgumentException if one of the query IDs isn't in the list.
+     */
+    public static Map<Long, ArrayList<Object[]>> compareBatch(long[] inIds, ArrayList<Image> imList, int maxNum, String descriptor, Metric metric, BitSet candidates){
+        Map<Long, Integer> positions = new HashMap<>();
+        for (int i = 0; i < imList.size(); i++) {
+            positions.put(imList.get(i).getId(), i);
+        }
 
-        for (Image img : imList) {
-            if (img.getId() != inId){
-                arrayMap.put(img.getId(), img.getHueTintHist());
-            }
-            else {
-                inImg = img;
+        // Only the selected images enter the distance kernel
+        boolean all = candidates == null || candidates.cardinality() == imList.size();
+        ArrayList<Image> selected = new ArrayList<>();
+        Map<Long, Integer> selectedPositions = new HashMap<>();
+        for (int i = 0; i < imList.size(); i++) {
+            if (all || candidates.get(i)) {
+                selectedPositions.put(imList.get(i).getId(), selected.size());
+                selected.add(imList.get(i));
             }
-            imgMap.put(img.getId(), img);
+        }
+        double[][] catalog = new double[selected.size()][];
+        for (int i = 0; i < catalog.length; i++) {
+            catalog[i] = getDescriptor(selected.get(i), descriptor);
         }
 
-        if (inImg.isEmpty()){
-            throw new IndexOutOfBoundsException(inId);
+        double[][] queries = new double[inIds.length][];
+        int[] selves = new int[inIds.length];
+        for (int q = 0; q < inIds.length; q++) {
+            Integer pos = positions.get(inIds[q]);
+            if (pos == null) {
+                throw new IllegalArgumentException("unknown image " + inIds[q]);
+            }
+            queries[q] = getDescriptor(imList.get(pos), descriptor);
+            Integer self = selectedPositions.get(inIds[q]);
+            selves[q] = self == null ? -1 : self;
         }
 
-        Map<Long, Double> distances = compareHist(inImg.getHueTintHist(), arrayMap);
+        // Each band of queries goes through the catalog block by block, feeding a bounded heap per query,
+        // so that only the results are kept rather than the queries x catalog distances
+        ArrayList<ArrayList<Object[]>> closest = new ArrayList<>(Collections.nCopies(inIds.length, null));
+        if (maxNum > 0) {
+            TileExecutor.forEachBand(inIds.length, (q0, q1) -> {
+                ArrayList<PriorityQueue<Object[]>> heaps = new ArrayList<>();
+                for (int q = q0; q < q1; q++) {
+                    heaps.add(new PriorityQueue<>(maxNum + 1, (a, b) -> Double.compare((Double) b[1], (Double) a[1])));
+                }
+                for (int c0 = 0; c0 < catalog.length; c0 += BLOCK_SIZE) {
+                    int c1 = Math.min(c0 + BLOCK_SIZE, catalog.length);
+                    for (int q = q0; q < q1; q++) {
+                        PriorityQueue<Object[]> heap = heaps.get(q - q0);
+                        for (int c = c0; c < c1; c++) {
+                            if (c == selves[q]) {
+                                continue;
+                            }
+                            double d = getDistance(queries[q], catalog[c], metric);
+                            if (heap.size() < maxNum) {
+                                heap.add(new Object[] {selected.get(c), Double.valueOf(d)});
+                            }
+                            else if (d < (Double) heap.peek()[1]) {
+                                heap.poll();
+                                heap.add(new Object[] {selected.get(c), Double.valueOf(d)});
+                            }
+                        }
+                    }
+                }
+                for (int q = q0; q < q1; q++) {
+                    ArrayList<Object[]> out = new ArrayList<>(heaps.get(q - q0));
+                    out.sort(Comparator.comparingDouble(o -> (Double) o[1]));
+                    closest.set(q, out);
+                }
+            });
+        }
 
-        ArrayList<Object[]> out = new ArrayList<>();
+        Map<Long, ArrayList<Object[]>> result = new LinkedHashMap<>();
+        for (int q = 0; q < inIds.length; q++) {
+            result.put(inIds[q], maxNum > 0 ? closest.get(q) : new ArrayList<>());
+        }
+        return result;
+    }
 
-        for (Map.Entry<Long, Double> pair : distances.entrySet()) {
-            Object[] field = {imgMap.get(pair.getKey()), pair.getValue()};
-            out.add(field);
+    /**
+     * Computes the coarse descriptor of an image from its hue-saturation histogram.
+     * The histogram is pooled to a COARSE_BINS x COARSE_BINS grid, L2-normalized
+     * and quantized to one byte per bin, so that it can be compared with integer arithmetic.
+     * It is computed once when the image is added and stored next to its histograms.
+     * 
+     * @param hshist - The 12x12 hue-saturation histogram of the image.
+     * @return The quantized coarse descriptor, one unsigned byte per bin, or an empty array if the histogram is empty.
+     */
+    public static byte[] coarseDescriptor(double[] hshist){
+        if (hshist.length == 0) {
+            return new byte[0];
+        }
+        int side = (int) Math.round(Math.sqrt(hshist.length));
+        int pool = Math.max(1, side / COARSE_BINS);
+        double[] pooled = new double[COARSE_BINS*COARSE_BINS];
+        for (int h = 0; h < side; h++) {
+            for (int s = 0; s < side; s++) {
+                pooled[Math.min(h/pool, COARSE_BINS-1)*COARSE_BINS + Math.min(s/pool, COARSE_BINS-1)] += hshist[h*side + s];
+            }
         }
 
-        out.sort(Comparator.comparingDouble(o -> (Double) o[1]));
+        double norm = 0.0;
+        for (double v : pooled) {
+            norm += v*v;
+        }
+        norm = Math.sqrt(norm);
 
-        int size = Math.min(maxNum, out.size());
-        ArrayList<Object[]> result = new ArrayList<>(out.subList(0, size));
+        byte[] code = new byte[pooled.length];
+        for (int i = 0; i < pooled.length; i++) {
+            code[i] = (byte) (norm == 0.0 ? 0 : Math.round(pooled[i] / norm * 255));
+        }
+        return code;
+    }
 
-        return result;
+    /**
+     * Computes the Manhattan distance between two coarse descriptors.
+     * 
+     * @param i - The first coarse descriptor.
+     * @param j - The second coarse descriptor.
+     * @return The distance between the two descriptors.
+     */
+    private static int getCoarseDistance(byte[] i, byte[] j){
+        int total = 0;
+        for (int k = 0; k < i.length; k++) {
+            total += Math.abs((i[k] & 0xFF) - (j[k] & 0xFF));
+        }
+        return total;
     }
 
     /**
-     * Compares the RGB histogram of an image with the histograms of other images in the list.
+     * Finds the closest images of an image with a coarse-to-fine cascade.
+     * The stored coarse descriptors of every image are compared first to keep a shortlist of
+     * candidates, then only the shortlist is re-ranked with the spatial grid descriptors.
      * 
      * @param inId   - The ID of the input image.
      * @param imList - The list of images.
      * @param maxNum - The maximum number of results to return.
+     * @param metric - The metric used to re-rank the candidates.
+     * @param candidates - The positions in imList of the images that can be returned, or null for every image.
      * @return An ArrayList containing arrays of Image objects and their corresponding distances, sorted by distance.
-     * @throws IndexOutOfBoundsException if the input image ID is invalid.
+     * @throws IllegalArgumentException if the input image isn't in the list or has no spatial grid descriptor.
      */
-    public static ArrayList<Object[]> compareRGBHist(long inId, ArrayList<Image> imList, int maxNum){
-        Map<Long, double[]> arrayMap = new HashMap<>();
-        Map<Long, Image> imgMap = new HashMap<>();
-
-        Image inImg = new Image("", new byte[0], -1, false);
-
+    public static ArrayList<Object[]> compareCascade(long inId, ArrayList<Image> imList, int maxNum, Metric metric, BitSet candidates){
+        Image inImg = null;
         for (Image img : imList) {
-            if (img.getId() != inId){
-                arrayMap.put(img.getId(), img.getRGBHist());
-            }
-            else {
+            if (img.getId() == inId) {
                 inImg = img;
             }
-            imgMap.put(img.getId(), img);
         }
-
-        if (inImg.isEmpty()){
-            throw new IndexOutOfBoundsException(inId);
+        if (inImg == null || inImg.getGridHist().length == 0) {
+            throw new IllegalArgumentException("unknown image " + inId);
         }
 
-        Map<Long, Double> distances = compareHist(inImg.getRGBHist(), arrayMap);
-
         ArrayList<Object[]> out = new ArrayList<>();
+        if (maxNum <= 0) {
+            return out;
+        }
 
-        for (Map.Entry<Long, Double> pair : distances.entrySet()) {
-            Object[] field = {imgMap.get(pair.getKey()), pair.getValue()};
+        // Coarse stage: keep the closest candidates on the quantized descriptor
+        byte[] inCode = inImg.getCoarseCode();
+        int shortlistSize = Math.max(maxNum * SHORTLIST_FACTOR, MIN_SHORTLIST);
+        PriorityQueue<Object[]> shortlist = new PriorityQueue<>(shortlistSize + 1, (a, b) -> Integer.compare((Integer) b[1], (Integer) a[1]));
+        for (int i = 0; i < imList.size(); i++) {
+            if (candidates != null && !candidates.get(i)) {
+                continue;
+            }
+            Image img = imList.get(i);
+            byte[] code = img.getCoarseCode();
+            if (img.getId() == inId || code.length != inCode.length || img.getGridHist().length != inImg.getGridHist().length) {
+                continue;
+            }
+            int d = getCoarseDistance(inCode, code);
+            if (shortlist.size() < shortlistSize) {
+                shortlist.add(new Object[] {img, d});
+            }
+            else if (d < (Integer) shortlist.peek()[1]) {
+                shortlist.poll();
+                shortlist.add(new Object[] {img, d});
+            }
+        }
+
+        // Fine stage: re-rank the shortlist on the spatial grid descriptor
+        for (Object[] candidate : shortlist) {
+            Image img = (Image) candidate[0];
+            Object[] field = {img, Double.valueOf(getDistance(inImg.getGridHist(), img.getGridHist(), metric))};
             out.add(field);
         }
 
         out.sort(Comparator.comparingDouble(o -> (Double) o[1]));
 
         int size = Math.min(maxNum, out.size());
-        ArrayList<Object[]> result = new ArrayList<>(out.subList(0, size));
-
-        return result;
+        return new ArrayList<>(out.subList(0, size));
     }
-}
\ No newline at end of file
+}
@@ -1,40 +1,51 @@
 package pdl.app_image_back;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Scanner;
-
-import javax.imageio.ImageIO;
+import java.util.function.Supplier;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
+import jakarta.servlet.http.HttpServletResponse;
+
+import pdl.object_recognition.Codecs;
+import pdl.object_recognition.DetectorPool;
 import pdl.object_recognition.Labeling;
+import pdl.object_recognition.ObjectsRecognition;
 
 /**
  * REST controller for handling connection between the front and backend.
@@ -47,6 +58,28 @@ public class ImageController {
 
   private final ImageDao imageDao;
 
+  @Autowired
+  private SimilarityCache similarityCache;
+
+  @Autowired
+  private NeighbourIndex neighbourIndex;
+
+  @Autowired
+  private PipelineCache pipelineCache;
+
+  /**
+   * Executor of the asynchronous responses, on virtual threads when they are enabled.
+   */
+  @Autowired
+  @Qualifier("applicationTaskExecutor")
+  private AsyncTaskExecutor taskExecutor;
+
+  /**
+   * Responses being computed, keyed by the endpoint and its canonical parameters, so that
+   * identical concurrent requests share one computation.
+   */
+  private final SingleFlight<String, ResponseEntity<?>> inFlight = new SingleFlight<>();
+
   /**
    * Constructs an ImageController with the specified ImageDao.
    * 
@@ -82,7 +115,7 @@ public class ImageController {
   @RequestMapping(value = "/images/{id}", method = RequestMethod.DELETE)
   public ResponseEntity<?> deleteImage(@PathVariable("id") long id) {
 
-    Optional<Image> image = imageDao.retrieve(id);
+    Optional<Image> image = imageDao.retrieveContent(id);
 
     if (image.isPresent()) {
       imageDao.delete(image.get());
@@ -107,9 +140,21 @@ public class ImageController {
       return new ResponseEntity<>(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
     }
 
-    // Try creating the new image we want to add to the server
+    // Try creating the new image we want to add to the server, the objects being detected in it
+    byte[] data;
     try {
-      imageDao.createWithFile(new Image(file.getOriginalFilename(), file.getBytes(), false));
+      data = file.getBytes();
+    } catch (IOException e) {
+      return new ResponseEntity<>(HttpStatus.NOT_ACCEPTABLE);
+    }
+    Image img;
+    try {
+      img = compute(Admission.DETECTION, cost(data, 1), () -> new Image(file.getOriginalFilename(), data, false));
+    } catch (Admission.RejectedException e) {
+      return tooManyRequests(e);
+    }
+    try {
+      imageDao.createWithFile(img);
     } catch (FileAlreadyExistsException e) {
       return new ResponseEntity<>(HttpStatus.CONFLICT); // Return a conflict status code
     } catch (IOException e) {
@@ -207,38 +252,185 @@ public class ImageController {
    * 
    * @param id - The ID of the reference image.
    * @param maxNb - The maximum number of similar images to retrieve.
-   * @param method - The descriptor comparison method ("hshist" or "rgbhist").
-   * @return ResponseEntity containing a JSON array of similar images metadata.
+   * @param method - The descriptor comparison method ("hshist", "rgbhist" or "gridhist").
+   * @param metricName - The distance metric ("euclidean" or "manhattan").
+   * @param tag - The comma-separated tags the similar images must have (optional).
+   * @param label - The comma-separated labels that must be detected on the similar images (optional).
+   * @param favorite - The favorite status of the similar images (optional).
+   * @param minWidth - The minimum width of the similar images (optional).
+   * @param maxWidth - The maximum width of the similar images (optional).
+   * @param minHeight - The minimum height of the similar images (optional).
+   * @param maxHeight - The maximum height of the similar images (optional).
+   * @return ResponseEntity containing a JSON array of similar images metadata, computed asynchronously.
    */
   @RequestMapping(value = "/images/{id}/similar", method = RequestMethod.GET, produces = "application/json")
   @ResponseBody
-  public ResponseEntity<?> getClosestImages(@PathVariable("id") long id, @RequestParam("number") int maxNb, @RequestParam("descriptor") String method) {
+  public DeferredResult<ResponseEntity<?>> getClosestImages(@PathVariable("id") long id, @RequestParam("number") int maxNb, @RequestParam("descriptor") String method,
+    @RequestParam(value = "metric", defaultValue = "euclidean") String metricName,
+    @RequestParam(value = "tag", required = false) String tag, @RequestParam(value = "label", required = false) String label,
+    @RequestParam(value = "favorite", required = false) Boolean favorite,
+    @RequestParam(value = "minWidth", required = false) Integer minWidth, @RequestParam(value = "maxWidth", required = false) Integer maxWidth,
+    @RequestParam(value = "minHeight", required = false) Integer minHeight, @RequestParam(value = "maxHeight", required = false) Integer maxHeight) {
+    return AsyncProcessing.submit(taskExecutor, () -> {
+      ArrayNode nodes = mapper.createArrayNode();
 
-  ArrayNode nodes = mapper.createArrayNode();
+      if (!imageDao.exists(id)) {
+        return new ResponseEntity<>(nodes, HttpStatus.NOT_FOUND);
+      }
+
+      // Determine which descriptor is compared, the spatial grid goes through the coarse-to-fine cascade
+      ImageComparison.Metric metric = ImageComparison.Metric.fromName(metricName);
+      if (!ImageComparison.isDescriptor(method) || metric == null || maxNb < 1) {
+        return new ResponseEntity<>(nodes, HttpStatus.BAD_REQUEST);
+      }
+
+      // Unfiltered Euclidean searches on the histograms are answered by the precomputed neighbour lists,
+      // the others are computed again only if the catalog changed in a way the cache couldn't follow
+      ImageFilter filter = new ImageFilter(tag, label, favorite, minWidth, maxWidth, minHeight, maxHeight);
+      String key = SimilarityCache.key(id, method, maxNb, metric, filter);
+      long version = imageDao.getVersion();
+      ArrayList<Object[]> values = null;
+      if (filter.isEmpty() && metric == ImageComparison.Metric.EUCLIDEAN) {
+        values = neighbourIndex.lookup(id, method, maxNb);
+      }
+      if (values == null) {
+        values = similarityCache.get(key, version);
+      }
+
+      if (values == null) {
+        ArrayList<Image> images = imageDao.retrieveAllMeta();
+        Image query = null;
+        for (Image img : images) {
+          if (img.getId() == id) {
+            query = img;
+          }
+        }
+        // The image may have been deleted since, or have no descriptor to compare
+        if (query == null || ImageComparison.getDescriptor(query, method).length == 0) {
+          return new ResponseEntity<>(nodes, HttpStatus.NOT_FOUND);
+        }
+
+        // The metadata predicates are evaluated first, only the selected images are compared
+        BitSet candidates = filter.isEmpty() ? null : filter.select(images);
+
+        values = CpuExecutor.call(() -> method.equals("gridhist")
+          ? ImageComparison.compareCascade(id, images, maxNb, metric, candidates)
+          : ImageComparison.compareBatch(new long[] {id}, images, maxNb, method, metric, candidates).get(id));
 
-  if (!imageDao.exists(id)) {
-      return new ResponseEntity<>(nodes, HttpStatus.NOT_FOUND);
+        similarityCache.put(key, query, method, metric, maxNb, filter, values, version, imageDao.getVersion());
+      }
+
+      // Add every image in the list to the HMAP
+      for (Object[] val : values) {
+        nodes.add(similarNode(val));
+      }
+
+      return new ResponseEntity<>(nodes, HttpStatus.OK);
+    });
   }
 
-  ArrayList<Image> images = imageDao.retrieveAllMeta();
-  ArrayList<Object[]> values;
+  /**
+   * Retrieves the most similar images of several images, or their pairwise distance matrix, in one request.
+   * 
+   * @param ids - The comma-separated IDs of the query images, or "all" for the whole catalog.
+   * @param maxNb - The maximum number of similar images to retrieve for each query.
+   * @param method - The descriptor comparison method ("hshist", "rgbhist" or "gridhist").
+   * @param metricName - The distance metric ("euclidean" or "manhattan").
+   * @param output - "neighbours" for the closest images of each query, "matrix" for the pairwise distances between the queries.
+   * @return ResponseEntity containing the JSON neighbours of each query or the distance matrix, computed asynchronously.
+   */
+  @RequestMapping(value = "/images/similar", method = RequestMethod.GET, produces = "application/json")
+  @ResponseBody
+  public DeferredResult<ResponseEntity<?>> getClosestImagesBatch(@RequestParam("ids") String ids, @RequestParam(value = "number", defaultValue = "10") int maxNb,
+    @RequestParam("descriptor") String method, @RequestParam(value = "metric", defaultValue = "euclidean") String metricName,
+    @RequestParam(value = "output", defaultValue = "neighbours") String output) {
+    return AsyncProcessing.submit(taskExecutor, () -> {
+      ImageComparison.Metric metric = ImageComparison.Metric.fromName(metricName);
+      if (!ImageComparison.isDescriptor(method) || metric == null || maxNb < 1 || (!output.equals("neighbours") && !output.equals("matrix"))) {
+        return new ResponseEntity<>(mapper.createArrayNode(), HttpStatus.BAD_REQUEST);
+      }
+
+      // Metadata is loaded once for every query
+      ArrayList<Image> images = imageDao.retrieveAllMeta();
+
+      ArrayList<Image> queries = new ArrayList<>();
+      if (ids.equals("all")) {
+        queries.addAll(images);
+      }
+      else {
+        Map<Long, Image> byId = new HashMap<>();
+        for (Image img : images) {
+          byId.put(img.getId(), img);
+        }
+        try {
+          for (String part : ids.split(",")) {
+            Image img = byId.get(Long.parseLong(part.trim()));
+            if (img == null) {
+              return new ResponseEntity<>(mapper.createArrayNode(), HttpStatus.NOT_FOUND);
+            }
+            queries.add(img);
+          }
+        } catch (NumberFormatException e) {
+          return new ResponseEntity<>(mapper.createArrayNode(), HttpStatus.BAD_REQUEST);
+        }
+      }
 
-  // Determine if RGB or HueSat to know which comparison is needed
-  switch (method) {
-    case "hshist":
-      values = ImageComparison.compareHueSatHist(id, images, maxNb);
-      break;
+      // Every query reads the descriptor of every image of the catalog, or of every query for the matrix
+      int columns = output.equals("matrix") ? queries.size() : images.size();
+      long cost = Admission.cost(queries.size(), columns, images.isEmpty() ? 1 : ImageComparison.getDescriptor(images.get(0), method).length);
 
-    case "rgbhist":
-      values = ImageComparison.compareRGBHist(id, images, maxNb);
-      break;
+      if (output.equals("matrix")) {
+        return admit(Admission.FILTERS, cost, () -> {
+          double[][] distances = ImageComparison.pairwiseDistances(queries, method, metric);
+          ObjectNode result = mapper.createObjectNode();
+          ArrayNode idsNode = mapper.createArrayNode();
+          for (Image img : queries) {
+            idsNode.add(img.getId());
+          }
+          ArrayNode rows = mapper.createArrayNode();
+          for (double[] row : distances) {
+            ArrayNode rowNode = mapper.createArrayNode();
+            for (double d : row) {
+              rowNode.add(d);
+            }
+            rows.add(rowNode);
+          }
+          result.set("ids", idsNode);
+          result.set("distances", rows);
+          return new ResponseEntity<>(result, HttpStatus.OK);
+        });
+      }
+
+      long[] queryIds = new long[queries.size()];
+      for (int i = 0; i < queryIds.length; i++) {
+        queryIds[i] = queries.get(i).getId();
+      }
+      return admit(Admission.FILTERS, cost, () -> {
+        Map<Long, ArrayList<Object[]>> values = ImageComparison.compareBatch(queryIds, images, maxNb, method, metric);
 
-    default:
-      return new ResponseEntity<>(nodes, HttpStatus.BAD_REQUEST);
+        ArrayNode nodes = mapper.createArrayNode();
+        for (Map.Entry<Long, ArrayList<Object[]>> entry : values.entrySet()) {
+          ObjectNode queryNode = mapper.createObjectNode();
+          queryNode.put("id", entry.getKey());
+          ArrayNode similar = mapper.createArrayNode();
+          for (Object[] val : entry.getValue()) {
+            similar.add(similarNode(val));
+          }
+          queryNode.set("similar", similar);
+          nodes.add(queryNode);
+        }
+        return new ResponseEntity<>(nodes, HttpStatus.OK);
+      });
+    });
   }
 
-  // Add every image in the list to the HMAP
-  for (Object[] val : values) {
+  /**
+   * Builds the JSON node of a similar image.
+   * 
+   * @param val - The image and its distance to the reference image.
+   * @return The JSON node describing the image and its distance.
+   */
+  private ObjectNode similarNode(Object[] val) {
     ObjectNode objectNode = mapper.createObjectNode();
     Image img = (Image) val[0];
     objectNode.put("id", img.getId());
@@ -246,51 +438,65 @@ public class ImageController {
     objectNode.put("type", img.getType().toString());
     objectNode.put("size", img.getSizeString());
     objectNode.put("distance", (Double) val[1]);
-    nodes.add(objectNode);
-  }
-
-  return new ResponseEntity<>(nodes, HttpStatus.OK);
+    return objectNode;
   }
 
   /**
   * Retrieves the objects detected in an image.
   * 
   * @param id - The ID of the image.
-  * @return ResponseEntity containing the image with objects labeled.
+  * @param format - The format of the result, jpeg or png, negotiated from the Accept header if absent.
+  * @param quality - The quality of the JPEG result, from 1 to 100.
+  * @param accept - The Accept header.
+  * @return ResponseEntity containing the image with objects labeled, computed asynchronously.
   */
   @RequestMapping(value = "/images/{id}/objects", method = RequestMethod.GET, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE} )
-  public ResponseEntity<?> getImageObjects(@PathVariable("id") long id) {
-
-    Optional<Image> image = imageDao.retrieve(id);
-
-    if (image.isPresent()) {
+  public DeferredResult<ResponseEntity<?>> getImageObjects(@PathVariable("id") long id, @RequestParam(value = "format", required = false) String format,
+    @RequestParam(value = "quality", required = false) Integer quality, @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+    return AsyncProcessing.submit(taskExecutor, () -> {
+      // The objects detected when the image was added, rather than detected again
+      Optional<Image> image = imageDao.retrieveMeta(id);
 
-      InputStream is = new ByteArrayInputStream(image.get().getData());
-      BufferedImage bi;
-      try {
-        bi = ImageIO.read(is);
-      } catch (IOException e) {
-        return ResponseEntity.ok().contentType(image.get().getType()).body(image.get().getData());
+      if (image.isPresent()) {
+        OutputFormat output = negotiate(format, quality, accept, OutputFormat.of(image.get().getType()));
+        if (output == null) {
+          return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        String key = "objects|" + id + "|" + output;
+        return inFlight.run(key, () -> admit(Admission.DETECTION, cost(image.get().getData(), 1), () -> labelObjects(image.get(), output)));
       }
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    });
+  }
 
-      BufferedImage rgbImage = new BufferedImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
-      Graphics2D g2d = rgbImage.createGraphics();
-      g2d.drawImage(bi, 0, 0, null);
-      g2d.dispose();
+  /**
+   * Draws the objects detected in an image on it.
+   *
+   * @param image  - The image.
+   * @param output - The format of the result.
+   * @return ResponseEntity containing the image with objects labeled, or the original image if it can't be decoded or encoded.
+   */
+  private ResponseEntity<?> labelObjects(Image image, OutputFormat output) {
+    BufferedImage bi;
+    try {
+      bi = Codecs.decode(image.getData());
+    } catch (IOException e) {
+      return ResponseEntity.ok().contentType(image.getType()).body(image.getData());
+    }
 
-      BufferedImage newBi = Labeling.labelImage(rgbImage, image.get().getObjects());
+    BufferedImage rgbImage = RasterAdapter.toBgr(bi);
 
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      try {
-        ImageIO.write(newBi, "jpg", baos);
-      } catch (IOException e) {
-        return ResponseEntity.ok().contentType(image.get().getType()).body(image.get().getData());
-      }
-      byte[] bytes = baos.toByteArray();
+    BufferedImage newBi = Labeling.labelImage(rgbImage, image.getObjects());
 
-      return ResponseEntity.ok().contentType(image.get().getType()).body(bytes);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try {
+      Codecs.encode(newBi, output.getFormat(), output.getQuality(), baos);
+    } catch (IOException e) {
+      return ResponseEntity.ok().contentType(image.getType()).body(image.getData());
     }
-    return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    byte[] bytes = baos.toByteArray();
+
+    return ResponseEntity.ok().contentType(output.getMediaType()).body(bytes);
   }
 
   
@@ -305,7 +511,7 @@ public class ImageController {
   @ResponseBody
   public ResponseEntity<?> setImageFavList(@RequestParam("id") long id) throws IOException {
 
-    Optional<Image> image = imageDao.retrieve(id);
+    Optional<Image> image = imageDao.retrieveContent(id);
     if (image.isEmpty()) {
       return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
@@ -422,30 +628,66 @@ public class ImageController {
   * 
   * @param id - The ID of the image.
   * @param nameFilter - The name of the filter to apply.
-  * @return ResponseEntity containing the filtered image.
+  * @param format - The format of the result, jpeg or png, negotiated from the Accept header if absent.
+  * @param quality - The quality of the JPEG result, from 1 to 100.
+  * @param accept - The Accept header.
+  * @return ResponseEntity containing the filtered image, computed asynchronously.
   */
   @RequestMapping(value = "/images/{id}/filter", method = RequestMethod.GET, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE} )
-  public ResponseEntity<?> getFilter(@PathVariable("id") long id, @RequestParam("name") String nameFilter) {
-    Optional<Image> image = imageDao.retrieve(id);
-    if(image.isPresent()){
-      switch(nameFilter){
-        case "Gray":
-          byte[] grayImageData = ImageProcessing.grayFilter(image.get());
-          return ResponseEntity.ok().contentType(image.get().getType()).body(grayImageData);
-        case "Histogram":
-          byte[] histogramImageData = ImageProcessing.Histogram(image.get());
-          return ResponseEntity.ok().contentType(image.get().getType()).body(histogramImageData);
-        case "Histogram2D":
-          byte[] histogram2DImageData = ImageProcessing.Histogram2D(image.get());
-          return ResponseEntity.ok().contentType(image.get().getType()).body(histogram2DImageData);
-        case "Sobel":
-          byte[] SobelImageData = ImageProcessing.gradientImageSobel(image.get());
-          return ResponseEntity.ok().contentType(image.get().getType()).body(SobelImageData);
-        default :
+  public DeferredResult<ResponseEntity<?>> getFilter(@PathVariable("id") long id, @RequestParam("name") String nameFilter,
+    @RequestParam(value = "format", required = false) String format,
+    @RequestParam(value = "quality", required = false) Integer quality, @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+    return AsyncProcessing.submit(taskExecutor, () -> {
+      Optional<Image> image = imageDao.retrieveContent(id);
+      if(image.isPresent()){
+        // The histograms are charts, whose flat colors are smaller in PNG
+        OutputFormat fallback = nameFilter.startsWith("Histogram") ? OutputFormat.PNG : OutputFormat.of(image.get().getType());
+        OutputFormat output = negotiate(format, quality, accept, fallback);
+        if (output == null) {
           return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        long kernelSize = nameFilter.startsWith("Sobel") ? 9 : 1;
+        String key = "filter|" + id + "|" + nameFilter + "|" + output;
+        return inFlight.run(key, () -> admit(Admission.FILTERS, cost(image.get().getData(), kernelSize), () -> filter(image.get(), nameFilter, output)));
+      } else {
+        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
       }
-    } else {
-      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    });
+  }
+
+  /**
+   * Applies a filter to an image.
+   *
+   * @param image      - The image.
+   * @param nameFilter - The name of the filter to apply.
+   * @param output     - The format of the result.
+   * @return ResponseEntity containing the filtered image.
+   */
+  private ResponseEntity<?> filter(Image image, String nameFilter, OutputFormat output) {
+    switch(nameFilter){
+      case "Gray":
+        byte[] grayImageData = ImageProcessing.grayFilter(image, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(grayImageData);
+      case "Histogram":
+        byte[] histogramImageData = ImageProcessing.Histogram(image, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(histogramImageData);
+      case "Histogram2D":
+        byte[] histogram2DImageData = ImageProcessing.Histogram2D(image, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(histogram2DImageData);
+      case "Sobel":
+        byte[] SobelImageData = ImageProcessing.gradientImageSobel(image, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(SobelImageData);
+      case "SobelL1":
+        byte[] SobelL1ImageData = ImageProcessing.gradientImageSobel(image, true, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(SobelL1ImageData);
+      case "Equalize":
+        byte[] equalizedImageData = ImageProcessing.pointFilter(image, PointOp::equalize, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(equalizedImageData);
+      case "Threshold":
+        byte[] otsuImageData = ImageProcessing.pointFilter(image, PointOp::otsu, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(otsuImageData);
+      default :
+        return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
     }
   }
 
@@ -455,25 +697,390 @@ public class ImageController {
   * @param id - The ID of the image.
   * @param nameFilter - The name of the filter to apply.
   * @param n - The parameter for the filter.
-  * @return ResponseEntity containing the filtered image.
+  * @param format - The format of the result, jpeg or png, negotiated from the Accept header if absent.
+  * @param quality - The quality of the JPEG result, from 1 to 100.
+  * @param accept - The Accept header.
+  * @return ResponseEntity containing the filtered image, computed asynchronously.
   */
   @RequestMapping(value = "/images/{id}/filter_param", method = RequestMethod.GET, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE} )
-  public ResponseEntity<?> getFilterWithParameter(@PathVariable("id") long id, @RequestParam("name") String nameFilter, @RequestParam("param") int n) {
-    Optional<Image> image = imageDao.retrieve(id);
-    if(image.isPresent()){
-      switch(nameFilter){
-        case "Mean":
-          byte[] meanImageData = ImageProcessing.meanFilter(image.get(),n);
-          return ResponseEntity.ok().contentType(image.get().getType()).body(meanImageData);
-        case "Color":
-          byte[] colorImageData = ImageProcessing.hueFilter(image.get(), n);
-          return ResponseEntity.ok().contentType(image.get().getType()).body(colorImageData);
+  public DeferredResult<ResponseEntity<?>> getFilterWithParameter(@PathVariable("id") long id, @RequestParam("name") String nameFilter, @RequestParam("param") int n,
+    @RequestParam(value = "format", required = false) String format,
+    @RequestParam(value = "quality", required = false) Integer quality, @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+    return AsyncProcessing.submit(taskExecutor, () -> {
+      Optional<Image> image = imageDao.retrieveContent(id);
+      if(image.isPresent()){
+        OutputFormat output = negotiate(format, quality, accept, OutputFormat.of(image.get().getType()));
+        if (output == null) {
+          return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        long kernelSize = nameFilter.equals("Mean") ? ImageProcessing.MEAN_FILTER_READS : 1;
+        String key = "filter_param|" + id + "|" + nameFilter + ":" + n + "|" + output;
+        return inFlight.run(key, () -> admit(Admission.FILTERS, cost(image.get().getData(), kernelSize),
+          () -> filterWithParameter(image.get(), nameFilter, n, output)));
+      } else {
+        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+      }
+    });
+  }
+
+  /**
+   * Applies a filter with a parameter to an image.
+   *
+   * @param image      - The image.
+   * @param nameFilter - The name of the filter to apply.
+   * @param n          - The parameter for the filter.
+   * @param output     - The format of the result.
+   * @return ResponseEntity containing the filtered image.
+   */
+  private ResponseEntity<?> filterWithParameter(Image image, String nameFilter, int n, OutputFormat output) {
+    switch(nameFilter){
+      case "Mean":
+        byte[] meanImageData = ImageProcessing.meanFilter(image, n, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(meanImageData);
+      case "Color":
+        byte[] colorImageData = ImageProcessing.hueFilter(image, n, output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(colorImageData);
+      case "Gamma":
+        if (n <= 0) {
+          return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        byte[] gammaImageData = ImageProcessing.pointFilter(image, buffer -> PointOp.gamma(n/100.0), output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(gammaImageData);
+      case "Threshold":
+        if (n < 0 || n > 256) {
+          return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        byte[] thresholdImageData = ImageProcessing.pointFilter(image, buffer -> PointOp.threshold(n), output);
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(thresholdImageData);
+      default :
+        return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+  }
+
+  /**
+  * Retrieves the image data convolved with a Gaussian, sharpening or custom kernel.
+  * 
+  * @param id - The ID of the image.
+  * @param type - The kernel type: gaussian, sharpen or custom.
+  * @param sigma - The standard deviation of the Gaussian kernel.
+  * @param kernelText - The custom kernel, as rows separated by ';' of values separated by ','.
+  * @param borderName - How the pixels outside of the image are read: clamp, reflect or zero.
+  * @param format - The format of the result, jpeg or png, negotiated from the Accept header if absent.
+  * @param quality - The quality of the JPEG result, from 1 to 100.
+  * @param accept - The Accept header.
+  * @return ResponseEntity containing the filtered image.
+  */
+  @RequestMapping(value = "/images/{id}/convolution", method = RequestMethod.GET, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE} )
+  public ResponseEntity<?> getConvolution(@PathVariable("id") long id, @RequestParam("type") String type,
+    @RequestParam(value = "sigma", required = false) Double sigma, @RequestParam(value = "kernel", required = false) String kernelText,
+    @RequestParam(value = "border", defaultValue = "clamp") String borderName,
+    @RequestParam(value = "format", required = false) String format,
+    @RequestParam(value = "quality", required = false) Integer quality, @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+    Optional<Image> image = imageDao.retrieveContent(id);
+    if(!image.isPresent()){
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    OutputFormat output = negotiate(format, quality, accept, OutputFormat.of(image.get().getType()));
+    if (output == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+    Convolution.Border border = Convolution.Border.fromName(borderName);
+    if (border == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+    float[][] kernel;
+    try {
+      switch(type){
+        case "gaussian":
+          if (sigma == null) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+          }
+          kernel = Convolution.gaussian(sigma);
+          break;
+        case "sharpen":
+          kernel = Convolution.sharpen();
+          break;
+        case "custom":
+          kernel = Convolution.parse(kernelText);
+          break;
         default :
           return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
       }
-    } else {
+    } catch (IllegalArgumentException e) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+    float[][] convolutionKernel = kernel;
+    long kernelSize = Convolution.reads(kernel);
+    // Keyed by the kernel rather than by its parameters, which may be written differently
+    String key = "convolution|" + id + "|" + Arrays.deepToString(kernel) + "|" + border + "|" + output;
+    return inFlight.run(key, () -> admit(Admission.FILTERS, cost(image.get().getData(), kernelSize), () -> {
+      byte[] convolvedImageData = ImageProcessing.convolutionFilter(image.get(), convolutionKernel, border, output);
+      return ResponseEntity.ok().contentType(output.getMediaType()).body(convolvedImageData);
+    }));
+  }
+
+  /**
+   * Retrieves the image data after a chain of filters.
+   * The image is decoded and encoded once for the whole chain, and the results are
+   * cached by their canonical pipeline. The images above the strip threshold are
+   * processed strip by strip and streamed in PNG, without being cached, and can't be asked for in JPEG.
+   *
+   * @param id  - The ID of the image.
+   * @param ops - The filters to apply in order, e.g. "gray,mean:5,sobel".
+   * @param format  - The format of the result, jpeg or png, negotiated from the Accept header if absent.
+   * @param quality - The quality of the JPEG result, from 1 to 100.
+   * @param accept  - The Accept header.
+   * @param response - The response, answered with 429 by a large image whose streaming isn't admitted.
+   * @return ResponseEntity containing the filtered image.
+   */
+  @RequestMapping(value = "/images/{id}/pipeline", method = RequestMethod.GET, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE} )
+  public ResponseEntity<?> getPipeline(@PathVariable("id") long id, @RequestParam("ops") String ops,
+    @RequestParam(value = "format", required = false) String format,
+    @RequestParam(value = "quality", required = false) Integer quality, @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+    HttpServletResponse response) {
+    Pipeline pipeline;
+    try {
+      pipeline = Pipeline.parse(ops);
+    } catch (IllegalArgumentException e) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+
+    OutputFormat output = negotiate(format, quality, accept, OutputFormat.JPEG);
+    if (output == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+
+    String key = PipelineCache.key(id, pipeline, output);
+    byte[] cached = pipelineCache.get(key);
+    if (cached != null) {
+      return ResponseEntity.ok().contentType(output.getMediaType()).body(cached);
+    }
+
+    long version = imageDao.getVersion();
+    Optional<Path> file = imageDao.retrieveFile(id);
+    if(!file.isPresent()){
       return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
+    long cost = cost(file.get(), pipeline.kernelSize());
+    if (StripProcessor.isLarge(file.get())) {
+      // The strips are only encoded in PNG
+      if (format != null && !MediaType.IMAGE_PNG.equals(output.getMediaType())) {
+        return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+      }
+      // The permits are taken once the body runs, and held until the last strip is streamed
+      StreamingResponseBody body = stream -> {
+        try (Admission.Ticket ticket = Admission.FILTERS.enter(cost)) {
+          StripProcessor.process(file.get(), pipeline, stream);
+        } catch (Admission.RejectedException e) {
+          // Nothing is written yet, the response can still be replaced
+          response.reset();
+          response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+          response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfter()));
+        }
+      };
+      return ResponseEntity.ok().contentType(MediaType.IMAGE_PNG).body(body);
+    }
+
+    return inFlight.run("pipeline|" + key, () -> {
+      Optional<Image> image = imageDao.retrieveContent(id);
+      if(!image.isPresent()){
+        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+      }
+      return admit(Admission.FILTERS, cost, () -> {
+        byte[] pipelineImageData = ImageProcessing.pipelineFilter(image.get(), pipeline, output);
+        pipelineCache.put(key, id, pipelineImageData, version, imageDao.getVersion());
+        return ResponseEntity.ok().contentType(output.getMediaType()).body(pipelineImageData);
+      });
+    });
   }
-  
+
+  /**
+   * Handles an expensive request once its bulkhead admits it.
+   *
+   * @param bulkhead - The bulkhead of the endpoint.
+   * @param cost     - The cost of the request, in pixels read.
+   * @param work     - Handles the request, on the CpuExecutor.
+   * @return The response of the request, or 429 if it isn't admitted.
+   */
+  private static ResponseEntity<?> admit(Admission.Bulkhead bulkhead, long cost, Supplier<ResponseEntity<?>> work) {
+    try {
+      return compute(bulkhead, cost, work);
+    } catch (Admission.RejectedException e) {
+      return tooManyRequests(e);
+    }
+  }
+
+  /**
+   * Computes on the CpuExecutor once the bulkhead admits the request. The request thread,
+   * virtual, waits for the computation without holding a carrier thread, and keeps the I/O
+   * of the request to itself.
+   *
+   * @param <T>      the type of the result.
+   * @param bulkhead - The bulkhead of the endpoint.
+   * @param cost     - The cost of the request, in pixels read.
+   * @param work     - The computation.
+   * @return The result of the computation.
+   * @throws Admission.RejectedException if the request isn't admitted.
+   */
+  private static <T> T compute(Admission.Bulkhead bulkhead, long cost, Supplier<T> work) throws Admission.RejectedException {
+    try (Admission.Ticket ticket = bulkhead.enter(cost)) {
+      return CpuExecutor.call(work);
+    }
+  }
+
+  /**
+   * Builds the response to a request which isn't admitted.
+   *
+   * @param e - The rejection.
+   * @return A 429 response telling when to retry.
+   */
+  private static ResponseEntity<?> tooManyRequests(Admission.RejectedException e) {
+    return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfter())).build();
+  }
+
+  /**
+   * Estimates the cost of filtering the image of a file from the size in its header.
+   *
+   * @param file       - The file of the image.
+   * @param kernelSize - The number of pixels the filter reads for each output pixel.
+   * @return The cost, 0 if the size can't be read.
+   */
+  private static long cost(Path file, long kernelSize) {
+    try {
+      int[] size = StripProcessor.size(file);
+      return Admission.cost(size[0], size[1], kernelSize);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Estimates the cost of filtering an image from the size in its header.
+   *
+   * @param data       - The encoded image.
+   * @param kernelSize - The number of pixels the filter reads for each output pixel.
+   * @return The cost, 0 if the size can't be read.
+   */
+  private static long cost(byte[] data, long kernelSize) {
+    try {
+      int[] size = Codecs.size(data);
+      return Admission.cost(size[0], size[1], kernelSize);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Chooses the format of a filtered image from the request.
+   *
+   * @param format   - The format parameter, or null.
+   * @param quality  - The quality parameter, or null.
+   * @param accept   - The Accept header, or null.
+   * @param fallback - The format used when the request has no preference.
+   * @return The format, or null if the format or the quality parameter is invalid.
+   */
+  private static OutputFormat negotiate(String format, Integer quality, String accept, OutputFormat fallback) {
+    try {
+      return OutputFormat.negotiate(format, quality, accept, fallback);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Retrieves the state of the buffer pool, the bytes allocated by each kind of image request,
+   * the codecs selected for each format, the queues of the admission control, the
+   * requests sharing the computation of an identical request, the CpuExecutor, the
+   * virtual threads pinned to their carrier, the asynchronous responses and the pool of detectors.
+   *
+   * @return ResponseEntity containing the metrics as JSON.
+   */
+  @RequestMapping(value = "/metrics/processing", method = RequestMethod.GET, produces = "application/json")
+  public ResponseEntity<?> getProcessingMetrics() {
+    ObjectNode result = mapper.createObjectNode();
+    ObjectNode pool = mapper.createObjectNode();
+    pool.put("retainedBytes", BufferPool.getRetainedBytes());
+    pool.put("borrowed", BufferPool.getBorrowed());
+    pool.put("reused", BufferPool.getReused());
+    result.set("pool", pool);
+
+    result.put("allocationsMeasured", AllocationMeter.isSupported());
+    ArrayNode requests = mapper.createArrayNode();
+    for (Map.Entry<String, AllocationMeter.Stats> entry : AllocationMeter.getStats().entrySet()) {
+      ObjectNode request = mapper.createObjectNode();
+      request.put("request", entry.getKey());
+      request.put("requests", entry.getValue().getRequests());
+      request.put("averageBytes", entry.getValue().getAverageBytes());
+      request.put("maxBytes", entry.getValue().getMaxBytes());
+      request.put("lastBytes", entry.getValue().getLastBytes());
+      requests.add(request);
+    }
+    result.set("requests", requests);
+    result.set("codecs", mapper.valueToTree(Codecs.getSelection()));
+
+    ObjectNode admission = mapper.createObjectNode();
+    admission.put("unitCost", Admission.getUnitCost());
+    for (Admission.Bulkhead bulkhead : new Admission.Bulkhead[] {Admission.FILTERS, Admission.DETECTION}) {
+      ObjectNode node = mapper.createObjectNode();
+      node.put("capacity", bulkhead.getCapacity());
+      node.put("available", bulkhead.getAvailable());
+      node.put("queued", bulkhead.getQueued());
+      node.put("maxQueued", bulkhead.getMaxQueued());
+      node.put("admitted", bulkhead.getAdmitted());
+      node.put("rejected", bulkhead.getRejected());
+      node.put("averageWaitMillis", bulkhead.getAverageWaitMillis());
+      node.put("maxWaitMillis", bulkhead.getMaxWaitMillis());
+      node.put("averageServiceMillis", bulkhead.getAverageServiceMillis());
+      admission.set(bulkhead.getName(), node);
+    }
+    result.set("admission", admission);
+
+    ObjectNode coalescing = mapper.createObjectNode();
+    coalescing.put("inFlight", inFlight.getInFlight());
+    coalescing.put("computed", inFlight.getComputed());
+    coalescing.put("shared", inFlight.getShared());
+    result.set("singleFlight", coalescing);
+
+    ObjectNode similarity = mapper.createObjectNode();
+    similarity.put("hits", similarityCache.getHits());
+    similarity.put("misses", similarityCache.getMisses());
+    result.set("similarityCache", similarity);
+
+    ObjectNode cpu = mapper.createObjectNode();
+    cpu.put("threads", CpuExecutor.getThreads());
+    cpu.put("active", CpuExecutor.getActive());
+    cpu.put("queued", CpuExecutor.getQueued());
+    cpu.put("completed", CpuExecutor.getCompleted());
+    result.set("cpu", cpu);
+
+    ObjectNode pinning = mapper.createObjectNode();
+    pinning.put("recording", PinningMonitor.isRecording());
+    pinning.put("events", PinningMonitor.getEvents());
+    pinning.put("pinnedMillis", PinningMonitor.getPinnedMillis());
+    pinning.set("sites", mapper.valueToTree(PinningMonitor.getSites()));
+    result.set("pinning", pinning);
+
+    ObjectNode async = mapper.createObjectNode();
+    async.put("timeoutMillis", AsyncProcessing.getTimeoutMillis());
+    async.put("completed", AsyncProcessing.getCompleted());
+    async.put("timedOut", AsyncProcessing.getTimedOut());
+    async.put("cancelled", AsyncProcessing.getCancelled());
+    result.set("async", async);
+
+    DetectorPool detectorPool = Image.getDetectors();
+    ObjectNode detectors = mapper.createObjectNode();
+    detectors.put("size", detectorPool.getSize());
+    detectors.put("loaded", detectorPool.getLoaded());
+    detectors.put("inUse", detectorPool.getInUse());
+    detectors.put("checkouts", detectorPool.getCheckouts());
+    detectors.put("waited", detectorPool.getWaited());
+    detectors.put("averageWaitMillis", detectorPool.getAverageWaitMillis());
+    detectors.put("maxWaitMillis", detectorPool.getMaxWaitMillis());
+    detectors.put("backend", ObjectsRecognition.backendName(detectorPool.getBackend()));
+    detectors.put("target", ObjectsRecognition.targetName(detectorPool.getTarget()));
+    detectors.put("threads", ObjectsRecognition.getThreads());
+    result.set("detectors", detectors);
+    return new ResponseEntity<>(result, HttpStatus.OK);
+  }
+
 }
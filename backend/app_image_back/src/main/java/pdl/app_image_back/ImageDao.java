@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.io.FileOutputStream;
 
@@ -37,6 +38,13 @@ public class ImageDao implements Dao<Image>, InitializingBean {
   @Autowired
   private JdbcTemplate jdbcTemplate;
 
+  @Autowired(required = false)
+  private List<CatalogListener> listeners = new ArrayList<>();
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final AtomicLong version = new AtomicLong(0);
+
   /**
    * Returns an image wrapped in an Optional, given a path, a name, and an id.
    * 
@@ -108,7 +116,7 @@ public class ImageDao implements Dao<Image>, InitializingBean {
    */
   private void createTable() throws IOException{
     jdbcTemplate.execute("DROP TABLE IF EXISTS images");
-    this.jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS images (id bigint PRIMARY KEY, name text, type text, size text, hshist double precision[], rgbhist double precision[], objects jsonb, tags text[], fav boolean)");
+    this.jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS images (id bigint PRIMARY KEY, name text, type text, size text, hshist double precision[], rgbhist double precision[], gridhist double precision[], coarse bytea, objects jsonb, tags text[], fav boolean)");
     try{
       Field field = Image.class.getDeclaredField("count");
       field.setAccessible(true);
@@ -177,6 +185,15 @@ public class ImageDao implements Dao<Image>, InitializingBean {
     createTable();
   }
 
+  /**
+   * Gets the version of the catalog, incremented every time an image is added, removed or marked as favorite.
+   * 
+   * @return The current catalog version.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
   /**
    * Checks if an image with the given ID exists in the database.
    * 
@@ -224,6 +241,22 @@ public class ImageDao implements Dao<Image>, InitializingBean {
     }
   }
 
+  /**
+   * Retrieves the path of the file of an image given its ID, without reading it.
+   *
+   * @param id - The ID of the image.
+   * @return An Optional containing the path of the file if the image exists, otherwise an empty Optional.
+   */
+  public Optional<Path> retrieveFile(final long id) {
+    try {
+      String name = jdbcTemplate.queryForObject("SELECT name FROM images WHERE id = ?", String.class, id);
+      Path path = Path.of(String.format("images/%s", name));
+      return Files.isRegularFile(path) ? Optional.of(path) : Optional.empty();
+    } catch (Exception e) {
+      return Optional.empty();
+    }
+  }
+
   /**
    * Retrieves the metadata of an image from the database given its ID.
    * 
@@ -233,31 +266,11 @@ public class ImageDao implements Dao<Image>, InitializingBean {
   public Optional<Image> retrieveMeta(final long id) {
     try {
 
-      Map<String, Object> res = jdbcTemplate.queryForMap("SELECT id, name, size, type, hshist, rgbhist, objects, tags, fav FROM images");
+      Map<String, Object> res = jdbcTemplate.queryForMap("SELECT id, name, size, type, hshist, rgbhist, gridhist, coarse, objects, tags, fav FROM images WHERE id = ?", id);
 
-      ObjectMapper objectMapper = new ObjectMapper();
+      byte[] fileContent = Files.readAllBytes(Path.of(String.format("images/%s", res.get("name"))));
 
-      int w = Integer.valueOf(((String) res.get("size")).split("x")[0]);
-      int h = Integer.valueOf(((String) res.get("size")).split("x")[1]);
-      int[] size = {w, h};
-
-      double[] hshist = convertToPrimitive((Double[]) ((PgArray) res.get("hshist")).getArray());
-      double[] rgbhist = convertToPrimitive((Double[]) ((PgArray) res.get("rgbhist")).getArray());
-
-      ArrayList<String> tags = new ArrayList<>(Arrays.asList((String[]) ((PgArray) res.get("tags")).getArray()));
-
-      Object objectsJson = res.get("objects");
-      ArrayList<Map<String, Object>> objectsList;
-      if (objectsJson != null) {
-        objectsList = objectMapper.readValue(objectsJson.toString(), new TypeReference<ArrayList<Map<String, Object>>>() {});
-      }
-      else {
-        throw new Exception();
-      }
-
-      Optional<Image> im = openImage(String.format("images/%s", res.get("name")), (String) res.get("name"), (long) res.get("id"), size,
-      MediaType.valueOf((String) res.get("type")), hshist, rgbhist, objectsList, tags, (boolean) res.get("fav"));
-      return im;    
+      return Optional.of(rowToImage(res, fileContent));
     }
     catch (Exception e) {
       return Optional.empty();
@@ -274,43 +287,55 @@ public class ImageDao implements Dao<Image>, InitializingBean {
   public ArrayList<Image> retrieveAll() {
     ArrayList<Image> images = new ArrayList<>();
 
-    List<Map<String, Object>> results = jdbcTemplate.queryForList("SELECT id, name, size, type, hshist, rgbhist, objects, tags, fav FROM images");
-
-    ObjectMapper objectMapper = new ObjectMapper();
+    List<Map<String, Object>> results = jdbcTemplate.queryForList("SELECT id, name, size, type, hshist, rgbhist, gridhist, coarse, objects, tags, fav FROM images");
 
     for (Map<String, Object> res : results) {
-      int w = Integer.valueOf(((String) res.get("size")).split("x")[0]);
-      int h = Integer.valueOf(((String) res.get("size")).split("x")[1]);
-      int[] size = {w, h};
       try {
-        double[] hshist = convertToPrimitive((Double[]) ((PgArray) res.get("hshist")).getArray());
-        double[] rgbhist = convertToPrimitive((Double[]) ((PgArray) res.get("rgbhist")).getArray());
-
-        ArrayList<String> tags = new ArrayList<>(Arrays.asList((String[]) ((PgArray) res.get("tags")).getArray()));
-
-        Object objectsJson = res.get("objects");
-        ArrayList<Map<String, Object>> objectsList;
-        if (objectsJson != null) {
-          objectsList = objectMapper.readValue(objectsJson.toString(), new TypeReference<ArrayList<Map<String, Object>>>() {});
-        }
-        else {
-          throw new Exception();
-        }
-
-        Optional<Image> im = openImage(String.format("images/%s", res.get("name")), (String) res.get("name"), (long) res.get("id"), size,
-        MediaType.valueOf((String) res.get("type")), hshist, rgbhist, objectsList, tags, (boolean) res.get("fav"));
-        if (im.isPresent()) {
-          images.add(im.get());
-        }
+        byte[] fileContent = Files.readAllBytes(Path.of(String.format("images/%s", res.get("name"))));
+        images.add(rowToImage(res, fileContent));
       } catch (Exception e) {
         e.printStackTrace();
         System.err.println(String.format("Image %s couldn't be loaded", (String) res.get("name")));
-      }     
+      }
     }
 
     return images;
   }
 
+  /**
+   * Builds an image from a row of the images table.
+   * 
+   * @param res  - The row, with every column of the table.
+   * @param data - The byte data of the image, or an empty array for metadata only.
+   * @return The Image described by the row.
+   * @throws Exception if a column can't be converted.
+   */
+  private Image rowToImage(Map<String, Object> res, byte[] data) throws Exception {
+    int w = Integer.valueOf(((String) res.get("size")).split("x")[0]);
+    int h = Integer.valueOf(((String) res.get("size")).split("x")[1]);
+    int[] size = {w, h};
+
+    double[] hshist = convertToPrimitive((Double[]) ((PgArray) res.get("hshist")).getArray());
+    double[] rgbhist = convertToPrimitive((Double[]) ((PgArray) res.get("rgbhist")).getArray());
+    double[] gridhist = convertToPrimitive((Double[]) ((PgArray) res.get("gridhist")).getArray());
+
+    ArrayList<String> tags = new ArrayList<>(Arrays.asList((String[]) ((PgArray) res.get("tags")).getArray()));
+
+    Object objectsJson = res.get("objects");
+    ArrayList<Map<String, Object>> objectsList;
+    if (objectsJson != null) {
+      objectsList = objectMapper.readValue(objectsJson.toString(), new TypeReference<ArrayList<Map<String, Object>>>() {});
+    }
+    else {
+      throw new Exception();
+    }
+
+    Image img = new Image((String) res.get("name"), data, (long) res.get("id"), size, 
+    MediaType.valueOf((String) res.get("type")), hshist, rgbhist, gridhist, objectsList, tags, (boolean) res.get("fav"));
+    img.setCoarseCode((byte[]) res.get("coarse"));
+    return img;
+  }
+
   /**
    * Converts an array of Double objects to an array of primitive doubles.
    * 
@@ -333,36 +358,15 @@ public class ImageDao implements Dao<Image>, InitializingBean {
   public ArrayList<Image> retrieveAllMeta() {
     ArrayList<Image> images = new ArrayList<>();
 
-    List<Map<String, Object>> results = jdbcTemplate.queryForList("SELECT id, name, size, type, hshist, rgbhist, objects, tags, fav FROM images");
-
-    ObjectMapper objectMapper = new ObjectMapper();
+    List<Map<String, Object>> results = jdbcTemplate.queryForList("SELECT id, name, size, type, hshist, rgbhist, gridhist, coarse, objects, tags, fav FROM images");
 
     for (Map<String, Object> res : results) {
-      int w = Integer.valueOf(((String) res.get("size")).split("x")[0]);
-      int h = Integer.valueOf(((String) res.get("size")).split("x")[1]);
-      int[] size = {w, h};
       try {
-        double[] hshist = convertToPrimitive((Double[]) ((PgArray) res.get("hshist")).getArray());
-        double[] rgbhist = convertToPrimitive((Double[]) ((PgArray) res.get("rgbhist")).getArray());
-
-        ArrayList<String> tags = new ArrayList<>(Arrays.asList((String[]) ((PgArray) res.get("tags")).getArray()));
-
-        Object objectsJson = res.get("objects");
-        ArrayList<Map<String, Object>> objectsList;
-        if (objectsJson != null) {
-          objectsList = objectMapper.readValue(objectsJson.toString(), new TypeReference<ArrayList<Map<String, Object>>>() {});
-        }
-        else {
-          throw new Exception();
-        }
-
-        images.add(new Image((String) res.get("name"), new byte[0], (long) res.get("id"), size, 
-        MediaType.valueOf((String) res.get("type")), hshist, rgbhist, objectsList, tags, (boolean) res.get("fav")));
+        images.add(rowToImage(res, new byte[0]));
       } catch (Exception e) {
         e.printStackTrace();
         System.err.println(String.format("Image %s couldn't be loaded", (String) res.get("name")));
       }
-      
     }
     return images;
   }
@@ -376,36 +380,15 @@ public class ImageDao implements Dao<Image>, InitializingBean {
   public ArrayList<Image> retriveAllWithTagMeta(String tag) {
     ArrayList<Image> images = new ArrayList<>();
 
-    List<Map<String, Object>> results = jdbcTemplate.queryForList("SELECT id, name, size, type, hshist, rgbhist, objects, tags, fav FROM images WHERE ? = ANY(tags)", tag);
-
-    ObjectMapper objectMapper = new ObjectMapper();
+    List<Map<String, Object>> results = jdbcTemplate.queryForList("SELECT id, name, size, type, hshist, rgbhist, gridhist, coarse, objects, tags, fav FROM images WHERE ? = ANY(tags)", tag);
 
     for (Map<String, Object> res : results) {
-      int w = Integer.valueOf(((String) res.get("size")).split("x")[0]);
-      int h = Integer.valueOf(((String) res.get("size")).split("x")[1]);
-      int[] size = {w, h};
       try {
-        double[] hshist = convertToPrimitive((Double[]) ((PgArray) res.get("hshist")).getArray());
-        double[] rgbhist = convertToPrimitive((Double[]) ((PgArray) res.get("rgbhist")).getArray());
-
-        ArrayList<String> tags = new ArrayList<>(Arrays.asList((String[]) ((PgArray) res.get("tags")).getArray()));
-
-        Object objectsJson = res.get("objects");
-        ArrayList<Map<String, Object>> objectsList;
-        if (objectsJson != null) {
-          objectsList = objectMapper.readValue(objectsJson.toString(), new TypeReference<ArrayList<Map<String, Object>>>() {});
-        }
-        else {
-          throw new Exception();
-        }
-
-        images.add(new Image((String) res.get("name"), new byte[0], (long) res.get("id"), size, 
-        MediaType.valueOf((String) res.get("type")), hshist, rgbhist, objectsList, tags, (boolean) res.get("fav")));
+        images.add(rowToImage(res, new byte[0]));
       } catch (Exception e) {
         e.printStackTrace();
         System.err.println(String.format("Image %s couldn't be loaded", (String) res.get("name")));
       }
-      
     }
     return images;
   }
@@ -418,36 +401,15 @@ public class ImageDao implements Dao<Image>, InitializingBean {
   public ArrayList<Image> retrieveAllFavMeta() {
     ArrayList<Image> images = new ArrayList<>();
 
-    List<Map<String, Object>> results = jdbcTemplate.queryForList("SELECT id, name, size, type, hshist, rgbhist, objects, tags, fav FROM images WHERE fav");
-
-    ObjectMapper objectMapper = new ObjectMapper();
+    List<Map<String, Object>> results = jdbcTemplate.queryForList("SELECT id, name, size, type, hshist, rgbhist, gridhist, coarse, objects, tags, fav FROM images WHERE fav");
 
     for (Map<String, Object> res : results) {
-      int w = Integer.valueOf(((String) res.get("size")).split("x")[0]);
-      int h = Integer.valueOf(((String) res.get("size")).split("x")[1]);
-      int[] size = {w, h};
       try {
-        double[] hshist = convertToPrimitive((Double[]) ((PgArray) res.get("hshist")).getArray());
-        double[] rgbhist = convertToPrimitive((Double[]) ((PgArray) res.get("rgbhist")).getArray());
-
-        ArrayList<String> tags = new ArrayList<>(Arrays.asList((String[]) ((PgArray) res.get("tags")).getArray()));
-
-        Object objectsJson = res.get("objects");
-        ArrayList<Map<String, Object>> objectsList;
-        if (objectsJson != null) {
-          objectsList = objectMapper.readValue(objectsJson.toString(), new TypeReference<ArrayList<Map<String, Object>>>() {});
-        }
-        else {
-          throw new Exception();
-        }
-
-        images.add(new Image((String) res.get("name"), new byte[0], (long) res.get("id"), size, 
-        MediaType.valueOf((String) res.get("type")), hshist, rgbhist, objectsList, tags, (boolean) res.get("fav")));
+        images.add(rowToImage(res, new byte[0]));
       } catch (Exception e) {
         e.printStackTrace();
         System.err.println(String.format("Image %s couldn't be loaded", (String) res.get("name")));
       }
-      
     }
     return images;
   }
@@ -472,8 +434,11 @@ public class ImageDao implements Dao<Image>, InitializingBean {
 
     double[] rgbHistArray = img.getRGBHist();
 
+    double[] gridHistArray = img.getGridHist();
+
+    byte[] coarseCode = img.getCoarseCode();
+
     String jsonString = "";
-    ObjectMapper objectMapper = new ObjectMapper(); 
     try { 
         jsonString = objectMapper.writeValueAsString(img.getObjects()); 
     } 
@@ -482,7 +447,12 @@ public class ImageDao implements Dao<Image>, InitializingBean {
     } 
     
 
-    jdbcTemplate.update("INSERT INTO images (id, name, type, size, hshist, rgbhist, objects, tags, fav) VALUES (?, ?, ?, ?, ?, ?, ?::jsonb, ?, false)", img.getId(), img.getName(), img.getType().toString(), img.getSizeString(), hueTintHistArray, rgbHistArray, jsonString, (String[]) (img.getTags().toArray(new String[0])));
+    jdbcTemplate.update("INSERT INTO images (id, name, type, size, hshist, rgbhist, gridhist, coarse, objects, tags, fav) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?::jsonb, ?, false)", img.getId(), img.getName(), img.getType().toString(), img.getSizeString(), hueTintHistArray, rgbHistArray, gridHistArray, coarseCode, jsonString, (String[]) (img.getTags().toArray(new String[0])));
+
+    long newVersion = version.incrementAndGet();
+    for (CatalogListener listener : listeners) {
+      listener.imageCreated(img, newVersion);
+    }
   }
 
   /**
@@ -534,6 +504,11 @@ public class ImageDao implements Dao<Image>, InitializingBean {
    */
   public void setFav(long id, boolean value) {
     jdbcTemplate.update("UPDATE images SET fav = ? WHERE id = ?", value, id);
+
+    long newVersion = version.incrementAndGet();
+    for (CatalogListener listener : listeners) {
+      listener.favoriteChanged(id, value, newVersion);
+    }
   }
 
   /**
@@ -547,5 +522,10 @@ public class ImageDao implements Dao<Image>, InitializingBean {
     final File imgFile = new File(String.format("images/%s", img.getName()));
 
     imgFile.delete();
+
+    long newVersion = version.incrementAndGet();
+    for (CatalogListener listener : listeners) {
+      listener.imageDeleted(img, newVersion);
+    }
   }
 }
\ No newline at end of file
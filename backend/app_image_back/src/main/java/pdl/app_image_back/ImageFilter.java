@@ -0,0 +1,145 @@
+package pdl.app_image_back;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * A set of predicates on image metadata, used to restrict a similarity search.
+ * Every predicate is optional, an empty filter accepts every image.
+ */
+public class ImageFilter {
+
+    private final String[] tags;
+    private final String[] labels;
+    private final Boolean favorite;
+    private final Integer minWidth;
+    private final Integer maxWidth;
+    private final Integer minHeight;
+    private final Integer maxHeight;
+
+    /**
+     * Constructs a filter from request parameters, any of which can be null.
+     *
+     * @param tags      - The comma-separated tags the image must all have.
+     * @param labels    - The comma-separated labels that must all be detected on the image.
+     * @param favorite  - The favorite status the image must have.
+     * @param minWidth  - The minimum width of the image.
+     * @param maxWidth  - The maximum width of the image.
+     * @param minHeight - The minimum height of the image.
+     * @param maxHeight - The maximum height of the image.
+     */
+    public ImageFilter(String tags, String labels, Boolean favorite, Integer minWidth, Integer maxWidth, Integer minHeight, Integer maxHeight) {
+        this.tags = split(tags);
+        this.labels = split(labels);
+        this.favorite = favorite;
+        this.minWidth = minWidth;
+        this.maxWidth = maxWidth;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+    }
+
+    /**
+     * Splits a comma-separated parameter into its trimmed values.
+     *
+     * @param values - The comma-separated values, or null.
+     * @return The sorted values, or an empty array if the parameter is null.
+     */
+    private static String[] split(String values) {
+        if (values == null || values.isBlank()) {
+            return new String[0];
+        }
+        String[] parts = values.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].trim();
+        }
+        Arrays.sort(parts);
+        return parts;
+    }
+
+    /**
+     * Checks if the filter has no predicate.
+     *
+     * @return true if every image is accepted, false otherwise.
+     */
+    public boolean isEmpty() {
+        return tags.length == 0 && labels.length == 0 && favorite == null
+            && minWidth == null && maxWidth == null && minHeight == null && maxHeight == null;
+    }
+
+    /**
+     * Checks if the filter depends on the favorite status, which can change after an image is added.
+     *
+     * @return true if the filter has a favorite predicate, false otherwise.
+     */
+    public boolean usesFavorite() {
+        return favorite != null;
+    }
+
+    /**
+     * Checks if an image satisfies every predicate of the filter.
+     * The cheap numeric predicates are checked before the tag and label lookups.
+     *
+     * @param img - The image to check.
+     * @return true if the image is accepted, false otherwise.
+     */
+    public boolean accepts(Image img) {
+        if (favorite != null && img.getFavStatus() != favorite) {
+            return false;
+        }
+        if ((minWidth != null && img.getWidth() < minWidth) || (maxWidth != null && img.getWidth() > maxWidth)
+            || (minHeight != null && img.getHeight() < minHeight) || (maxHeight != null && img.getHeight() > maxHeight)) {
+            return false;
+        }
+        for (String tag : tags) {
+            if (!img.getTags().contains(tag)) {
+                return false;
+            }
+        }
+        for (String label : labels) {
+            boolean found = false;
+            for (Map<String, Object> obj : img.getObjects()) {
+                if (label.equals(obj.get("label"))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates the filter on a list of images.
+     *
+     * @param imList - The list of images.
+     * @return A bitmap where the bit i is set if the i-th image of the list is accepted.
+     */
+    public BitSet select(ArrayList<Image> imList) {
+        BitSet selected = new BitSet(imList.size());
+        if (isEmpty()) {
+            selected.set(0, imList.size());
+            return selected;
+        }
+        for (int i = 0; i < imList.size(); i++) {
+            if (accepts(imList.get(i))) {
+                selected.set(i);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Returns a canonical representation of the filter, equal for equal filters.
+     *
+     * @return The canonical string of the filter.
+     */
+    @Override
+    public String toString() {
+        return String.format("tags=%s;labels=%s;fav=%s;w=%s-%s;h=%s-%s", String.join(",", tags), String.join(",", labels),
+            favorite, minWidth, maxWidth, minHeight, maxHeight);
+    }
+}
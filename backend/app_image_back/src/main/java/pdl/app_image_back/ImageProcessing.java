@@ -1,77 +1,104 @@
 package pdl.app_image_back;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-
-import javax.imageio.ImageIO;
+import java.util.Arrays;
+import java.util.function.Function;
 
 import boofcv.alg.color.ColorHsv;
 import boofcv.io.image.ConvertBufferedImage;
 import boofcv.struct.image.GrayF32;
 import boofcv.struct.image.Planar;
+import pdl.object_recognition.Codecs;
 
 /**
  * Provides methods for image processing operations.
  */
 public class ImageProcessing {
 
+    /**
+     * Hue of the pixels in degrees, for the hue histogram.
+     */
+    private static final ColorTables.BinTable HUE_BINS = ColorTables.binTable(h -> (int) Math.toDegrees(h), 1, s -> 0, 0);
+
+    /**
+     * Hue in degrees and saturation in percents of the pixels, for the hue/sat histogram.
+     */
+    private static final ColorTables.BinTable HUE_SAT_BINS = ColorTables.binTable(h -> (int) Math.toDegrees(h), 101, s -> (int) (s*100), 1);
+
+    /**
+     * Number of pixels the mean filter reads for each output pixel, whatever its size:
+     * one added to and one removed from the running sums of the rows, then of the columns.
+     */
+    public static final int MEAN_FILTER_READS = 4;
+
     /**
      * Applies Gray Filter to an image
      * 
      * @param image - The image that we want to be processed.
+     * @param output - The format of the processed image.
      * @return A new byte[], namely the processed input image
      * 
-     * The content of the input image is converted to Planar to modify
-     * the bands of the image in order to apply the filter and then converted
-     * again to byte[] to chime with Image.java class.
+     * The gray level of each pixel is 0.30 R + 0.59 G + 0.11 B, computed from
+     * a table of the weighted values of each channel.
      */
-    public static byte[] grayFilter(Image image) {
-        // Gray 
-        float redLevel = 0.30f;
-        float greenLevel = 0.59f;
-        float blueLevel = 0.11f;
-
-        Planar<GrayF32> inputPlanar = new Planar<>(GrayF32.class,1,1,3);    // Use Planar for colors and GrayF32 for more accuracy
+    public static byte[] grayFilter(Image image, OutputFormat output) {
+        return pointFilter(image, buffer -> PointOp.gray(), output);
+    }
 
-        GrayF32 gray = new GrayF32();
+    /**
+     * Applies a point operation to an image.
+     * 
+     * @param image - The image that we want to be processed.
+     * @param operation - Builds the operation from the decoded image, for the operations depending on its histogram.
+     * @param output - The format of the processed image.
+     * @return A new byte[], namely the processed input image
+     */
+    public static byte[] pointFilter(Image image, Function<BufferedImage, PointOp> operation, OutputFormat output) {
 
-        InputStream input = new ByteArrayInputStream(image.getData());
         BufferedImage buffered;
         try {
-            buffered = ImageIO.read(input);
+            buffered = Codecs.decode(image.getData());
         } catch (IOException e) {
             return new byte[0];
         }
-        BufferedImage inputbuffer = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_RGB);
-
-        Graphics2D g2d = inputbuffer.createGraphics();
-        g2d.drawImage(buffered, 0, 0, null);
-        g2d.dispose();
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            BufferedImage inputbuffer = RasterAdapter.toRgb(buffered, lease);
 
-        ConvertBufferedImage.convertFrom(inputbuffer, inputPlanar, true);
+            operation.apply(inputbuffer).apply(inputbuffer, inputbuffer);
 
-        gray.reshape(inputbuffer.getWidth(), inputbuffer.getHeight());
-
-        for (int x = 0; x < inputbuffer.getWidth(); x++) {
-            for (int y = 0; y < inputbuffer.getHeight(); y++) {
-                gray.set(x, y, inputPlanar.getBand(0).get(x, y)*redLevel + inputPlanar.getBand(1).get(x, y)*greenLevel + inputPlanar.getBand(2).get(x, y)*blueLevel);
-            }
+            return encode(inputbuffer, output, lease, image.getData().length);
         }
+    }
+
+    /**
+     * Applies a chain of filters to an image.
+     * 
+     * @param image - The image that we want to be processed.
+     * @param pipeline - The filters to apply, in order.
+     * @param output - The format of the processed image.
+     * @return A new byte[], namely the processed input image
+     * 
+     * The image is decoded once, every filter works on the decoded pixels,
+     * and the result is encoded once at the end.
+     */
+    public static byte[] pipelineFilter(Image image, Pipeline pipeline, OutputFormat output) {
 
-        ConvertBufferedImage.convertTo(gray, inputbuffer);
-        ByteArrayOutputStream dataImg = new ByteArrayOutputStream();
+        BufferedImage buffered;
         try {
-            ImageIO.write(inputbuffer,"jpg",dataImg);
+            buffered = Codecs.decode(image.getData());
         } catch (IOException e) {
             return new byte[0];
-        } 
-        byte[] bytes = dataImg.toByteArray();
+        }
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            BufferedImage inputbuffer = RasterAdapter.toRgb(buffered, lease);
 
-        return bytes;
+            BufferedImage outputbuffer = pipeline.apply(inputbuffer, lease);
+
+            return encode(outputbuffer, output, lease, image.getData().length);
+        }
     }
 
     /**
@@ -79,52 +106,290 @@ public class ImageProcessing {
      * 
      * @param image - The image that we want to be processed.
      * @param size - The size of the mean filter  that will be applied
+     * @param output - The format of the processed image.
      * @return A new byte[], namely the processed input image after a copy
      * 
      * The copy of the input image (output) is now a Planar. We then modify
      * the bands of the image in order to apply the filter and convert it
      * to byte[] to chime with Image.java class.
      */
-    public static byte[] meanFilter(Image image, int size){
+    public static byte[] meanFilter(Image image, int size, OutputFormat output){
+
+        BufferedImage buffered;
+        try {
+            buffered = Codecs.decode(image.getData());
+        } catch (IOException e) {
+            return new byte[0];
+        }
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            BufferedImage inputbuffer = RasterAdapter.toRgb(buffered, lease);
+            BufferedImage outputbuffer = lease.image(buffered.getWidth(), buffered.getHeight());
+
+            // Processing here
+            meanFilter(inputbuffer, outputbuffer, size);
+
+            return encode(outputbuffer, output, lease, image.getData().length);
+        }
         
-        Planar<GrayF32> inputPlanar = new Planar<>(GrayF32.class,1,1,3);    // Use Planar for colors and GrayF32 for more accuracy
+    }
 
-        Planar<GrayF32> outputPlanar = inputPlanar.createSameShape();
+    /**
+     * Applies a convolution filter to an image.
+     * 
+     * @param image - The image that we want to be processed.
+     * @param kernel - The kernel of the convolution, of odd dimensions.
+     * @param border - How the pixels outside of the image are read.
+     * @param output - The format of the processed image.
+     * @return A new byte[], namely the processed input image
+     */
+    public static byte[] convolutionFilter(Image image, float[][] kernel, Convolution.Border border, OutputFormat output){
 
-        InputStream input = new ByteArrayInputStream(image.getData());
         BufferedImage buffered;
         try {
-            buffered = ImageIO.read(input);
+            buffered = Codecs.decode(image.getData());
         } catch (IOException e) {
             return new byte[0];
         }
-        BufferedImage inputbuffer = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_RGB);
-        BufferedImage outputbuffer = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_RGB);
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            BufferedImage inputbuffer = RasterAdapter.toRgb(buffered, lease);
+            BufferedImage outputbuffer = lease.image(buffered.getWidth(), buffered.getHeight());
 
-        Graphics2D g2d = inputbuffer.createGraphics();
-        g2d.drawImage(buffered, 0, 0, null);
-        g2d.dispose();
+            // Processing here
+            convolutionFilter(inputbuffer, outputbuffer, kernel, border);
 
-        ConvertBufferedImage.convertFrom(inputbuffer, inputPlanar, true);
+            return encode(outputbuffer, output, lease, image.getData().length);
+        }
 
-        outputPlanar.reshape(inputbuffer.getWidth(), inputbuffer.getHeight());
-        
-        // Processing here
-        applyMeanFilter(inputPlanar, outputPlanar, size);
+    }
 
-        
-        ConvertBufferedImage.convertTo_F32(outputPlanar, outputbuffer, true);
+    /**
+     * Encodes a processed image, in a single channel if it is gray.
+     * 
+     * @param image - The image, of type TYPE_INT_RGB.
+     * @param output - The format of the image.
+     * @param lease - The lease of the buffers of the encoding.
+     * @param expected - The expected number of bytes.
+     * @return The encoded image, empty if it can't be encoded.
+     */
+    private static byte[] encode(BufferedImage image, OutputFormat output, BufferPool.Lease lease, int expected) {
+        BufferedImage gray = RasterAdapter.toGray(image, lease);
+        ByteArrayOutputStream dataImg = lease.output(expected);
+        try {
+            Codecs.encode(gray != null ? gray : image, output.getFormat(), output.getQuality(), dataImg);
+        } catch (IOException e) {
+            return new byte[0];
+        }
+        return dataImg.toByteArray();
+    }
 
-        ByteArrayOutputStream dataImg = new ByteArrayOutputStream();
+    /**
+     * Encodes a drawn image, such as a histogram, with a palette of its colors in PNG.
+     * 
+     * @param image - The image, of type TYPE_INT_RGB.
+     * @param output - The format of the image.
+     * @param lease - The lease of the buffers of the encoding.
+     * @param expected - The expected number of bytes.
+     * @return The encoded image, empty if it can't be encoded.
+     */
+    private static byte[] encodeChart(BufferedImage image, OutputFormat output, BufferPool.Lease lease, int expected) {
+        BufferedImage indexed = output.isLossless() ? RasterAdapter.toIndexed(image) : null;
+        if (indexed == null) {
+            return encode(image, output, lease, expected);
+        }
+        ByteArrayOutputStream dataImg = lease.output(expected);
         try {
-            ImageIO.write(outputbuffer,"jpg",dataImg);
+            Codecs.encode(indexed, output.getFormat(), output.getQuality(), dataImg);
         } catch (IOException e) {
             return new byte[0];
-        } 
-        byte[] bytes = dataImg.toByteArray();
-        
-        return bytes;
-        
+        }
+        return dataImg.toByteArray();
+    }
+
+    /**
+     * Applies Mean Filter to a decoded image.
+     * 
+     * The channels are summed as 8-bit integers straight from the packed pixels, with the
+     * running sums of applyMeanFilter. Both divide the exact window sums in double, so the result
+     * is the same without going through float planes as long as the sums of a row fit the 24 bits
+     * of a float, for rows of up to 65793 pixels.
+     * 
+     * @param input The input image, of type TYPE_INT_RGB.
+     * @param output The output image, of type TYPE_INT_RGB and of the same size, can be the input image.
+     * @param size The size of the mean filter.
+     */
+    public static void meanFilter(BufferedImage input, BufferedImage output, int size) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        int radius = size/2;
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            if (radius < 0) {
+                Planar<GrayF32> inputPlanar = lease.planar(width, height, 3);
+                Planar<GrayF32> outputPlanar = lease.planar(width, height, 3);
+                split(input, inputPlanar);
+                applyMeanFilter(inputPlanar, outputPlanar, size);
+                merge(outputPlanar, output);
+                return;
+            }
+
+            int[] src = HistogramEngine.pixels(input);
+            int[] dst = HistogramEngine.pixels(output);
+            // Sums of the red, green and blue values of each row, interleaved
+            int[] rowSums = lease.ints(Math.multiplyExact(3, Math.multiplyExact(width, height)));
+            TileExecutor.forEachBand(height, (y0, y1) -> sumPackedRows(src, rowSums, width, radius, y0, y1));
+            TileExecutor.forEachBand(height, (y0, y1) -> sumPackedColumns(rowSums, dst, width, height, radius, y0, y1));
+        }
+    }
+
+    /**
+     * Sums the channels of the pixels of each row within a radius around each pixel.
+     * @param src The packed RGB pixels
+     * @param rowSums The interleaved sums of the red, green and blue values of the rows
+     * @param width The width of the image
+     * @param radius The radius of the window
+     * @param y0 The first row to process
+     * @param y1 The row after the last row to process
+     */
+    private static void sumPackedRows(int[] src, int[] rowSums, int width, int radius, int y0, int y1) {
+        for (int y = y0; y < y1; ++y) {
+            int in = y*width;
+            int out = 3*y*width;
+
+            int red = 0, green = 0, blue = 0;
+            for (int j = 0; j < Math.min(radius, width); ++j) {
+                int rgb = src[in + j];
+                red += (rgb >> 16) & 0xff;
+                green += (rgb >> 8) & 0xff;
+                blue += rgb & 0xff;
+            }
+            for (int x = 0; x < width; ++x) {
+                if (x + radius < width) {
+                    int rgb = src[in + x + radius];
+                    red += (rgb >> 16) & 0xff;
+                    green += (rgb >> 8) & 0xff;
+                    blue += rgb & 0xff;
+                }
+                if (x - radius - 1 >= 0) {
+                    int rgb = src[in + x - radius - 1];
+                    red -= (rgb >> 16) & 0xff;
+                    green -= (rgb >> 8) & 0xff;
+                    blue -= rgb & 0xff;
+                }
+                rowSums[out + 3*x] = red;
+                rowSums[out + 3*x + 1] = green;
+                rowSums[out + 3*x + 2] = blue;
+            }
+        }
+    }
+
+    /**
+     * Sums the row sums of each column within a radius around each pixel and packs their
+     * means, computed as in sumColumns.
+     * @param rowSums The interleaved sums of the rows
+     * @param dst The packed RGB pixels of the output
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param radius The radius of the window
+     * @param y0 The first row to process
+     * @param y1 The row after the last row to process
+     */
+    private static void sumPackedColumns(int[] rowSums, int[] dst, int width, int height, int radius, int y0, int y1) {
+        long[] totals = new long[3*width];
+
+        // Window of the row before the band
+        for (int i = Math.max(y0 - radius - 1, 0); i < Math.min(y0 + radius, height); ++i) {
+            int in = 3*i*width;
+            for (int x = 0; x < 3*width; ++x) {
+                totals[x] += rowSums[in + x];
+            }
+        }
+
+        for (int y = y0; y < y1; ++y) {
+            int added = y + radius;
+            int removed = y - radius - 1;
+            if (added < height) {
+                int in = 3*added*width;
+                for (int x = 0; x < 3*width; ++x) {
+                    totals[x] += rowSums[in + x];
+                }
+            }
+            if (removed >= 0) {
+                int in = 3*removed*width;
+                for (int x = 0; x < 3*width; ++x) {
+                    totals[x] -= rowSums[in + x];
+                }
+            }
+
+            int rows = Math.min(y + radius, height - 1) - Math.max(y - radius, 0) + 1;
+            int out = y*width;
+            for (int x = 0; x < width; ++x) {
+                int columns = Math.min(x + radius, width - 1) - Math.max(x - radius, 0) + 1;
+                double weight = rows * columns;
+                // Same division, rounding and truncation as sumColumns then merge
+                int red = (int) (float) (totals[3*x] / weight);
+                int green = (int) (float) (totals[3*x + 1] / weight);
+                int blue = (int) (float) (totals[3*x + 2] / weight);
+                dst[out + x] = red << 16 | green << 8 | blue;
+            }
+        }
+    }
+
+    /**
+     * Applies a convolution filter to a decoded image.
+     * 
+     * @param input The input image, of type TYPE_INT_RGB.
+     * @param output The output image, of type TYPE_INT_RGB and of the same size.
+     * @param kernel The kernel of the convolution, of odd dimensions.
+     * @param border How the pixels outside of the image are read.
+     */
+    public static void convolutionFilter(BufferedImage input, BufferedImage output, float[][] kernel, Convolution.Border border) {
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            Planar<GrayF32> inputPlanar = lease.planar(input.getWidth(), input.getHeight(), 3);
+            Planar<GrayF32> outputPlanar = lease.planar(input.getWidth(), input.getHeight(), 3);
+
+            split(input, inputPlanar);
+            Convolution.convolve(inputPlanar, outputPlanar, kernel, border);
+
+            // Sharpening and custom kernels can go out of the range of a pixel
+            PixelKernels.Kernels kernels = PixelKernels.get();
+            int width = outputPlanar.width;
+            TileExecutor.forEachBand(outputPlanar.height, (y0, y1) -> {
+                for (int c = 0; c < outputPlanar.getNumBands(); c++) {
+                    kernels.clamp(outputPlanar.getBand(c).data, y0*width, y1*width, 0f, 255f);
+                }
+            });
+
+            merge(outputPlanar, output);
+        }
+    }
+
+    /**
+     * Splits a decoded image into a Planar of its red, green and blue channels.
+     * 
+     * @param input The image, of type TYPE_INT_RGB.
+     * @param output The channels, of the same size, with a stride equal to the width.
+     */
+    public static void split(BufferedImage input, Planar<GrayF32> output) {
+        int width = input.getWidth();
+        int[] src = HistogramEngine.pixels(input);
+        float[] red = output.getBand(0).data, green = output.getBand(1).data, blue = output.getBand(2).data;
+        PixelKernels.Kernels kernels = PixelKernels.get();
+
+        TileExecutor.forEachBand(input.getHeight(), (y0, y1) -> kernels.split(src, red, green, blue, y0*width, y1*width));
+    }
+
+    /**
+     * Packs the red, green and blue channels of a Planar into a decoded image.
+     * 
+     * @param input The channels, with a stride equal to the width and values between 0 and 255.
+     * @param output The image, of type TYPE_INT_RGB and of the same size.
+     */
+    public static void merge(Planar<GrayF32> input, BufferedImage output) {
+        int width = input.width;
+        int[] dst = HistogramEngine.pixels(output);
+        float[] red = input.getBand(0).data, green = input.getBand(1).data, blue = input.getBand(2).data;
+        PixelKernels.Kernels kernels = PixelKernels.get();
+
+        TileExecutor.forEachBand(input.height, (y0, y1) -> kernels.merge(red, green, blue, dst, y0*width, y1*width));
     }
 
     /**
@@ -150,16 +415,117 @@ public class ImageProcessing {
     
     /**
      * Applies a mean filter to an image.
+     * The window is summed with running sums, first along the rows then along the columns,
+     * so the cost per pixel doesn't depend on the size of the kernel. As with getAverage,
+     * the pixels of the window outside of the image are ignored and the mean is computed
+     * over the remaining ones.
      * @param input The input image
      * @param output The output image
      * @param size The size of the filter kernel
      */
     public static void applyMeanFilter(Planar<GrayF32> input, Planar<GrayF32> output, int size) {
-        for (int y = 0; y < input.height; ++y) {
-            for (int x = 0; x < input.width; ++x) {
-                for (int c = 0; c < input.getNumBands(); c++) {
-                    output.getBand(c).set(x, y, getAverage(input.getBand(c), x, y, size));
+        int radius = size/2;
+        if (radius < 0) {
+            // Empty window, kept on the pixel by pixel path
+            TileExecutor.forEachBand(input.height, (y0, y1) -> {
+                for (int y = y0; y < y1; ++y) {
+                    for (int x = 0; x < input.width; ++x) {
+                        for (int c = 0; c < input.getNumBands(); c++) {
+                            output.getBand(c).set(x, y, getAverage(input.getBand(c), x, y, size));
+                        }
+                    }
                 }
+            });
+            return;
+        }
+
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            GrayF32 rowSums = lease.gray(input.width, input.height);
+            for (int c = 0; c < input.getNumBands(); c++) {
+                GrayF32 band = input.getBand(c);
+                GrayF32 out = output.getBand(c);
+                TileExecutor.forEachBand(input.height, (y0, y1) -> sumRows(band, rowSums, radius, y0, y1));
+                TileExecutor.forEachBand(input.height, (y0, y1) -> sumColumns(rowSums, out, radius, y0, y1));
+            }
+        }
+    }
+
+    /**
+     * Sums the pixels of each row within a radius around each pixel.
+     * @param input The input band
+     * @param output The sums of the rows
+     * @param radius The radius of the window
+     * @param y0 The first row to process
+     * @param y1 The row after the last row to process
+     */
+    private static void sumRows(GrayF32 input, GrayF32 output, int radius, int y0, int y1) {
+        int width = input.width;
+        for (int y = y0; y < y1; ++y) {
+            int in = input.getIndex(0, y);
+            int out = output.getIndex(0, y);
+
+            // The pixel values are integers, so the double sums are exact
+            double total = 0;
+            for (int j = 0; j < Math.min(radius, width); ++j) {
+                total += input.data[in + j];
+            }
+            for (int x = 0; x < width; ++x) {
+                if (x + radius < width) {
+                    total += input.data[in + x + radius];
+                }
+                if (x - radius - 1 >= 0) {
+                    total -= input.data[in + x - radius - 1];
+                }
+                output.data[out + x] = (float) total;
+            }
+        }
+    }
+
+    /**
+     * Sums the row sums of each column within a radius around each pixel and divides
+     * them by the number of pixels of the window inside the image.
+     * @param rowSums The sums of the rows
+     * @param output The output band
+     * @param radius The radius of the window
+     * @param y0 The first row to process
+     * @param y1 The row after the last row to process
+     */
+    private static void sumColumns(GrayF32 rowSums, GrayF32 output, int radius, int y0, int y1) {
+        int width = rowSums.width;
+        int height = rowSums.height;
+        double[] totals = new double[width];
+
+        // Window of the row before the band
+        for (int i = Math.max(y0 - radius - 1, 0); i < Math.min(y0 + radius, height); ++i) {
+            int in = rowSums.getIndex(0, i);
+            for (int x = 0; x < width; ++x) {
+                totals[x] += rowSums.data[in + x];
+            }
+        }
+
+        for (int y = y0; y < y1; ++y) {
+            int added = y + radius;
+            int removed = y - radius - 1;
+            if (added < height) {
+                int in = rowSums.getIndex(0, added);
+                for (int x = 0; x < width; ++x) {
+                    totals[x] += rowSums.data[in + x];
+                }
+            }
+            if (removed >= 0) {
+                int in = rowSums.getIndex(0, removed);
+                for (int x = 0; x < width; ++x) {
+                    totals[x] -= rowSums.data[in + x];
+                }
+            }
+
+            int rows = Math.min(y + radius, height - 1) - Math.max(y - radius, 0) + 1;
+            int out = output.getIndex(0, y);
+            for (int x = 0; x < width; ++x) {
+                int columns = Math.min(x + radius, width - 1) - Math.max(x - radius, 0) + 1;
+                // The sums of large windows don't fit a float, the division is done on the exact sums
+                double weight = rows * columns;
+                output.data[out + x] = (float) (totals[x] / weight);
             }
         }
     }
@@ -169,104 +535,78 @@ public class ImageProcessing {
      * Display the hue histogram of an image
      * 
      * @param image - The image that we want to display its histogram
+     * @param output - The format of the histogram.
      * @return A byte[], namely the image's histogram 
      * 
      *
      */
-    public static byte[] Histogram(Image image){
+    public static byte[] Histogram(Image image, OutputFormat output){
 
 
         /**  Converting the image to process the display of the histogram  **/
 
-        Planar<GrayF32> inputPlanar = new Planar<>(GrayF32.class,1,1,3);
-
-        InputStream input = new ByteArrayInputStream(image.getData());
         BufferedImage buffered;
 
         try {
-            buffered = ImageIO.read(input);
+            buffered = Codecs.decode(image.getData());
         } catch (IOException e) {
             return new byte[0];
         }
-        BufferedImage inputbuffer = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_RGB);
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            BufferedImage inputbuffer = RasterAdapter.toRgb(buffered, lease);
 
-        Graphics2D g2d = inputbuffer.createGraphics();
-        g2d.drawImage(buffered, 0, 0, null);
-        g2d.dispose();
+            /**  Proccessing the display of the histogram  **/
 
-        ConvertBufferedImage.convertFrom(inputbuffer, inputPlanar, true);
+            float[] histArray = new float[360];
 
-        /**  Proccessing the display of the histogram  **/
+            int[] counts = HistogramEngine.count(HistogramEngine.pixels(inputbuffer), inputbuffer.getWidth(), inputbuffer.getHeight(), 360, HUE_BINS::bin);
 
-        float[] histArray = new float[360];
-        float[] Hsv = new float[3];
-        float[] color = new float[3];
-
-        for (int y = 0; y < inputPlanar.getHeight(); ++y) {
-			for (int x = 0; x < inputPlanar.getWidth(); ++x) {
+            for (int i=0; i < histArray.length; i++){
+                histArray[i] = counts[i];
+            }
 
-                
-                for (int canal=0; canal<3; canal++){
-                    color[canal] = (float) inputPlanar.getBand(canal).get(x,y);    
+            float hist_max = 0;
+            for (int i=0; i < histArray.length; i++){
+                if (histArray[i] > hist_max){
+                    hist_max=histArray[i];
                 }
-                ColorHsv.rgbToHsv(color[0], color[1], color[2], Hsv);
+            }
 
-                // Incrementing the histogram array
-                histArray[(int) Math.toDegrees(Hsv[0]) ]++;                 
+            // Creating the histogram image        
+            int width = histArray.length;
+            int height = 200;
+            GrayF32 hist = new GrayF32(width, height);
 
+            for (int y = 0; y < height-1; y++) {
+                for (int x = 0; x < width; x++) {
+                    hist.set(x, y, 0);
+                }
             }
-        }
-
-        float hist_max = 0;
-        for (int i=0; i < histArray.length; i++){
-            if (histArray[i] > hist_max){
-                hist_max=histArray[i];
+            for (int x = 0; x < width; x++){
+                hist.set(x,height-1,255);
             }
-        }
-
-        // Creating the histogram image        
-        int width = histArray.length;
-        int height = 200;
-        GrayF32 hist = new GrayF32(width, height);
 
-        for (int y = 0; y < height-1; y++) {
-            for (int x = 0; x < width; x++) {
-                hist.set(x, y, 0);
+            // Normalizing histogram's values 
+            float factor = ((float) height / hist_max);
+            for (int i=0; i < histArray.length; i++){
+                histArray[i] = histArray[i] * factor;            
             }
-        }
-        for (int x = 0; x < width; x++){
-            hist.set(x,height-1,255);
-        }
-
-        // Normalizing histogram's values 
-        float factor = ((float) height / hist_max);
-        for (int i=0; i < histArray.length; i++){
-            histArray[i] = histArray[i] * factor;            
-        }
 
-        // Setting the histogram        
-        for( int x = 0; x < histArray.length; x++){
-            for (int y = height-1; y > (height-1) - ((int)histArray[x]); y--){
-                hist.set(x,y,255);
+            // Setting the histogram        
+            for( int x = 0; x < histArray.length; x++){
+                for (int y = height-1; y > (height-1) - ((int)histArray[x]); y--){
+                    hist.set(x,y,255);
+                }
             }
-        }
-
-
-        /**  Converting the histogram to display it **/
 
-        BufferedImage rgbhist = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 
-        ConvertBufferedImage.convertTo(hist, rgbhist);
-        ByteArrayOutputStream dataImg = new ByteArrayOutputStream();
+            /**  Converting the histogram to display it **/
 
-        try {
-            ImageIO.write(rgbhist,"jpg",dataImg);
-        } catch (IOException e) {
-            return new byte[0];
-        } 
-        byte[] bytes = dataImg.toByteArray();
+            BufferedImage rgbhist = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 
-       return bytes;
+            ConvertBufferedImage.convertTo(hist, rgbhist);
+            return encodeChart(rgbhist, output, lease, width*height);
+        }
     }
 
     
@@ -274,105 +614,78 @@ public class ImageProcessing {
      * Display the hue/sat histogram of an image
      * 
      * @param image - The image that we want to display its histogram
+     * @param output - The format of the histogram.
      * @return A byte[], namely the image's histogram 
      * 
      *
      */
-    public static byte[] Histogram2D(Image image){
+    public static byte[] Histogram2D(Image image, OutputFormat output){
 
 
         /**  Converting the image to process the display of the histogram  **/
 
-        Planar<GrayF32> inputPlanar = new Planar<>(GrayF32.class,1,1,3);
-
-        InputStream input = new ByteArrayInputStream(image.getData());
         BufferedImage buffered;
 
         try {
-            buffered = ImageIO.read(input);
+            buffered = Codecs.decode(image.getData());
         } catch (IOException e) {
             return new byte[0];
         }
-        BufferedImage inputbuffer = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_RGB);
-
-        Graphics2D g2d = inputbuffer.createGraphics();
-        g2d.drawImage(buffered, 0, 0, null);
-        g2d.dispose();
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            BufferedImage inputbuffer = RasterAdapter.toRgb(buffered, lease);
 
-        ConvertBufferedImage.convertFrom(inputbuffer, inputPlanar, true);
+            /**  Proccessing the display of the histogram  **/
 
-        /**  Proccessing the display of the histogram  **/
+            int max_hue = 360;
+            int max_saturation = 101;
 
-        int max_hue = 360;
-        int max_saturation = 101;
+            float[][] hist2DArray = new float[max_hue][max_saturation];
 
-        float[][] hist2DArray = new float[max_hue][max_saturation];
-        float[] Hsv = new float[3];
-        float[] color = new float[3];
+            int[] counts = HistogramEngine.count(HistogramEngine.pixels(inputbuffer), inputbuffer.getWidth(), inputbuffer.getHeight(), max_hue*max_saturation, HUE_SAT_BINS::bin);
 
-        for (int y = 0; y < inputPlanar.getHeight(); ++y) {
-			for (int x = 0; x < inputPlanar.getWidth(); ++x) {
-
-                
-                for (int canal=0; canal<3; canal++){
-                    color[canal] = (float) inputPlanar.getBand(canal).get(x,y);    
+            for (int i=0; i < max_hue; i++){
+                for (int j=0; j < max_saturation; j++){
+                    hist2DArray[i][j] = counts[i*max_saturation + j];
                 }
-                ColorHsv.rgbToHsv(color[0], color[1], color[2], Hsv);
-
-                int hue_deg=(int) Math.toDegrees(Hsv[0]);
-                int sat_val=(int) (Hsv[1]*100);
-
-                // Incrementing the histogram 2D array
-                hist2DArray[ hue_deg ][ sat_val ]++;                 
-
             }
-        }
 
 
-        // Creating the histogram image        
-        int width = max_hue;
-        int height = max_saturation;
-        GrayF32 hist = new GrayF32(width, height);
+            // Creating the histogram image        
+            int width = max_hue;
+            int height = max_saturation;
+            GrayF32 hist = new GrayF32(width, height);
 
-        for (int y = 0; y < height-1; y++) {
-            for (int x = 0; x < width; x++) {
-                hist.set(x, y, 0);
+            for (int y = 0; y < height-1; y++) {
+                for (int x = 0; x < width; x++) {
+                    hist.set(x, y, 0);
+                }
             }
-        }
-
 
-        // Normalizing histogram's values 
-        for (int i=0; i < max_hue; i++){
-            for (int j=0; j < max_saturation; j++){
-                if (hist2DArray[i][j] > 255){
-                    hist2DArray[i][j] = 255; 
-                }                
-            }           
-        }
 
-        // Setting the histogram        
-        for (int i=0; i < max_hue; i++){
-            for (int j=0; j < max_saturation; j++){
-                hist.set(i,j,(int)hist2DArray[i][j]);
+            // Normalizing histogram's values 
+            for (int i=0; i < max_hue; i++){
+                for (int j=0; j < max_saturation; j++){
+                    if (hist2DArray[i][j] > 255){
+                        hist2DArray[i][j] = 255; 
+                    }                
+                }           
             }
-        }
 
+            // Setting the histogram        
+            for (int i=0; i < max_hue; i++){
+                for (int j=0; j < max_saturation; j++){
+                    hist.set(i,j,(int)hist2DArray[i][j]);
+                }
+            }
 
-        /**  Converting the histogram to display it **/
 
-        BufferedImage rgbhist = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            /**  Converting the histogram to display it **/
 
-        ConvertBufferedImage.convertTo(hist, rgbhist);
-        ByteArrayOutputStream dataImg = new ByteArrayOutputStream();
+            BufferedImage rgbhist = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 
-        try {
-            ImageIO.write(rgbhist,"jpg",dataImg);
-        } catch (IOException e) {
-            return new byte[0];
-        } 
-        byte[] bytes = dataImg.toByteArray();
-
-       return bytes;
+            ConvertBufferedImage.convertTo(hist, rgbhist);
+            return encodeChart(rgbhist, output, lease, width*height);
+        }
     }
 
 
@@ -380,52 +693,51 @@ public class ImageProcessing {
      * Applies a color filter to an image.
      * @param image The input image
      * @param Hue The color code to apply
+     * @param output The format of the processed image
      * @return A new byte[], namely the processed input image
      */
-    public static byte[] hueFilter(Image image, int Hue) {
+    public static byte[] hueFilter(Image image, int Hue, OutputFormat output) {
         
 
         /**  Converting the image to process the color filter **/
 
-        Planar<GrayF32> inputPlanar = new Planar<>(GrayF32.class,1,1,3);
-        Planar<GrayF32> outputPlanar = inputPlanar.createSameShape();
-
-        InputStream input = new ByteArrayInputStream(image.getData());
         BufferedImage buffered;
 
         try {
-            buffered = ImageIO.read(input);
+            buffered = Codecs.decode(image.getData());
         } catch (IOException e) {
             return new byte[0];
         }
-        BufferedImage inputbuffer = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_RGB);
-      
-        Graphics2D g2d = inputbuffer.createGraphics();
-        g2d.drawImage(buffered, 0, 0, null);
-        g2d.dispose();
-
-        ConvertBufferedImage.convertFrom(inputbuffer, inputPlanar, true);
-
-        outputPlanar.reshape(inputbuffer.getWidth(), inputbuffer.getHeight());
-
-        /**  Processing **/
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            BufferedImage inputbuffer = RasterAdapter.toRgb(buffered, lease);
 
-        applyFilter(inputPlanar, outputPlanar, Hue);
+            /**  Processing **/
 
-        /**  Converting the colored image to display it **/
+            recolour(inputbuffer, inputbuffer, Hue);
 
-        ConvertBufferedImage.convertTo_F32(outputPlanar, inputbuffer, true);
+            /**  Converting the colored image to display it **/
 
-        ByteArrayOutputStream dataImg = new ByteArrayOutputStream();
-        try {
-            ImageIO.write(inputbuffer,"jpg",dataImg);
-        } catch (IOException e) {
-            return new byte[0];
-        } 
-        byte[] bytes = dataImg.toByteArray();
+            return encode(inputbuffer, output, lease, image.getData().length);
+        }
 
-       return bytes;
+    }
 
+    /**
+     * Replaces the hue of every pixel of an image, with the recolour table of the hue.
+     * Gives the same pixels as applyFilter.
+     * 
+     * @param input The input image, of type TYPE_INT_RGB.
+     * @param output The output image, of type TYPE_INT_RGB and of the same size, can be the input image.
+     * @param Hue The hue to apply, in degrees.
+     */
+    public static void recolour(BufferedImage input, BufferedImage output, int Hue) {
+        int[] table = ColorTables.recolourTable(Hue);
+        int[] src = HistogramEngine.pixels(input);
+        int[] dst = HistogramEngine.pixels(output);
+        int width = input.getWidth();
+        PixelKernels.Kernels kernels = PixelKernels.get();
+
+        TileExecutor.forEachBand(input.getHeight(), (y0, y1) -> kernels.recolour(src, dst, y0*width, y1*width, table));
     }
 
     /**
@@ -437,34 +749,35 @@ public class ImageProcessing {
      */
     public static void applyFilter(Planar<GrayF32> input, Planar<GrayF32> output, int Hue){
 
-        float[] Hsv = new float[3];
-        float[] color = new float[3];
+        float deg = (float) ( ( Math.PI / 180 ) * Hue );
 
-        for (int y = 0; y < input.height; ++y) {
-			for (int x = 0; x < input.width; ++x) {
+        TileExecutor.forEachBand(input.height, (y0, y1) -> {
+            float[] Hsv = new float[3];
+            float[] color = new float[3];
 
-				// On parcourt chaque canal
-                for (int canal=0; canal<3; canal++){
-                    color[canal] = (float) input.getBand(canal).get(x,y);    
-                }
+            for (int y = y0; y < y1; ++y) {
+                for (int x = 0; x < input.width; ++x) {
+
+                    // On parcourt chaque canal
+                    for (int canal=0; canal<3; canal++){
+                        color[canal] = (float) input.getBand(canal).get(x,y);    
+                    }
+
+                    // On effectue la conversion rgb => hsv sur chaque pixel
+                    ColorHsv.rgbToHsv(color[0], color[1], color[2], Hsv);                
+                    Hsv[0] = deg;
 
-                // On effectue la conversion rgb => hsv sur chaque pixel
-                ColorHsv.rgbToHsv(color[0], color[1], color[2], Hsv);                
-                float deg = (float) ( ( Math.PI / 180 ) * Hue );                
-                Hsv[0] = deg;
+                    // On effectue la conversion hsv => rgb sur chaque pixel
+                    ColorHsv.hsvToRgb(Hsv[0],Hsv[1],Hsv[2],color);
 
-                // On effectue la conversion hsv => rgb sur chaque pixel
-                ColorHsv.hsvToRgb(Hsv[0],Hsv[1],Hsv[2],color);
+                    // On ajoute a l'image
+                    for (int canal=0; canal<3; canal++){
+                        output.getBand(canal).set(x,y,(int)color[canal]);    
+                    }
 
-                // On ajoute a l'image
-                for (int canal=0; canal<3; canal++){
-                    output.getBand(canal).set(x,y,(int)color[canal]);    
                 }
-                                
             }
-        }
-
-        
+        });
     }
 
     /**
@@ -479,21 +792,23 @@ public class ImageProcessing {
         int width = kernel[0].length; 
         int rayon = (width-1)/2;
     
-        for (int y = rayon; y < (input.height - rayon); ++y) {
-          for (int x = rayon; x < (input.width - rayon); ++x)  {
+        TileExecutor.forEachBand(input.height, (y0, y1) -> {
+          for (int y = Math.max(y0, rayon); y < Math.min(y1, input.height - rayon); ++y) {
+            for (int x = rayon; x < (input.width - rayon); ++x)  {
     
-            int r=0;
+              int r=0;
     
-            for (int i = -rayon; i <= +rayon; i++) { 
-              for (int j = -rayon; j <= +rayon; j++) { 
+              for (int i = -rayon; i <= +rayon; i++) { 
+                for (int j = -rayon; j <= +rayon; j++) { 
     
-                r +=  input.get(x+i,y+j) * kernel[j+rayon][i+rayon];              
+                  r +=  input.get(x+i,y+j) * kernel[j+rayon][i+rayon];              
+                }
               }
-            }
-            output.set(x, y, r);
+              output.set(x, y, r);
     
+            }
           }
-        }
+        });
     
       }
     
@@ -514,92 +829,147 @@ public class ImageProcessing {
         convolution(input, Gx, kernelX);
         convolution(input, Gy, kernelY);
 
-        for (int y = 0; y < input.height; y++) {
-            for (int x = 0; x < input.width; x++) {
+        TileExecutor.forEachBand(input.height, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < input.width; x++) {
 
-                int m = (int) Math.sqrt( Math.pow(Gx.get(x, y), 2) + Math.pow(Gy.get(x, y), 2) );
-                
-                if (m>255){
-                    m=255;
-                }
-                if (m<0){
-                    m=0;
+                    int m = (int) Math.sqrt( Math.pow(Gx.get(x, y), 2) + Math.pow(Gy.get(x, y), 2) );
+                    
+                    if (m>255){
+                        m=255;
+                    }
+                    if (m<0){
+                        m=0;
+                    }
+                    output.set(x, y, m);
                 }
-                output.set(x, y, m);
             }
-        }
+        });
     }
 
     /**
      * Applies a Sobel filter to an image.
      * 
      * @param image - The image that we want to be processed.
+     * @param output - The format of the processed image.
      * @return A new byte[], namely the processed input image
      */
-    public static byte[] gradientImageSobel(Image image){
-
-        int[][] kernelX = {{-1, 0, 1}, {-2, 0, 2}, {-1, 0, 1}};
-        int[][] kernelY = {{-1, -2, -1}, {0, 0, 0}, {1, 2, 1}};
-
-
-        /***  Applying Gray filter  ***/ 
-
-        float redLevel = 0.30f;
-        float greenLevel = 0.59f;
-        float blueLevel = 0.11f;
+    public static byte[] gradientImageSobel(Image image, OutputFormat output){
+        return gradientImageSobel(image, false, output);
+    }
 
-        Planar<GrayF32> inputPlanar = new Planar<>(GrayF32.class,1,1,3);
+    /**
+     * Applies a Sobel filter to an image.
+     * 
+     * @param image - The image that we want to be processed.
+     * @param l1 - true to approximate the magnitude of the gradient by |Gx| + |Gy|.
+     * @param output - The format of the processed image.
+     * @return A new byte[], namely the processed input image
+     */
+    public static byte[] gradientImageSobel(Image image, boolean l1, OutputFormat output){
 
-        GrayF32 output = new GrayF32();
-        GrayF32 gray = new GrayF32();
-        
-        InputStream input = new ByteArrayInputStream(image.getData());
         BufferedImage buffered;
         try {
-            buffered = ImageIO.read(input);
+            buffered = Codecs.decode(image.getData());
         } catch (IOException e) {
             return new byte[0];
         }
-        BufferedImage inputbuffer = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_RGB);
+        try (BufferPool.Lease lease = BufferPool.lease()) {
+            BufferedImage inputbuffer = RasterAdapter.toRgb(buffered, lease);
+            BufferedImage outputbuffer = lease.image(buffered.getWidth(), buffered.getHeight());
 
-        Graphics2D g2d = inputbuffer.createGraphics();
-        g2d.drawImage(buffered, 0, 0, null);
-        g2d.dispose();
 
-        ConvertBufferedImage.convertFrom(inputbuffer, inputPlanar, true);
-
-        gray.reshape(inputbuffer.getWidth(), inputbuffer.getHeight());
-        output.reshape(inputbuffer.getWidth(), inputbuffer.getHeight());
-
-        for (int x = 0; x < inputbuffer.getWidth(); x++) {
-            for (int y = 0; y < inputbuffer.getHeight(); y++) {
-                gray.set(x, y, inputPlanar.getBand(0).get(x, y)*redLevel + inputPlanar.getBand(1).get(x, y)*greenLevel + inputPlanar.getBand(2).get(x, y)*blueLevel);
-            }
-        }
-        
+            /***  Processing  ***/
 
-        /***  Processing  ***/
+            sobel(inputbuffer, outputbuffer, l1);
 
-        gradientImage(gray, output, kernelX, kernelY);
 
+            /***  Converting  ***/
 
-        /***  Converting  ***/
+            return encode(outputbuffer, output, lease, image.getData().length);
+        }
 
-        ConvertBufferedImage.convertTo(output, inputbuffer);
-        ByteArrayOutputStream dataImg = new ByteArrayOutputStream();
-        try {
-            ImageIO.write(inputbuffer,"jpg",dataImg);
-        } catch (IOException e) {
-            return new byte[0];
-        } 
-        byte[] bytes = dataImg.toByteArray();
 
-        return bytes;
+    }
 
+    /**
+     * Computes the Sobel gradient magnitude of an image in a single pass.
+     * 
+     * The gray level, both gradients and the magnitude are computed row by row, keeping
+     * only the last three gray rows, instead of going through full gray, Gx and Gy images.
+     * The arithmetic is the one of grayFilter, convolution and gradientImage, in the same
+     * order, so the result is the same: the borders are left black.
+     * 
+     * @param input The input image, of type TYPE_INT_RGB.
+     * @param output The output image, of type TYPE_INT_RGB and of the same size.
+     * @param l1 true to approximate the magnitude by |Gx| + |Gy|.
+     */
+    public static void sobel(BufferedImage input, BufferedImage output, boolean l1) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        int[] src = ((DataBufferInt) input.getRaster().getDataBuffer()).getData();
+        int[] dst = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+
+        TileExecutor.forEachBand(height, (y0, y1) -> {
+            float[][] ring = new float[3][width];
+            int next = Math.max(y0 - 1, 0);
+
+            for (int y = y0; y < y1; y++) {
+                for (int last = Math.min(y + 1, height - 1); next <= last; next++) {
+                    grayRow(src, next*width, ring[next % 3]);
+                }
 
+                int out = y*width;
+                if (y == 0 || y == height - 1 || width < 3) {
+                    Arrays.fill(dst, out, out + width, 0);
+                    continue;
+                }
+                float[] top = ring[(y - 1) % 3];
+                float[] middle = ring[y % 3];
+                float[] bottom = ring[(y + 1) % 3];
+
+                dst[out] = 0;
+                dst[out + width - 1] = 0;
+                for (int x = 1; x < width - 1; x++) {
+                    // Same terms and same truncation to int after each one as convolution,
+                    // the terms with a null coefficient leave the sum unchanged
+                    int gx = 0;
+                    gx += -top[x-1];
+                    gx += -2*middle[x-1];
+                    gx += -bottom[x-1];
+                    gx += top[x+1];
+                    gx += 2*middle[x+1];
+                    gx += bottom[x+1];
+
+                    int gy = 0;
+                    gy += -top[x-1];
+                    gy += bottom[x-1];
+                    gy += -2*top[x];
+                    gy += 2*bottom[x];
+                    gy += -top[x+1];
+                    gy += bottom[x+1];
+
+                    int m = l1 ? Math.abs(gx) + Math.abs(gy) : (int) Math.sqrt(gx*gx + gy*gy);
+                    if (m>255){
+                        m=255;
+                    }
+                    dst[out + x] = m << 16 | m << 8 | m;
+                }
+            }
+        });
     }
-    
 
-
-    
-}
\ No newline at end of file
+    /**
+     * Converts a row of packed RGB pixels to gray levels, with the weights of grayFilter.
+     * 
+     * @param src The packed RGB pixels.
+     * @param offset The index of the first pixel of the row.
+     * @param gray The gray levels of the row.
+     */
+    private static void grayRow(int[] src, int offset, float[] gray) {
+        for (int x = 0; x < gray.length; x++) {
+            int rgb = src[offset + x];
+            gray[x] = ((rgb >> 16) & 0xff)*0.30f + ((rgb >> 8) & 0xff)*0.59f + (rgb & 0xff)*0.11f;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package pdl.app_image_back;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Precomputed lists of the closest images of every image, for every descriptor.
+ *
+ * The lists are maintained when the catalog changes: a new image is compared once with
+ * the collection and inserted in the lists where it beats the current last neighbour.
+ * When an image is deleted, the lists it appeared in are repaired in the background,
+ * and are not served until they are.
+ *
+ * The lists are guarded by a ReentrantLock rather than a monitor, so that a virtual
+ * request thread waiting for it is unmounted instead of pinning its carrier.
+ */
+@Component
+public class NeighbourIndex implements CatalogListener {
+
+  /**
+   * The descriptors with precomputed lists. The spatial grid isn't one of them: its searches
+   * always go through the cascade of ImageComparison, so they don't depend on the number of
+   * results asked or on the lists being repaired.
+   */
+  private static final String[] DESCRIPTORS = {"hshist", "rgbhist"};
+
+  /**
+   * The neighbours of every image for one descriptor.
+   */
+  private static class Lists {
+    Map<Long, double[]> descriptors = new HashMap<>();
+    Map<Long, ArrayList<Object[]>> neighbours = new HashMap<>();
+    Set<Long> dirty = new HashSet<>();
+  }
+
+  private final int size;
+
+  private final Map<String, Lists> index = new HashMap<>();
+
+  private final Map<Long, Image> images = new HashMap<>();
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final ExecutorService repairs = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "neighbour-repair");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Constructs the index.
+   *
+   * @param size - The number of neighbours kept for each image and descriptor.
+   * @throws IllegalArgumentException if the size isn't positive.
+   */
+  public NeighbourIndex(@Value("${similarity.neighbours:20}") int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("similarity.neighbours must be at least 1");
+    }
+    this.size = size;
+    for (String descriptor : DESCRIPTORS) {
+      index.put(descriptor, new Lists());
+    }
+  }
+
+  /**
+   * Stops the background repairs.
+   */
+  @PreDestroy
+  public void shutdown() {
+    repairs.shutdownNow();
+  }
+
+  /**
+   * Retrieves the closest images of an image, with the Euclidean distance.
+   *
+   * @param id         - The ID of the image.
+   * @param descriptor - The descriptor name.
+   * @param maxNum     - The maximum number of results to return.
+   * @return An ArrayList of Image objects and their distances sorted by distance,
+   * or null if the list isn't available or too short for the request.
+   */
+  public ArrayList<Object[]> lookup(long id, String descriptor, int maxNum) {
+    lock.lock();
+    try {
+      Lists lists = index.get(descriptor);
+      if (lists == null || maxNum > size || lists.dirty.contains(id)) {
+        return null;
+      }
+      ArrayList<Object[]> neighbours = lists.neighbours.get(id);
+      if (neighbours == null) {
+        return null;
+      }
+      return new ArrayList<>(neighbours.subList(0, Math.min(Math.max(maxNum, 0), neighbours.size())));
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Inserts a neighbour in a sorted list if it is closer than the last one.
+   *
+   * @param neighbours - The sorted list of neighbours.
+   * @param img        - The candidate image.
+   * @param distance   - The distance of the candidate.
+   */
+  private void offer(ArrayList<Object[]> neighbours, Image img, double distance) {
+    int count = neighbours.size();
+    if (count > 0 && count >= size && distance >= (Double) neighbours.get(count - 1)[1]) {
+      return;
+    }
+    int pos = 0;
+    while (pos < count && (Double) neighbours.get(pos)[1] <= distance) {
+      pos++;
+    }
+    Object[] field = {img, Double.valueOf(distance)};
+    neighbours.add(pos, field);
+    if (neighbours.size() > size) {
+      neighbours.remove(neighbours.size() - 1);
+    }
+  }
+
+  /**
+   * Compares a new image once with the collection, builds its lists and updates the others.
+   * The distances are computed outside of the lock, from a copy of the descriptors, so the
+   * lookups don't wait for the scan of the collection. The images added or deleted meanwhile
+   * are caught up when the lists are updated.
+   *
+   * @param img     - The image that was added.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void imageCreated(final Image img, final long version) {
+    // Keep only the metadata, the image data isn't needed to answer a lookup
+    Image meta = img.metadata();
+
+    Map<String, Map<Long, Double>> distances = new HashMap<>();
+    for (String descriptor : DESCRIPTORS) {
+      double[] desc = ImageComparison.getDescriptor(meta, descriptor);
+      if (desc.length == 0) {
+        continue;
+      }
+      Map<Long, double[]> others;
+      lock.lock();
+      try {
+        others = new HashMap<>(index.get(descriptor).descriptors);
+      }
+      finally {
+        lock.unlock();
+      }
+
+      Map<Long, Double> computed = new HashMap<>();
+      for (Map.Entry<Long, double[]> other : others.entrySet()) {
+        if (other.getValue().length == desc.length) {
+          computed.put(other.getKey(), ImageComparison.getDistance(desc, other.getValue(), ImageComparison.Metric.EUCLIDEAN));
+        }
+      }
+      distances.put(descriptor, computed);
+    }
+
+    lock.lock();
+    try {
+      images.put(meta.getId(), meta);
+      for (String descriptor : DESCRIPTORS) {
+        Map<Long, Double> computed = distances.get(descriptor);
+        if (computed == null) {
+          continue;
+        }
+        Lists lists = index.get(descriptor);
+        double[] desc = ImageComparison.getDescriptor(meta, descriptor);
+
+        ArrayList<Object[]> own = new ArrayList<>();
+        for (Map.Entry<Long, double[]> other : lists.descriptors.entrySet()) {
+          if (other.getValue().length != desc.length) {
+            continue;
+          }
+          // Only the images added since the copy are compared under the lock
+          Double distance = computed.get(other.getKey());
+          if (distance == null) {
+            distance = ImageComparison.getDistance(desc, other.getValue(), ImageComparison.Metric.EUCLIDEAN);
+          }
+          offer(own, images.get(other.getKey()), distance);
+          offer(lists.neighbours.get(other.getKey()), meta, distance);
+        }
+
+        lists.descriptors.put(meta.getId(), desc);
+        lists.neighbours.put(meta.getId(), own);
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes an image from the index and schedules the repair of the lists it appeared in.
+   *
+   * @param img     - The image that was removed.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void imageDeleted(final Image img, final long version) {
+    lock.lock();
+    try {
+      images.remove(img.getId());
+      for (String descriptor : DESCRIPTORS) {
+        Lists lists = index.get(descriptor);
+        lists.descriptors.remove(img.getId());
+        lists.neighbours.remove(img.getId());
+        lists.dirty.remove(img.getId());
+
+        for (Map.Entry<Long, ArrayList<Object[]>> entry : lists.neighbours.entrySet()) {
+          if (entry.getValue().removeIf(val -> ((Image) val[0]).getId() == img.getId())) {
+            final long id = entry.getKey();
+            lists.dirty.add(id);
+            repairs.execute(() -> repair(descriptor, id));
+          }
+        }
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Computes the list of an image again from the descriptors of the collection.
+   *
+   * @param descriptor - The descriptor name.
+   * @param id         - The ID of the image.
+   */
+  private void repair(String descriptor, long id) {
+    lock.lock();
+    try {
+      Lists lists = index.get(descriptor);
+      double[] desc = lists.descriptors.get(id);
+      if (desc == null || !lists.dirty.remove(id)) {
+        return;
+      }
+      ArrayList<Object[]> own = new ArrayList<>();
+      for (Map.Entry<Long, double[]> other : lists.descriptors.entrySet()) {
+        if (other.getKey() != id && other.getValue().length == desc.length) {
+          offer(own, images.get(other.getKey()), ImageComparison.getDistance(desc, other.getValue(), ImageComparison.Metric.EUCLIDEAN));
+        }
+      }
+      lists.neighbours.put(id, own);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The lists don't depend on the favorite status.
+   *
+   * @param id      - The ID of the image.
+   * @param value   - The new favorite status.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void favoriteChanged(final long id, final boolean value, final long version) {
+  }
+}
@@ -0,0 +1,151 @@
+package pdl.app_image_back;
+
+import java.util.List;
+
+import org.springframework.http.MediaType;
+
+import pdl.object_recognition.ImageCodec;
+
+/**
+ * Format and quality the filtered images are encoded in.
+ *
+ * The format is taken from the format parameter of the request if there is one, otherwise from
+ * the Accept header, the format preferred by the endpoint winning the ties, such as the format
+ * of the original image or PNG for the histograms.
+ */
+public class OutputFormat {
+
+    /**
+     * JPEG at the default quality.
+     */
+    public static final OutputFormat JPEG = new OutputFormat("jpeg", MediaType.IMAGE_JPEG, ImageCodec.DEFAULT_QUALITY);
+
+    /**
+     * PNG, which is lossless.
+     */
+    public static final OutputFormat PNG = new OutputFormat("png", MediaType.IMAGE_PNG, ImageCodec.DEFAULT_QUALITY);
+
+    private final String format;
+    private final MediaType mediaType;
+    private final float quality;
+
+    private OutputFormat(String format, MediaType mediaType, float quality) {
+        this.format = format;
+        this.mediaType = mediaType;
+        this.quality = quality;
+    }
+
+    /**
+     * Gets the format of an image, the images which aren't PNG being encoded in JPEG.
+     *
+     * @param type - The type of the image.
+     * @return PNG for the PNG images, JPEG otherwise.
+     */
+    public static OutputFormat of(MediaType type) {
+        return MediaType.IMAGE_PNG.equalsTypeAndSubtype(type) ? PNG : JPEG;
+    }
+
+    /**
+     * Chooses the format of a response.
+     *
+     * @param name     - The format parameter, "jpeg", "jpg" or "png", or null.
+     * @param quality  - The quality parameter of the JPEG images, from 1 to 100, or null.
+     * @param accept   - The Accept header, or null.
+     * @param fallback - The format preferred by the endpoint.
+     * @return The format.
+     * @throws IllegalArgumentException if the format or the quality is invalid.
+     */
+    public static OutputFormat negotiate(String name, Integer quality, String accept, OutputFormat fallback) {
+        OutputFormat chosen;
+        if (name != null) {
+            switch (name.toLowerCase()) {
+                case "jpeg":
+                case "jpg":
+                    chosen = JPEG;
+                    break;
+                case "png":
+                    chosen = PNG;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown format " + name);
+            }
+        } else if (accept != null) {
+            List<MediaType> accepted = MediaType.parseMediaTypes(accept);
+            OutputFormat other = fallback == PNG ? JPEG : PNG;
+            chosen = acceptance(accepted, other.mediaType) > acceptance(accepted, fallback.mediaType) ? other : fallback;
+        } else {
+            chosen = fallback;
+        }
+
+        if (quality == null || chosen != JPEG) {
+            return chosen;
+        }
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("quality " + quality + " isn't between 1 and 100");
+        }
+        return new OutputFormat("jpeg", MediaType.IMAGE_JPEG, quality/100f);
+    }
+
+    /**
+     * Finds how much a type is accepted, from the most specific type of the Accept header matching it.
+     *
+     * @param accepted - The types of the Accept header.
+     * @param type     - The type.
+     * @return The quality value of the type, 0 if it isn't accepted.
+     */
+    private static double acceptance(List<MediaType> accepted, MediaType type) {
+        double value = 0;
+        int specificity = -1;
+        for (MediaType range : accepted) {
+            if (range.includes(type)) {
+                int rangeSpecificity = range.isWildcardType() ? 0 : range.isWildcardSubtype() ? 1 : 2;
+                if (rangeSpecificity > specificity) {
+                    specificity = rangeSpecificity;
+                    value = range.getQualityValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Gets the name of the format.
+     *
+     * @return "jpeg" or "png".
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Gets the content type of the encoded images.
+     *
+     * @return The media type of the format.
+     */
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Gets the quality of the JPEG images.
+     *
+     * @return The quality, from 0 to 1.
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Checks if the format is lossless.
+     *
+     * @return true for PNG.
+     */
+    public boolean isLossless() {
+        return this == PNG;
+    }
+
+    @Override
+    public String toString() {
+        return isLossless() ? format : format + ":" + Math.round(quality*100);
+    }
+}
@@ -0,0 +1,137 @@
+package pdl.app_image_back;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Records the virtual threads pinned to their carrier thread.
+ *
+ * A virtual thread blocking inside a synchronized block or a native call can't be unmounted,
+ * and holds its carrier until it is unblocked. The JVM reports it with a JFR event, which this
+ * monitor counts by the frame of the application where it happened, so that the metrics show
+ * which locks to replace.
+ */
+public class PinningMonitor {
+
+    private static final String EVENT = "jdk.VirtualThreadPinned";
+
+    /**
+     * Number of sites kept, the other ones being counted under "other".
+     */
+    private static final int MAX_SITES = 64;
+
+    private static RecordingStream stream;
+
+    private static final AtomicLong events = new AtomicLong();
+    private static final AtomicLong pinnedNanos = new AtomicLong();
+    private static final Map<String, AtomicLong> sites = new ConcurrentHashMap<>();
+
+    /**
+     * Starts recording the pinned virtual threads, unless it is already started.
+     *
+     * @param threshold - How long a thread has to be pinned to be recorded.
+     * @return true if the recording is started, false if the JVM can't record the event.
+     */
+    public static synchronized boolean start(Duration threshold) {
+        if (stream != null) {
+            return true;
+        }
+        try {
+            RecordingStream recording = new RecordingStream();
+            recording.enable(EVENT).withThreshold(threshold).withStackTrace();
+            recording.onEvent(EVENT, PinningMonitor::record);
+            recording.startAsync();
+            stream = recording;
+            return true;
+        } catch (RuntimeException e) {
+            // JFR isn't available on this JVM
+            return false;
+        }
+    }
+
+    /**
+     * Stops recording.
+     */
+    public static synchronized void stop() {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    /**
+     * Checks if the pinned threads are recorded.
+     *
+     * @return true if the recording is started.
+     */
+    public static synchronized boolean isRecording() {
+        return stream != null;
+    }
+
+    private static void record(RecordedEvent event) {
+        events.incrementAndGet();
+        pinnedNanos.addAndGet(event.getDuration().toNanos());
+        String site = site(event.getStackTrace());
+        if (sites.size() >= MAX_SITES && !sites.containsKey(site)) {
+            site = "other";
+        }
+        sites.computeIfAbsent(site, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Finds the frame of the application where a thread was pinned.
+     *
+     * @param trace - The stack trace of the event.
+     * @return The method and line of the first frame of the application, or of the top frame if there is none.
+     */
+    static String site(RecordedStackTrace trace) {
+        if (trace == null || trace.getFrames().isEmpty()) {
+            return "unknown";
+        }
+        RecordedFrame site = trace.getFrames().get(0);
+        for (RecordedFrame frame : trace.getFrames()) {
+            if (frame.getMethod().getType().getName().startsWith("pdl.")) {
+                site = frame;
+                break;
+            }
+        }
+        return site.getMethod().getType().getName() + "." + site.getMethod().getName() + ":" + site.getLineNumber();
+    }
+
+    /**
+     * Gets the number of times a thread was pinned longer than the threshold.
+     *
+     * @return The number of events.
+     */
+    public static long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * Gets how long the recorded threads were pinned in all.
+     *
+     * @return The duration in milliseconds.
+     */
+    public static long getPinnedMillis() {
+        return pinnedNanos.get() / 1000000;
+    }
+
+    /**
+     * Gets the number of events of each site.
+     *
+     * @return The number of events, sorted by site.
+     */
+    public static Map<String, Long> getSites() {
+        Map<String, Long> counts = new TreeMap<>();
+        sites.forEach((site, count) -> counts.put(site, count.get()));
+        return counts;
+    }
+}
@@ -0,0 +1,365 @@
+package pdl.app_image_back;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Ordered chain of filters applied to a decoded image, parsed from a request
+ * such as "gray,mean:5,sobel".
+ *
+ * The filters work on the pixels of the same BufferedImage, so the image is only
+ * decoded and encoded once for the whole chain. Consecutive point operations are
+ * fused with PointOp.then and applied in a single pass.
+ *
+ * The filters are:
+ * gray, gamma:g, equalize, threshold, threshold:t, color:hue, mean:size,
+ * gaussian:sigma, sharpen, sobel and sobell1.
+ */
+public class Pipeline {
+
+    /**
+     * Maximum number of filters of a pipeline.
+     */
+    public static final int MAX_STEPS = 16;
+
+    /**
+     * A filter of the pipeline. A point operation is given by its point function,
+     * any other filter by its filter function and the number of rows around a pixel
+     * it reads. A point operation depending on the histogram of the whole image
+     * also has a function building it from that histogram.
+     */
+    private static class Step {
+        final String name;
+        final Function<BufferedImage, PointOp> point;
+        final Function<int[], PointOp> histogramPoint;
+        final int radius;
+        final long reads;
+        final BiConsumer<BufferedImage, BufferedImage> filter;
+
+        Step(String name, Function<BufferedImage, PointOp> point, Function<int[], PointOp> histogramPoint, int radius,
+            long reads, BiConsumer<BufferedImage, BufferedImage> filter) {
+            this.name = name;
+            this.point = point;
+            this.histogramPoint = histogramPoint;
+            this.radius = radius;
+            this.reads = reads;
+            this.filter = filter;
+        }
+
+        /**
+         * Creates a point operation which doesn't depend on the image.
+         *
+         * @param name - The canonical name of the filter.
+         * @param op   - The operation.
+         * @return The filter.
+         */
+        static Step point(String name, PointOp op) {
+            return new Step(name, image -> op, null, 0, 1, null);
+        }
+
+        /**
+         * Creates a point operation built from the histogram of the gray levels of the image.
+         *
+         * @param name           - The canonical name of the filter.
+         * @param histogramPoint - Builds the operation from the histogram.
+         * @return The filter.
+         */
+        static Step histogram(String name, Function<int[], PointOp> histogramPoint) {
+            return new Step(name, image -> histogramPoint.apply(PointOp.grayHistogram(image)), histogramPoint, 0, 1, null);
+        }
+
+        /**
+         * Creates a filter which isn't a point operation.
+         *
+         * @param name   - The canonical name of the filter.
+         * @param radius - The number of rows read above and below each output row.
+         * @param reads  - The number of pixels read for each output pixel.
+         * @param filter - Writes the filtered input image to the output image.
+         * @return The filter.
+         */
+        static Step filter(String name, int radius, long reads, BiConsumer<BufferedImage, BufferedImage> filter) {
+            return new Step(name, null, null, radius, reads, filter);
+        }
+    }
+
+    private final List<Step> steps;
+
+    private Pipeline(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Parses a pipeline given as filters separated by ',', each with an optional
+     * parameter after ':'. The names aren't case sensitive.
+     *
+     * @param text - The pipeline, e.g. "gray,mean:5,sobel".
+     * @return The pipeline.
+     * @throws IllegalArgumentException if a filter is unknown, if a parameter is missing
+     * or invalid, or if there are no filters or more than MAX_STEPS.
+     */
+    public static Pipeline parse(String text) {
+        if (text == null || text.isBlank()) {
+            throw new IllegalArgumentException("empty pipeline");
+        }
+        String[] ops = text.split(",", -1);
+        if (ops.length > MAX_STEPS) {
+            throw new IllegalArgumentException("a pipeline has at most " + MAX_STEPS + " filters");
+        }
+        List<Step> steps = new ArrayList<>();
+        for (String op : ops) {
+            String[] parts = op.trim().toLowerCase(Locale.ROOT).split(":", -1);
+            if (parts.length > 2) {
+                throw new IllegalArgumentException("invalid filter " + op);
+            }
+            steps.add(step(parts[0], parts.length == 2 ? parts[1].trim() : null));
+        }
+        return new Pipeline(steps);
+    }
+
+    /**
+     * Builds a filter from its name and its parameter.
+     *
+     * @param name  - The name of the filter, in lower case.
+     * @param param - The parameter, or null if there is none.
+     * @return The filter.
+     * @throws IllegalArgumentException if the filter is unknown or its parameter is invalid.
+     */
+    private static Step step(String name, String param) {
+        switch (name) {
+            case "gray":
+                noParameter(name, param);
+                return Step.point(name, PointOp.gray());
+            case "gamma":
+                double gamma = doubleParameter(name, param);
+                return Step.point(name + ":" + gamma, PointOp.gamma(gamma));
+            case "equalize":
+                noParameter(name, param);
+                return Step.histogram(name, histogram -> PointOp.equalize(histogram));
+            case "threshold":
+                if (param == null) {
+                    return Step.histogram(name, histogram -> PointOp.otsu(histogram));
+                }
+                int threshold = intParameter(name, param);
+                return Step.point(name + ":" + threshold, PointOp.threshold(threshold));
+            case "color":
+                int hue = intParameter(name, param);
+                return Step.filter(name + ":" + hue, 0, 1, (input, output) -> ImageProcessing.recolour(input, output, hue));
+            case "mean":
+                int size = intParameter(name, param);
+                if (size < 1) {
+                    throw new IllegalArgumentException("mean size must be at least 1");
+                }
+                return Step.filter(name + ":" + size, size/2, ImageProcessing.MEAN_FILTER_READS, (input, output) -> ImageProcessing.meanFilter(input, output, size));
+            case "gaussian":
+                double sigma = doubleParameter(name, param);
+                float[][] gaussian = Convolution.gaussian(sigma);
+                return Step.filter(name + ":" + sigma, gaussian.length/2, Convolution.reads(gaussian),
+                    (input, output) -> ImageProcessing.convolutionFilter(input, output, gaussian, Convolution.Border.CLAMP));
+            case "sharpen":
+                noParameter(name, param);
+                float[][] sharpen = Convolution.sharpen();
+                return Step.filter(name, sharpen.length/2, Convolution.reads(sharpen),
+                    (input, output) -> ImageProcessing.convolutionFilter(input, output, sharpen, Convolution.Border.CLAMP));
+            case "sobel":
+                noParameter(name, param);
+                return Step.filter(name, 1, 9, (input, output) -> ImageProcessing.sobel(input, output, false));
+            case "sobell1":
+                noParameter(name, param);
+                return Step.filter(name, 1, 9, (input, output) -> ImageProcessing.sobel(input, output, true));
+            default:
+                throw new IllegalArgumentException("unknown filter " + name);
+        }
+    }
+
+    /**
+     * Checks that a filter has no parameter.
+     *
+     * @param name  - The name of the filter.
+     * @param param - The parameter, or null if there is none.
+     * @throws IllegalArgumentException if there is a parameter.
+     */
+    private static void noParameter(String name, String param) {
+        if (param != null) {
+            throw new IllegalArgumentException(name + " takes no parameter");
+        }
+    }
+
+    /**
+     * Parses the integer parameter of a filter.
+     *
+     * @param name  - The name of the filter.
+     * @param param - The parameter, or null if there is none.
+     * @return The value of the parameter.
+     * @throws IllegalArgumentException if the parameter is missing or isn't an integer.
+     */
+    private static int intParameter(String name, String param) {
+        if (param == null) {
+            throw new IllegalArgumentException(name + " needs a parameter");
+        }
+        return Integer.parseInt(param);
+    }
+
+    /**
+     * Parses the decimal parameter of a filter.
+     *
+     * @param name  - The name of the filter.
+     * @param param - The parameter, or null if there is none.
+     * @return The value of the parameter.
+     * @throws IllegalArgumentException if the parameter is missing or isn't a finite number.
+     */
+    private static double doubleParameter(String name, String param) {
+        if (param == null) {
+            throw new IllegalArgumentException(name + " needs a parameter");
+        }
+        double value = Double.parseDouble(param);
+        if (!Double.isFinite(value)) {
+            throw new IllegalArgumentException(name + " needs a finite parameter");
+        }
+        return value;
+    }
+
+    /**
+     * Applies the filters to an image.
+     *
+     * @param image - The image, of type TYPE_INT_RGB. Its pixels are overwritten.
+     * @return The filtered image, of type TYPE_INT_RGB and of the same size, which can be the input image.
+     */
+    public BufferedImage apply(BufferedImage image) {
+        return apply(image, null);
+    }
+
+    /**
+     * Applies the filters to an image, with the intermediate image borrowed from a lease.
+     *
+     * @param image - The image, of type TYPE_INT_RGB. Its pixels are overwritten.
+     * @param lease - The lease of the intermediate image, or null to allocate it.
+     * @return The filtered image, of type TYPE_INT_RGB and of the same size, which can be the input image
+     * or an image of the lease.
+     */
+    public BufferedImage apply(BufferedImage image, BufferPool.Lease lease) {
+        BufferedImage current = image;
+        BufferedImage spare = null;
+        PointOp pending = null;
+
+        for (Step step : steps) {
+            if (step.point != null) {
+                // Equalize and Otsu need the histogram of the image as it is at this point of the chain
+                if (step.histogramPoint != null && pending != null) {
+                    pending.apply(current, current);
+                    pending = null;
+                }
+                PointOp op = step.point.apply(current);
+                pending = pending == null ? op : pending.then(op);
+                continue;
+            }
+
+            if (pending != null) {
+                pending.apply(current, current);
+                pending = null;
+            }
+            if (spare == null) {
+                spare = lease != null ? lease.image(current.getWidth(), current.getHeight())
+                    : new BufferedImage(current.getWidth(), current.getHeight(), BufferedImage.TYPE_INT_RGB);
+            }
+            step.filter.accept(current, spare);
+            BufferedImage swap = current;
+            current = spare;
+            spare = swap;
+        }
+
+        if (pending != null) {
+            pending.apply(current, current);
+        }
+        return current;
+    }
+
+    /**
+     * Gets the number of rows a strip of the image needs above and below the rows it outputs,
+     * so that the filters give the same rows as on the whole image.
+     *
+     * @return The sum of the radii of the filters.
+     */
+    public int halo() {
+        int halo = 0;
+        for (Step step : steps) {
+            halo += step.radius;
+        }
+        return halo;
+    }
+
+    /**
+     * Gets the number of pixels the filters read for each output pixel, to estimate the cost of the pipeline.
+     *
+     * @return The sum of the pixels each filter reads, 1 for a point operation, rows + columns
+     * for a separable kernel and a constant for the mean filter.
+     */
+    public long kernelSize() {
+        long size = 0;
+        for (Step step : steps) {
+            size += step.reads;
+        }
+        return size;
+    }
+
+    /**
+     * Finds the first filter depending on the histogram of the whole image,
+     * which can't be applied strip by strip.
+     *
+     * @return The index of the filter, or -1 if there is none.
+     */
+    public int histogramStep() {
+        for (int i = 0; i < steps.size(); i++) {
+            if (steps.get(i).histogramPoint != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the filters before a filter.
+     *
+     * @param index - The index of the filter.
+     * @return The pipeline of the filters before it.
+     */
+    public Pipeline prefix(int index) {
+        return new Pipeline(new ArrayList<>(steps.subList(0, index)));
+    }
+
+    /**
+     * Replaces a filter depending on the histogram of the whole image by the operation built
+     * from that histogram, as computed on the output of the filters before it.
+     *
+     * @param index     - The index of the filter, as given by histogramStep.
+     * @param histogram - The number of pixels of each gray level at that point of the chain.
+     * @return The pipeline with the operation fixed.
+     */
+    public Pipeline withHistogram(int index, int[] histogram) {
+        Step step = steps.get(index);
+        List<Step> resolved = new ArrayList<>(steps);
+        resolved.set(index, Step.point(step.name, step.histogramPoint.apply(histogram)));
+        return new Pipeline(resolved);
+    }
+
+    /**
+     * Gets the canonical form of the pipeline: the names in lower case and the
+     * parameters as parsed, so that equivalent requests give the same string.
+     *
+     * @return The canonical form, e.g. "gray,mean:5,sobel".
+     */
+    @Override
+    public String toString() {
+        StringBuilder canonical = new StringBuilder();
+        for (Step step : steps) {
+            if (canonical.length() > 0) {
+                canonical.append(',');
+            }
+            canonical.append(step.name);
+        }
+        return canonical.toString();
+    }
+}
@@ -0,0 +1,187 @@
+package pdl.app_image_back;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of encoded pipeline results, keyed by the image ID and the canonical pipeline.
+ *
+ * The content of an image never changes once it is in the catalog, so an entry stays
+ * valid until its image is deleted. The entries are bounded by their total size in bytes,
+ * the least recently used are evicted first.
+ */
+@Component
+public class PipelineCache implements CatalogListener {
+
+  /**
+   * Maximum total size of the cached results, in bytes.
+   */
+  private static final long MAX_BYTES = 64L*1024*1024;
+
+  /**
+   * A cached result, with the image it was computed from.
+   */
+  private static class Entry {
+    long imageId;
+    byte[] data;
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * Builds the key of a pipeline result.
+   *
+   * @param id       - The ID of the image.
+   * @param pipeline - The pipeline.
+   * @param output   - The format of the result.
+   * @return The key identifying the result.
+   */
+  public static String key(long id, Pipeline pipeline, OutputFormat output) {
+    return id + "|" + pipeline + "|" + output;
+  }
+
+  /**
+   * Retrieves a pipeline result.
+   *
+   * @param key - The key of the result.
+   * @return The encoded image, or null if it isn't cached.
+   */
+  public byte[] get(String key) {
+    lock.lock();
+    try {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+      return entry.data;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores a pipeline result.
+   * The result is dropped if the catalog changed while it was computed, since its image
+   * may have been deleted, or if it is too large to be cached.
+   *
+   * @param key     - The key of the result.
+   * @param id      - The ID of the image.
+   * @param data    - The encoded image.
+   * @param version - The catalog version read before the result was computed.
+   * @param current - The catalog version read after the result was computed.
+   */
+  public void put(String key, long id, byte[] data, long version, long current) {
+    lock.lock();
+    try {
+      if (version != current || data.length == 0 || data.length > MAX_BYTES) {
+        return;
+      }
+      Entry entry = new Entry();
+      entry.imageId = id;
+      entry.data = data;
+      Entry previous = entries.put(key, entry);
+      if (previous != null) {
+        bytes -= previous.data.length;
+      }
+      bytes += data.length;
+
+      Iterator<Entry> it = entries.values().iterator();
+      while (bytes > MAX_BYTES && it.hasNext()) {
+        bytes -= it.next().data.length;
+        it.remove();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of pipelines answered from the cache.
+   *
+   * @return The number of hits.
+   */
+  public long getHits() {
+    lock.lock();
+    try {
+      return hits;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of pipelines that had to be computed.
+   *
+   * @return The number of misses.
+   */
+  public long getMisses() {
+    lock.lock();
+    try {
+      return misses;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * A new image has no cached results.
+   *
+   * @param img     - The image that was added.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void imageCreated(final Image img, final long version) {
+    // Nothing to invalidate
+  }
+
+  /**
+   * Drops the results computed from a deleted image.
+   *
+   * @param img     - The image that was removed.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void imageDeleted(final Image img, final long version) {
+    lock.lock();
+    try {
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (entry.imageId == img.getId()) {
+          bytes -= entry.data.length;
+          it.remove();
+        }
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The favorite status doesn't change the content of an image.
+   *
+   * @param id      - The ID of the image.
+   * @param value   - The new favorite status.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void favoriteChanged(final long id, final boolean value, final long version) {
+    // Nothing to invalidate
+  }
+}
@@ -0,0 +1,141 @@
+package pdl.app_image_back;
+
+/**
+ * Selection of the kernels working on the flat pixel arrays of the images.
+ *
+ * The kernels using the Vector API of the jdk.incubator.vector module are used when the
+ * module is present at runtime, that is when the JVM is started with
+ * --add-modules jdk.incubator.vector, and the scalar kernels are used otherwise.
+ * Both give exactly the same results.
+ */
+public class PixelKernels {
+
+    /**
+     * Kernels processing the range [from, to) of flat row-major arrays.
+     */
+    public interface Kernels {
+        /**
+         * Computes the gray level 0.30 R + 0.59 G + 0.11 B of packed RGB pixels,
+         * with the arithmetic of ImageProcessing.grayFilter.
+         *
+         * @param src   - The packed RGB pixels.
+         * @param dst   - The packed RGB output pixels, can be src.
+         * @param from  - The first pixel to process.
+         * @param to    - The pixel after the last pixel to process.
+         * @param table - The packed color of each gray level, or null for the gray itself.
+         */
+        void gray(int[] src, int[] dst, int from, int to, int[] table);
+
+        /**
+         * Replaces packed RGB pixels by the entry max*256 + min of a table, where max and
+         * min are the largest and the smallest channel of the pixel.
+         *
+         * @param src   - The packed RGB pixels.
+         * @param dst   - The packed RGB output pixels, can be src.
+         * @param from  - The first pixel to process.
+         * @param to    - The pixel after the last pixel to process.
+         * @param table - The table, of 65536 entries.
+         */
+        void recolour(int[] src, int[] dst, int from, int to, int[] table);
+
+        /**
+         * Splits packed RGB pixels into one float array per channel.
+         *
+         * @param src   - The packed RGB pixels.
+         * @param red   - The red channel.
+         * @param green - The green channel.
+         * @param blue  - The blue channel.
+         * @param from  - The first pixel to process.
+         * @param to    - The pixel after the last pixel to process.
+         */
+        void split(int[] src, float[] red, float[] green, float[] blue, int from, int to);
+
+        /**
+         * Packs float channels into RGB pixels, truncating the values like a cast to int.
+         * The values must be between 0 and 255.
+         *
+         * @param red   - The red channel.
+         * @param green - The green channel.
+         * @param blue  - The blue channel.
+         * @param dst   - The packed RGB pixels.
+         * @param from  - The first pixel to process.
+         * @param to    - The pixel after the last pixel to process.
+         */
+        void merge(float[] red, float[] green, float[] blue, int[] dst, int from, int to);
+
+        /**
+         * Clamps values to a range.
+         *
+         * @param data - The values.
+         * @param from - The first value to process.
+         * @param to   - The value after the last value to process.
+         * @param min  - The lower bound.
+         * @param max  - The upper bound.
+         */
+        void clamp(float[] data, int from, int to, float min, float max);
+    }
+
+    private static final Kernels SCALAR = new ScalarKernels();
+
+    /**
+     * Vector kernels, or null if the Vector API isn't available.
+     */
+    private static final Kernels VECTOR = loadVectorKernels();
+
+    private static volatile Kernels kernels = VECTOR != null ? VECTOR : SCALAR;
+
+    /**
+     * Loads the vector kernels by reflection, so that this class doesn't depend on the
+     * jdk.incubator.vector module when it is missing.
+     *
+     * @return The vector kernels, or null if they can't be used.
+     */
+    private static Kernels loadVectorKernels() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (Kernels) Class.forName("pdl.app_image_back.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the kernels in use.
+     *
+     * @return The vector kernels if they are available and enabled, the scalar ones otherwise.
+     */
+    public static Kernels get() {
+        return kernels;
+    }
+
+    /**
+     * Gets the scalar kernels, for comparisons.
+     *
+     * @return The scalar kernels.
+     */
+    public static Kernels scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * Enables or disables the vector kernels.
+     *
+     * @param enabled - true to use the vector kernels when they are available.
+     * @return true if the vector kernels are now in use.
+     */
+    public static boolean setVectorized(boolean enabled) {
+        kernels = enabled && VECTOR != null ? VECTOR : SCALAR;
+        return kernels == VECTOR;
+    }
+
+    /**
+     * Checks if the vector kernels are in use.
+     *
+     * @return true if the vector kernels are in use.
+     */
+    public static boolean isVectorized() {
+        return kernels == VECTOR;
+    }
+}
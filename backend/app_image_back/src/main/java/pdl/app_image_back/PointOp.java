@@ -0,0 +1,378 @@
+package pdl.app_image_back;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A point operation, where each output pixel only depends on the input pixel at the same place.
+ *
+ * Every operation is compiled to 256-entry tables: a table per channel applied before an
+ * optional conversion to gray, and a table per channel applied after it. Two operations
+ * in a row are fused into one of the same form, so a chain of point operations is applied
+ * in a single pass over the pixels, whatever its length.
+ */
+public class PointOp {
+
+    /**
+     * Weights of the channels in the gray level, the same as ImageProcessing.grayFilter.
+     */
+    private static final float RED_LEVEL = 0.30f;
+    private static final float GREEN_LEVEL = 0.59f;
+    private static final float BLUE_LEVEL = 0.11f;
+
+    /**
+     * Weighted values of each channel, for the gray levels of an image.
+     */
+    private static final float[] RED_WEIGHTS = weights(identityTable(), RED_LEVEL);
+    private static final float[] GREEN_WEIGHTS = weights(identityTable(), GREEN_LEVEL);
+    private static final float[] BLUE_WEIGHTS = weights(identityTable(), BLUE_LEVEL);
+
+    /**
+     * Tables of the channels applied first.
+     */
+    private final int[][] pre;
+
+    /**
+     * Whether the pixels are converted to gray after the first tables.
+     */
+    private final boolean gray;
+
+    /**
+     * Tables of the channels applied last.
+     */
+    private final int[][] post;
+
+    private PointOp(int[][] pre, boolean gray, int[][] post) {
+        this.pre = pre;
+        this.gray = gray;
+        this.post = post;
+    }
+
+    /**
+     * Creates the identity table.
+     *
+     * @return A table mapping each value to itself.
+     */
+    private static int[] identityTable() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = v;
+        }
+        return table;
+    }
+
+    /**
+     * Checks if the tables of the channels leave every value unchanged.
+     *
+     * @param tables - The tables of the channels.
+     * @return true if every table is the identity.
+     */
+    private static boolean isIdentity(int[][] tables) {
+        for (int[] table : tables) {
+            for (int v = 0; v < 256; v++) {
+                if (table[v] != v) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the operation leaving the pixels unchanged.
+     *
+     * @return The operation.
+     */
+    public static PointOp identity() {
+        return new PointOp(new int[][] {identityTable(), identityTable(), identityTable()}, false,
+            new int[][] {identityTable(), identityTable(), identityTable()});
+    }
+
+    /**
+     * Creates an operation applying the same table to every channel.
+     *
+     * @param table - The new value of each value, between 0 and 255.
+     * @return The operation.
+     */
+    public static PointOp lut(int[] table) {
+        return lut(table, table, table);
+    }
+
+    /**
+     * Creates an operation applying a table to each channel.
+     *
+     * @param red   - The table of the red channel.
+     * @param green - The table of the green channel.
+     * @param blue  - The table of the blue channel.
+     * @return The operation.
+     */
+    public static PointOp lut(int[] red, int[] green, int[] blue) {
+        return new PointOp(new int[][] {red.clone(), green.clone(), blue.clone()}, false,
+            new int[][] {identityTable(), identityTable(), identityTable()});
+    }
+
+    /**
+     * Creates the conversion to gray of ImageProcessing.grayFilter.
+     *
+     * @return The operation.
+     */
+    public static PointOp gray() {
+        return new PointOp(new int[][] {identityTable(), identityTable(), identityTable()}, true,
+            new int[][] {identityTable(), identityTable(), identityTable()});
+    }
+
+    /**
+     * Creates a gamma correction, out = 255 * (in / 255)^gamma.
+     * A gamma below 1 brightens the image and a gamma above 1 darkens it.
+     *
+     * @param gamma - The exponent, strictly positive.
+     * @return The operation.
+     * @throws IllegalArgumentException if gamma isn't strictly positive.
+     */
+    public static PointOp gamma(double gamma) {
+        if (!(gamma > 0)) {
+            throw new IllegalArgumentException("gamma must be strictly positive");
+        }
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = (int) Math.round(255*Math.pow(v/255.0, gamma));
+        }
+        return lut(table);
+    }
+
+    /**
+     * Creates a binarization of the gray levels: white at or above the threshold, black below.
+     *
+     * @param threshold - The threshold, between 0 and 256.
+     * @return The operation.
+     * @throws IllegalArgumentException if the threshold is out of range.
+     */
+    public static PointOp threshold(int threshold) {
+        if (threshold < 0 || threshold > 256) {
+            throw new IllegalArgumentException("threshold must be between 0 and 256");
+        }
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = v >= threshold ? 255 : 0;
+        }
+        return gray().then(lut(table));
+    }
+
+    /**
+     * Creates a binarization of the gray levels with the threshold of Otsu's method,
+     * which maximizes the variance between the two classes of pixels.
+     *
+     * @param image - The image, of type TYPE_INT_RGB or TYPE_INT_ARGB.
+     * @return The operation.
+     */
+    public static PointOp otsu(BufferedImage image) {
+        return otsu(grayHistogram(image));
+    }
+
+    /**
+     * Creates a binarization with the threshold of Otsu's method, from the gray levels of an image.
+     *
+     * @param histogram - The number of pixels of each gray level, as given by grayHistogram.
+     * @return The operation.
+     */
+    public static PointOp otsu(int[] histogram) {
+        long total = 0;
+        double sum = 0;
+        for (int v = 0; v < 256; v++) {
+            total += histogram[v];
+            sum += (double) v*histogram[v];
+        }
+
+        int threshold = 0;
+        double best = -1;
+        long below = 0;
+        double sumBelow = 0;
+        for (int t = 0; t < 256; t++) {
+            // Pixels below t are black, the others are white
+            if (below > 0 && below < total) {
+                double meanBelow = sumBelow/below;
+                double meanAbove = (sum - sumBelow)/(total - below);
+                double variance = (double) below*(total - below)*(meanBelow - meanAbove)*(meanBelow - meanAbove);
+                if (variance > best) {
+                    best = variance;
+                    threshold = t;
+                }
+            }
+            below += histogram[t];
+            sumBelow += (double) t*histogram[t];
+        }
+        return threshold(threshold);
+    }
+
+    /**
+     * Creates a histogram equalization of the gray levels. The same table is applied to
+     * every channel, so that the colors keep their hue.
+     *
+     * @param image - The image, of type TYPE_INT_RGB or TYPE_INT_ARGB.
+     * @return The operation.
+     */
+    public static PointOp equalize(BufferedImage image) {
+        return equalize(grayHistogram(image));
+    }
+
+    /**
+     * Creates a histogram equalization from the gray levels of an image.
+     *
+     * @param histogram - The number of pixels of each gray level, as given by grayHistogram.
+     * @return The operation.
+     */
+    public static PointOp equalize(int[] histogram) {
+        long total = 0;
+        for (int v = 0; v < 256; v++) {
+            total += histogram[v];
+        }
+        long first = 0;
+        for (int v = 0; v < 256 && first == 0; v++) {
+            first = histogram[v];
+        }
+
+        int[] table = new int[256];
+        long cumulated = 0;
+        for (int v = 0; v < 256; v++) {
+            cumulated += histogram[v];
+            table[v] = total == first ? v : (int) Math.round(255.0*(cumulated - first)/(total - first));
+            table[v] = Math.max(table[v], 0);
+        }
+        return lut(table);
+    }
+
+    /**
+     * Counts the pixels of an image for each gray level.
+     *
+     * @param image - The image, of type TYPE_INT_RGB or TYPE_INT_ARGB.
+     * @return The number of pixels of each gray level.
+     */
+    public static int[] grayHistogram(BufferedImage image) {
+        return HistogramEngine.count(HistogramEngine.pixels(image), image.getWidth(), image.getHeight(), 256,
+            argb -> grayLevel(argb, RED_WEIGHTS, GREEN_WEIGHTS, BLUE_WEIGHTS));
+    }
+
+    /**
+     * Multiplies the values of a table by the weight of a channel.
+     *
+     * @param table - The table.
+     * @param level - The weight of the channel.
+     * @return The weighted values of the table.
+     */
+    private static float[] weights(int[] table, float level) {
+        float[] weights = new float[256];
+        for (int v = 0; v < 256; v++) {
+            weights[v] = table[v]*level;
+        }
+        return weights;
+    }
+
+    /**
+     * Computes the gray level of a pixel through the first tables.
+     *
+     * @param rgb   - The packed RGB pixel.
+     * @param red   - The weighted first table of the red channel.
+     * @param green - The weighted first table of the green channel.
+     * @param blue  - The weighted first table of the blue channel.
+     * @return The gray level.
+     */
+    private static int grayLevel(int rgb, float[] red, float[] green, float[] blue) {
+        return Math.min((int) (red[(rgb >> 16) & 0xff] + green[(rgb >> 8) & 0xff] + blue[rgb & 0xff]), 255);
+    }
+
+    /**
+     * Fuses this operation with the one applied after it.
+     *
+     * @param next - The operation applied to the result of this one.
+     * @return An operation giving the same result as both of them.
+     */
+    public PointOp then(PointOp next) {
+        if (!next.gray) {
+            // The tables of next apply after the last tables of this operation,
+            // and after the first ones too when there is no conversion to gray between them
+            int[][] fused = new int[3][256];
+            for (int c = 0; c < 3; c++) {
+                for (int v = 0; v < 256; v++) {
+                    fused[c][v] = next.post[c][next.pre[c][post[c][gray ? v : pre[c][v]]]];
+                }
+            }
+            return gray ? new PointOp(pre, true, fused) : new PointOp(fused, false, new int[][] {identityTable(), identityTable(), identityTable()});
+        }
+
+        if (!gray) {
+            // Both first tables apply before the conversion to gray
+            int[][] fused = new int[3][256];
+            for (int c = 0; c < 3; c++) {
+                for (int v = 0; v < 256; v++) {
+                    fused[c][v] = next.pre[c][post[c][pre[c][v]]];
+                }
+            }
+            return new PointOp(fused, true, next.post);
+        }
+
+        // The second conversion to gray only depends on the gray level of the first one
+        float[] red = weights(next.pre[0], RED_LEVEL);
+        float[] green = weights(next.pre[1], GREEN_LEVEL);
+        float[] blue = weights(next.pre[2], BLUE_LEVEL);
+        int[] levels = new int[256];
+        for (int v = 0; v < 256; v++) {
+            levels[v] = Math.min((int) (red[post[0][v]] + green[post[1][v]] + blue[post[2][v]]), 255);
+        }
+        int[][] fused = new int[3][256];
+        for (int c = 0; c < 3; c++) {
+            for (int v = 0; v < 256; v++) {
+                fused[c][v] = next.post[c][levels[v]];
+            }
+        }
+        return new PointOp(pre, true, fused);
+    }
+
+    /**
+     * Applies the operation to an image.
+     *
+     * @param input  - The input image, of type TYPE_INT_RGB or TYPE_INT_ARGB.
+     * @param output - The output image, of type TYPE_INT_RGB and of the same size, can be the input image.
+     */
+    public void apply(BufferedImage input, BufferedImage output) {
+        int[] src = HistogramEngine.pixels(input);
+        int[] dst = HistogramEngine.pixels(output);
+        int width = input.getWidth();
+
+        if (!gray) {
+            // Packed tables: each one gives its channel already in place
+            int[] red = new int[256], green = new int[256], blue = new int[256];
+            for (int v = 0; v < 256; v++) {
+                red[v] = post[0][pre[0][v]] << 16;
+                green[v] = post[1][pre[1][v]] << 8;
+                blue[v] = post[2][pre[2][v]];
+            }
+            TileExecutor.forEachBand(input.getHeight(), (y0, y1) -> {
+                for (int i = y0*width; i < y1*width; i++) {
+                    int rgb = src[i];
+                    dst[i] = red[(rgb >> 16) & 0xff] | green[(rgb >> 8) & 0xff] | blue[rgb & 0xff];
+                }
+            });
+            return;
+        }
+
+        int[] packed = new int[256];
+        for (int v = 0; v < 256; v++) {
+            packed[v] = post[0][v] << 16 | post[1][v] << 8 | post[2][v];
+        }
+        if (isIdentity(pre)) {
+            // Plain gray levels, computed by the pixel kernels
+            int[] table = isIdentity(post) ? null : packed;
+            PixelKernels.Kernels kernels = PixelKernels.get();
+            TileExecutor.forEachBand(input.getHeight(), (y0, y1) -> kernels.gray(src, dst, y0*width, y1*width, table));
+            return;
+        }
+
+        float[] red = weights(pre[0], RED_LEVEL);
+        float[] green = weights(pre[1], GREEN_LEVEL);
+        float[] blue = weights(pre[2], BLUE_LEVEL);
+        TileExecutor.forEachBand(input.getHeight(), (y0, y1) -> {
+            for (int i = y0*width; i < y1*width; i++) {
+                dst[i] = packed[grayLevel(src[i], red, green, blue)];
+            }
+        });
+    }
+}
@@ -0,0 +1,168 @@
+package pdl.app_image_back;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import pdl.object_recognition.Codecs;
+
+/**
+ * Configuration of the image processing engine.
+ */
+@Configuration
+public class ProcessingConfiguration implements WebMvcConfigurer {
+
+    @Value("${processing.processors:0}")
+    private int processors;
+
+    @Value("${processing.parallelism:0}")
+    private int parallelism;
+
+    @Value("${processing.vector:true}")
+    private boolean vector;
+
+    @Value("${processing.pool.bytes:268435456}")
+    private long poolBytes;
+
+    @Value("${processing.strip.threshold:16777216}")
+    private long stripThreshold;
+
+    @Value("${processing.strip.pixels:1048576}")
+    private int stripPixels;
+
+    @Value("${processing.codec:auto}")
+    private String codec;
+
+    @Value("${processing.admission.unit-cost:16777216}")
+    private long admissionUnitCost;
+
+    @Value("${processing.admission.max-wait:10000}")
+    private long admissionMaxWait;
+
+    @Value("${processing.admission.filters.permits:0}")
+    private int filterPermits;
+
+    @Value("${processing.admission.filters.queue:16}")
+    private int filterQueue;
+
+    @Value("${processing.admission.detection.permits:2}")
+    private int detectionPermits;
+
+    @Value("${processing.admission.detection.queue:4}")
+    private int detectionQueue;
+
+    @Value("${processing.cpu.threads:0}")
+    private int cpuThreads;
+
+    @Value("${processing.pinning.threshold:20}")
+    private long pinningThreshold;
+
+    @Value("${processing.async.timeout:30000}")
+    private long asyncTimeout;
+
+    @Value("${processing.detection.instances:0}")
+    private int detectorInstances;
+
+    @Value("${processing.detection.backend:opencv}")
+    private String detectionBackend;
+
+    @Value("${processing.detection.target:cpu}")
+    private String detectionTarget;
+
+    @Value("${processing.detection.threads:0}")
+    private int detectionThreads;
+
+    /**
+     * Splits a budget of processors between the filters and the detections. The detections
+     * admitted at once each run on their OpenCV threads, by default half of the budget
+     * between them, and the bands of the filters run on the TileExecutor with the rest,
+     * so that concurrent filters and detections don't keep more threads busy than the budget.
+     *
+     * @param processors       - The budget, or 0 or less for every processor.
+     * @param detections       - The number of detections admitted at once.
+     * @param detectionThreads - The OpenCV threads of a detection, or 0 or less for its part of half the budget.
+     * @return An array {TileExecutor threads, OpenCV threads of a detection}.
+     */
+    static int[] splitProcessors(int processors, int detections, int detectionThreads) {
+        int budget = processors > 0 ? processors : Runtime.getRuntime().availableProcessors();
+        int concurrent = Math.max(1, detections);
+        int perDetection = detectionThreads > 0 ? detectionThreads : Math.max(1, budget / (2*concurrent));
+        int filters = Math.max(1, budget - concurrent*perDetection);
+        return new int[] {filters, perDetection};
+    }
+
+    /**
+     * Sizes the pool of detectors. By default there are as many detectors as detections
+     * admitted at once, so that no admitted detection waits for one and no more networks
+     * are loaded than can run.
+     *
+     * @param instances  - The number of detectors, or 0 or less for the number of detections.
+     * @param detections - The number of detections admitted at once.
+     * @return The number of detectors.
+     */
+    static int detectorInstances(int instances, int detections) {
+        return instances > 0 ? instances : Math.max(1, detections);
+    }
+
+    /**
+     * Splits the processors between the TileExecutor and OpenCV, unless the parallelism of the
+     * TileExecutor is configured, enables the vector kernels if they are configured and available,
+     * bounds the BufferPool, sets the size of the images processed strip by strip, selects the
+     * codecs, timing them when the codec is auto, sizes the bulkheads of the admission control and
+     * the CpuExecutor and the pool of detectors, selects the inference backend, sets the timeout of
+     * the asynchronous responses and starts recording the pinned virtual threads.
+     */
+    @PostConstruct
+    public void configure() {
+        PixelKernels.setVectorized(vector);
+        BufferPool.setMaxRetainedBytes(poolBytes);
+        StripProcessor.setThreshold(stripThreshold);
+        StripProcessor.setStripPixels(stripPixels);
+        if (codec.equals("auto")) {
+            try {
+                Codecs.calibrate();
+            } catch (IOException e) {
+                // ImageIO is kept for every format
+            }
+        } else {
+            Codecs.select(codec);
+        }
+        Admission.setUnitCost(admissionUnitCost);
+        Admission.setMaxWaitMillis(admissionMaxWait);
+        Admission.FILTERS.configure(filterPermits, filterQueue);
+        Admission.DETECTION.configure(detectionPermits, detectionQueue);
+        int[] split = splitProcessors(processors, Admission.DETECTION.getCapacity(), detectionThreads);
+        TileExecutor.setParallelism(parallelism > 0 ? parallelism : split[0]);
+        CpuExecutor.setThreads(cpuThreads > 0 ? cpuThreads : processors);
+        AsyncProcessing.setTimeoutMillis(asyncTimeout);
+        Image.setDetectorInstances(detectorInstances(detectorInstances, Admission.DETECTION.getCapacity()));
+        Image.setDetectorBackend(detectionBackend, detectionTarget);
+        Image.setDetectorThreads(split[1]);
+        PinningMonitor.start(Duration.ofMillis(pinningThreshold));
+    }
+
+    /**
+     * Stops recording the pinned virtual threads.
+     */
+    @PreDestroy
+    public void close() {
+        PinningMonitor.stop();
+    }
+
+    /**
+     * Measures the bytes allocated by the image requests.
+     *
+     * @param registry - The registry of the interceptors.
+     */
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new AllocationInterceptor()).addPathPatterns("/images/**");
+    }
+
+}
@@ -0,0 +1,413 @@
+package pdl.app_image_back;
+
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts decoded images to the pixel layouts used by the filters, the descriptors and the
+ * object detection, reading the data buffers of the images directly.
+ *
+ * ImageIO decodes most images as interleaved bytes (TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR,
+ * TYPE_BYTE_GRAY), palettes (TYPE_BYTE_INDEXED) or packed ints, which are read row by row
+ * without going through Graphics2D. The translucent pixels are blended with the same 8-bit
+ * tables as Graphics2D, so the result is the same as drawing the image. The other color
+ * models, such as 16-bit samples, premultiplied alpha or non-sRGB color spaces, are still
+ * drawn with Graphics2D.
+ */
+public class RasterAdapter {
+
+    /**
+     * Products and quotients of 8-bit values, with the rounding of Graphics2D:
+     * MUL[a][b] is about a*b/255 and DIV[a][b] about b*255/a.
+     */
+    private static final byte[][] MUL = new byte[256][256];
+    private static final byte[][] DIV = new byte[256][256];
+
+    static {
+        for (int a = 1; a < 256; a++) {
+            int step = (a << 16) + (a << 8) + a;
+            int value = step + (1 << 23);
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) (value >>> 24);
+                value += step;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            long step = ((0xffL << 24) + a/2)/a;
+            long value = 1 << 23;
+            for (int b = 0; b < a; b++) {
+                DIV[a][b] = (byte) (value >>> 24);
+                value = (value + step) & 0xffffffffL;
+            }
+            Arrays.fill(DIV[a], a, 256, (byte) 255);
+        }
+    }
+
+    /**
+     * Reads a row of an image as packed ARGB pixels, not premultiplied.
+     */
+    @FunctionalInterface
+    private interface RowReader {
+        /**
+         * Reads a row.
+         *
+         * @param y      - The row.
+         * @param dst    - The packed ARGB pixels.
+         * @param offset - The index of the first pixel of the row in dst.
+         */
+        void read(int y, int[] dst, int offset);
+    }
+
+    /**
+     * Converts an image to packed RGB pixels, as drawn on a black TYPE_INT_RGB image.
+     *
+     * @param image  - The image.
+     * @param output - The output image, of type TYPE_INT_RGB and of the same size, with a stride equal to the width.
+     */
+    public static void toRgb(BufferedImage image, BufferedImage output) {
+        int[] dst = HistogramEngine.pixels(output);
+        RowReader reader = reader(image);
+        if (reader == null) {
+            Arrays.fill(dst, 0, image.getWidth()*image.getHeight(), 0);
+            redraw(image, output);
+            return;
+        }
+
+        int width = image.getWidth();
+        TileExecutor.forEachBand(image.getHeight(), (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                reader.read(y, dst, y*width);
+                overBlack(dst, y*width, (y + 1)*width);
+            }
+        });
+    }
+
+    /**
+     * Converts an image to packed RGB pixels in an image borrowed from a lease.
+     *
+     * @param image - The image.
+     * @param lease - The lease of the converted image.
+     * @return The image of type TYPE_INT_RGB.
+     */
+    public static BufferedImage toRgb(BufferedImage image, BufferPool.Lease lease) {
+        BufferedImage output = lease.image(image.getWidth(), image.getHeight());
+        toRgb(image, output);
+        return output;
+    }
+
+    /**
+     * Converts an image to packed ARGB pixels, as drawn on a transparent TYPE_INT_ARGB image.
+     *
+     * @param image - The image.
+     * @return The pixels, row by row.
+     */
+    public static int[] toArgb(BufferedImage image) {
+        int width = image.getWidth();
+        RowReader reader = reader(image);
+        if (reader == null) {
+            BufferedImage argb = new BufferedImage(width, image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            redraw(image, argb);
+            return HistogramEngine.pixels(argb);
+        }
+
+        int[] dst = new int[width*image.getHeight()];
+        boolean alpha = image.getColorModel().hasAlpha();
+        TileExecutor.forEachBand(image.getHeight(), (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                reader.read(y, dst, y*width);
+                if (alpha) {
+                    overTransparent(dst, y*width, (y + 1)*width);
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Converts an image to interleaved BGR bytes, as drawn on a black TYPE_3BYTE_BGR image.
+     *
+     * @param image - The image.
+     * @return The image itself if it is already a TYPE_3BYTE_BGR image with contiguous rows,
+     * otherwise a new TYPE_3BYTE_BGR image.
+     */
+    public static BufferedImage toBgr(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR && isContiguous(image, 3)) {
+            return image;
+        }
+
+        BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        RowReader reader = reader(image);
+        if (reader == null) {
+            redraw(image, output);
+            return output;
+        }
+
+        byte[] dst = ((DataBufferByte) output.getRaster().getDataBuffer()).getData();
+        TileExecutor.forEachBand(height, (y0, y1) -> {
+            int[] row = new int[width];
+            for (int y = y0; y < y1; y++) {
+                reader.read(y, row, 0);
+                overBlack(row, 0, width);
+                for (int x = 0, i = 3*y*width; x < width; x++, i += 3) {
+                    int rgb = row[x];
+                    dst[i] = (byte) rgb;
+                    dst[i + 1] = (byte) (rgb >> 8);
+                    dst[i + 2] = (byte) (rgb >> 16);
+                }
+            }
+        });
+        return output;
+    }
+
+    /**
+     * Converts packed RGB pixels to a single channel, if the image is gray.
+     *
+     * @param image - The image, of type TYPE_INT_RGB with a stride equal to the width.
+     * @param lease - The lease of the converted image.
+     * @return An image of type TYPE_BYTE_GRAY, or null if a pixel has channels of different values.
+     */
+    public static BufferedImage toGray(BufferedImage image, BufferPool.Lease lease) {
+        int[] src = HistogramEngine.pixels(image);
+        int pixels = image.getWidth()*image.getHeight();
+        for (int i = 0; i < pixels; i++) {
+            int rgb = src[i];
+            if ((rgb >> 16 & 0xff) != (rgb & 0xff) || (rgb >> 8 & 0xff) != (rgb & 0xff)) {
+                return null;
+            }
+        }
+
+        BufferedImage gray = lease.grayImage(image.getWidth(), image.getHeight());
+        byte[] dst = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels; i++) {
+            dst[i] = (byte) src[i];
+        }
+        return gray;
+    }
+
+    /**
+     * Converts packed RGB pixels to indices in a palette of their colors, if there are at most 256 of them.
+     * The palette has 2, 4, 16 or 256 entries, the smallest holding every color, so that the PNG
+     * writer stores as few bits per pixel as it can.
+     *
+     * @param image - The image, of type TYPE_INT_RGB with a stride equal to the width.
+     * @return An image of type TYPE_BYTE_BINARY or TYPE_BYTE_INDEXED, or null if there are more than 256 colors.
+     */
+    public static BufferedImage toIndexed(BufferedImage image) {
+        int[] src = HistogramEngine.pixels(image);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Map<Integer, Integer> indices = new HashMap<>();
+        int[] palette = new int[256];
+        for (int i = 0; i < width*height; i++) {
+            int rgb = src[i] & 0xffffff;
+            if (!indices.containsKey(rgb)) {
+                if (indices.size() == 256) {
+                    return null;
+                }
+                palette[indices.size()] = rgb;
+                indices.put(rgb, indices.size());
+            }
+        }
+
+        int bits = indices.size() <= 2 ? 1 : indices.size() <= 4 ? 2 : indices.size() <= 16 ? 4 : 8;
+        byte[] red = new byte[1 << bits];
+        byte[] green = new byte[1 << bits];
+        byte[] blue = new byte[1 << bits];
+        for (int i = 0; i < indices.size(); i++) {
+            red[i] = (byte) (palette[i] >> 16);
+            green[i] = (byte) (palette[i] >> 8);
+            blue[i] = (byte) palette[i];
+        }
+        IndexColorModel model = new IndexColorModel(bits, 1 << bits, red, green, blue);
+        BufferedImage indexed = new BufferedImage(width, height, bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY, model);
+
+        WritableRaster raster = indexed.getRaster();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                row[x] = indices.get(src[y*width + x] & 0xffffff);
+            }
+            raster.setSamples(0, y, width, 1, 0, row);
+        }
+        return indexed;
+    }
+
+    /**
+     * Checks if the raster of an image is a whole interleaved buffer, with rows following each other.
+     *
+     * @param image       - The image.
+     * @param pixelStride - The number of elements of a pixel.
+     * @return true if the pixels of the image start at the first element of its buffer.
+     */
+    private static boolean isContiguous(BufferedImage image, int pixelStride) {
+        WritableRaster raster = image.getRaster();
+        return raster.getSampleModel() instanceof ComponentSampleModel model
+            && model.getPixelStride() == pixelStride && model.getScanlineStride() == pixelStride*image.getWidth()
+            && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+            && raster.getDataBuffer().getOffset() == 0;
+    }
+
+    /**
+     * Draws an image with Graphics2D, for the layouts read by no RowReader.
+     *
+     * @param image  - The image.
+     * @param output - The image it is drawn on.
+     */
+    private static void redraw(BufferedImage image, BufferedImage output) {
+        Graphics2D g2d = output.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+    }
+
+    /**
+     * Blends pixels over black, as Graphics2D does on an opaque image.
+     *
+     * @param pixels - The packed ARGB pixels, replaced by packed RGB pixels without alpha.
+     * @param from   - The first pixel.
+     * @param to     - The pixel after the last one.
+     */
+    private static void overBlack(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int argb = pixels[i];
+            int a = argb >>> 24;
+            if (a == 255) {
+                pixels[i] = argb & 0xffffff;
+                continue;
+            }
+            byte[] mul = MUL[a];
+            pixels[i] = (mul[(argb >> 16) & 0xff] & 0xff) << 16 | (mul[(argb >> 8) & 0xff] & 0xff) << 8 | (mul[argb & 0xff] & 0xff);
+        }
+    }
+
+    /**
+     * Blends translucent pixels over transparent black, as Graphics2D does on a TYPE_INT_ARGB image.
+     *
+     * @param pixels - The packed ARGB pixels.
+     * @param from   - The first pixel.
+     * @param to     - The pixel after the last one.
+     */
+    private static void overTransparent(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int argb = pixels[i];
+            int a = argb >>> 24;
+            if (a == 255) {
+                continue;
+            }
+            if (a == 0) {
+                pixels[i] = 0;
+                continue;
+            }
+            byte[] mul = MUL[a];
+            byte[] div = DIV[a];
+            pixels[i] = a << 24 | (div[mul[(argb >> 16) & 0xff] & 0xff] & 0xff) << 16
+                | (div[mul[(argb >> 8) & 0xff] & 0xff] & 0xff) << 8 | (div[mul[argb & 0xff] & 0xff] & 0xff);
+        }
+    }
+
+    /**
+     * Builds the reader of the rows of an image.
+     *
+     * @param image - The image.
+     * @return The reader, or null if the image must be drawn with Graphics2D.
+     */
+    private static RowReader reader(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        ColorModel model = image.getColorModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        if (buffer.getNumBanks() != 1 || model.isAlphaPremultiplied()) {
+            return null;
+        }
+        int width = image.getWidth();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+
+        if (buffer instanceof DataBufferInt ints && raster.getSampleModel() instanceof SinglePixelPackedSampleModel packed
+            && model instanceof DirectColorModel direct && direct.getColorSpace().isCS_sRGB()) {
+            int[] data = ints.getData();
+            int stride = packed.getScanlineStride();
+            int start = buffer.getOffset() - ty*stride - tx;
+            int alpha = direct.getAlphaMask();
+            if (direct.getRedMask() == 0xff0000 && direct.getGreenMask() == 0xff00 && direct.getBlueMask() == 0xff
+                && (alpha == 0 || alpha == 0xff000000)) {
+                int opaque = alpha == 0 ? 0xff000000 : 0;
+                return (y, dst, offset) -> {
+                    int in = start + y*stride;
+                    for (int x = 0; x < width; x++) {
+                        dst[offset + x] = data[in + x] | opaque;
+                    }
+                };
+            }
+            if (direct.getRedMask() == 0xff && direct.getGreenMask() == 0xff00 && direct.getBlueMask() == 0xff0000 && alpha == 0) {
+                return (y, dst, offset) -> {
+                    int in = start + y*stride;
+                    for (int x = 0; x < width; x++) {
+                        int bgr = data[in + x];
+                        dst[offset + x] = 0xff000000 | (bgr & 0xff) << 16 | (bgr & 0xff00) | (bgr >> 16) & 0xff;
+                    }
+                };
+            }
+            return null;
+        }
+
+        if (!(buffer instanceof DataBufferByte bytes) || !(raster.getSampleModel() instanceof ComponentSampleModel component)) {
+            return null;
+        }
+        byte[] data = bytes.getData();
+        int stride = component.getScanlineStride();
+        int pixelStride = component.getPixelStride();
+        int start = buffer.getOffset() - ty*stride - tx*pixelStride;
+        int[] offsets = component.getBandOffsets();
+
+        if (model instanceof IndexColorModel indexed && component.getNumBands() == 1 && indexed.getPixelSize() == 8) {
+            int[] palette = new int[256];
+            indexed.getRGBs(palette);
+            int band = offsets[0];
+            return (y, dst, offset) -> {
+                for (int x = 0, in = start + y*stride + band; x < width; x++, in += pixelStride) {
+                    dst[offset + x] = palette[data[in] & 0xff];
+                }
+            };
+        }
+
+        if (!(model instanceof ComponentColorModel) || model.getComponentSize(0) != 8) {
+            return null;
+        }
+        int bands = component.getNumBands();
+        if (model.getColorSpace() == ColorSpace.getInstance(ColorSpace.CS_GRAY) && bands == 1 && !model.hasAlpha()) {
+            // Graphics2D copies the gray levels, without the conversion of ColorModel.getRGB
+            int band = offsets[0];
+            return (y, dst, offset) -> {
+                for (int x = 0, in = start + y*stride + band; x < width; x++, in += pixelStride) {
+                    dst[offset + x] = 0xff000000 | (data[in] & 0xff)*0x010101;
+                }
+            };
+        }
+        if (!model.getColorSpace().isCS_sRGB() || (bands != 3 && bands != 4) || model.hasAlpha() != (bands == 4)) {
+            return null;
+        }
+        int red = offsets[0], green = offsets[1], blue = offsets[2];
+        int alpha = bands == 4 ? offsets[3] : -1;
+        return (y, dst, offset) -> {
+            for (int x = 0, in = start + y*stride; x < width; x++, in += pixelStride) {
+                int a = alpha < 0 ? 0xff : data[in + alpha] & 0xff;
+                dst[offset + x] = a << 24 | (data[in + red] & 0xff) << 16 | (data[in + green] & 0xff) << 8 | (data[in + blue] & 0xff);
+            }
+        };
+    }
+}
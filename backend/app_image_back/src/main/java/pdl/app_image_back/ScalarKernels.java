@@ -0,0 +1,49 @@
+package pdl.app_image_back;
+
+/**
+ * Pixel kernels written as plain loops, used when the Vector API isn't available.
+ */
+public class ScalarKernels implements PixelKernels.Kernels {
+
+    @Override
+    public void gray(int[] src, int[] dst, int from, int to, int[] table) {
+        for (int i = from; i < to; i++) {
+            int rgb = src[i];
+            int level = Math.min((int) (((rgb >> 16) & 0xff)*0.30f + ((rgb >> 8) & 0xff)*0.59f + (rgb & 0xff)*0.11f), 255);
+            dst[i] = table == null ? level*0x010101 : table[level];
+        }
+    }
+
+    @Override
+    public void recolour(int[] src, int[] dst, int from, int to, int[] table) {
+        for (int i = from; i < to; i++) {
+            int rgb = src[i];
+            int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+            dst[i] = table[Math.max(r, Math.max(g, b))*256 + Math.min(r, Math.min(g, b))];
+        }
+    }
+
+    @Override
+    public void split(int[] src, float[] red, float[] green, float[] blue, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int rgb = src[i];
+            red[i] = (rgb >> 16) & 0xff;
+            green[i] = (rgb >> 8) & 0xff;
+            blue[i] = rgb & 0xff;
+        }
+    }
+
+    @Override
+    public void merge(float[] red, float[] green, float[] blue, int[] dst, int from, int to) {
+        for (int i = from; i < to; i++) {
+            dst[i] = (int) red[i] << 16 | (int) green[i] << 8 | (int) blue[i];
+        }
+    }
+
+    @Override
+    public void clamp(float[] data, int from, int to, float min, float max) {
+        for (int i = from; i < to; i++) {
+            data[i] = Math.min(Math.max(data[i], min), max);
+        }
+    }
+}
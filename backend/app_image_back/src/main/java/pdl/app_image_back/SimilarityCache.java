@@ -0,0 +1,273 @@
+package pdl.app_image_back;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of similarity search results, tagged with the catalog version they were computed for.
+ *
+ * Instead of being flushed on every change of the catalog, the entries are maintained
+ * incrementally: a new image only has to be compared with the query image of each entry
+ * to know if it enters its top-k, and a deleted image only invalidates the entries it appears in.
+ */
+@Component
+public class SimilarityCache implements CatalogListener {
+
+  /**
+   * Maximum number of results kept, the least recently used are evicted first.
+   */
+  private static final int MAX_ENTRIES = 1024;
+
+  /**
+   * A cached result, with what is needed to maintain it when the catalog changes.
+   */
+  private static class Entry {
+    long queryId;
+    double[] queryDescriptor;
+    String descriptor;
+    ImageComparison.Metric metric;
+    int maxNum;
+    ImageFilter filter;
+    ArrayList<Object[]> values;
+    long version;
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * Builds the key of a similarity search.
+   *
+   * @param id         - The ID of the query image.
+   * @param descriptor - The descriptor name.
+   * @param maxNum     - The maximum number of results.
+   * @param metric     - The metric.
+   * @param filter     - The filter on the results.
+   * @return The key identifying the search.
+   */
+  public static String key(long id, String descriptor, int maxNum, ImageComparison.Metric metric, ImageFilter filter) {
+    return String.format("%d|%s|%d|%s|%s", id, descriptor, maxNum, metric, filter);
+  }
+
+  /**
+   * Retrieves the results of a search if they are up to date with the catalog.
+   *
+   * @param key     - The key of the search.
+   * @param version - The current catalog version.
+   * @return A copy of the cached results, or null if they are missing or outdated.
+   */
+  public ArrayList<Object[]> get(String key, long version) {
+    lock.lock();
+    try {
+      Entry entry = entries.get(key);
+      if (entry == null || entry.version != version) {
+        misses++;
+        return null;
+      }
+      hits++;
+      return new ArrayList<>(entry.values);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores the results of a search.
+   * The results are dropped if the catalog changed while they were computed,
+   * or if the search asked for no result, as there is nothing to maintain.
+   *
+   * @param key        - The key of the search.
+   * @param query      - The query image, with its descriptors.
+   * @param descriptor - The descriptor name.
+   * @param metric     - The metric.
+   * @param maxNum     - The maximum number of results.
+   * @param filter     - The filter on the results.
+   * @param values     - The results, sorted by distance.
+   * @param version    - The catalog version read before the results were computed.
+   * @param current    - The catalog version read after the results were computed.
+   */
+  public void put(String key, Image query, String descriptor, ImageComparison.Metric metric, int maxNum, ImageFilter filter,
+    ArrayList<Object[]> values, long version, long current) {
+    lock.lock();
+    try {
+      if (version != current || maxNum <= 0) {
+        return;
+      }
+      Entry entry = new Entry();
+      entry.queryId = query.getId();
+      entry.queryDescriptor = ImageComparison.getDescriptor(query, descriptor);
+      entry.descriptor = descriptor;
+      entry.metric = metric;
+      entry.maxNum = maxNum;
+      entry.filter = filter;
+      entry.values = new ArrayList<>(values);
+      entry.version = version;
+      entries.put(key, entry);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of searches answered from the cache.
+   *
+   * @return The number of hits.
+   */
+  public long getHits() {
+    lock.lock();
+    try {
+      return hits;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of searches that had to be computed.
+   *
+   * @return The number of misses.
+   */
+  public long getMisses() {
+    lock.lock();
+    try {
+      return misses;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Inserts a new image in the top-k of every entry it belongs to.
+   *
+   * @param img     - The image that was added.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void imageCreated(final Image img, final long version) {
+    lock.lock();
+    try {
+      // The results only need the metadata, the image data isn't kept in the cache
+      Image meta = img.metadata();
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        double[] desc = ImageComparison.getDescriptor(img, entry.descriptor);
+        // Entries that missed a previous change can't be brought up to date
+        if (entry.version != version - 1 || desc == null || desc.length != entry.queryDescriptor.length) {
+          it.remove();
+          continue;
+        }
+        entry.version = version;
+        // A search run between the insertion of the image and this call already found it
+        if (img.getId() == entry.queryId || !entry.filter.accepts(img) || contains(entry.values, img.getId())) {
+          continue;
+        }
+
+        double distance = ImageComparison.getDistance(entry.queryDescriptor, desc, entry.metric);
+        int size = entry.values.size();
+        if (size > 0 && size >= entry.maxNum && distance >= (Double) entry.values.get(size - 1)[1]) {
+          continue;
+        }
+        int pos = 0;
+        while (pos < size && (Double) entry.values.get(pos)[1] <= distance) {
+          pos++;
+        }
+        Object[] field = {meta, Double.valueOf(distance)};
+        entry.values.add(pos, field);
+        if (entry.values.size() > entry.maxNum) {
+          entry.values.remove(entry.values.size() - 1);
+        }
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops the entries in which a deleted image appears, the others stay valid.
+   *
+   * @param img     - The image that was removed.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void imageDeleted(final Image img, final long version) {
+    lock.lock();
+    try {
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (entry.version != version - 1 || entry.queryId == img.getId() || contains(entry.values, img.getId())) {
+          it.remove();
+        }
+        else {
+          entry.version = version;
+        }
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops the entries filtered on the favorite status, the others stay valid.
+   *
+   * @param id      - The ID of the image.
+   * @param value   - The new favorite status.
+   * @param version - The catalog version after the change.
+   */
+  @Override
+  public void favoriteChanged(final long id, final boolean value, final long version) {
+    lock.lock();
+    try {
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (entry.version != version - 1 || entry.filter.usesFavorite()) {
+          it.remove();
+        }
+        else {
+          entry.version = version;
+        }
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Checks if an image appears in a list of results.
+   *
+   * @param values - The results.
+   * @param id     - The ID of the image.
+   * @return true if the image is one of the results.
+   */
+  private static boolean contains(ArrayList<Object[]> values, long id) {
+    for (Object[] val : values) {
+      if (((Image) val[0]).getId() == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
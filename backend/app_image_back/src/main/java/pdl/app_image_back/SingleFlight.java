@@ -0,0 +1,116 @@
+package pdl.app_image_back;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the computations in flight, so that identical concurrent requests compute once.
+ *
+ * The first request of a key computes the result, the requests of the same key arriving before
+ * it is done wait for it and get the same result, or the same exception. Nothing is kept once
+ * the computation is done: a later request computes again, a cache being another matter.
+ * When the first request is cancelled, one of the waiting requests computes in its place.
+ *
+ * @param <K> the type of the keys, identifying a computation by what it depends on.
+ * @param <V> the type of the results, shared by the requests and so not to be modified.
+ */
+public class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    private final AtomicLong computed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Gets the result of a computation, computing it unless it is already in flight.
+     *
+     * @param key         - The key of the computation.
+     * @param computation - Computes the result, on the thread of the first request.
+     * @return The result.
+     * @throws CancellationException if the current thread is interrupted while waiting.
+     */
+    public V run(K key, Supplier<V> computation) {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> inFlight;
+        while ((inFlight = calls.putIfAbsent(key, call)) != null) {
+            shared.incrementAndGet();
+            try {
+                return await(inFlight);
+            } catch (CancellationException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                // The request computing it was cancelled, not this one
+                calls.remove(key, inFlight);
+                shared.decrementAndGet();
+            }
+        }
+
+        computed.incrementAndGet();
+        try {
+            V result = computation.get();
+            call.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * Waits for a computation started by another request.
+     *
+     * @param call - The computation.
+     * @return Its result.
+     */
+    private V await(CompletableFuture<V> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for the computation");
+        }
+    }
+
+    /**
+     * Gets the number of computations in flight.
+     *
+     * @return The number of computations.
+     */
+    public int getInFlight() {
+        return calls.size();
+    }
+
+    /**
+     * Gets the number of results computed.
+     *
+     * @return The number of computations.
+     */
+    public long getComputed() {
+        return computed.get();
+    }
+
+    /**
+     * Gets the number of requests which got the result of a computation in flight.
+     *
+     * @return The number of requests.
+     */
+    public long getShared() {
+        return shared.get();
+    }
+}
@@ -0,0 +1,418 @@
+package pdl.app_image_back;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Vector;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Applies pipelines to images too large to be filtered at once.
+ *
+ * The source is decoded once, in the layout of its reader, e.g. 3 bytes a pixel for a color JPEG
+ * or 1 for a gray PNG, in a single pass over the file: reading strips with
+ * ImageReadParam.setSourceRegion would decode the file from its top for every strip. The filters
+ * then run on strips of rows converted to packed RGB, each one with the rows above and below it
+ * that the filters read, the halo of the pipeline, so that the rows of a strip come out the same
+ * as on the whole image. The result is encoded in PNG, whose writer asks for the rows of the
+ * image one at a time: the strips are computed on the CpuExecutor as the writer reaches them,
+ * so the images and planes of the filters only hold a strip at a time.
+ *
+ * The filters depending on the histogram of the whole image, equalize and threshold without
+ * parameter, are resolved first, each one with a pass over the strips computing the histogram
+ * of the image at that point of the chain.
+ */
+public class StripProcessor {
+
+    /**
+     * Color model of the strips, which are of type TYPE_INT_RGB.
+     */
+    private static final ColorModel RGB_MODEL = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getColorModel();
+
+    private static volatile long threshold = 4096L*4096;
+    private static volatile int stripPixels = 1 << 20;
+
+    /**
+     * Sets the number of pixels above which an image is processed strip by strip.
+     *
+     * @param pixels - The number of pixels.
+     */
+    public static void setThreshold(long pixels) {
+        threshold = pixels;
+    }
+
+    /**
+     * Gets the number of pixels above which an image is processed strip by strip.
+     *
+     * @return The number of pixels.
+     */
+    public static long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the number of pixels of a strip, without its halo.
+     *
+     * @param pixels - The number of pixels, a strip has at least one row.
+     */
+    public static void setStripPixels(int pixels) {
+        stripPixels = pixels;
+    }
+
+    /**
+     * Reads the size of an image from the header of its file, without decoding it.
+     *
+     * @param file - The file of the image.
+     * @return The width and the height of the image.
+     * @throws IOException if the file can't be read or isn't an image.
+     */
+    public static int[] size(Path file) throws IOException {
+        try (Source source = new Source(file)) {
+            return new int[] {source.width, source.height};
+        }
+    }
+
+    /**
+     * Checks if an image should be processed strip by strip.
+     *
+     * @param file - The file of the image.
+     * @return true if the image has more pixels than the threshold.
+     */
+    public static boolean isLarge(Path file) {
+        try {
+            int[] size = size(file);
+            return (long) size[0]*size[1] > threshold;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Applies a pipeline to an image strip by strip and encodes the result in PNG.
+     * The image is decoded and filtered on the CpuExecutor, and the result written on the
+     * current thread.
+     *
+     * @param file     - The file of the image.
+     * @param pipeline - The filters to apply, in order.
+     * @param output   - The stream the PNG image is written to.
+     * @throws IOException if the image can't be read or the result can't be written.
+     */
+    public static void process(Path file, Pipeline pipeline, OutputStream output) throws IOException {
+        try (Source source = new Source(file)) {
+            Pipeline resolved;
+            try {
+                resolved = CpuExecutor.call(() -> {
+                    source.decode();
+                    return resolve(source, pipeline);
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+            try (StripImage image = new StripImage(source, resolved);
+                ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+                writer.setOutput(stream);
+                writer.write(image);
+            } finally {
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * Replaces the filters depending on the histogram of the whole image by their operations.
+     *
+     * @param source   - The image.
+     * @param pipeline - The pipeline.
+     * @return A pipeline whose filters can be applied strip by strip.
+     */
+    private static Pipeline resolve(Source source, Pipeline pipeline) {
+        for (int index = pipeline.histogramStep(); index >= 0; index = pipeline.histogramStep()) {
+            Pipeline prefix = pipeline.prefix(index);
+            int rows = stripRows(source.width, prefix.halo());
+            int[] histogram = new int[256];
+            for (int y0 = 0; y0 < source.height; y0 += rows) {
+                try (BufferPool.Lease lease = BufferPool.lease()) {
+                    int[] partial = PointOp.grayHistogram(strip(source, prefix, y0, Math.min(y0 + rows, source.height), lease));
+                    for (int v = 0; v < 256; v++) {
+                        histogram[v] += partial[v];
+                    }
+                }
+            }
+            pipeline = pipeline.withHistogram(index, histogram);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Computes the number of rows of the strips.
+     *
+     * @param width - The width of the image.
+     * @param halo  - The halo of the pipeline.
+     * @return The number of rows, without the halo.
+     */
+    private static int stripRows(int width, int halo) {
+        // Strips thinner than their halo would read the same rows more than twice
+        return Math.max(Math.max(stripPixels/width, halo), 1);
+    }
+
+    /**
+     * Applies a pipeline to rows of an image.
+     *
+     * @param source   - The image.
+     * @param pipeline - The pipeline, without filters depending on the histogram of the whole image.
+     * @param y0       - The first row.
+     * @param y1       - The row after the last row.
+     * @param lease    - The lease of the images of the strip.
+     * @return The filtered rows, as an image of type TYPE_INT_RGB.
+     */
+    private static BufferedImage strip(Source source, Pipeline pipeline, int y0, int y1, BufferPool.Lease lease) {
+        int halo = pipeline.halo();
+        int top = Math.max(y0 - halo, 0);
+        int bottom = Math.min(y1 + halo, source.height);
+        BufferedImage filtered = pipeline.apply(source.read(top, bottom - top, lease), lease);
+        if (top == y0 && bottom == y1) {
+            return filtered;
+        }
+
+        BufferedImage strip = lease.image(source.width, y1 - y0);
+        System.arraycopy(HistogramEngine.pixels(filtered), (y0 - top)*source.width, HistogramEngine.pixels(strip), 0, (y1 - y0)*source.width);
+        return strip;
+    }
+
+    /**
+     * Image file whose size is read from its header, decoded once to be read by rows.
+     */
+    private static class Source implements AutoCloseable {
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+        private BufferedImage decoded;
+        final int width;
+        final int height;
+
+        Source(Path file) throws IOException {
+            stream = ImageIO.createImageInputStream(file.toFile());
+            if (stream == null) {
+                throw new IOException("can't read " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                stream.close();
+                throw new IOException("unknown image format " + file);
+            }
+            reader = readers.next();
+            reader.setInput(stream, true, true);
+            try {
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Decodes the image in the layout of its reader, unless it is already decoded.
+         *
+         * @throws UncheckedIOException if the image can't be decoded.
+         */
+        void decode() {
+            if (decoded == null) {
+                try {
+                    decoded = reader.read(0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * Converts rows of the decoded image.
+         *
+         * @param top   - The first row.
+         * @param rows  - The number of rows.
+         * @param lease - The lease of the converted rows.
+         * @return The rows, as an image of type TYPE_INT_RGB.
+         */
+        BufferedImage read(int top, int rows, BufferPool.Lease lease) {
+            return RasterAdapter.toRgb(decoded.getSubimage(0, top, width, rows), lease);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.dispose();
+            }
+            stream.close();
+        }
+    }
+
+    /**
+     * Result of a pipeline, tiled in strips of rows which are only computed when they are asked for.
+     * The last strip is kept until another one is asked for, so that reading the rows in order
+     * computes each strip once.
+     */
+    private static class StripImage implements RenderedImage, AutoCloseable {
+        private final Source source;
+        private final Pipeline pipeline;
+        private final int rows;
+        private final SampleModel sampleModel;
+
+        private int tile = -1;
+        private Raster raster;
+        private BufferPool.Lease lease;
+
+        StripImage(Source source, Pipeline pipeline) {
+            this.source = source;
+            this.pipeline = pipeline;
+            this.rows = Math.min(stripRows(source.width, pipeline.halo()), source.height);
+            this.sampleModel = RGB_MODEL.createCompatibleSampleModel(source.width, rows);
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            if (tileY != tile) {
+                close();
+                lease = BufferPool.lease();
+                BufferPool.Lease strips = lease;
+                int y0 = tileY*rows;
+                BufferedImage strip = CpuExecutor.call(() -> strip(source, pipeline, y0, Math.min(y0 + rows, source.height), strips));
+                raster = strip.getRaster().createTranslatedChild(0, y0);
+                tile = tileY;
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            return copyData(RGB_MODEL.createCompatibleWritableRaster(rect.width, rect.height).createWritableTranslatedChild(rect.x, rect.y));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, source.width, source.height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = RGB_MODEL.createCompatibleWritableRaster(source.width, source.height);
+            }
+            int first = Math.max(raster.getMinY(), 0)/rows;
+            int last = (Math.min(raster.getMinY() + raster.getHeight(), source.height) - 1)/rows;
+            for (int tileY = first; tileY <= last; tileY++) {
+                raster.setRect(getTile(0, tileY));
+            }
+            return raster;
+        }
+
+        @Override
+        public void close() {
+            if (lease != null) {
+                lease.close();
+                lease = null;
+            }
+            raster = null;
+            tile = -1;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return RGB_MODEL;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return source.width;
+        }
+
+        @Override
+        public int getHeight() {
+            return source.height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (source.height + rows - 1)/rows;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return source.width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return rows;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
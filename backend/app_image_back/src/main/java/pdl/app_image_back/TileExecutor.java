@@ -0,0 +1,194 @@
+package pdl.app_image_back;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * Shared execution engine for the image processing filters.
+ *
+ * An image is split in bands of rows which are processed in parallel on a ForkJoinPool.
+ * Each band is processed exactly like the whole image would be, row by row, so that a
+ * filter gives the same output whatever the number of threads. What the bands allocate is
+ * counted for the request that submitted them, see AllocationMeter, and the bands of a
+ * cancelled request aren't run, see Cancellation.
+ */
+public class TileExecutor {
+
+    /**
+     * Minimum number of rows of a band, below which splitting costs more than it saves.
+     */
+    private static final int MIN_BAND_ROWS = 8;
+
+    /**
+     * Number of bands created for each thread, so that faster threads can steal work.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    private static volatile ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * A filter applied to a band of rows.
+     */
+    @FunctionalInterface
+    public interface BandTask {
+        /**
+         * Processes the rows of a band.
+         *
+         * @param y0 - The first row of the band.
+         * @param y1 - The row after the last row of the band.
+         */
+        void run(int y0, int y1);
+    }
+
+    /**
+     * A computation on a band of rows that gives a partial result.
+     *
+     * @param <T> the type of the partial results.
+     */
+    @FunctionalInterface
+    public interface BandReducer<T> {
+        /**
+         * Computes the partial result of a band.
+         *
+         * @param y0 - The first row of the band.
+         * @param y1 - The row after the last row of the band.
+         * @return The partial result of the band.
+         */
+        T run(int y0, int y1);
+    }
+
+    /**
+     * Sets the maximum number of threads used to process an image.
+     *
+     * @param parallelism - The number of threads, or 0 or less to use every available processor.
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        if (threads != pool.getParallelism()) {
+            ForkJoinPool old = pool;
+            pool = new ForkJoinPool(threads);
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Gets the maximum number of threads used to process an image.
+     *
+     * @return The number of threads.
+     */
+    public static int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Computes the number of rows of the bands of an image.
+     *
+     * @param height      - The height of the image.
+     * @param parallelism - The number of threads sharing the bands.
+     * @return The number of rows of a band.
+     */
+    private static int bandRows(int height, int parallelism) {
+        return Math.max(MIN_BAND_ROWS, (height + parallelism*BANDS_PER_THREAD - 1) / (parallelism*BANDS_PER_THREAD));
+    }
+
+    /**
+     * Runs a task on every band of rows of an image and waits for all of them.
+     *
+     * @param height - The height of the image.
+     * @param task   - The task to run on each band.
+     * @throws java.util.concurrent.CancellationException if the computation of the current thread is cancelled.
+     */
+    public static void forEachBand(int height, BandTask task) {
+        if (height <= 0) {
+            return;
+        }
+        ForkJoinPool current = pool;
+        int rows = bandRows(height, current.getParallelism());
+        BandTask checked = Cancellation.checked(task);
+        if (rows >= height) {
+            checked.run(0, height);
+            return;
+        }
+        current.invoke(new BandAction(AllocationMeter.measured(checked), 0, height, rows));
+    }
+
+    /**
+     * Computes a partial result on every band of rows of an image and merges them.
+     *
+     * @param <T>    the type of the results.
+     * @param height - The height of the image.
+     * @param task   - The computation run on each band.
+     * @param merge  - The function merging two partial results.
+     * @return The merged result, or null if the image has no rows.
+     * @throws java.util.concurrent.CancellationException if the computation of the current thread is cancelled.
+     */
+    public static <T> T reduce(int height, BandReducer<T> task, BinaryOperator<T> merge) {
+        if (height <= 0) {
+            return null;
+        }
+        ForkJoinPool current = pool;
+        int rows = bandRows(height, current.getParallelism());
+        BandReducer<T> checked = Cancellation.checked(task);
+        if (rows >= height) {
+            return checked.run(0, height);
+        }
+        return current.invoke(new BandReduction<>(AllocationMeter.measured(checked), merge, 0, height, rows));
+    }
+
+    /**
+     * Fork/join action splitting a range of rows in halves until it fits in a band.
+     */
+    private static class BandAction extends RecursiveAction {
+        private final BandTask task;
+        private final int y0, y1, rows;
+
+        BandAction(BandTask task, int y0, int y1, int rows) {
+            this.task = task;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.rows = rows;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 <= rows) {
+                task.run(y0, y1);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll(new BandAction(task, y0, mid, rows), new BandAction(task, mid, y1, rows));
+        }
+    }
+
+    /**
+     * Fork/join task splitting a range of rows in halves and merging the partial results in row order.
+     */
+    private static class BandReduction<T> extends RecursiveTask<T> {
+        private final BandReducer<T> task;
+        private final BinaryOperator<T> merge;
+        private final int y0, y1, rows;
+
+        BandReduction(BandReducer<T> task, BinaryOperator<T> merge, int y0, int y1, int rows) {
+            this.task = task;
+            this.merge = merge;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.rows = rows;
+        }
+
+        @Override
+        protected T compute() {
+            if (y1 - y0 <= rows) {
+                return task.run(y0, y1);
+            }
+            int mid = (y0 + y1) >>> 1;
+            BandReduction<T> top = new BandReduction<>(task, merge, y0, mid, rows);
+            BandReduction<T> bottom = new BandReduction<>(task, merge, mid, y1, rows);
+            bottom.fork();
+            T first = top.compute();
+            return merge.apply(first, bottom.join());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package pdl.app_image_back;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Pixel kernels using the Vector API, loaded by PixelKernels when the jdk.incubator.vector
+ * module is present.
+ *
+ * Each kernel processes as many pixels at once as the preferred vector holds, and finishes
+ * the end of the range with the scalar kernel. The floats are multiplied and added in the
+ * same order as the scalar kernels, without fused multiply-add, so the results are the same.
+ */
+public class VectorKernels implements PixelKernels.Kernels {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, INTS.vectorShape());
+
+    private final ScalarKernels tail = new ScalarKernels();
+
+    /**
+     * Creates the vector kernels.
+     *
+     * @throws UnsupportedOperationException if the vectors of the platform hold a single int.
+     */
+    public VectorKernels() {
+        if (INTS.length() < 2) {
+            throw new UnsupportedOperationException("no vector support");
+        }
+    }
+
+    @Override
+    public void gray(int[] src, int[] dst, int from, int to, int[] table) {
+        int i = from;
+        for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+            IntVector rgb = IntVector.fromArray(INTS, src, i);
+            FloatVector red = channel(rgb, 16);
+            FloatVector green = channel(rgb, 8);
+            FloatVector blue = channel(rgb, 0);
+            FloatVector gray = red.mul(0.30f).add(green.mul(0.59f)).add(blue.mul(0.11f));
+            IntVector level = ((IntVector) gray.convert(VectorOperators.F2I, 0)).min(255);
+            if (table == null) {
+                level.mul(0x010101).intoArray(dst, i);
+            }
+            else {
+                // Gather the colors of the levels, using the levels stored in dst as the index map
+                level.intoArray(dst, i);
+                IntVector.fromArray(INTS, table, 0, dst, i).intoArray(dst, i);
+            }
+        }
+        tail.gray(src, dst, i, to, table);
+    }
+
+    @Override
+    public void recolour(int[] src, int[] dst, int from, int to, int[] table) {
+        int i = from;
+        for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+            IntVector rgb = IntVector.fromArray(INTS, src, i);
+            IntVector r = rgb.lanewise(VectorOperators.LSHR, 16).and(0xff);
+            IntVector g = rgb.lanewise(VectorOperators.LSHR, 8).and(0xff);
+            IntVector b = rgb.and(0xff);
+            IntVector max = r.max(g).max(b);
+            IntVector min = r.min(g).min(b);
+            max.lanewise(VectorOperators.LSHL, 8).add(min).intoArray(dst, i);
+            IntVector.fromArray(INTS, table, 0, dst, i).intoArray(dst, i);
+        }
+        tail.recolour(src, dst, i, to, table);
+    }
+
+    @Override
+    public void split(int[] src, float[] red, float[] green, float[] blue, int from, int to) {
+        int i = from;
+        for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+            IntVector rgb = IntVector.fromArray(INTS, src, i);
+            channel(rgb, 16).intoArray(red, i);
+            channel(rgb, 8).intoArray(green, i);
+            channel(rgb, 0).intoArray(blue, i);
+        }
+        tail.split(src, red, green, blue, i, to);
+    }
+
+    @Override
+    public void merge(float[] red, float[] green, float[] blue, int[] dst, int from, int to) {
+        int i = from;
+        for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+            IntVector r = (IntVector) FloatVector.fromArray(FLOATS, red, i).convert(VectorOperators.F2I, 0);
+            IntVector g = (IntVector) FloatVector.fromArray(FLOATS, green, i).convert(VectorOperators.F2I, 0);
+            IntVector b = (IntVector) FloatVector.fromArray(FLOATS, blue, i).convert(VectorOperators.F2I, 0);
+            r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b).intoArray(dst, i);
+        }
+        tail.merge(red, green, blue, dst, i, to);
+    }
+
+    @Override
+    public void clamp(float[] data, int from, int to, float min, float max) {
+        int i = from;
+        for (int bound = from + FLOATS.loopBound(to - from); i < bound; i += FLOATS.length()) {
+            FloatVector.fromArray(FLOATS, data, i).max(min).min(max).intoArray(data, i);
+        }
+        tail.clamp(data, i, to, min, max);
+    }
+
+    /**
+     * Extracts a channel of packed pixels as floats.
+     *
+     * @param rgb   - The packed pixels.
+     * @param shift - The position of the channel, 16 for red, 8 for green and 0 for blue.
+     * @return The values of the channel.
+     */
+    private static FloatVector channel(IntVector rgb, int shift) {
+        return (FloatVector) rgb.lanewise(VectorOperators.LSHR, shift).and(0xff).convert(VectorOperators.I2F, 0);
+    }
+}
@@ -0,0 +1,90 @@
+package pdl.app_image_back;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import pdl.object_recognition.Codecs;
+import pdl.object_recognition.ImageCodec;
+
+// Comparison of the codecs on a 3 megapixel image, the JPEG images also decoded at a quarter of their size
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({"imageio", "opencv"})
+	public String codec;
+
+	@Param({"jpeg", "png"})
+	public String format;
+
+	private ImageCodec selected;
+	private BufferedImage image;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws IOException {
+		selected = Codecs.getCodecs().stream().filter(c -> c.getName().equals(codec)).findFirst().orElseThrow();
+		Random random = new Random(42);
+		image = new BufferedImage(2000, 1500, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 1500; y++) {
+			for (int x = 0; x < 2000; x++) {
+				image.setRGB(x, y, (x/8) << 16 | (y/6) << 8 | (x + y)/16 + random.nextInt(16));
+			}
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Codecs.getCodecs().get(0).encode(image, format, output);
+		encoded = output.toByteArray();
+	}
+
+	@Benchmark
+	public BufferedImage decode() throws IOException {
+		if (!selected.canDecode(format)) {
+			return null;
+		}
+		return selected.decode(encoded, 1);
+	}
+
+	@Benchmark
+	public BufferedImage decodeReduced() throws IOException {
+		if (!selected.canDecode(format)) {
+			return null;
+		}
+		return selected.decode(encoded, 4);
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		if (!selected.canEncode(format)) {
+			return 0;
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		selected.encode(image, format, output);
+		return output.size();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(CodecBenchmark.class.getSimpleName()).build()).run();
+	}
+}
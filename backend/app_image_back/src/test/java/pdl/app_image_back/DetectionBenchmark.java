@@ -0,0 +1,104 @@
+package pdl.app_image_back;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.ClassPathResource;
+
+import pdl.object_recognition.ObjectsRecognition;
+
+// Latency of the object detection on a 608x608 image for each backend and target, with a number of
+// OpenCV threads and of detections running at the same time, each one on its own network. The time is
+// the one of the slowest detection, 0 threads leaving OpenCV its default of one thread per processor.
+// The model must be fetched first with git lfs pull.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DetectionBenchmark {
+
+	@Param({"opencv/cpu", "opencv/opencl", "default/cpu"})
+	public String backend;
+
+	@Param({"0", "1", "2", "4"})
+	public int threads;
+
+	@Param({"1", "2"})
+	public int detections;
+
+	private final List<ObjectsRecognition> detectors = new ArrayList<>();
+	private ExecutorService executor;
+	private BufferedImage image;
+
+	@Setup
+	public void setup() throws IOException {
+		String[] names = backend.split("/");
+		String labels = new ClassPathResource("models/yolov3-608/coco.names").getFile().getPath();
+		String weights = new ClassPathResource("models/yolov3-608/yolov3.weights").getFile().getPath();
+		String config = new ClassPathResource("models/yolov3-608/yolov3.cfg").getFile().getPath();
+		for (int i = 0; i < detections; i++) {
+			ObjectsRecognition detector = new ObjectsRecognition(ObjectsRecognition.readLabels(labels), weights, config);
+			if (detector.isEmpty()) {
+				throw new IllegalStateException("the model couldn't be loaded, it may be a git lfs pointer");
+			}
+			detector.setBackend(ObjectsRecognition.backend(names[0]), ObjectsRecognition.target(names[1]));
+			detectors.add(detector);
+		}
+		ObjectsRecognition.setThreads(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+		executor = Executors.newFixedThreadPool(detections);
+
+		Random random = new Random(42);
+		image = new BufferedImage(608, 608, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 608; y++) {
+			for (int x = 0; x < 608; x++) {
+				image.setRGB(x, y, (x/4) << 16 | (y/4) << 8 | (x + y)/8 + random.nextInt(16));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public int detect() throws Exception {
+		List<Future<Integer>> results = new ArrayList<>();
+		for (ObjectsRecognition detector : detectors) {
+			results.add(executor.submit(() -> detector.detectObjects(image, 1).size()));
+		}
+		int found = 0;
+		for (Future<Integer> result : results) {
+			found += result.get();
+		}
+		return found;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(DetectionBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -1,11 +1,17 @@
 package pdl.app_image_back;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.io.File;
@@ -14,6 +20,7 @@ import java.io.IOException;
 
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 
+import com.jayway.jsonpath.JsonPath;
 import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.AfterAll;
@@ -28,6 +35,9 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
 @SpringBootTest
@@ -54,6 +64,18 @@ public class ImageControllerTests {
 		file.delete();
 	}
 
+	// Helper method to perform a request answered asynchronously and dispatch its response
+	private ResultActions performAsync(MockHttpServletRequestBuilder builder) throws Exception {
+		MvcResult result = this.mockMvc.perform(builder).andExpect(request().asyncStarted()).andReturn();
+		return this.mockMvc.perform(asyncDispatch(result));
+	}
+
+	// Helper method to read a number of the processing metrics
+	private long processingMetric(String path) throws Exception {
+		String json = this.mockMvc.perform(get("/metrics/processing")).andReturn().getResponse().getContentAsString();
+		return ((Number) JsonPath.read(json, path)).longValue();
+	}
+
 	// Initialize favorite file if it doesn't exist before running tests
 	@BeforeAll
 	static void initFavFile() throws IOException{
@@ -159,7 +181,7 @@ public class ImageControllerTests {
 	@Test
 	@Order(10)
 	public void getClosestListShouldReturnSuccess() throws Exception {
-		this.mockMvc.perform(get("/images/1/similar?number=10&descriptor=hshist").contentType(MediaType.APPLICATION_JSON)).andDo(print()).andExpect(status().isOk())
+		performAsync(get("/images/1/similar?number=10&descriptor=hshist").contentType(MediaType.APPLICATION_JSON)).andDo(print()).andExpect(status().isOk())
 				.andExpect(content().contentType(MediaType.APPLICATION_JSON));
 	}
 
@@ -167,22 +189,23 @@ public class ImageControllerTests {
 	@Test
 	@Order(11)
 	public void getClosestListShouldReturnBadRequest() throws Exception {
-		this.mockMvc.perform(get("/images/1/similar?number=10&descriptor=blabla").contentType(MediaType.APPLICATION_JSON)).andDo(print()).andExpect(status().isBadRequest())
+		performAsync(get("/images/1/similar?number=10&descriptor=blabla").contentType(MediaType.APPLICATION_JSON)).andDo(print()).andExpect(status().isBadRequest())
 				.andExpect(content().contentType(MediaType.APPLICATION_JSON));
+		performAsync(get("/images/1/similar?number=0&descriptor=hshist&metric=manhattan")).andDo(print()).andExpect(status().isBadRequest());
 	}
 
 	// Test to make sure the client has no result if he tries to get the list of similar images to an invalid image (through id)
 	@Test
 	@Order(12)
 	public void getClosestListShouldReturnNotFound() throws Exception {
-		this.mockMvc.perform(get("/images/-1/similar?number=10&descriptor=hshist").contentType(MediaType.APPLICATION_JSON)).andDo(print()).andExpect(status().isNotFound())
+		performAsync(get("/images/-1/similar?number=10&descriptor=hshist").contentType(MediaType.APPLICATION_JSON)).andDo(print()).andExpect(status().isNotFound())
 				.andExpect(content().contentType(MediaType.APPLICATION_JSON));
 	}
 
 	@Test
 	@Order(14)
 	public void getObjectsShouldReturnNotFound() throws Exception {
-		this.mockMvc.perform(get("/images/-1/objects")).andDo(print()).andExpect(status().isNotFound());
+		performAsync(get("/images/-1/objects")).andDo(print()).andExpect(status().isNotFound());
 	}
 
 	@Test
@@ -219,7 +242,7 @@ public class ImageControllerTests {
 	@Test
 	@Order(22)
 	public void getFilteredShouldReturnNotFound() throws Exception {
-		this.mockMvc.perform(get("/images/-1/filter?name=Gray")).andDo(print()).andExpect(status().isNotFound());
+		performAsync(get("/images/-1/filter?name=Gray")).andDo(print()).andExpect(status().isNotFound());
 	}
 
 	@Test
@@ -231,7 +254,7 @@ public class ImageControllerTests {
 	@Test
 	@Order(25)
 	public void getFilteredParamShouldReturnNotFound() throws Exception {
-		this.mockMvc.perform(get("/images/-1/filter_param?name=Mean&param=3")).andDo(print()).andExpect(status().isNotFound());
+		performAsync(get("/images/-1/filter_param?name=Mean&param=3")).andDo(print()).andExpect(status().isNotFound());
 	}
 
 	@Test
@@ -240,9 +263,339 @@ public class ImageControllerTests {
 		this.mockMvc.perform(get("/images/0/filter_param?name=blabla")).andDo(print()).andExpect(status().isBadRequest());
 	}
 
+	// Test to make sure the neighbours of several images are returned in one request
+	@Test
+	@Order(28)
+	public void getClosestBatchShouldReturnSuccess() throws Exception {
+		performAsync(get("/images/similar?ids=1,2&number=5&descriptor=hshist")).andDo(print()).andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON));
+	}
+
+	// Test to make sure the pairwise distance matrix of the whole catalog is returned
+	@Test
+	@Order(29)
+	public void getDistanceMatrixShouldReturnSuccess() throws Exception {
+		performAsync(get("/images/similar?ids=all&descriptor=rgbhist&output=matrix")).andDo(print()).andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON));
+	}
+
+	// Test to make sure a batch with an unknown image is rejected
+	@Test
+	@Order(30)
+	public void getClosestBatchShouldReturnNotFound() throws Exception {
+		performAsync(get("/images/similar?ids=1,-1&descriptor=hshist")).andDo(print()).andExpect(status().isNotFound());
+	}
+
+	// Test to make sure a batch with an invalid descriptor is rejected
+	@Test
+	@Order(31)
+	public void getClosestBatchShouldReturnBadRequest() throws Exception {
+		performAsync(get("/images/similar?ids=all&descriptor=blabla")).andDo(print()).andExpect(status().isBadRequest());
+		performAsync(get("/images/similar?ids=all&number=0&descriptor=hshist")).andDo(print()).andExpect(status().isBadRequest());
+	}
+
+	// Test to make sure the cascade search on the spatial grid descriptor is available
+	@Test
+	@Order(32)
+	public void getClosestGridShouldReturnSuccess() throws Exception {
+		performAsync(get("/images/1/similar?number=5&descriptor=gridhist")).andDo(print()).andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON));
+	}
+
+	// Test to make sure the similar images can be restricted by tags, favorite status and size
+	@Test
+	@Order(33)
+	public void getClosestFilteredShouldReturnSuccess() throws Exception {
+		performAsync(get("/images/1/similar?number=5&descriptor=hshist&tag=not_test&favorite=false&minWidth=100")).andDo(print()).andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON));
+	}
+
+	// Test to make sure the filters give the same image whatever the number of threads
+	@Test
+	@Order(34)
+	public void getFilteredShouldNotDependOnParallelism() throws Exception {
+		String[] requests = {"/images/1/filter?name=Gray", "/images/1/filter?name=Histogram", "/images/1/filter?name=Histogram2D",
+			"/images/1/filter?name=Sobel", "/images/1/filter_param?name=Mean&param=5", "/images/1/filter_param?name=Color&param=120"};
+		try {
+			for (String request : requests) {
+				TileExecutor.setParallelism(1);
+				byte[] sequential = performAsync(get(request)).andExpect(status().isOk()).andReturn().getResponse().getContentAsByteArray();
+				TileExecutor.setParallelism(4);
+				byte[] parallel = performAsync(get(request)).andExpect(status().isOk()).andReturn().getResponse().getContentAsByteArray();
+				assertArrayEquals(sequential, parallel, request);
+			}
+		} finally {
+			TileExecutor.setParallelism(0);
+		}
+	}
+
+	// Test to make sure an image can be convolved with a Gaussian, sharpening or custom kernel
+	@Test
+	@Order(35)
+	public void getConvolutionShouldReturnSuccess() throws Exception {
+		this.mockMvc.perform(get("/images/1/convolution?type=gaussian&sigma=1.5")).andDo(print()).andExpect(status().isOk());
+		this.mockMvc.perform(get("/images/1/convolution?type=sharpen&border=reflect")).andDo(print()).andExpect(status().isOk());
+		this.mockMvc.perform(get("/images/1/convolution?type=custom&kernel=1,2,1;2,4,2;1,2,1&border=zero")).andDo(print()).andExpect(status().isOk());
+	}
+
+	// Test to make sure the convolution of an unknown image returns not found
+	@Test
+	@Order(36)
+	public void getConvolutionShouldReturnNotFound() throws Exception {
+		this.mockMvc.perform(get("/images/-1/convolution?type=sharpen")).andDo(print()).andExpect(status().isNotFound());
+	}
+
+	// Test to make sure invalid kernels and border modes return bad request
+	@Test
+	@Order(37)
+	public void getConvolutionShouldReturnBadRequest() throws Exception {
+		this.mockMvc.perform(get("/images/1/convolution?type=gaussian")).andDo(print()).andExpect(status().isBadRequest());
+		this.mockMvc.perform(get("/images/1/convolution?type=custom&kernel=1,2;3,4")).andDo(print()).andExpect(status().isBadRequest());
+		this.mockMvc.perform(get("/images/1/convolution?type=sharpen&border=blabla")).andDo(print()).andExpect(status().isBadRequest());
+	}
+
+	// Test to make sure the Sobel filter can approximate the magnitude of the gradient
+	@Test
+	@Order(38)
+	public void getFilteredSobelL1ShouldReturnSuccess() throws Exception {
+		performAsync(get("/images/1/filter?name=SobelL1")).andDo(print()).andExpect(status().isOk());
+	}
+
+	// Test to make sure the point operations can be applied to an image
+	@Test
+	@Order(39)
+	public void getFilteredPointOperationsShouldReturnSuccess() throws Exception {
+		performAsync(get("/images/1/filter?name=Equalize")).andDo(print()).andExpect(status().isOk());
+		performAsync(get("/images/1/filter?name=Threshold")).andDo(print()).andExpect(status().isOk());
+		performAsync(get("/images/1/filter_param?name=Gamma&param=50")).andDo(print()).andExpect(status().isOk());
+		performAsync(get("/images/1/filter_param?name=Threshold&param=128")).andDo(print()).andExpect(status().isOk());
+	}
+
+	// Test to make sure invalid parameters of the point operations return bad request
+	@Test
+	@Order(40)
+	public void getFilteredPointOperationsShouldReturnBadRequest() throws Exception {
+		performAsync(get("/images/1/filter_param?name=Gamma&param=0")).andDo(print()).andExpect(status().isBadRequest());
+		performAsync(get("/images/1/filter_param?name=Threshold&param=300")).andDo(print()).andExpect(status().isBadRequest());
+	}
+
+	// Test to make sure a chain of filters can be applied and gives the same image when it comes from the cache
+	@Test
+	@Order(41)
+	public void getPipelineShouldReturnSuccess() throws Exception {
+		byte[] first = this.mockMvc.perform(get("/images/1/pipeline?ops=gray,mean:5,sobel")).andDo(print()).andExpect(status().isOk())
+			.andReturn().getResponse().getContentAsByteArray();
+		byte[] second = this.mockMvc.perform(get("/images/1/pipeline?ops=Gray,mean:05,SOBEL")).andDo(print()).andExpect(status().isOk())
+			.andReturn().getResponse().getContentAsByteArray();
+		assertArrayEquals(first, second);
+		this.mockMvc.perform(get("/images/1/pipeline?ops=color:120,gamma:0.8,equalize,gaussian:1.5,sharpen,threshold")).andDo(print()).andExpect(status().isOk());
+	}
+
+	// Test to make sure the pipeline of an unknown image returns not found
+	@Test
+	@Order(42)
+	public void getPipelineShouldReturnNotFound() throws Exception {
+		this.mockMvc.perform(get("/images/-1/pipeline?ops=gray")).andDo(print()).andExpect(status().isNotFound());
+	}
+
+	// Test to make sure invalid pipelines return bad request
+	@Test
+	@Order(43)
+	public void getPipelineShouldReturnBadRequest() throws Exception {
+		this.mockMvc.perform(get("/images/1/pipeline?ops=gray,blabla")).andDo(print()).andExpect(status().isBadRequest());
+		this.mockMvc.perform(get("/images/1/pipeline?ops=mean")).andDo(print()).andExpect(status().isBadRequest());
+		this.mockMvc.perform(get("/images/1/pipeline?ops=gamma:0")).andDo(print()).andExpect(status().isBadRequest());
+	}
+
+	// Test to make sure the allocations of the filters are measured
+	@Test
+	@Order(44)
+	public void getProcessingMetricsShouldReturnSuccess() throws Exception {
+		performAsync(get("/images/1/filter?name=Gray")).andDo(print()).andExpect(status().isOk());
+		this.mockMvc.perform(get("/metrics/processing")).andDo(print()).andExpect(status().isOk())
+			.andExpect(jsonPath("$.pool.borrowed").isNumber())
+			.andExpect(jsonPath("$.requests").isArray())
+			.andExpect(jsonPath("$.codecs.jpeg.decoder").isString());
+	}
+
+	// Test to make sure the large images are processed strip by strip and streamed in PNG
+	@Test
+	@Order(45)
+	public void getPipelineOfLargeImageShouldReturnPng() throws Exception {
+		long threshold = StripProcessor.getThreshold();
+		StripProcessor.setThreshold(0);
+		try {
+			MvcResult result = this.mockMvc.perform(get("/images/1/pipeline?ops=gray,equalize,mean:3")).andExpect(request().asyncStarted()).andReturn();
+			this.mockMvc.perform(asyncDispatch(result)).andDo(print()).andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.IMAGE_PNG));
+		} finally {
+			StripProcessor.setThreshold(threshold);
+		}
+	}
+
+	// Test to make sure the format of the filtered images is negotiated and advertised
+	@Test
+	@Order(46)
+	public void getFilterShouldNegotiateFormat() throws Exception {
+		performAsync(get("/images/1/filter?name=Gray&format=png")).andDo(print()).andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_PNG));
+		performAsync(get("/images/1/filter?name=Sobel").accept(MediaType.IMAGE_PNG)).andDo(print()).andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_PNG));
+		performAsync(get("/images/1/filter_param?name=Mean&param=3&format=jpeg&quality=90")).andDo(print()).andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_JPEG));
+		performAsync(get("/images/1/filter?name=Histogram")).andDo(print()).andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_PNG));
+		this.mockMvc.perform(get("/images/1/pipeline?ops=gray&format=png")).andDo(print()).andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_PNG));
+		performAsync(get("/images/1/filter?name=Gray&quality=0")).andDo(print()).andExpect(status().isBadRequest());
+		performAsync(get("/images/1/filter?name=Gray&format=gif")).andDo(print()).andExpect(status().isBadRequest());
+	}
+
+	// Test to make sure the filters are rejected with a delay to retry when their bulkhead is full,
+	// while the cheap requests are still served
+	@Test
+	@Order(47)
+	public void getFilterShouldReturnTooManyRequestsWhenBulkheadIsFull() throws Exception {
+		Admission.FILTERS.configure(1, 0);
+		try (Admission.Ticket ticket = Admission.FILTERS.enter(1)) {
+			performAsync(get("/images/1/filter?name=Gray")).andDo(print()).andExpect(status().isTooManyRequests())
+				.andExpect(header().exists("Retry-After"));
+			this.mockMvc.perform(get("/images/1/pipeline?ops=gray,sobel")).andDo(print()).andExpect(status().isTooManyRequests());
+			this.mockMvc.perform(get("/images")).andDo(print()).andExpect(status().isOk());
+		} finally {
+			Admission.FILTERS.configure(0, 16);
+		}
+		performAsync(get("/images/1/filter?name=Gray")).andDo(print()).andExpect(status().isOk());
+		this.mockMvc.perform(get("/metrics/processing")).andDo(print()).andExpect(status().isOk())
+			.andExpect(jsonPath("$.admission.filters.rejected").isNumber())
+			.andExpect(jsonPath("$.admission.filters.queued").value(0))
+			.andExpect(jsonPath("$.admission.detection.capacity").isNumber());
+	}
+
+	// Test to make sure identical filters requested at once are computed once by the registry of the computations in flight
+	@Test
+	@Order(48)
+	public void getFilterShouldBeCountedBySingleFlight() throws Exception {
+		long computed = processingMetric("$.singleFlight.computed");
+		long shared = processingMetric("$.singleFlight.shared");
+
+		// The first request waits in the bulkhead for the permit held here, the second one joins its computation
+		MvcResult first;
+		MvcResult second;
+		Admission.FILTERS.configure(1, 16);
+		try {
+			try (Admission.Ticket ticket = Admission.FILTERS.enter(1)) {
+				first = this.mockMvc.perform(get("/images/1/filter?name=Sobel")).andExpect(request().asyncStarted()).andReturn();
+				while (Admission.FILTERS.getQueued() < 1) {
+					Thread.sleep(1);
+				}
+				second = this.mockMvc.perform(get("/images/1/filter?name=Sobel")).andExpect(request().asyncStarted()).andReturn();
+				while (processingMetric("$.singleFlight.shared") < shared + 1) {
+					Thread.sleep(1);
+				}
+			}
+			byte[] firstImage = this.mockMvc.perform(asyncDispatch(first)).andExpect(status().isOk()).andReturn().getResponse().getContentAsByteArray();
+			byte[] secondImage = this.mockMvc.perform(asyncDispatch(second)).andExpect(status().isOk()).andReturn().getResponse().getContentAsByteArray();
+			assertArrayEquals(firstImage, secondImage);
+		} finally {
+			Admission.FILTERS.configure(0, 16);
+		}
+		assertEquals(computed + 1, processingMetric("$.singleFlight.computed"));
+		assertEquals(shared + 1, processingMetric("$.singleFlight.shared"));
+
+		performAsync(get("/images/1/objects")).andDo(print()).andExpect(status().isOk());
+		this.mockMvc.perform(get("/metrics/processing")).andDo(print()).andExpect(status().isOk())
+			.andExpect(jsonPath("$.singleFlight.inFlight").value(0))
+			.andExpect(jsonPath("$.similarityCache.hits").isNumber())
+			.andExpect(jsonPath("$.detectors.inUse").value(0))
+			.andExpect(jsonPath("$.detectors.backend").value("opencv"))
+			.andExpect(jsonPath("$.detectors.target").value("cpu"))
+			.andExpect(jsonPath("$.detectors.threads").isNumber());
+	}
+
+	// Test to make sure the processing runs on the CpuExecutor
+	@Test
+	@Order(49)
+	public void getFilterShouldRunOnCpuExecutor() throws Exception {
+		long completed = CpuExecutor.getCompleted();
+		performAsync(get("/images/1/filter_param?name=Mean&param=3")).andDo(print()).andExpect(status().isOk());
+		assertTrue(CpuExecutor.getCompleted() > completed);
+		this.mockMvc.perform(get("/metrics/processing")).andDo(print()).andExpect(status().isOk())
+			.andExpect(jsonPath("$.cpu.threads").value(CpuExecutor.getThreads()))
+			.andExpect(jsonPath("$.cpu.queued").value(0))
+			.andExpect(jsonPath("$.pinning.events").isNumber());
+	}
+
+	// Test to make sure the filters are answered asynchronously and counted
+	@Test
+	@Order(50)
+	public void getFilterShouldBeAnsweredAsynchronously() throws Exception {
+		long completed = AsyncProcessing.getCompleted();
+		performAsync(get("/images/1/filter?name=Equalize")).andDo(print()).andExpect(status().isOk());
+		assertTrue(AsyncProcessing.getCompleted() > completed);
+		this.mockMvc.perform(get("/metrics/processing")).andDo(print()).andExpect(status().isOk())
+			.andExpect(jsonPath("$.async.timeoutMillis").value(AsyncProcessing.getTimeoutMillis()))
+			.andExpect(jsonPath("$.async.timedOut").value(0));
+	}
+
+	// Test to make sure a filter answered asynchronously is recorded once, with the bytes allocated on the CpuExecutor
+	@Test
+	@Order(51)
+	public void getFilterShouldRecordItsAllocations() throws Exception {
+		AllocationMeter.reset();
+		performAsync(get("/images/1/filter?name=Sobel")).andDo(print()).andExpect(status().isOk());
+		if (AllocationMeter.isSupported()) {
+			AllocationMeter.Stats stats = AllocationMeter.getStats().get("GET /images/{id}/filter?name=Sobel");
+			assertEquals(1, stats.getRequests());
+			assertTrue(stats.getLastBytes() > 0);
+		}
+	}
+
+	// Test to make sure a large image whose streaming isn't admitted is answered with 429, without keeping any permit
+	@Test
+	@Order(52)
+	public void getPipelineOfLargeImageShouldReturnTooManyRequestsWhenBulkheadIsFull() throws Exception {
+		long threshold = StripProcessor.getThreshold();
+		StripProcessor.setThreshold(0);
+		Admission.FILTERS.configure(1, 0);
+		try (Admission.Ticket ticket = Admission.FILTERS.enter(1)) {
+			performAsync(get("/images/1/pipeline?ops=gray,sobel,mean:3")).andDo(print()).andExpect(status().isTooManyRequests())
+				.andExpect(header().exists("Retry-After"));
+		} finally {
+			Admission.FILTERS.configure(0, 16);
+			StripProcessor.setThreshold(threshold);
+		}
+		assertEquals(Admission.FILTERS.getCapacity(), Admission.FILTERS.getAvailable());
+	}
+
+	// Test to make sure a large image isn't streamed in PNG when JPEG is explicitly asked for
+	@Test
+	@Order(53)
+	public void getPipelineOfLargeImageInJpegShouldReturnBadRequest() throws Exception {
+		long threshold = StripProcessor.getThreshold();
+		StripProcessor.setThreshold(0);
+		try {
+			this.mockMvc.perform(get("/images/1/pipeline?ops=gray,sobel,mean:3&format=jpeg")).andDo(print()).andExpect(status().isBadRequest());
+		} finally {
+			StripProcessor.setThreshold(threshold);
+		}
+	}
+
+	// Test to make sure the batch similarity searches go through the filter bulkhead
+	@Test
+	@Order(54)
+	public void getClosestBatchShouldReturnTooManyRequestsWhenBulkheadIsFull() throws Exception {
+		Admission.FILTERS.configure(1, 0);
+		try (Admission.Ticket ticket = Admission.FILTERS.enter(1)) {
+			performAsync(get("/images/similar?ids=all&descriptor=hshist")).andDo(print()).andExpect(status().isTooManyRequests());
+		} finally {
+			Admission.FILTERS.configure(0, 16);
+		}
+	}
+
 	// Test to make sure the images directory is created and initialized correctly
 	@Test
-	@Order(27)
+	@Order(100)
 	public void startWithoutFolderRaisesError() throws IOException {
 		deleteDirectory("images");
 		assertThrows(FileNotFoundException.class, () -> (new ImageDao()).initImages("images", "Favorite.txt"));
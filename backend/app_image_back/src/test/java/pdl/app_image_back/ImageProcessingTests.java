@@ -0,0 +1,1196 @@
+package pdl.app_image_back;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.dnn.Dnn;
+import org.springframework.http.MediaType;
+
+import boofcv.alg.color.ColorHsv;
+import boofcv.alg.feature.color.Histogram_F64;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.Planar;
+import pdl.object_recognition.Codecs;
+import pdl.object_recognition.DetectorPool;
+import pdl.object_recognition.ImageCodec;
+import pdl.object_recognition.ObjectsRecognition;
+
+public class ImageProcessingTests {
+
+	// Reference mean of the window of a pixel, as computed before the running sums
+	private static float referenceAverage(GrayF32 input, int x, int y, int size) {
+		float total = 0f;
+		int radius = size/2;
+		float weight = 0f;
+		for (int i = y-radius; i <= y+radius; ++i) {
+			for (int j = x-radius; j <= x+radius; ++j) {
+				if (input.width > j && j >= 0 && input.height > i && i >= 0) {
+					weight += 1;
+					total += input.get(j, i);
+				}
+			}
+		}
+		return total/weight;
+	}
+
+	// Helper method to create an image with random 8-bit values
+	private static Planar<GrayF32> randomImage(Random random, int width, int height) {
+		Planar<GrayF32> image = new Planar<>(GrayF32.class, width, height, 3);
+		for (int c = 0; c < 3; c++) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					image.getBand(c).set(x, y, random.nextInt(256));
+				}
+			}
+		}
+		return image;
+	}
+
+	// Test to make sure the mean filter gives the same values as the window by window computation, borders included
+	@Test
+	public void meanFilterShouldMatchReference() {
+		Random random = new Random(42);
+		int[][] shapes = {{1, 1}, {7, 3}, {40, 33}, {90, 61}};
+		int[] sizes = {-3, -1, 0, 1, 2, 3, 5, 8, 51, 201};
+		for (int[] shape : shapes) {
+			Planar<GrayF32> input = randomImage(random, shape[0], shape[1]);
+			for (int size : sizes) {
+				Planar<GrayF32> output = input.createSameShape();
+				ImageProcessing.applyMeanFilter(input, output, size);
+				for (int c = 0; c < 3; c++) {
+					for (int y = 0; y < shape[1]; y++) {
+						for (int x = 0; x < shape[0]; x++) {
+							assertEquals(Float.floatToIntBits(referenceAverage(input.getBand(c), x, y, size)),
+								Float.floatToIntBits(output.getBand(c).get(x, y)), "size " + size + " at (" + x + "," + y + ")");
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Test to make sure the fused Sobel filter gives the same image as the gray, convolution and magnitude passes
+	@Test
+	public void sobelShouldMatchGradientImage() {
+		Random random = new Random(42);
+		int[][] kernelX = {{-1, 0, 1}, {-2, 0, 2}, {-1, 0, 1}};
+		int[][] kernelY = {{-1, -2, -1}, {0, 0, 0}, {1, 2, 1}};
+		int[][] shapes = {{1, 1}, {2, 2}, {3, 3}, {17, 5}, {200, 131}};
+		for (int[] shape : shapes) {
+			BufferedImage input = new BufferedImage(shape[0], shape[1], BufferedImage.TYPE_INT_RGB);
+			BufferedImage output = new BufferedImage(shape[0], shape[1], BufferedImage.TYPE_INT_RGB);
+			GrayF32 gray = new GrayF32(shape[0], shape[1]);
+			GrayF32 expected = new GrayF32(shape[0], shape[1]);
+			for (int y = 0; y < shape[1]; y++) {
+				for (int x = 0; x < shape[0]; x++) {
+					int r = random.nextInt(256), g = random.nextInt(256), b = random.nextInt(256);
+					input.setRGB(x, y, r << 16 | g << 8 | b);
+					gray.set(x, y, r*0.30f + g*0.59f + b*0.11f);
+				}
+			}
+
+			ImageProcessing.gradientImage(gray, expected, kernelX, kernelY);
+			ImageProcessing.sobel(input, output, false);
+			for (int y = 0; y < shape[1]; y++) {
+				for (int x = 0; x < shape[0]; x++) {
+					int m = (int) expected.get(x, y);
+					assertEquals(m << 16 | m << 8 | m, output.getRGB(x, y) & 0xffffff, "pixel (" + x + "," + y + ")");
+				}
+			}
+		}
+	}
+
+	// Test to make sure the partial histograms of the bands add up to the histogram of the whole image and of each cell of a grid
+	@Test
+	public void histogramEngineShouldMatchSequentialHistogram() {
+		Random random = new Random(42);
+		int width = 173, height = 211;
+		int[] pixels = new int[width*height];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = 0xff000000 | random.nextInt(1 << 24);
+		}
+
+		Histogram_F64 rgb = new Histogram_F64(10, 10, 10);
+		Histogram_F64 hs = new Histogram_F64(12, 12);
+		for (int i = 0; i < 3; i++) {
+			rgb.setRange(i, 0, 255);
+		}
+		hs.setRange(0, 0, 2.0*Math.PI);
+		hs.setRange(1, 0, 1.0);
+
+		double[] expectedRgb = new double[rgb.data.length];
+		double[] expectedHs = new double[hs.data.length];
+		double[] expectedGrid = new double[9*hs.data.length];
+		float[] hsv = new float[3];
+		for (int i = 0; i < pixels.length; i++) {
+			int pixel = pixels[i];
+			int r = (pixel >> 16) & 0xff, g = (pixel >> 8) & 0xff, b = pixel & 0xff;
+			expectedRgb[rgb.getIndex(rgb.getDimensionIndex(0, r), rgb.getDimensionIndex(1, g), rgb.getDimensionIndex(2, b))] += 1;
+			ColorHsv.rgbToHsv(r, g, b, hsv);
+			int bin = hs.getIndex(hs.getDimensionIndex(0, hsv[0]), hs.getDimensionIndex(1, hsv[1]));
+			expectedHs[bin] += 1;
+			int cell = (i/width)*3/height*3 + (i%width)*3/width;
+			expectedGrid[cell*hs.data.length + bin] += 1;
+		}
+
+		try {
+			TileExecutor.setParallelism(4);
+			assertArrayEquals(expectedRgb, HistogramEngine.accumulate(pixels, width, height, rgb.data.length, HistogramEngine.rgbIndexer(rgb)));
+			assertArrayEquals(expectedHs, HistogramEngine.accumulate(pixels, width, height, hs.data.length, HistogramEngine.hueSaturationTable(hs)::bin));
+			assertArrayEquals(expectedGrid, HistogramEngine.accumulateGrid(pixels, width, height, 3, hs.data.length, HistogramEngine.hueSaturationTable(hs)::bin));
+		} finally {
+			TileExecutor.setParallelism(0);
+		}
+	}
+
+	// Test to make sure the color tables give the same hue and saturation as the conversion of every color
+	@Test
+	public void colorTablesShouldMatchColorHsv() {
+		float[] hsv = new float[3];
+		for (int rgb = 0; rgb < (1 << 24); rgb++) {
+			ColorHsv.rgbToHsv((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, hsv);
+			assertEquals(Float.floatToIntBits(hsv[0]), Float.floatToIntBits(ColorTables.hue(rgb)), "hue of " + Integer.toHexString(rgb));
+			assertEquals(Float.floatToIntBits(hsv[1]), Float.floatToIntBits(ColorTables.saturation(rgb)), "saturation of " + Integer.toHexString(rgb));
+		}
+	}
+
+	// Test to make sure the recolour tables give the same image as the conversion of each pixel
+	@Test
+	public void recolourShouldMatchApplyFilter() {
+		Random random = new Random(42);
+		int width = 64, height = 48;
+		BufferedImage input = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Planar<GrayF32> planar = new Planar<>(GrayF32.class, width, height, 3);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int rgb = random.nextInt(1 << 24);
+				input.setRGB(x, y, rgb);
+				planar.getBand(0).set(x, y, (rgb >> 16) & 0xff);
+				planar.getBand(1).set(x, y, (rgb >> 8) & 0xff);
+				planar.getBand(2).set(x, y, rgb & 0xff);
+			}
+		}
+
+		for (int hue : new int[] {0, 45, 120, 300}) {
+			BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Planar<GrayF32> expected = planar.createSameShape();
+			ImageProcessing.recolour(input, output, hue);
+			ImageProcessing.applyFilter(planar, expected, hue);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int rgb = (int) expected.getBand(0).get(x, y) << 16 | (int) expected.getBand(1).get(x, y) << 8 | (int) expected.getBand(2).get(x, y);
+					assertEquals(rgb, output.getRGB(x, y) & 0xffffff, "hue " + hue + " at (" + x + "," + y + ")");
+				}
+			}
+		}
+	}
+
+	// Test to make sure a fused chain of point operations gives the same image as each operation in turn
+	@Test
+	public void fusedPointOperationsShouldMatchSequentialApplication() {
+		Random random = new Random(42);
+		int width = 57, height = 43;
+		for (int trial = 0; trial < 50; trial++) {
+			BufferedImage sequential = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			BufferedImage input = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int rgb = random.nextInt(1 << 24);
+					sequential.setRGB(x, y, rgb);
+					input.setRGB(x, y, rgb);
+				}
+			}
+
+			PointOp fused = PointOp.identity();
+			for (int k = 1 + random.nextInt(5); k > 0; k--) {
+				PointOp operation;
+				switch (random.nextInt(5)) {
+					case 0: operation = PointOp.gray(); break;
+					case 1: operation = PointOp.gamma(0.2 + 3*random.nextDouble()); break;
+					case 2: operation = PointOp.threshold(random.nextInt(257)); break;
+					case 3: operation = PointOp.equalize(sequential); break;
+					default:
+						int[][] tables = new int[3][256];
+						for (int c = 0; c < 3; c++) {
+							for (int v = 0; v < 256; v++) {
+								tables[c][v] = random.nextInt(256);
+							}
+						}
+						operation = PointOp.lut(tables[0], tables[1], tables[2]);
+				}
+				operation.apply(sequential, sequential);
+				fused = fused.then(operation);
+			}
+
+			BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			fused.apply(input, output);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					assertEquals(sequential.getRGB(x, y), output.getRGB(x, y), "trial " + trial + " at (" + x + "," + y + ")");
+				}
+			}
+		}
+	}
+
+	// Test to make sure the gray point operation gives the same levels as the gray filter
+	@Test
+	public void grayPointOperationShouldMatchGrayLevels() {
+		BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(42);
+		for (int y = 0; y < 256; y++) {
+			for (int x = 0; x < 256; x++) {
+				image.setRGB(x, y, random.nextInt(1 << 24));
+			}
+		}
+		BufferedImage output = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+		PointOp.gray().apply(image, output);
+		for (int y = 0; y < 256; y++) {
+			for (int x = 0; x < 256; x++) {
+				int rgb = image.getRGB(x, y);
+				int level = Math.min((int) (((rgb >> 16) & 0xff)*0.30f + ((rgb >> 8) & 0xff)*0.59f + (rgb & 0xff)*0.11f), 255);
+				assertEquals(level << 16 | level << 8 | level, output.getRGB(x, y) & 0xffffff, "pixel (" + x + "," + y + ")");
+			}
+		}
+	}
+
+	// Test to make sure a pipeline gives the same image as its filters applied one after the other
+	@Test
+	public void pipelineShouldMatchSequentialFilters() {
+		Random random = new Random(42);
+		int width = 61, height = 47;
+		BufferedImage input = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				input.setRGB(x, y, random.nextInt(1 << 24));
+			}
+		}
+
+		BufferedImage expected = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		BufferedImage temp = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		expected.setData(input.getData());
+		ImageProcessing.recolour(expected, temp, 200);
+		PointOp.gamma(0.5).apply(temp, temp);
+		PointOp.equalize(temp).apply(temp, temp);
+		ImageProcessing.meanFilter(temp, expected, 3);
+		PointOp.gray().apply(expected, expected);
+		ImageProcessing.sobel(expected, temp, false);
+		PointOp.threshold(40).apply(temp, temp);
+
+		BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		copy.setData(input.getData());
+		BufferedImage output = Pipeline.parse("color:200,gamma:0.5,equalize,mean:3,gray,sobel,threshold:40").apply(copy);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				assertEquals(temp.getRGB(x, y), output.getRGB(x, y), "pixel (" + x + "," + y + ")");
+			}
+		}
+	}
+
+	// Test to make sure a pipeline applied strip by strip gives the same image as on the whole image
+	@Test
+	public void stripProcessingShouldMatchWholeImage() throws IOException {
+		Random random = new Random(42);
+		int width = 83, height = 157;
+		BufferedImage input = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				input.setRGB(x, y, random.nextInt(1 << 24));
+			}
+		}
+		Path file = Files.createTempFile("strips", ".png");
+		ImageIO.write(input, "png", file.toFile());
+
+		String ops = "gaussian:1.5,equalize,mean:5,gray,sobel,threshold";
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		StripProcessor.setStripPixels(10*width);
+		try {
+			StripProcessor.process(file, Pipeline.parse(ops), streamed);
+		} finally {
+			StripProcessor.setStripPixels(1 << 20);
+			Files.delete(file);
+		}
+
+		BufferedImage output = ImageIO.read(new ByteArrayInputStream(streamed.toByteArray()));
+		BufferedImage expected = Pipeline.parse(ops).apply(input);
+		assertEquals(width, output.getWidth());
+		assertEquals(height, output.getHeight());
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				assertEquals(expected.getRGB(x, y), output.getRGB(x, y), "pixel (" + x + "," + y + ")");
+			}
+		}
+	}
+
+	// Test to make sure equivalent pipelines have the same canonical form and invalid ones are rejected
+	@Test
+	public void pipelineShouldBeCanonical() {
+		assertEquals("gray,mean:5,gamma:0.5,threshold,sobel", Pipeline.parse(" Gray ,MEAN:05, gamma:.50,threshold,Sobel").toString());
+		String[] invalid = {"", "gray,", "blur", "mean", "mean:0", "mean:x", "gray:1", "gamma:-1", "threshold:300", "mean:3:3"};
+		for (String ops : invalid) {
+			assertThrows(IllegalArgumentException.class, () -> Pipeline.parse(ops), ops);
+		}
+	}
+
+	// Test to make sure the vector kernels give the same values as the scalar kernels, ends of the ranges included
+	@Test
+	public void vectorKernelsShouldMatchScalarKernels() {
+		Random random = new Random(42);
+		PixelKernels.Kernels kernels = PixelKernels.get();
+		PixelKernels.Kernels scalar = PixelKernels.scalar();
+		int length = 1037;
+		int[] src = new int[length];
+		for (int i = 0; i < length; i++) {
+			src[i] = random.nextInt();
+		}
+		int[] grayTable = new int[256];
+		for (int v = 0; v < 256; v++) {
+			grayTable[v] = random.nextInt(1 << 24);
+		}
+		int[] recolourTable = ColorTables.recolourTable(200);
+
+		int[][] ranges = {{0, length}, {3, length - 5}, {17, 40}, {9, 9}};
+		for (int[] range : ranges) {
+			int[] expected = new int[length];
+			int[] actual = new int[length];
+			scalar.gray(src, expected, range[0], range[1], null);
+			kernels.gray(src, actual, range[0], range[1], null);
+			assertArrayEquals(expected, actual);
+			scalar.gray(src, expected, range[0], range[1], grayTable);
+			kernels.gray(src, actual, range[0], range[1], grayTable);
+			assertArrayEquals(expected, actual);
+			scalar.recolour(src, expected, range[0], range[1], recolourTable);
+			kernels.recolour(src, actual, range[0], range[1], recolourTable);
+			assertArrayEquals(expected, actual);
+
+			float[][] expectedPlanes = new float[3][length];
+			float[][] actualPlanes = new float[3][length];
+			scalar.split(src, expectedPlanes[0], expectedPlanes[1], expectedPlanes[2], range[0], range[1]);
+			kernels.split(src, actualPlanes[0], actualPlanes[1], actualPlanes[2], range[0], range[1]);
+			for (int c = 0; c < 3; c++) {
+				assertArrayEquals(expectedPlanes[c], actualPlanes[c]);
+				for (int i = 0; i < length; i++) {
+					expectedPlanes[c][i] = 255.99f*random.nextFloat();
+				}
+			}
+			scalar.merge(expectedPlanes[0], expectedPlanes[1], expectedPlanes[2], expected, range[0], range[1]);
+			kernels.merge(expectedPlanes[0], expectedPlanes[1], expectedPlanes[2], actual, range[0], range[1]);
+			assertArrayEquals(expected, actual);
+
+			float[] values = new float[length];
+			for (int i = 0; i < length; i++) {
+				values[i] = 600*random.nextFloat() - 200;
+			}
+			float[] clamped = values.clone();
+			scalar.clamp(values, range[0], range[1], 0f, 255f);
+			kernels.clamp(clamped, range[0], range[1], 0f, 255f);
+			assertArrayEquals(values, clamped);
+		}
+	}
+
+	// Test to make sure the arrays and images given back to the pool are lent again, cleared and of the requested shape
+	@Test
+	public void bufferPoolShouldReuseReleasedArrays() {
+		int[] ints = BufferPool.borrowInts(100000);
+		BufferPool.release(ints);
+		assertSame(ints, BufferPool.borrowInts(100000));
+		BufferPool.release(ints);
+
+		BufferedImage image;
+		try (BufferPool.Lease lease = BufferPool.lease()) {
+			image = lease.image(300, 200);
+			image.setRGB(10, 20, 0x123456);
+		}
+		try (BufferPool.Lease lease = BufferPool.lease()) {
+			BufferedImage reused = lease.image(300, 200);
+			assertEquals(BufferedImage.TYPE_INT_RGB, reused.getType());
+			assertSame(HistogramEngine.pixels(image), HistogramEngine.pixels(reused));
+			assertEquals(0, reused.getRGB(10, 20) & 0xffffff);
+
+			GrayF32 gray = lease.gray(300, 200);
+			assertEquals(300, gray.width);
+			assertEquals(200, gray.height);
+			Planar<GrayF32> planar = lease.planar(300, 200, 3);
+			assertEquals(3, planar.getNumBands());
+			assertEquals(300, planar.getBand(2).width);
+		}
+	}
+
+	// Test to make sure the mean filter on packed pixels gives the same image as the float planes
+	@Test
+	public void packedMeanFilterShouldMatchPlanarMeanFilter() {
+		Random random = new Random(7);
+		int[][] shapes = {{1, 1}, {7, 3}, {40, 33}};
+		int[] sizes = {-3, 0, 1, 2, 3, 8, 51};
+		for (int[] shape : shapes) {
+			Planar<GrayF32> input = randomImage(random, shape[0], shape[1]);
+			BufferedImage image = new BufferedImage(shape[0], shape[1], BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < shape[1]; y++) {
+				for (int x = 0; x < shape[0]; x++) {
+					image.setRGB(x, y, (int) input.getBand(0).get(x, y) << 16 | (int) input.getBand(1).get(x, y) << 8 | (int) input.getBand(2).get(x, y));
+				}
+			}
+			for (int size : sizes) {
+				Planar<GrayF32> expected = input.createSameShape();
+				ImageProcessing.applyMeanFilter(input, expected, size);
+				BufferedImage output = new BufferedImage(shape[0], shape[1], BufferedImage.TYPE_INT_RGB);
+				ImageProcessing.meanFilter(image, output, size);
+				for (int y = 0; y < shape[1]; y++) {
+					for (int x = 0; x < shape[0]; x++) {
+						int rgb = (int) expected.getBand(0).get(x, y) << 16 | (int) expected.getBand(1).get(x, y) << 8 | (int) expected.getBand(2).get(x, y);
+						assertEquals(rgb, output.getRGB(x, y) & 0xffffff, "size " + size + " at (" + x + "," + y + ")");
+					}
+				}
+			}
+		}
+	}
+
+	// Test to make sure the mean filter stays exact on bright images when the window sums don't fit a float
+	@Test
+	public void packedMeanFilterShouldMatchPlanarMeanFilterOnLargeWindows() {
+		Random random = new Random(11);
+		int width = 300, height = 300;
+		for (int bright = 0; bright < 2; bright++) {
+			Planar<GrayF32> input = new Planar<>(GrayF32.class, width, height, 3);
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int rgb = 0;
+					for (int c = 0; c < 3; c++) {
+						int value = bright == 0 ? 255 : 224 + random.nextInt(32);
+						input.getBand(c).set(x, y, value);
+						rgb = rgb << 8 | value;
+					}
+					image.setRGB(x, y, rgb);
+				}
+			}
+			for (int size : new int[] {301, 601}) {
+				Planar<GrayF32> expected = input.createSameShape();
+				ImageProcessing.applyMeanFilter(input, expected, size);
+				BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				ImageProcessing.meanFilter(image, output, size);
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						int rgb = (int) expected.getBand(0).get(x, y) << 16 | (int) expected.getBand(1).get(x, y) << 8 | (int) expected.getBand(2).get(x, y);
+						assertEquals(rgb, output.getRGB(x, y) & 0xffffff, "size " + size + " at (" + x + "," + y + ")");
+						if (bright == 0) {
+							assertEquals(0xffffff, rgb, "size " + size + " at (" + x + "," + y + ")");
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Helper method to draw an image on a new image of a type, as the filters did before reading the rasters
+	private static BufferedImage redraw(BufferedImage image, int type) {
+		BufferedImage output = new BufferedImage(image.getWidth(), image.getHeight(), type);
+		Graphics2D g2d = output.createGraphics();
+		g2d.drawImage(image, 0, 0, null);
+		g2d.dispose();
+		return output;
+	}
+
+	// Test to make sure reading the rasters gives the same pixels as drawing the images, translucent pixels included
+	@Test
+	public void rasterAdapterShouldMatchRedraw() {
+		Random random = new Random(3);
+		int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_BGR,
+			BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY,
+			BufferedImage.TYPE_BYTE_INDEXED, BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_USHORT_GRAY};
+		for (int type : types) {
+			BufferedImage image = new BufferedImage(37, 23, type);
+			for (int y = 0; y < 23; y++) {
+				for (int x = 0; x < 37; x++) {
+					image.setRGB(x, y, random.nextInt());
+				}
+			}
+			// A subimage starts inside the data buffer of its parent
+			for (BufferedImage source : new BufferedImage[] {image, image.getSubimage(5, 3, 20, 11)}) {
+				int pixels = source.getWidth()*source.getHeight();
+				int[] rgb = new int[pixels];
+				try (BufferPool.Lease lease = BufferPool.lease()) {
+					System.arraycopy(HistogramEngine.pixels(RasterAdapter.toRgb(source, lease)), 0, rgb, 0, pixels);
+				}
+				int[] expectedRgb = HistogramEngine.pixels(redraw(source, BufferedImage.TYPE_INT_RGB));
+				for (int i = 0; i < pixels; i++) {
+					assertEquals(expectedRgb[i] & 0xffffff, rgb[i] & 0xffffff, "type " + type + " at " + i);
+				}
+
+				assertArrayEquals(HistogramEngine.pixels(redraw(source, BufferedImage.TYPE_INT_ARGB)), RasterAdapter.toArgb(source), "type " + type);
+
+				BufferedImage bgr = RasterAdapter.toBgr(source);
+				assertEquals(BufferedImage.TYPE_3BYTE_BGR, bgr.getType());
+				assertArrayEquals(((DataBufferByte) redraw(source, BufferedImage.TYPE_3BYTE_BGR).getRaster().getDataBuffer()).getData(),
+					((DataBufferByte) bgr.getRaster().getDataBuffer()).getData(), "type " + type);
+			}
+		}
+	}
+
+	// Test to make sure every codec decodes the reduced images at the same size and encodes images ImageIO can read
+	@Test
+	public void codecsShouldDecodeReducedImages() throws IOException {
+		BufferedImage image = new BufferedImage(101, 67, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(5);
+		for (int y = 0; y < 67; y++) {
+			for (int x = 0; x < 101; x++) {
+				image.setRGB(x, y, random.nextInt(1 << 24));
+			}
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", output);
+		byte[] jpeg = output.toByteArray();
+		assertEquals("jpeg", Codecs.format(jpeg));
+		assertArrayEquals(new int[] {101, 67}, Codecs.size(jpeg));
+		assertEquals(4, Codecs.reduction(101, 67, 20, 10));
+		assertEquals(1, Codecs.reduction(101, 67, 101, 67));
+
+		for (ImageCodec codec : Codecs.getCodecs()) {
+			if (codec.canDecode("jpeg")) {
+				for (int reduction : new int[] {1, 2, 4, 8}) {
+					BufferedImage decoded = codec.decode(jpeg, reduction);
+					assertEquals((101 + reduction - 1)/reduction, decoded.getWidth(), codec.getName());
+					assertEquals((67 + reduction - 1)/reduction, decoded.getHeight(), codec.getName());
+				}
+			}
+			for (String format : new String[] {"jpeg", "png"}) {
+				if (codec.canEncode(format)) {
+					ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+					codec.encode(image, format, encoded);
+					BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoded.toByteArray()));
+					assertEquals(101, decoded.getWidth(), codec.getName());
+					if (format.equals("png")) {
+						for (int y = 0; y < 67; y++) {
+							for (int x = 0; x < 101; x++) {
+								assertEquals(image.getRGB(x, y), decoded.getRGB(x, y), codec.getName());
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Test to make sure the gray and few-colour images are converted to compact rasters with the same pixels
+	@Test
+	public void grayAndChartImagesShouldBeEncodedCompactly() throws IOException {
+		BufferedImage gray = new BufferedImage(37, 23, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 23; y++) {
+			for (int x = 0; x < 37; x++) {
+				int level = (x*7 + y*3) & 0xff;
+				gray.setRGB(x, y, level << 16 | level << 8 | level);
+			}
+		}
+		try (BufferPool.Lease lease = BufferPool.lease()) {
+			BufferedImage single = RasterAdapter.toGray(gray, lease);
+			assertEquals(BufferedImage.TYPE_BYTE_GRAY, single.getType());
+			for (int y = 0; y < 23; y++) {
+				for (int x = 0; x < 37; x++) {
+					assertEquals(gray.getRGB(x, y) & 0xff, single.getRaster().getSample(x, y, 0));
+				}
+			}
+			gray.setRGB(5, 5, 0x010000);
+			assertNull(RasterAdapter.toGray(gray, lease));
+		}
+
+		BufferedImage chart = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < 40; x++) {
+			chart.setRGB(x, 29 - x%30, 0xffffff);
+		}
+		BufferedImage indexed = RasterAdapter.toIndexed(chart);
+		assertEquals(BufferedImage.TYPE_BYTE_BINARY, indexed.getType());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Codecs.encode(indexed, "png", output);
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 40; x++) {
+				assertEquals(chart.getRGB(x, y), decoded.getRGB(x, y));
+			}
+		}
+
+		Random random = new Random(9);
+		for (int i = 0; i < 300; i++) {
+			chart.setRGB(i%40, i/40, random.nextInt(1 << 24) | i);
+		}
+		assertNull(RasterAdapter.toIndexed(chart));
+	}
+
+	// Test to make sure a bulkhead admits the requests by cost, queues them and rejects them with a delay when it is full
+	@Test
+	public void bulkheadShouldAdmitByCostAndRejectWhenFull() throws Exception {
+		Admission.Bulkhead bulkhead = new Admission.Bulkhead("test", 4, 1);
+		long unit = Admission.getUnitCost();
+		assertEquals(1, bulkhead.units(1));
+		assertEquals(2, bulkhead.units(unit + 1));
+		assertEquals(4, bulkhead.units(100*unit));
+
+		Admission.Ticket large = bulkhead.enter(100*unit);
+		assertEquals(0, bulkhead.getAvailable());
+		// The first small request waits in the queue, the second one is rejected
+		Thread waiting = new Thread(() -> {
+			try (Admission.Ticket ticket = bulkhead.enter(1)) {
+			} catch (Admission.RejectedException e) {
+			}
+		});
+		waiting.start();
+		while (bulkhead.getQueued() == 0) {
+			Thread.sleep(1);
+		}
+		Admission.RejectedException rejected = assertThrows(Admission.RejectedException.class, () -> bulkhead.enter(1));
+		assertTrue(rejected.getRetryAfter() >= 1);
+		large.close();
+		waiting.join();
+
+		assertEquals(2, bulkhead.getAdmitted());
+		assertEquals(1, bulkhead.getRejected());
+		assertEquals(4, bulkhead.getAvailable());
+		assertEquals(0, bulkhead.getQueued());
+	}
+
+	// Test to make sure identical concurrent requests share one computation
+	@Test
+	public void singleFlightShouldShareConcurrentComputations() throws Exception {
+		SingleFlight<String, byte[]> flight = new SingleFlight<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger computations = new AtomicInteger();
+		byte[][] results = new byte[4][];
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < 4; i++) {
+			int index = i;
+			threads[i] = new Thread(() -> results[index] = flight.run("key", () -> {
+				computations.incrementAndGet();
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new byte[] {1};
+			}));
+		}
+		// The first request computes while the others wait for it
+		threads[0].start();
+		started.await();
+		for (int i = 1; i < 4; i++) {
+			threads[i].start();
+		}
+		while (flight.getShared() < 3) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, computations.get());
+		for (int i = 1; i < 4; i++) {
+			assertSame(results[0], results[i]);
+		}
+		assertEquals(0, flight.getInFlight());
+
+		// Nothing is kept once the computation is done
+		assertEquals(0, flight.run("key", () -> new byte[0]).length);
+		assertEquals(2, flight.getComputed());
+		assertThrows(IllegalStateException.class, () -> flight.run("key", () -> {
+			throw new IllegalStateException();
+		}));
+		assertEquals(0, flight.getInFlight());
+	}
+
+	// Test to make sure the work handed to the CpuExecutor runs on its platform threads, nested work and allocations included
+	@Test
+	public void cpuExecutorShouldRunTheWorkOnPlatformThreads() throws Exception {
+		Thread caller = Thread.currentThread();
+		Thread worker = CpuExecutor.call(Thread::currentThread);
+		assertTrue(worker != caller);
+		assertTrue(worker.getName().startsWith("cpu-"));
+		assertTrue(worker.isDaemon());
+
+		// Nested work runs on the worker rather than waiting for the queue it holds up
+		assertSame(worker, CpuExecutor.call(() -> CpuExecutor.call(Thread::currentThread)));
+
+		assertThrows(IllegalStateException.class, () -> CpuExecutor.call(() -> {
+			throw new IllegalStateException();
+		}));
+
+		// The allocations of the work are counted for the request which handed it over
+		AllocationMeter.start("cpu");
+		int[] pixels = CpuExecutor.call(() -> new int[1 << 20]);
+		long bytes = AllocationMeter.stop();
+		assertEquals(1 << 20, pixels.length);
+		if (AllocationMeter.isSupported()) {
+			assertTrue(bytes >= 4L << 20);
+		}
+		AllocationMeter.reset();
+	}
+
+	// Test to make sure a cancelled computation stops between bands and the requests waiting for it compute in its place
+	@Test
+	public void cancelledComputationShouldStopBetweenBands() throws Exception {
+		int height = 4096;
+		int threads = TileExecutor.getParallelism();
+		Cancellation token = new Cancellation();
+		AtomicInteger bands = new AtomicInteger();
+		assertThrows(CancellationException.class, () -> token.bind(() -> {
+			TileExecutor.forEachBand(height, (y0, y1) -> {
+				if (bands.incrementAndGet() == 1) {
+					token.cancel();
+				}
+			});
+			return null;
+		}).get());
+		// Only the bands started before the cancellation ran
+		assertTrue(bands.get() <= threads);
+
+		// The computations without a token run every band
+		bands.set(0);
+		TileExecutor.forEachBand(height, (y0, y1) -> bands.incrementAndGet());
+		assertTrue(bands.get() > threads);
+
+		// A request waiting for a cancelled computation computes in its place
+		SingleFlight<String, Integer> flight = new SingleFlight<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread leader = new Thread(() -> assertThrows(CancellationException.class, () -> flight.run("key", () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new CancellationException();
+		})));
+		leader.start();
+		started.await();
+		Integer[] result = new Integer[1];
+		Thread follower = new Thread(() -> result[0] = flight.run("key", () -> 2));
+		follower.start();
+		while (flight.getShared() < 1) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		leader.join();
+		follower.join();
+		assertEquals(2, (int) result[0]);
+		assertEquals(2, flight.getComputed());
+	}
+
+	// Test to make sure each detector of the pool is lent to one thread at a time
+	@Test
+	public void detectorPoolShouldLendEachDetectorToOneThread() throws Exception {
+		// Without the model the detectors are empty, but they are lent all the same
+		DetectorPool pool = new DetectorPool(() -> new ObjectsRecognition(List.of("object"), "none.weights", "none.cfg"), 2);
+		assertTrue(pool.isEmpty());
+		assertEquals(1, pool.getLoaded());
+		try (DetectorPool.Lease first = pool.checkout(); DetectorPool.Lease second = pool.checkout()) {
+			assertTrue(first.get() != second.get());
+			assertEquals(2, pool.getLoaded());
+			assertEquals(2, pool.getInUse());
+
+			// A third detection waits for a detector to be returned rather than loading one
+			Thread third = new Thread(() -> {
+				try (DetectorPool.Lease lease = pool.checkout()) {
+					assertSame(first.get(), lease.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			third.start();
+			while (pool.getWaited() < 1) {
+				Thread.sleep(1);
+			}
+			first.close();
+			third.join();
+		}
+		assertEquals(2, pool.getLoaded());
+		assertEquals(0, pool.getInUse());
+		assertEquals(3, pool.getCheckouts());
+
+		pool.setSize(1);
+		assertEquals(1, pool.getLoaded());
+	}
+
+	// Test to make sure the detectors checked out before a resize are counted until they are returned, and the pool follows the detection bulkhead
+	@Test
+	public void detectorPoolShouldCountTheLeasesAcrossResizes() throws Exception {
+		DetectorPool pool = new DetectorPool(() -> new ObjectsRecognition(List.of("object"), "none.weights", "none.cfg"), 2);
+		DetectorPool.Lease first = pool.checkout();
+		DetectorPool.Lease second = pool.checkout();
+		pool.setSize(3);
+		assertEquals(2, pool.getInUse());
+		pool.setSize(1);
+		assertEquals(2, pool.getInUse());
+		first.close();
+		first.close();
+		assertEquals(1, pool.getInUse());
+		second.close();
+		assertEquals(0, pool.getInUse());
+		assertEquals(1, pool.getLoaded());
+
+		assertEquals(2, ProcessingConfiguration.detectorInstances(0, 2));
+		assertEquals(1, ProcessingConfiguration.detectorInstances(0, 0));
+		assertEquals(3, ProcessingConfiguration.detectorInstances(3, 2));
+	}
+
+	// Test to make sure the inference backends and targets are selected by name and the OpenCV threads are set
+	@Test
+	public void detectionBackendShouldBeSelectedByName() {
+		assertEquals(Dnn.DNN_BACKEND_OPENCV, ObjectsRecognition.backend("opencv"));
+		assertEquals(Dnn.DNN_TARGET_CPU, ObjectsRecognition.target("CPU"));
+		assertEquals("cuda-fp16", ObjectsRecognition.targetName(Dnn.DNN_TARGET_CUDA_FP16));
+		assertThrows(IllegalArgumentException.class, () -> ObjectsRecognition.backend("gpu"));
+
+		// The detectors are switched to the backend of the pool when they are checked out
+		DetectorPool pool = new DetectorPool(() -> new ObjectsRecognition(List.of("object"), "none.weights", "none.cfg"), 1);
+		assertEquals(Dnn.DNN_BACKEND_OPENCV, pool.getBackend());
+		pool.setBackend(Dnn.DNN_BACKEND_DEFAULT, Dnn.DNN_TARGET_OPENCL);
+		assertEquals(Dnn.DNN_TARGET_OPENCL, pool.getTarget());
+
+		int threads = ObjectsRecognition.getThreads();
+		ObjectsRecognition.setThreads(2);
+		assertEquals(2, ObjectsRecognition.getThreads());
+		ObjectsRecognition.setThreads(threads);
+	}
+
+	private static Image metaImage(long id, double[] hshist, byte[] data) {
+		return new Image("image" + id, data, id, new int[] {10, 10}, MediaType.IMAGE_JPEG, hshist, new double[0], new double[0],
+			new ArrayList<>(), new ArrayList<>(), false);
+	}
+
+	// Test to make sure the cached similarity results follow the images added to and deleted from the catalog
+	@Test
+	public void similarityCacheShouldFollowTheCatalog() {
+		SimilarityCache cache = new SimilarityCache();
+		ImageFilter filter = new ImageFilter(null, null, null, null, null, null, null);
+		ImageComparison.Metric metric = ImageComparison.Metric.EUCLIDEAN;
+		Image query = metaImage(1, new double[] {0, 0}, new byte[0]);
+		ArrayList<Object[]> values = new ArrayList<>();
+		values.add(new Object[] {metaImage(2, new double[] {1, 0}, new byte[0]), 1.0});
+		values.add(new Object[] {metaImage(3, new double[] {3, 0}, new byte[0]), 3.0});
+		String key = SimilarityCache.key(1, "hshist", 2, metric, filter);
+		cache.put(key, query, "hshist", metric, 2, filter, values, 5, 5);
+
+		// A closer image enters the top-k and pushes out the last one, a farther one doesn't
+		cache.imageCreated(metaImage(4, new double[] {2, 0}, new byte[] {1, 2, 3}), 6);
+		cache.imageCreated(metaImage(5, new double[] {5, 0}, new byte[0]), 7);
+		ArrayList<Object[]> cached = cache.get(key, 7);
+		assertEquals(2, cached.size());
+		assertEquals(2L, ((Image) cached.get(0)[0]).getId());
+		assertEquals(4L, ((Image) cached.get(1)[0]).getId());
+		assertEquals(0, ((Image) cached.get(1)[0]).getData().length);
+		assertEquals(2.0, (Double) cached.get(1)[1], 1e-9);
+		assertNull(cache.get(key, 6));
+		assertEquals(1L, cache.getHits());
+		assertEquals(1L, cache.getMisses());
+
+		// Deleting an image outside the results keeps them, deleting one of the results drops them
+		cache.imageDeleted(metaImage(3, new double[] {3, 0}, new byte[0]), 8);
+		assertEquals(2, cache.get(key, 8).size());
+		cache.imageDeleted(metaImage(4, new double[] {2, 0}, new byte[0]), 9);
+		assertNull(cache.get(key, 9));
+
+		// A search for no result isn't cached, and an upload after it doesn't fail
+		String empty = SimilarityCache.key(1, "hshist", 0, ImageComparison.Metric.MANHATTAN, filter);
+		cache.put(empty, query, "hshist", ImageComparison.Metric.MANHATTAN, 0, filter, new ArrayList<>(), 9, 9);
+		cache.imageCreated(metaImage(6, new double[] {1, 1}, new byte[0]), 10);
+		assertNull(cache.get(empty, 10));
+	}
+
+	// Test to make sure an image found by a search cached between its insertion and its notification isn't inserted twice
+	@Test
+	public void similarityCacheShouldNotDuplicateAnImageAlreadyFound() {
+		SimilarityCache cache = new SimilarityCache();
+		ImageFilter filter = new ImageFilter(null, null, null, null, null, null, null);
+		ImageComparison.Metric metric = ImageComparison.Metric.EUCLIDEAN;
+		Image query = metaImage(1, new double[] {0, 0}, new byte[0]);
+		Image created = metaImage(4, new double[] {2, 0}, new byte[0]);
+
+		// The row of image 4 is inserted, a search finds it before the version is incremented to 6
+		ArrayList<Object[]> values = new ArrayList<>();
+		values.add(new Object[] {metaImage(2, new double[] {1, 0}, new byte[0]), 1.0});
+		values.add(new Object[] {created, 2.0});
+		values.add(new Object[] {metaImage(3, new double[] {3, 0}, new byte[0]), 3.0});
+		String key = SimilarityCache.key(1, "hshist", 3, metric, filter);
+		cache.put(key, query, "hshist", metric, 3, filter, values, 5, 5);
+		cache.imageCreated(created, 6);
+
+		ArrayList<Object[]> cached = cache.get(key, 6);
+		assertEquals(3, cached.size());
+		assertEquals(2L, ((Image) cached.get(0)[0]).getId());
+		assertEquals(4L, ((Image) cached.get(1)[0]).getId());
+		assertEquals(3L, ((Image) cached.get(2)[0]).getId());
+	}
+
+	// Test to make sure the batch search keeps the same closest images as a sort of the whole distance matrix
+	@Test
+	public void batchSearchShouldMatchTheDistanceMatrix() {
+		Random random = new Random(42);
+		ArrayList<Image> images = new ArrayList<>();
+		long[] ids = new long[150];
+		for (int i = 0; i < ids.length; i++) {
+			double[] hshist = new double[8];
+			for (int k = 0; k < hshist.length; k++) {
+				hshist[k] = random.nextDouble();
+			}
+			ids[i] = i;
+			images.add(metaImage(i, hshist, new byte[0]));
+		}
+
+		for (ImageComparison.Metric metric : ImageComparison.Metric.values()) {
+			double[][] matrix = ImageComparison.pairwiseDistances(images, "hshist", metric);
+			Map<Long, ArrayList<Object[]>> closest = ImageComparison.compareBatch(ids, images, 5, "hshist", metric);
+			for (int q = 0; q < ids.length; q++) {
+				assertEquals(0.0, matrix[q][q], 0.0);
+				Integer[] order = new Integer[ids.length];
+				for (int i = 0; i < order.length; i++) {
+					order[i] = i;
+					assertEquals(ImageComparison.getDistance(images.get(q).getHueTintHist(), images.get(i).getHueTintHist(), metric), matrix[q][i], 1e-12);
+				}
+				int query = q;
+				Arrays.sort(order, (a, b) -> Double.compare(matrix[query][a], matrix[query][b]));
+				ArrayList<Object[]> found = closest.get(ids[q]);
+				assertEquals(5, found.size());
+				for (int k = 0; k < 5; k++) {
+					// The query itself comes first in the matrix
+					assertEquals((long) order[k + 1], ((Image) found.get(k)[0]).getId());
+					assertEquals(matrix[q][order[k + 1]], (Double) found.get(k)[1], 1e-12);
+				}
+			}
+		}
+		assertThrows(IllegalArgumentException.class, () -> ImageComparison.compareBatch(new long[] {-1}, images, 5, "hshist", ImageComparison.Metric.EUCLIDEAN));
+	}
+
+	// Test to make sure the neighbour lists keep the closest images and leave the spatial grid to the cascade
+	@Test
+	public void neighbourIndexShouldKeepTheClosestImages() {
+		assertThrows(IllegalArgumentException.class, () -> new NeighbourIndex(0));
+
+		NeighbourIndex index = new NeighbourIndex(2);
+		try {
+			index.imageCreated(metaImage(1, new double[] {0, 0}, new byte[0]), 1);
+			index.imageCreated(metaImage(2, new double[] {3, 0}, new byte[0]), 2);
+			index.imageCreated(metaImage(3, new double[] {1, 0}, new byte[0]), 3);
+			index.imageCreated(metaImage(4, new double[] {2, 0}, new byte[0]), 4);
+			ArrayList<Object[]> neighbours = index.lookup(1, "hshist", 2);
+			assertEquals(2, neighbours.size());
+			assertEquals(3L, ((Image) neighbours.get(0)[0]).getId());
+			assertEquals(4L, ((Image) neighbours.get(1)[0]).getId());
+			assertNull(index.lookup(1, "hshist", 3));
+			assertNull(index.lookup(1, "gridhist", 2));
+		} finally {
+			index.shutdown();
+		}
+	}
+
+	// Test to make sure the neighbour lists stay exact when images are added concurrently, their distances being computed outside of the lock
+	@Test
+	public void neighbourIndexShouldKeepTheClosestImagesOfConcurrentUploads() throws InterruptedException {
+		Random random = new Random(5);
+		Image[] images = new Image[200];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = metaImage(i, new double[] {random.nextDouble(), random.nextDouble()}, new byte[0]);
+		}
+
+		NeighbourIndex index = new NeighbourIndex(3);
+		try {
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++) {
+				int first = t;
+				threads[t] = new Thread(() -> {
+					for (int i = first; i < images.length; i += threads.length) {
+						index.imageCreated(images[i], i + 1);
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			for (Image image : images) {
+				Integer[] order = new Integer[images.length];
+				for (int i = 0; i < order.length; i++) {
+					order[i] = i;
+				}
+				double[] desc = image.getHueTintHist();
+				Arrays.sort(order, (a, b) -> Double.compare(
+					ImageComparison.getDistance(desc, images[a].getHueTintHist(), ImageComparison.Metric.EUCLIDEAN),
+					ImageComparison.getDistance(desc, images[b].getHueTintHist(), ImageComparison.Metric.EUCLIDEAN)));
+				ArrayList<Object[]> neighbours = index.lookup(image.getId(), "hshist", 3);
+				assertEquals(3, neighbours.size());
+				for (int k = 0; k < 3; k++) {
+					// The image itself comes first in the order
+					assertEquals((long) order[k + 1], ((Image) neighbours.get(k)[0]).getId());
+				}
+			}
+		} finally {
+			index.shutdown();
+		}
+	}
+
+	private static Image gridImage(long id, int hueBin, double[] gridhist) {
+		double[] hshist = new double[144];
+		hshist[hueBin] = 1;
+		return new Image("image" + id, new byte[0], id, new int[] {10, 10}, MediaType.IMAGE_JPEG, hshist, new double[0], gridhist,
+			new ArrayList<>(), new ArrayList<>(), false);
+	}
+
+	// Test to make sure the cascade search compares the coarse descriptors computed once for each image
+	@Test
+	public void cascadeShouldUseTheStoredCoarseDescriptors() {
+		Image query = gridImage(1, 0, new double[] {0, 0});
+		byte[] code = query.getCoarseCode();
+		assertEquals(16, code.length);
+		assertArrayEquals(ImageComparison.coarseDescriptor(query.getHueTintHist()), code);
+		assertSame(code, query.getCoarseCode());
+		assertSame(code, query.metadata().getCoarseCode());
+		assertEquals(0, ImageComparison.coarseDescriptor(new double[0]).length);
+
+		ArrayList<Image> images = new ArrayList<>(List.of(query, gridImage(2, 1, new double[] {2, 0}),
+			gridImage(3, 143, new double[] {1, 0}), gridImage(4, 0, new double[] {3, 0})));
+		ArrayList<Object[]> closest = ImageComparison.compareCascade(1, images, 2, ImageComparison.Metric.EUCLIDEAN, null);
+		assertEquals(2, closest.size());
+		assertEquals(3L, ((Image) closest.get(0)[0]).getId());
+		assertEquals(2L, ((Image) closest.get(1)[0]).getId());
+	}
+
+	// Helper method to create a one-band image from its rows
+	private static Planar<GrayF32> bandImage(float[][] values) {
+		Planar<GrayF32> image = new Planar<>(GrayF32.class, values[0].length, values.length, 1);
+		for (int y = 0; y < values.length; y++) {
+			for (int x = 0; x < values[y].length; x++) {
+				image.getBand(0).set(x, y, values[y][x]);
+			}
+		}
+		return image;
+	}
+
+	// Test to make sure the row and column passes of a rank-1 kernel give the same image as the full kernel
+	@Test
+	public void separableConvolutionShouldMatchTheFullKernel() {
+		float[] column = {1, 2, -1};
+		float[] row = {0.5f, -2, 3, 1, 0.25f};
+		float[][] kernel = new float[column.length][row.length];
+		for (int i = 0; i < column.length; i++) {
+			for (int j = 0; j < row.length; j++) {
+				kernel[i][j] = column[i]*row[j];
+			}
+		}
+		assertTrue(Convolution.separate(kernel) != null);
+
+		Random random = new Random(7);
+		for (int[] shape : new int[][] {{1, 1}, {2, 3}, {37, 29}}) {
+			Planar<GrayF32> input = randomImage(random, shape[0], shape[1]);
+			for (Convolution.Border border : Convolution.Border.values()) {
+				Planar<GrayF32> separable = input.createSameShape();
+				Convolution.convolve(input, separable, kernel, border);
+				Planar<GrayF32> full = input.createSameShape();
+				int[] columns = Convolution.borderIndex(input.width, row.length/2, border);
+				int[] rows = Convolution.borderIndex(input.height, column.length/2, border);
+				Convolution.convolve2D(input, full, kernel, columns, rows, 0, input.height);
+				for (int c = 0; c < 3; c++) {
+					for (int y = 0; y < shape[1]; y++) {
+						for (int x = 0; x < shape[0]; x++) {
+							assertEquals(full.getBand(c).get(x, y), separable.getBand(c).get(x, y), 1e-3,
+								border + " at " + x + "," + y + " of " + shape[0] + "x" + shape[1]);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Test to make sure only the kernels of rank 1 are split into a column and a row
+	@Test
+	public void separateShouldRejectKernelsOfHigherRank() {
+		assertNull(Convolution.separate(Convolution.sharpen()));
+		assertNull(Convolution.separate(new float[][] {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}}));
+
+		float[][] kernel = Convolution.gaussian(1.5);
+		float[][] factors = Convolution.separate(kernel);
+		assertTrue(factors != null);
+		for (int i = 0; i < kernel.length; i++) {
+			for (int j = 0; j < kernel.length; j++) {
+				assertEquals(kernel[i][j], factors[0][i]*factors[1][j], 1e-7);
+			}
+		}
+	}
+
+	// Test to make sure every border mode reads the expected pixels outside of the image
+	@Test
+	public void bordersShouldReadTheExpectedPixels() {
+		assertArrayEquals(new int[] {0, 0, 0, 1, 2, 3, 3, 3}, Convolution.borderIndex(4, 2, Convolution.Border.CLAMP));
+		assertArrayEquals(new int[] {2, 1, 0, 1, 2, 3, 2, 1}, Convolution.borderIndex(4, 2, Convolution.Border.REFLECT));
+		assertArrayEquals(new int[] {-1, -1, 0, 1, 2, 3, -1, -1}, Convolution.borderIndex(4, 2, Convolution.Border.ZERO));
+
+		// Reflection on 1 and 2 pixel wide images, and with a radius larger than the image
+		assertArrayEquals(new int[] {0, 0, 0, 0, 0}, Convolution.borderIndex(1, 2, Convolution.Border.REFLECT));
+		assertArrayEquals(new int[] {1, 0, 1, 0, 1, 0, 1, 0}, Convolution.borderIndex(2, 3, Convolution.Border.REFLECT));
+		assertArrayEquals(new int[] {1, 0, 1, 2, 1, 0, 1, 2, 1, 0, 1, 2, 1}, Convolution.borderIndex(3, 5, Convolution.Border.REFLECT));
+		assertArrayEquals(new int[] {0, 0, 0, 0, 0, 0, 1, 2, 2, 2, 2, 2, 2}, Convolution.borderIndex(3, 5, Convolution.Border.CLAMP));
+
+		// Corner of a 2x2 image with a separable 3x3 box and with a diagonal kernel
+		Planar<GrayF32> input = bandImage(new float[][] {{1, 2}, {3, 4}});
+		float[][] box = {{1, 1, 1}, {1, 1, 1}, {1, 1, 1}};
+		float[][] diagonal = {{1, 0, 0}, {0, 0, 0}, {0, 0, 1}};
+		Convolution.Border[] borders = {Convolution.Border.ZERO, Convolution.Border.CLAMP, Convolution.Border.REFLECT};
+		float[] boxCorners = {10, 18, 27};
+		float[] diagonalCorners = {4, 5, 8};
+		for (int b = 0; b < borders.length; b++) {
+			Planar<GrayF32> output = input.createSameShape();
+			Convolution.convolve(input, output, box, borders[b]);
+			assertEquals(boxCorners[b], output.getBand(0).get(0, 0), 1e-5, borders[b].name());
+			Convolution.convolve(input, output, diagonal, borders[b]);
+			assertEquals(diagonalCorners[b], output.getBand(0).get(0, 0), 1e-5, borders[b].name());
+		}
+	}
+
+	// Test to make sure the filters are charged for the pixels they actually read, whatever the size of a mean window
+	@Test
+	public void filterCostShouldFollowThePixelsRead() {
+		assertEquals(194L, Convolution.reads(Convolution.gaussian(16)));
+		assertEquals(9L, Convolution.reads(Convolution.sharpen()));
+		assertEquals(6L, Convolution.reads(new float[][] {{1, 2, 1}, {2, 4, 2}, {1, 2, 1}}));
+
+		assertEquals(Pipeline.parse("mean:3").kernelSize(), Pipeline.parse("mean:51").kernelSize());
+		assertEquals(1 + ImageProcessing.MEAN_FILTER_READS + 9L + 6L, Pipeline.parse("gray,mean:51,sobel,gaussian:0.3").kernelSize());
+	}
+
+	// Test to make sure the filters and the detections admitted at once share the processor budget without exceeding it
+	@Test
+	public void processorsShouldBeSplitBetweenFiltersAndDetections() {
+		assertArrayEquals(new int[] {8, 4}, ProcessingConfiguration.splitProcessors(16, 2, 0));
+		assertArrayEquals(new int[] {10, 3}, ProcessingConfiguration.splitProcessors(16, 2, 3));
+		assertArrayEquals(new int[] {2, 1}, ProcessingConfiguration.splitProcessors(4, 2, 0));
+		assertArrayEquals(new int[] {1, 1}, ProcessingConfiguration.splitProcessors(2, 4, 0));
+		assertArrayEquals(new int[] {1, 8}, ProcessingConfiguration.splitProcessors(4, 1, 8));
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		int[] split = ProcessingConfiguration.splitProcessors(0, 1, 0);
+		assertEquals(Math.max(1, processors/2), split[1]);
+		assertEquals(Math.max(1, processors - split[1]), split[0]);
+	}
+}
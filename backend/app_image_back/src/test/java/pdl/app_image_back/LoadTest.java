@@ -0,0 +1,108 @@
+package pdl.app_image_back;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Load test of a running server mixing cheap and expensive requests, to compare the request threads,
+// e.g. with and without spring.threads.virtual.enabled. Each client sends its next request when the
+// previous one is answered. The load is raised step by step, and the test reports the most clients
+// served with the p99 of the cheap requests under a target, so that two servers are compared at the
+// same p99. Arguments: the URL of the server, the comma-separated numbers of clients of the steps,
+// the duration of a step in seconds, the ID of the image to filter and the p99 target in milliseconds.
+public class LoadTest {
+
+	private static final String[] CHEAP = {"/images", "/images/%d", "/images/%d/similar?number=3&descriptor=rgbhist"};
+
+	private static final String[] EXPENSIVE = {"/images/%d/filter?name=Sobel", "/images/%d/filter_param?name=Mean&param=7",
+		"/images/%d/convolution?type=gaussian&sigma=3"};
+
+	private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+	private final String url;
+	private final long image;
+	private final long end;
+
+	private final List<Long> cheap = Collections.synchronizedList(new ArrayList<>());
+	private final List<Long> expensive = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicInteger rejected = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private LoadTest(String url, long image, long end) {
+		this.url = url;
+		this.image = image;
+		this.end = end;
+	}
+
+	// Sends the requests of a client until the end of the test, one expensive request for three cheap ones
+	private CompletableFuture<Void> client(int index, int count) {
+		if (System.nanoTime() >= end) {
+			return CompletableFuture.completedFuture(null);
+		}
+		boolean heavy = count % 4 == 3;
+		String[] paths = heavy ? EXPENSIVE : CHEAP;
+		String path = String.format(paths[(index + count) % paths.length], image);
+		HttpRequest request = HttpRequest.newBuilder(URI.create(url + path)).timeout(Duration.ofSeconds(60)).build();
+		long start = System.nanoTime();
+		return client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, error) -> {
+			if (error != null || response.statusCode() >= 500) {
+				failed.incrementAndGet();
+			} else if (response.statusCode() == 429) {
+				rejected.incrementAndGet();
+			} else {
+				(heavy ? expensive : cheap).add(System.nanoTime() - start);
+			}
+			return null;
+		}).thenCompose(ignored -> client(index, count + 1));
+	}
+
+	// Prints the throughput and the latencies of a kind of requests, and returns their p99 in milliseconds
+	private static double print(String name, List<Long> latencies, double seconds) {
+		long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+		if (sorted.length == 0) {
+			System.out.printf("  %-9s no response%n", name);
+			return Double.POSITIVE_INFINITY;
+		}
+		System.out.printf("  %-9s %8.1f req/s  p50 %7.1f ms  p99 %7.1f ms  max %7.1f ms%n", name, sorted.length/seconds,
+			percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[sorted.length - 1]/1e6);
+		return percentile(sorted, 0.99);
+	}
+
+	private static double percentile(long[] sorted, double rank) {
+		return sorted[Math.min(sorted.length - 1, (int) (rank*sorted.length))]/1e6;
+	}
+
+	public static void main(String[] args) {
+		String url = args.length > 0 ? args[0] : "http://localhost:8181";
+		String steps = args.length > 1 ? args[1] : "50,100,200,400,800";
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		long image = args.length > 3 ? Long.parseLong(args[3]) : 0;
+		double target = args.length > 4 ? Double.parseDouble(args[4]) : 200;
+
+		int served = 0;
+		for (String step : steps.split(",")) {
+			int clients = Integer.parseInt(step.trim());
+			LoadTest test = new LoadTest(url, image, System.nanoTime() + seconds*1000000000L);
+			CompletableFuture<?>[] runs = new CompletableFuture<?>[clients];
+			for (int i = 0; i < clients; i++) {
+				runs[i] = test.client(i, i % 4);
+			}
+			CompletableFuture.allOf(runs).join();
+
+			System.out.printf("%d clients for %d s on %s%n", clients, seconds, url);
+			double p99 = print("cheap", test.cheap, seconds);
+			print("expensive", test.expensive, seconds);
+			System.out.printf("  rejected  %d, failed %d%n", test.rejected.get(), test.failed.get());
+			if (p99 <= target && test.failed.get() == 0) {
+				served = Math.max(served, clients);
+			}
+		}
+		System.out.printf("most clients with the cheap p99 under %.0f ms and no failure: %d%n", target, served);
+	}
+}
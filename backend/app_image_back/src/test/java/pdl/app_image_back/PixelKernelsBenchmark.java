@@ -0,0 +1,96 @@
+package pdl.app_image_back;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Comparison of the scalar and vector pixel kernels on a 12 megapixel image, on a single thread
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class PixelKernelsBenchmark {
+
+	@Param({"scalar", "vector"})
+	public String kernels;
+
+	private static final int PIXELS = 4000*3000;
+
+	private PixelKernels.Kernels selected;
+	private int[] src;
+	private int[] dst;
+	private float[] red;
+	private float[] green;
+	private float[] blue;
+	private int[] recolourTable;
+
+	@Setup
+	public void setup() {
+		PixelKernels.setVectorized(kernels.equals("vector"));
+		if (kernels.equals("vector") && !PixelKernels.isVectorized()) {
+			throw new IllegalStateException("the Vector API isn't available");
+		}
+		selected = PixelKernels.get();
+		Random random = new Random(42);
+		src = new int[PIXELS];
+		for (int i = 0; i < PIXELS; i++) {
+			src[i] = random.nextInt(1 << 24);
+		}
+		dst = new int[PIXELS];
+		red = new float[PIXELS];
+		green = new float[PIXELS];
+		blue = new float[PIXELS];
+		selected.split(src, red, green, blue, 0, PIXELS);
+		recolourTable = ColorTables.recolourTable(120);
+	}
+
+	@Benchmark
+	public int[] gray() {
+		selected.gray(src, dst, 0, PIXELS, null);
+		return dst;
+	}
+
+	@Benchmark
+	public int[] recolour() {
+		selected.recolour(src, dst, 0, PIXELS, recolourTable);
+		return dst;
+	}
+
+	@Benchmark
+	public float[] split() {
+		selected.split(src, red, green, blue, 0, PIXELS);
+		return red;
+	}
+
+	@Benchmark
+	public int[] merge() {
+		selected.merge(red, green, blue, dst, 0, PIXELS);
+		return dst;
+	}
+
+	@Benchmark
+	public float[] clamp() {
+		selected.clamp(red, 0, PIXELS, 0f, 255f);
+		return red;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(PixelKernelsBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,329 @@
+package pdl.object_recognition;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Selects the codec decoding and the codec encoding each format.
+ *
+ * Every format is handled by ImageIO until another codec is selected for it, either by name or
+ * by calibrate, which times the codecs on a sample image and keeps the fastest one of each format.
+ * An image the selected decoder can't read is decoded again with ImageIO, which reads more
+ * variants of the formats.
+ */
+public class Codecs {
+
+    private static final ImageCodec IMAGE_IO = new ImageIoCodec();
+    private static final ImageCodec OPEN_CV = new OpenCvCodec();
+    private static final List<ImageCodec> CODECS = List.of(IMAGE_IO, OPEN_CV);
+
+    /**
+     * Formats whose codec can be selected.
+     */
+    private static final List<String> FORMATS = List.of("jpeg", "png", "bmp", "gif");
+
+    private static final Map<String, ImageCodec> decoders = new ConcurrentHashMap<>();
+    private static final Map<String, ImageCodec> encoders = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the available codecs.
+     * @return The codecs, ImageIO first.
+     */
+    public static List<ImageCodec> getCodecs() {
+        return CODECS;
+    }
+
+    /**
+     * Finds the format of an encoded image from its first bytes.
+     * @param data The encoded image.
+     * @return The format, or null if it isn't a JPEG, PNG, BMP or GIF image.
+     */
+    public static String format(byte[] data) {
+        if (data.length >= 3 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8 && (data[2] & 0xff) == 0xff) {
+            return "jpeg";
+        }
+        if (data.length >= 4 && (data[0] & 0xff) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return "png";
+        }
+        if (data.length >= 2 && data[0] == 'B' && data[1] == 'M') {
+            return "bmp";
+        }
+        if (data.length >= 4 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8') {
+            return "gif";
+        }
+        return null;
+    }
+
+    /**
+     * Reads the size of an image from its header, without decoding it.
+     * @param data The encoded image.
+     * @return The width and the height of the image.
+     * @throws IOException If the data isn't an image.
+     */
+    public static int[] size(byte[] data) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("unknown image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Computes the largest reduction keeping an image at least as large as a size.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param minWidth The smallest width wanted.
+     * @param minHeight The smallest height wanted.
+     * @return The reduction to decode the image with, 1, 2, 4 or 8.
+     */
+    public static int reduction(int width, int height, int minWidth, int minHeight) {
+        int reduction = 8;
+        while (reduction > 1 && ((width + reduction - 1)/reduction < minWidth || (height + reduction - 1)/reduction < minHeight)) {
+            reduction /= 2;
+        }
+        return reduction;
+    }
+
+    /**
+     * Decodes an image.
+     * @param data The encoded image.
+     * @return The decoded image.
+     * @throws IOException If the data isn't an image.
+     */
+    public static BufferedImage decode(byte[] data) throws IOException {
+        return decode(data, 1);
+    }
+
+    /**
+     * Decodes an image at a reduced resolution.
+     * @param data The encoded image.
+     * @param reduction The factor by which the width and the height are divided, 1, 2, 4 or 8.
+     * @return The decoded image, its size rounded up.
+     * @throws IOException If the data isn't an image.
+     */
+    public static BufferedImage decode(byte[] data, int reduction) throws IOException {
+        String format = format(data);
+        ImageCodec decoder = format == null ? IMAGE_IO : getDecoder(format);
+        if (decoder != IMAGE_IO) {
+            try {
+                return decoder.decode(data, reduction);
+            } catch (IOException e) {
+                // Variant of the format the codec doesn't read
+            }
+        }
+        return IMAGE_IO.decode(data, reduction);
+    }
+
+    /**
+     * Encodes an image.
+     * @param image The image.
+     * @param format The format.
+     * @param output The stream the encoded image is written to.
+     * @throws IOException If the image can't be encoded in that format or written.
+     */
+    public static void encode(BufferedImage image, String format, OutputStream output) throws IOException {
+        encode(image, format, ImageCodec.DEFAULT_QUALITY, output);
+    }
+
+    /**
+     * Encodes an image at a quality.
+     * The images with a palette are encoded by ImageIO, which keeps their palette.
+     * @param image The image.
+     * @param format The format.
+     * @param quality The quality of the JPEG images, from 0 to 1.
+     * @param output The stream the encoded image is written to.
+     * @throws IOException If the image can't be encoded in that format or written.
+     */
+    public static void encode(BufferedImage image, String format, float quality, OutputStream output) throws IOException {
+        ImageCodec encoder = image.getColorModel() instanceof IndexColorModel ? IMAGE_IO : getEncoder(format);
+        encoder.encode(image, format, quality, output);
+    }
+
+    /**
+     * Encodes an image in an array.
+     * @param image The image.
+     * @param format The format.
+     * @return The encoded image.
+     * @throws IOException If the image can't be encoded in that format.
+     */
+    public static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encode(image, format, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Gets the codec decoding a format.
+     * @param format The format.
+     * @return The selected codec.
+     */
+    public static ImageCodec getDecoder(String format) {
+        return decoders.getOrDefault(format, IMAGE_IO);
+    }
+
+    /**
+     * Gets the codec encoding a format.
+     * @param format The format.
+     * @return The selected codec.
+     */
+    public static ImageCodec getEncoder(String format) {
+        return encoders.getOrDefault(format, IMAGE_IO);
+    }
+
+    /**
+     * Gets the selected codecs.
+     * @return The names of the decoder and the encoder of each format, by format.
+     */
+    public static Map<String, Map<String, String>> getSelection() {
+        Map<String, Map<String, String>> selection = new TreeMap<>();
+        for (String format : FORMATS) {
+            selection.put(format, Map.of("decoder", getDecoder(format).getName(), "encoder", getEncoder(format).getName()));
+        }
+        return selection;
+    }
+
+    /**
+     * Selects the codecs of a format.
+     * @param format The format.
+     * @param decoder The codec decoding it.
+     * @param encoder The codec encoding it.
+     */
+    public static void select(String format, ImageCodec decoder, ImageCodec encoder) {
+        if (!decoder.canDecode(format) || !encoder.canEncode(format)) {
+            throw new IllegalArgumentException("the codecs don't handle " + format);
+        }
+        decoders.put(format, decoder);
+        encoders.put(format, encoder);
+    }
+
+    /**
+     * Selects a codec by name for every format it handles, the other formats are handled by ImageIO.
+     * @param name The name of the codec.
+     * @throws IllegalArgumentException If there is no codec of that name.
+     */
+    public static void select(String name) {
+        ImageCodec codec = CODECS.stream().filter(c -> c.getName().equals(name)).findFirst()
+            .orElseThrow(() -> new IllegalArgumentException("unknown codec " + name));
+        decoders.clear();
+        encoders.clear();
+        for (String format : FORMATS) {
+            if (codec.canDecode(format)) {
+                decoders.put(format, codec);
+            }
+            if (codec.canEncode(format)) {
+                encoders.put(format, codec);
+            }
+        }
+    }
+
+    /**
+     * Selects the fastest codecs of each format, timed on a generated photo sized image.
+     * @throws IOException If ImageIO can't encode the sample.
+     */
+    public static void calibrate() throws IOException {
+        BufferedImage sample = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < sample.getHeight(); y++) {
+            for (int x = 0; x < sample.getWidth(); x++) {
+                // Gradients with a little noise, to compress about as well as a photo
+                sample.setRGB(x, y, (x/4) << 16 | (y/3) << 8 | (x + y)/8 + random.nextInt(16));
+            }
+        }
+        calibrate(sample, 3);
+    }
+
+    /**
+     * Selects the fastest codecs of each format, timed on a sample image.
+     * Each codec decodes the image as encoded by ImageIO and encodes it, the best of several rounds is kept.
+     * @param sample The image, of type TYPE_INT_RGB as the filtered images.
+     * @param rounds The number of timed rounds, after one round of warm up.
+     * @throws IOException If ImageIO can't encode the sample.
+     */
+    public static void calibrate(BufferedImage sample, int rounds) throws IOException {
+        for (String format : List.of("jpeg", "png")) {
+            byte[] encoded = encodeWith(IMAGE_IO, sample, format);
+            long bestDecode = Long.MAX_VALUE;
+            long bestEncode = Long.MAX_VALUE;
+            for (ImageCodec codec : CODECS) {
+                if (codec.canDecode(format)) {
+                    long time = time(rounds, () -> codec.decode(encoded, 1));
+                    if (time < bestDecode) {
+                        bestDecode = time;
+                        decoders.put(format, codec);
+                    }
+                }
+                if (codec.canEncode(format)) {
+                    long time = time(rounds, () -> encodeWith(codec, sample, format));
+                    if (time < bestEncode) {
+                        bestEncode = time;
+                        encoders.put(format, codec);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Task timed by calibrate.
+     */
+    private interface Task {
+        Object run() throws IOException;
+    }
+
+    /**
+     * Times a task.
+     * @param rounds The number of timed rounds, after one round of warm up.
+     * @param task The task.
+     * @return The shortest time of a round in nanoseconds, or Long.MAX_VALUE if the task failed.
+     */
+    private static long time(int rounds, Task task) {
+        long best = Long.MAX_VALUE;
+        try {
+            task.run();
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                task.run();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        } catch (IOException | RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+        return best;
+    }
+
+    /**
+     * Encodes an image with a codec.
+     * @param codec The codec.
+     * @param image The image.
+     * @param format The format.
+     * @return The encoded image.
+     * @throws IOException If the image can't be encoded.
+     */
+    private static byte[] encodeWith(ImageCodec codec, BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        codec.encode(image, format, output);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,278 @@
+package pdl.object_recognition;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.opencv.dnn.Dnn;
+
+/**
+ * Pool of detectors, each one with its own network, lent to one thread at a time.
+ *
+ * A network isn't thread-safe, so each concurrent detection checks out a detector of its own
+ * and returns it when it is done. The detectors are loaded from the same model files and share
+ * the labels. The first one is loaded with the pool, the other ones when the detections in
+ * progress need them, up to the size of the pool: a detection waits for a detector to be
+ * returned rather than loading more. The detectors are switched to the selected backend when
+ * they are checked out.
+ */
+public class DetectorPool {
+
+    private final Supplier<ObjectsRecognition> factory;
+    private final boolean empty;
+
+    private final Queue<ObjectsRecognition> idle = new ConcurrentLinkedQueue<>();
+    private volatile Semaphore permits;
+    private volatile int size;
+    private volatile int backend = Dnn.DNN_BACKEND_OPENCV;
+    private volatile int target = Dnn.DNN_TARGET_CPU;
+
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * A detector checked out of the pool, returned to it when closed.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final ObjectsRecognition detector;
+        private final Semaphore permit;
+        private boolean returned = false;
+
+        private Lease(ObjectsRecognition detector, Semaphore permit) {
+            this.detector = detector;
+            this.permit = permit;
+        }
+
+        /**
+         * Gets the detector, to be used by the current thread only.
+         * @return The detector.
+         */
+        public ObjectsRecognition get() {
+            return detector;
+        }
+
+        /**
+         * Returns the detector to the pool.
+         */
+        @Override
+        public void close() {
+            if (returned) {
+                return;
+            }
+            returned = true;
+            inUse.decrementAndGet();
+            // The detectors above the size of a pool made smaller are dropped
+            if (loaded.get() > size) {
+                loaded.decrementAndGet();
+            } else {
+                idle.offer(detector);
+            }
+            permit.release();
+        }
+    }
+
+    /**
+     * Constructs a pool of detectors loaded from model files.
+     * @param labelsPath The path to the file containing class labels.
+     * @param modelPath The path to the pre-trained model file.
+     * @param cfgPath The path to the configuration file.
+     * @param size The number of detectors, or 0 or less for the number of processors.
+     */
+    public DetectorPool(String labelsPath, String modelPath, String cfgPath, int size) {
+        this(detectors(ObjectsRecognition.readLabels(labelsPath), modelPath, cfgPath), size);
+    }
+
+    /**
+     * Constructs a pool of detectors.
+     * @param factory Loads a detector.
+     * @param size The number of detectors, or 0 or less for the number of processors.
+     */
+    public DetectorPool(Supplier<ObjectsRecognition> factory, int size) {
+        this.factory = factory;
+        this.size = count(size);
+        this.permits = new Semaphore(this.size, true);
+        ObjectsRecognition first = factory.get();
+        this.empty = first.isEmpty();
+        loaded.incrementAndGet();
+        idle.offer(first);
+    }
+
+    private static Supplier<ObjectsRecognition> detectors(List<String> labels, String modelPath, String cfgPath) {
+        return () -> new ObjectsRecognition(labels, modelPath, cfgPath);
+    }
+
+    private static int count(int size) {
+        return size > 0 ? size : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Sets the number of detectors. The detectors checked out are returned to the previous pool.
+     * @param size The number of detectors, or 0 or less for the number of processors.
+     */
+    public synchronized void setSize(int size) {
+        int detectorCount = count(size);
+        if (detectorCount != this.size) {
+            this.size = detectorCount;
+            this.permits = new Semaphore(detectorCount, true);
+            while (loaded.get() > detectorCount && idle.poll() != null) {
+                loaded.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Selects the backend and the device of the inferences.
+     * @param backend The backend, one of the Dnn.DNN_BACKEND constants.
+     * @param target The target, one of the Dnn.DNN_TARGET constants.
+     */
+    public void setBackend(int backend, int target) {
+        this.backend = backend;
+        this.target = target;
+    }
+
+    /**
+     * Gets the backend of the inferences.
+     * @return The backend, one of the Dnn.DNN_BACKEND constants.
+     */
+    public int getBackend() {
+        return backend;
+    }
+
+    /**
+     * Gets the device of the inferences.
+     * @return The target, one of the Dnn.DNN_TARGET constants.
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * Checks if the detectors couldn't be loaded.
+     * @return True if the model couldn't be loaded, false otherwise.
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Checks out a detector, waiting for one to be returned if they are all checked out.
+     * @return The lease of the detector, to be closed when the detection is done.
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    public Lease checkout() throws InterruptedException {
+        Semaphore pool = permits;
+        long start = System.nanoTime();
+        if (!pool.tryAcquire()) {
+            waited.incrementAndGet();
+            pool.acquire();
+        }
+        long wait = System.nanoTime() - start;
+        checkouts.incrementAndGet();
+        waitNanos.addAndGet(wait);
+        maxWaitNanos.accumulateAndGet(wait, Math::max);
+
+        ObjectsRecognition detector = idle.poll();
+        if (detector == null) {
+            try {
+                detector = factory.get();
+            } catch (RuntimeException | Error e) {
+                pool.release();
+                throw e;
+            }
+            loaded.incrementAndGet();
+        }
+        detector.setBackend(backend, target);
+        inUse.incrementAndGet();
+        return new Lease(detector, pool);
+    }
+
+    /**
+     * Detects objects in a given image with a detector of the pool.
+     * @param buffImg The BufferedImage to process.
+     * @param maxLabelNb The maximum number of labels to return per frame.
+     * @return A HashMap containing detected objects and their information within frames,
+     *         empty if the model couldn't be loaded or if the thread was interrupted.
+     */
+    public HashMap<Frame, ArrayList<Map<String, Object>>> detectObjects(BufferedImage buffImg, int maxLabelNb) {
+        if (isEmpty()) {
+            return new HashMap<>();
+        }
+        try (Lease lease = checkout()) {
+            return lease.get().detectObjects(buffImg, maxLabelNb);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Gets the largest number of detectors.
+     * @return The size of the pool.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of detectors loaded.
+     * @return The number of detectors.
+     */
+    public int getLoaded() {
+        return loaded.get();
+    }
+
+    /**
+     * Gets the number of detectors checked out, from the current pool or from a previous one
+     * until they are returned.
+     * @return The number of detectors in use.
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Gets the number of checkouts.
+     * @return The number of checkouts.
+     */
+    public long getCheckouts() {
+        return checkouts.get();
+    }
+
+    /**
+     * Gets the number of checkouts which waited for a detector to be returned.
+     * @return The number of checkouts.
+     */
+    public long getWaited() {
+        return waited.get();
+    }
+
+    /**
+     * Gets the average time a checkout waited for a detector.
+     * @return The average wait in milliseconds.
+     */
+    public double getAverageWaitMillis() {
+        long count = checkouts.get();
+        return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * Gets the longest time a checkout waited for a detector.
+     * @return The longest wait in milliseconds.
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+}
@@ -0,0 +1,67 @@
+package pdl.object_recognition;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decodes and encodes images in a file format.
+ * The formats are named as in ImageIO: "jpeg", "png", "bmp" and "gif".
+ */
+public interface ImageCodec {
+
+    /**
+     * Quality of the JPEG images when none is given, the default quality of the ImageIO writer.
+     */
+    float DEFAULT_QUALITY = 0.75f;
+
+    /**
+     * Gets the name of the codec.
+     * @return The name, used to select the codec in the configuration.
+     */
+    String getName();
+
+    /**
+     * Checks if the codec decodes a format.
+     * @param format The format.
+     * @return True if the images of that format can be decoded.
+     */
+    boolean canDecode(String format);
+
+    /**
+     * Checks if the codec encodes a format.
+     * @param format The format.
+     * @return True if images can be encoded in that format.
+     */
+    boolean canEncode(String format);
+
+    /**
+     * Decodes an image, possibly at a reduced resolution.
+     * @param data The encoded image.
+     * @param reduction The factor by which the width and the height are divided, 1, 2, 4 or 8.
+     * @return The decoded image, its size rounded up.
+     * @throws IOException If the data isn't an image the codec can decode.
+     */
+    BufferedImage decode(byte[] data, int reduction) throws IOException;
+
+    /**
+     * Encodes an image.
+     * @param image The image.
+     * @param format The format.
+     * @param quality The quality of the JPEG images, from 0 to 1, ignored by the lossless formats.
+     * @param output The stream the encoded image is written to.
+     * @throws IOException If the image can't be encoded or written.
+     */
+    void encode(BufferedImage image, String format, float quality, OutputStream output) throws IOException;
+
+    /**
+     * Encodes an image, the JPEG images at the default quality.
+     * @param image The image.
+     * @param format The format.
+     * @param output The stream the encoded image is written to.
+     * @throws IOException If the image can't be encoded or written.
+     */
+    default void encode(BufferedImage image, String format, OutputStream output) throws IOException {
+        encode(image, format, DEFAULT_QUALITY, output);
+    }
+}
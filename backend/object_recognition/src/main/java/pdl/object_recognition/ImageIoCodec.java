@@ -0,0 +1,102 @@
+package pdl.object_recognition;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Codec of the Java image I/O readers and writers, which handle every format and color model.
+ * The reduced images are decoded by keeping one pixel out of reduction in each direction.
+ * The writers are kept once they have encoded an image, so that the next images of their format
+ * don't look them up and set them up again.
+ */
+public class ImageIoCodec implements ImageCodec {
+
+    /**
+     * Writers waiting to be reused, by format. A writer encodes one image at a time.
+     */
+    private final Map<String, Queue<ImageWriter>> writers = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return "imageio";
+    }
+
+    @Override
+    public boolean canDecode(String format) {
+        return ImageIO.getImageReadersByFormatName(format).hasNext();
+    }
+
+    @Override
+    public boolean canEncode(String format) {
+        return ImageIO.getImageWritersByFormatName(format).hasNext();
+    }
+
+    @Override
+    public BufferedImage decode(byte[] data, int reduction) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("unknown image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (reduction > 1) {
+                    param.setSourceSubsampling(reduction, reduction, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Override
+    public void encode(BufferedImage image, String format, float quality, OutputStream output) throws IOException {
+        Queue<ImageWriter> idle = writers.computeIfAbsent(format, key -> new ConcurrentLinkedQueue<>());
+        ImageWriter writer = idle.poll();
+        if (writer == null) {
+            Iterator<ImageWriter> available = ImageIO.getImageWritersByFormatName(format);
+            if (!available.hasNext()) {
+                throw new IOException("no " + format + " writer");
+            }
+            writer = available.next();
+        }
+        try {
+            if (!writer.getOriginatingProvider().canEncodeImage(image)) {
+                throw new IOException("the " + format + " writer can't encode images of type " + image.getType());
+            }
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.equals("jpeg")) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            // Cached in memory, ImageIO.write caches in a temporary file by default
+            try (ImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+        } finally {
+            writer.reset();
+            idle.offer(writer);
+        }
+    }
+}
@@ -1,20 +1,13 @@
 package pdl.object_recognition;
 
-import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
-
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 /**
@@ -22,21 +15,6 @@ import org.opencv.imgproc.Imgproc;
  */
 public class Labeling {
 
-    /**
-     * Converts a OpenCV Mat matrix to a BufferedImage.
-     * @param matrix The OpenCV Mat matrix to convert.
-     * @return The BufferedImage representation of the input matrix.
-     * @throws Exception If an error occurs during the conversion.
-     */
-    private static BufferedImage Mat2BufferedImage(Mat matrix) throws Exception {        
-        MatOfByte mob = new MatOfByte();
-        Imgcodecs.imencode(".png", matrix, mob);
-        byte ba[] = mob.toArray();
-    
-        BufferedImage bi = ImageIO.read(new ByteArrayInputStream(ba));
-        return bi;
-    }
-
     /**
      * Labels objects in an image and returns the labeled image.
      * @param bi The input image to label.
@@ -44,9 +22,7 @@ public class Labeling {
      * @return The labeled BufferedImage.
      */
     public static BufferedImage labelImage(BufferedImage bi, ArrayList<Map<String, Object>> objects) {
-        byte[] pixels = ((DataBufferByte) bi.getData().getDataBuffer()).getData();
-        Mat img = new Mat(bi.getHeight(), bi.getWidth(), CvType.CV_8UC3);
-        img.put(0, 0, pixels);
+        Mat img = OpenCvCodec.toMat(bi);
 
         Scalar color = new Scalar(new double[] {0, 0, 255});
 
@@ -84,10 +60,8 @@ public class Labeling {
             Imgproc.putText(img, label, text_point, Imgproc.FONT_HERSHEY_SIMPLEX, 2, color, 2);
         } 
 
-        try {
-            return Mat2BufferedImage(img);
-        } catch (Exception e) {
-            return bi;
-        }
+        BufferedImage labeled = OpenCvCodec.toImage(img);
+        img.release();
+        return labeled;
     } 
 }
\ No newline at end of file
@@ -1,8 +1,8 @@
 package pdl.object_recognition;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -10,7 +10,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
-import org.opencv.core.CvType;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfFloat;
 import org.opencv.core.MatOfInt;
@@ -26,12 +26,35 @@ import nu.pattern.OpenCV;
 
 /**
  * Provides functionality for object recognition using a pre-trained deep learning model.
+ * An instance isn't thread-safe, its network keeping the state of the last forward pass:
+ * the concurrent detections go through a DetectorPool.
  */
 public class ObjectsRecognition {
 
+    /**
+     * Names of the inference backends which can be selected.
+     */
+    private static final Map<String, Integer> BACKENDS = Map.of(
+        "default", Dnn.DNN_BACKEND_DEFAULT,
+        "opencv", Dnn.DNN_BACKEND_OPENCV,
+        "openvino", Dnn.DNN_BACKEND_INFERENCE_ENGINE,
+        "cuda", Dnn.DNN_BACKEND_CUDA);
+
+    /**
+     * Names of the devices the inference can run on.
+     */
+    private static final Map<String, Integer> TARGETS = Map.of(
+        "cpu", Dnn.DNN_TARGET_CPU,
+        "opencl", Dnn.DNN_TARGET_OPENCL,
+        "opencl-fp16", Dnn.DNN_TARGET_OPENCL_FP16,
+        "cuda", Dnn.DNN_TARGET_CUDA,
+        "cuda-fp16", Dnn.DNN_TARGET_CUDA_FP16);
+
     Net dnnNet;
     List<String> labels;
     boolean init = false;
+    private int backend = Dnn.DNN_BACKEND_OPENCV;
+    private int target = Dnn.DNN_TARGET_CPU;
 
     /**
      * Constructs an ObjectsRecognition instance.
@@ -40,21 +63,30 @@ public class ObjectsRecognition {
      * @param cfgPath The path to the configuration file.
      */
     public ObjectsRecognition(String labelsPath, String modelPath, String cfgPath){
+        this(readLabels(labelsPath), modelPath, cfgPath);
+    }
+
+    /**
+     * Constructs an ObjectsRecognition instance with labels already read, shared with other instances.
+     * @param labels The class labels, or null if they couldn't be read.
+     * @param modelPath The path to the pre-trained model file.
+     * @param cfgPath The path to the configuration file.
+     */
+    public ObjectsRecognition(List<String> labels, String modelPath, String cfgPath){
         OpenCV.loadLocally();
 
         try {
-            Scanner scan = new Scanner(new FileReader(labelsPath));
-            this.labels = new ArrayList<String>();
-            while(scan.hasNextLine()) {
-                labels.add(scan.nextLine());        
+            if (labels == null) {
+                throw new IllegalArgumentException("no labels");
             }
-            scan.close();
+            this.labels = labels;
             
             this.dnnNet = Dnn.readNetFromDarknet(cfgPath,
             modelPath);
 
-            this.dnnNet.setPreferableBackend(Dnn.DNN_BACKEND_CUDA);
-            this.dnnNet.setPreferableTarget(Dnn.DNN_TARGET_CUDA);
+            // The CPU backend of OpenCV, unless another one is selected with setBackend
+            this.dnnNet.setPreferableBackend(backend);
+            this.dnnNet.setPreferableTarget(target);
             this.init = true;
         }
         catch (Exception e){
@@ -64,6 +96,118 @@ public class ObjectsRecognition {
         
     }
 
+    /**
+     * Reads the class labels, one per line.
+     * @param labelsPath The path to the file containing class labels.
+     * @return The labels, or null if the file can't be read.
+     */
+    public static List<String> readLabels(String labelsPath){
+        try {
+            Scanner scan = new Scanner(new FileReader(labelsPath));
+            List<String> labels = new ArrayList<String>();
+            while(scan.hasNextLine()) {
+                labels.add(scan.nextLine());        
+            }
+            scan.close();
+            return List.copyOf(labels);
+        }
+        catch (IOException e){
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Finds an inference backend by its name.
+     * @param name The name of the backend: default, opencv, openvino or cuda.
+     * @return The backend, one of the Dnn.DNN_BACKEND constants.
+     * @throws IllegalArgumentException If there is no backend of that name.
+     */
+    public static int backend(String name) {
+        Integer backend = BACKENDS.get(name.toLowerCase());
+        if (backend == null) {
+            throw new IllegalArgumentException("Unknown inference backend " + name + ", expected one of " + BACKENDS.keySet());
+        }
+        return backend;
+    }
+
+    /**
+     * Finds an inference target by its name.
+     * @param name The name of the target: cpu, opencl, opencl-fp16, cuda or cuda-fp16.
+     * @return The target, one of the Dnn.DNN_TARGET constants.
+     * @throws IllegalArgumentException If there is no target of that name.
+     */
+    public static int target(String name) {
+        Integer target = TARGETS.get(name.toLowerCase());
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown inference target " + name + ", expected one of " + TARGETS.keySet());
+        }
+        return target;
+    }
+
+    /**
+     * Gets the name of an inference backend.
+     * @param backend The backend, one of the Dnn.DNN_BACKEND constants.
+     * @return The name of the backend, or its number if it has no name.
+     */
+    public static String backendName(int backend) {
+        return name(BACKENDS, backend);
+    }
+
+    /**
+     * Gets the name of an inference target.
+     * @param target The target, one of the Dnn.DNN_TARGET constants.
+     * @return The name of the target, or its number if it has no name.
+     */
+    public static String targetName(int target) {
+        return name(TARGETS, target);
+    }
+
+    private static String name(Map<String, Integer> names, int value) {
+        for (Map.Entry<String, Integer> entry : names.entrySet()) {
+            if (entry.getValue() == value) {
+                return entry.getKey();
+            }
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Sets the number of threads of OpenCV, shared by the inferences running at the same time.
+     * @param threads The number of threads, 1 to run each inference on its calling thread only.
+     */
+    public static void setThreads(int threads) {
+        OpenCV.loadLocally();
+        Core.setNumThreads(Math.max(1, threads));
+    }
+
+    /**
+     * Gets the number of threads of OpenCV.
+     * @return The number of threads.
+     */
+    public static int getThreads() {
+        OpenCV.loadLocally();
+        return Core.getNumThreads();
+    }
+
+    /**
+     * Selects the backend and the device of the inference. The network is prepared for them
+     * again at its next detection, so it is called by the thread using the network.
+     * @param backend The backend, one of the Dnn.DNN_BACKEND constants.
+     * @param target The target, one of the Dnn.DNN_TARGET constants.
+     */
+    public void setBackend(int backend, int target) {
+        if (backend == this.backend && target == this.target) {
+            return;
+        }
+        this.backend = backend;
+        this.target = target;
+        if (this.init) {
+            this.dnnNet.setPreferableBackend(backend);
+            this.dnnNet.setPreferableTarget(target);
+        }
+    }
+
     /**
      * Checks if the object recognition system is properly initialized.
      * @return False if initialized, true otherwise.
@@ -84,9 +228,7 @@ public class ObjectsRecognition {
             return new HashMap<>();
         }
         
-        byte[] pixels = ((DataBufferByte) buffImg.getData().getDataBuffer()).getData();
-        Mat img = new Mat(buffImg.getHeight(), buffImg.getWidth(), CvType.CV_8UC3);
-        img.put(0, 0, pixels);
+        Mat img = OpenCvCodec.toMat(buffImg);
         //  -- determine  the output layer names that we need from YOLO
         List<String> layerNames = this.dnnNet.getLayerNames();
         List<String> outputLayers = new ArrayList<String>();
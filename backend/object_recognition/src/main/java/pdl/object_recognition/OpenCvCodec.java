@@ -0,0 +1,168 @@
+package pdl.object_recognition;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import nu.pattern.OpenCV;
+
+/**
+ * Codec of OpenCV, whose JPEG decoder and encoder are those of libjpeg-turbo.
+ *
+ * Only the JPEG images are decoded: the other formats may have transparent pixels or palettes,
+ * which OpenCV doesn't read the same way as ImageIO. The reduced JPEG images are decoded with
+ * the IMREAD_REDUCED flags, which scale the DCT blocks down instead of decoding every pixel.
+ * The orientation of the EXIF data is ignored, as ImageIO does.
+ */
+public class OpenCvCodec implements ImageCodec {
+
+    private static final boolean AVAILABLE = load();
+
+    /**
+     * Loads the native library of OpenCV.
+     * @return True if the library is loaded.
+     */
+    private static boolean load() {
+        try {
+            OpenCV.loadLocally();
+            return true;
+        } catch (RuntimeException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if OpenCV can be used on this platform.
+     * @return True if the native library of OpenCV is loaded.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    @Override
+    public String getName() {
+        return "opencv";
+    }
+
+    @Override
+    public boolean canDecode(String format) {
+        return AVAILABLE && format.equals("jpeg");
+    }
+
+    @Override
+    public boolean canEncode(String format) {
+        return AVAILABLE && (format.equals("jpeg") || format.equals("png"));
+    }
+
+    @Override
+    public BufferedImage decode(byte[] data, int reduction) throws IOException {
+        int flags;
+        switch (reduction) {
+            case 1: flags = Imgcodecs.IMREAD_COLOR; break;
+            case 2: flags = Imgcodecs.IMREAD_REDUCED_COLOR_2; break;
+            case 4: flags = Imgcodecs.IMREAD_REDUCED_COLOR_4; break;
+            case 8: flags = Imgcodecs.IMREAD_REDUCED_COLOR_8; break;
+            default: throw new IllegalArgumentException("reduction " + reduction + " isn't 1, 2, 4 or 8");
+        }
+
+        MatOfByte encoded = new MatOfByte(data);
+        Mat decoded = Imgcodecs.imdecode(encoded, flags | Imgcodecs.IMREAD_IGNORE_ORIENTATION);
+        encoded.release();
+        try {
+            if (decoded.empty()) {
+                throw new IOException("can't decode the image");
+            }
+            return toImage(decoded);
+        } finally {
+            decoded.release();
+        }
+    }
+
+    @Override
+    public void encode(BufferedImage image, String format, float quality, OutputStream output) throws IOException {
+        Mat mat = toMat(image);
+        MatOfByte encoded = new MatOfByte();
+        MatOfInt params = format.equals("jpeg") ? new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, Math.round(quality*100)) : new MatOfInt();
+        try {
+            if (!Imgcodecs.imencode(format.equals("jpeg") ? ".jpg" : "." + format, mat, encoded, params)) {
+                throw new IOException("can't encode the image in " + format);
+            }
+            output.write(encoded.toArray());
+        } finally {
+            mat.release();
+            encoded.release();
+            params.release();
+        }
+    }
+
+    /**
+     * Copies an image to an OpenCV matrix.
+     * The gray images give a matrix of one channel, the others a BGR matrix of three channels.
+     * @param image The image.
+     * @return The matrix, to be released by the caller.
+     */
+    public static Mat toMat(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // The subimages share the data of their parent, which doesn't start at their first pixel
+        boolean whole = image.getRaster().getParent() == null;
+
+        if (whole && image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            Mat mat = new Mat(height, width, CvType.CV_8UC1);
+            // The array may be longer than the image, when it comes from a pool
+            mat.put(0, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), 0, width*height);
+            return mat;
+        }
+
+        byte[] bgr;
+        if (whole && image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        } else if (whole && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            bgr = new byte[3*width*height];
+            for (int i = 0, j = 0; i < width*height; i++, j += 3) {
+                bgr[j] = (byte) rgb[i];
+                bgr[j + 1] = (byte) (rgb[i] >> 8);
+                bgr[j + 2] = (byte) (rgb[i] >> 16);
+            }
+        } else {
+            BufferedImage converted = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g2d = converted.createGraphics();
+            g2d.drawImage(image, 0, 0, null);
+            g2d.dispose();
+            bgr = ((DataBufferByte) converted.getRaster().getDataBuffer()).getData();
+        }
+
+        Mat mat = new Mat(height, width, CvType.CV_8UC3);
+        mat.put(0, 0, bgr, 0, 3*width*height);
+        return mat;
+    }
+
+    /**
+     * Copies an OpenCV matrix to an image.
+     * @param mat The matrix, of type CV_8UC3 in BGR order or CV_8UC1.
+     * @return An image of type TYPE_3BYTE_BGR or TYPE_BYTE_GRAY.
+     */
+    public static BufferedImage toImage(Mat mat) {
+        int type;
+        if (mat.type() == CvType.CV_8UC3) {
+            type = BufferedImage.TYPE_3BYTE_BGR;
+        } else if (mat.type() == CvType.CV_8UC1) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else {
+            throw new IllegalArgumentException("unsupported matrix type " + CvType.typeToString(mat.type()));
+        }
+        BufferedImage image = new BufferedImage(mat.cols(), mat.rows(), type);
+        mat.get(0, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+}